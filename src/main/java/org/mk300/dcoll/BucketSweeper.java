@@ -0,0 +1,381 @@
+/*
+ * Copyright 2016 Masazumi Kobayashi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mk300.dcoll;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.container.DataContainer;
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.distribution.DistributionManager;
+import org.infinispan.remoting.transport.Address;
+import org.mk300.dcoll.DistributedOneToMany.BucketEntry;
+import org.mk300.dcoll.DistributedOneToMany.BucketMeta;
+import org.mk300.dcoll.DistributedOneToMany.BucketMetaRoot;
+import org.mk300.dcoll.DistributedOneToMany.BucketTrasfer;
+import org.mk300.dcoll.DistributedSearchableList.RangeMeta;
+import org.mk300.dcoll.DistributedSearchableList.SortedBucketEntry;
+import org.mk300.dcoll.LongOneToMany.LongBucketEntry;
+
+/**
+ * {@link DistributedOneToMany}({@link LongOneToMany}、{@link DistributedSearchableList})のゴミを回収するスイーパー<br>
+ * JDGクラスタの各ノードで起動し、ローカルのデータコンテナを定期的に走査して以下を削除する。
+ * <ul>
+ * <li>期限切れの{@link BucketTrasfer}(キャッシュのexpirationの起動間隔を待たずに削除する)</li>
+ * <li>期限切れのメタページ({@link DistributedOneToMany#getMetaPageSize()}で分割・統合により置き換えられた{@link BucketMeta})</li>
+ * <li>どの{@link BucketMeta}からも参照されていない孤立バケット(U1～U4の途中で失敗した更新の残骸)</li>
+ * </ul>
+ * 孤立バケットは、このノードがプライマリオーナーのバケットのみを対象とし、
+ * 1回目の走査で候補とし、{@link #getOrphanGraceMills()}経過後の走査でも参照されていない場合に削除する(更新中のバケットを誤って削除しないため)。<br>
+ * 孤立バケットの判定には{@link BucketEntry#getKey()}({@link LongBucketEntry#getKey()})を使用するため、第一キーを保持していないバケットは対象外となる。<br>
+ * フォアグラウンドの処理を妨げないよう、{@link BucketMeta}の読み取りと削除は{@link #getMaxOperationsPerSecond()}以下に制限される。
+ *
+ * @author mkobayas@redhat.com
+ *
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class BucketSweeper {
+
+    /**
+     * {@link #start()}による定期的な走査が例外で失敗した場合に呼び出される。デフォルトは何もしない(次回の走査で再試行する)。<br>
+     * 失敗の件数は{@link #getTotalErrors()}、直近の例外は{@link #getLastError()}で参照できる。
+     *
+     * @param e 走査で発生した例外
+     */
+    public void onError(RuntimeException e) {
+    }
+
+    /**
+     * 走査の間隔(ミリ秒)
+     *
+     * @return 走査の間隔
+     */
+    public long getSweepIntervalMills() {
+        return 60000;
+    }
+
+    /**
+     * 孤立バケットの候補としてから削除するまでの猶予(ミリ秒)。1回の更新に要する時間よりも十分に長くすること。
+     *
+     * @return 孤立バケットの削除までの猶予
+     */
+    public long getOrphanGraceMills() {
+        return 60000;
+    }
+
+    /**
+     * 1秒当たりの{@link BucketMeta}の読み取りと削除の上限。0以下の場合は制限しない。
+     *
+     * @return 1秒当たりの操作数の上限
+     */
+    public int getMaxOperationsPerSecond() {
+        return 1000;
+    }
+
+    private final AdvancedCache cache;
+
+    private final Map<SubKey, Long> orphanCandidates = new HashMap<>();
+
+    private final AtomicLong totalTransfers = new AtomicLong();
+    private final AtomicLong totalOrphans = new AtomicLong();
+    private final AtomicLong totalSweeps = new AtomicLong();
+    private final AtomicLong totalErrors = new AtomicLong();
+
+    private volatile RuntimeException lastError;
+
+    private ScheduledExecutorService scheduler;
+
+    public BucketSweeper(Cache cache) {
+        this.cache = cache.getAdvancedCache();
+    }
+
+    /**
+     * 定期的な走査を開始する。
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "BucketSweeper-" + cache.getName());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    // 次回の走査で再試行する
+                    totalErrors.incrementAndGet();
+                    lastError = e;
+                    onError(e);
+                }
+            }
+        }, getSweepIntervalMills(), getSweepIntervalMills(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 定期的な走査を停止する。
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * ローカルのデータコンテナを1回走査する。
+     *
+     * @return 今回の走査で削除した件数
+     * @throws InterruptedException 流量制限の待機中に割り込まれた場合
+     */
+    public synchronized SweepResult sweep() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        DataContainer container = cache.getDataContainer();
+        DistributionManager dm = cache.getDistributionManager();
+        Address self = cache.getCacheManager().getAddress();
+        RateLimiter limiter = new RateLimiter(getMaxOperationsPerSecond());
+
+        long scanned = 0;
+        long transfers = 0;
+        long orphans = 0;
+        Map<SubKey, Long> candidates = new HashMap<>();
+        Map<Object, Set<SubKey>> pagedSubKeys = new HashMap<>();
+
+        for (InternalCacheEntry entry : container) {
+            if (!(entry.getKey() instanceof SubKey)) {
+                continue;
+            }
+            scanned++;
+
+            SubKey subKey = (SubKey) entry.getKey();
+            Object value = entry.getValue();
+
+            if (value instanceof BucketTrasfer || value instanceof BucketMeta) {
+                if (entry.isExpired(now)) {
+                    // 期限切れのデータ移行リンク(置き換えられたメタページを含む)は各ノードのローカルコピーを削除する
+                    limiter.acquire();
+                    if (container.remove(subKey) != null) {
+                        transfers++;
+                    }
+                }
+                continue;
+            }
+
+            Object key;
+            if (value instanceof BucketEntry) {
+                key = ((BucketEntry) value).getKey();
+            } else if (value instanceof LongBucketEntry) {
+                key = ((LongBucketEntry) value).getKey();
+            } else if (value instanceof SortedBucketEntry) {
+                key = ((SortedBucketEntry) value).getKey();
+            } else {
+                continue;
+            }
+            if (key == null) {
+                continue;
+            }
+            if (dm != null && self != null && !self.equals(dm.getPrimaryLocation(subKey))) {
+                continue;
+            }
+
+            limiter.acquire();
+            if (isReferenced(key, subKey, pagedSubKeys, limiter)) {
+                continue;
+            }
+
+            Long firstSeen = orphanCandidates.get(subKey);
+            if (firstSeen == null) {
+                // 1回目: 候補とする
+                candidates.put(subKey, now);
+            } else if (now - firstSeen < getOrphanGraceMills()) {
+                candidates.put(subKey, firstSeen);
+            } else {
+                // 2回目: 猶予経過後も参照されていない -> 削除
+                limiter.acquire();
+                if (cache.remove(subKey, value)) {
+                    orphans++;
+                }
+            }
+        }
+
+        // 今回の走査で見つからなかった候補は破棄する
+        orphanCandidates.clear();
+        orphanCandidates.putAll(candidates);
+
+        totalTransfers.addAndGet(transfers);
+        totalOrphans.addAndGet(orphans);
+        totalSweeps.incrementAndGet();
+
+        return new SweepResult(scanned, transfers, orphans, candidates.size());
+    }
+
+    /**
+     * @param pagedSubKeys 今回の走査で読み取った2階層のBucketMetaのサブキー(全てのメタページの読み取りはkey毎に1回とする)
+     */
+    private boolean isReferenced(Object key, SubKey subKey, Map<Object, Set<SubKey>> pagedSubKeys, RateLimiter limiter) throws InterruptedException {
+        Set<SubKey> subKeys = pagedSubKeys.get(key);
+        if (subKeys != null) {
+            return subKeys.contains(subKey);
+        }
+        Object meta = cache.get(key);
+        if (meta instanceof BucketMetaRoot) {
+            BucketMetaRoot root = (BucketMetaRoot) meta;
+            for (int i = 0; i < root.pageNum(); i++) {
+                limiter.acquire();
+            }
+            BucketMeta flat = DistributedOneToMany.readMeta(cache, key);
+            subKeys = flat == null ? new HashSet<SubKey>() : new HashSet<>(flat.getSubKeyList());
+            pagedSubKeys.put(key, subKeys);
+            return subKeys.contains(subKey);
+        }
+        if (meta instanceof RangeMeta) {
+            return ((RangeMeta) meta).indexOf(subKey) >= 0;
+        }
+        return meta instanceof BucketMeta && ((BucketMeta) meta).indexOf(subKey) >= 0;
+    }
+
+    /**
+     * 起動後に削除した期限切れの{@link BucketTrasfer}の累計
+     */
+    public long getTotalTransfers() {
+        return totalTransfers.get();
+    }
+
+    /**
+     * 起動後に削除した孤立バケットの累計
+     */
+    public long getTotalOrphans() {
+        return totalOrphans.get();
+    }
+
+    /**
+     * 起動後の走査回数
+     */
+    public long getTotalSweeps() {
+        return totalSweeps.get();
+    }
+
+    /**
+     * 起動後に例外で失敗した定期的な走査の累計
+     */
+    public long getTotalErrors() {
+        return totalErrors.get();
+    }
+
+    /**
+     * 定期的な走査で直近に発生した例外
+     *
+     * @return 直近の例外。発生していない場合はnull
+     */
+    public RuntimeException getLastError() {
+        return lastError;
+    }
+
+    /**
+     * 1回の走査結果
+     */
+    public static class SweepResult {
+        private final long scanned;
+        private final long transfers;
+        private final long orphans;
+        private final long orphanCandidates;
+
+        public SweepResult(long scanned, long transfers, long orphans, long orphanCandidates) {
+            this.scanned = scanned;
+            this.transfers = transfers;
+            this.orphans = orphans;
+            this.orphanCandidates = orphanCandidates;
+        }
+
+        /**
+         * 走査したサブキーの件数
+         */
+        public long getScanned() {
+            return scanned;
+        }
+
+        /**
+         * 削除した期限切れの{@link BucketTrasfer}の件数
+         */
+        public long getTransfers() {
+            return transfers;
+        }
+
+        /**
+         * 削除した孤立バケットの件数
+         */
+        public long getOrphans() {
+            return orphans;
+        }
+
+        /**
+         * 次回の走査で削除される可能性のある孤立バケットの候補の件数
+         */
+        public long getOrphanCandidates() {
+            return orphanCandidates;
+        }
+
+        @Override
+        public String toString() {
+            return "SweepResult [scanned=" + scanned + ", transfers=" + transfers + ", orphans=" + orphans + ", orphanCandidates=" + orphanCandidates + "]";
+        }
+    }
+
+    /**
+     * 1秒当たりの操作数を制限する
+     */
+    private static class RateLimiter {
+        private final long intervalNanos;
+        private long next = System.nanoTime();
+
+        RateLimiter(int permitsPerSecond) {
+            this.intervalNanos = permitsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / permitsPerSecond : 0;
+        }
+
+        void acquire() throws InterruptedException {
+            if (intervalNanos <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (next > now) {
+                TimeUnit.NANOSECONDS.sleep(next - now);
+            } else {
+                next = now;
+            }
+            next += intervalNanos;
+        }
+    }
+}
@@ -16,18 +16,72 @@
 
 package org.mk300.dcoll;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.io.Serializable;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
 
 import org.infinispan.AdvancedCache;
 import org.infinispan.Cache;
+import org.infinispan.atomic.Delta;
+import org.infinispan.atomic.DeltaAware;
+import org.infinispan.commons.CacheException;
+import org.infinispan.commons.marshall.AbstractExternalizer;
+import org.infinispan.commons.marshall.AdvancedExternalizer;
+import org.infinispan.commons.util.concurrent.FutureListener;
+import org.infinispan.commons.util.concurrent.NotifyingFuture;
+import org.infinispan.context.Flag;
+import org.infinispan.distexec.DefaultExecutorService;
+import org.infinispan.distexec.DistributedCallable;
+import org.infinispan.distexec.DistributedExecutorService;
+import org.infinispan.distribution.DistributionManager;
+import org.infinispan.distribution.ch.ConsistentHash;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryInvalidated;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.annotation.TransactionCompleted;
+import org.infinispan.notifications.cachelistener.event.CacheEntryEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryModifiedEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryRemovedEvent;
+import org.infinispan.notifications.cachelistener.event.TransactionCompletedEvent;
+import org.infinispan.remoting.transport.Address;
+import org.infinispan.transaction.LockingMode;
+import org.infinispan.transaction.xa.GlobalTransaction;
 
 /**
  * Distribute one to many bucket<br>
@@ -50,8 +104,196 @@ abstract public class DistributedOneToMany<K, VK, V> {
 
     abstract public long getTransferExpireMills();
 
+    /**
+     * 複数バケットの一括取得({@link #getValues(Object)}等)や一括更新({@link #putAll(Object, Map)}等)で、
+     * 同時に発行する非同期要求の上限数。<br>
+     * 大きくするほどレイテンシは小さくなるが、各ノードへの負荷が高くなる。
+     * 
+     * @return 同時に発行する要求数の上限
+     */
+    public int getMaxInFlightFetch() {
+        return 32;
+    }
+
+    /**
+     * trueの場合、更新系メソッド(put, putAll, remove)をkeyのプライマリオーナーノード上で実行する。<br>
+     * 呼び出し元は更新内容のみをオーナーノードに送信し、{@link BucketMeta}の取得、バケットの分割・統合、
+     * 更新はオーナーノード上で行われる。このため、単純なputのRPCは1回となり、大きなバケットが呼び出し元に転送されることもない。<br>
+     * このモードでは、同一keyに対する更新はオーナーノード上で排他されるため、呼び出し元でのクラスタワイドロックは不要である。
+     * 但し、リバランスによりプライマリオーナーが移動している最中の排他は保証されない。<br>
+     * このモードを使用するサブクラスは、publicな(Cache)コンストラクタを持ち、全てのノードのクラスパス上に存在しなければならない。
+     * 
+     * @return オーナーノード上で更新を実行する場合はtrue
+     */
+    public boolean isOwnerExecution() {
+        return false;
+    }
+
+    /**
+     * バケットのサブキーの配置方針。デフォルトは{@link SubKeyPlacement#RANDOM}。<br>
+     * 配置方針は新しく生成されるサブキーにのみ適用される。
+     * 
+     * @return サブキーの配置方針
+     * @see SubKeyPlacement
+     */
+    public SubKeyPlacement getSubKeyPlacement() {
+        return SubKeyPlacement.RANDOM;
+    }
+
+    /**
+     * {@link #iterator(Object)}で先読みするバケットの数。<br>
+     * イテレータが保持するメモリは、このバケット数分に制限される。
+     * 
+     * @return 先読みするバケットの数
+     */
+    public int getReadAheadBuckets() {
+        return 2;
+    }
+
+    /**
+     * 更新系メソッドの排他方式。デフォルトは{@link LockMode#KEY}。
+     * 
+     * @return 排他方式
+     * @see LockMode
+     */
+    public LockMode getLockMode() {
+        return LockMode.KEY;
+    }
+
+    /**
+     * {@link LockMode#OPTIMISTIC}で、競合により更新をやり直す回数の上限。
+     * この回数を超えた場合は{@link CacheException}となる。
+     * 
+     * @return 更新をやり直す回数の上限
+     */
+    public int getMaxOptimisticRetry() {
+        return 100;
+    }
+
+    /**
+     * 参照系メソッドで使用する{@link BucketMeta}のニアキャッシュの最大件数。0の場合はニアキャッシュを使用しない(デフォルト)。<br>
+     * ニアキャッシュは件数を超えるとLRUで追い出され、ローカルノードで検知したkeyの更新により無効化される。
+     * 他ノードでの更新を検知できずにBucketMetaが古くなった場合でも、サブキーのバケットが存在する限り
+     * そのハッシュ範囲は変化しない(分割・統合時は{@link BucketTrasfer}に置き換わる)ため、正しい値を読み取ることができる。
+     * バケットが見つからない場合は、ニアキャッシュを無効化してBucketMetaを読み直す。<br>
+     * ニアキャッシュを使用する場合は、不要になった時点で{@link #close()}を呼び出すこと。
+     * 
+     * @return ニアキャッシュの最大件数
+     */
+    public int getNearCacheSize() {
+        return 0;
+    }
+
+    /**
+     * 1つのメタページが保持するバケット数の上限。0の場合は{@link BucketMeta}を1階層で保持する(デフォルト)。<br>
+     * 1以上の場合、バケット数がこの値を超えたkeyは、{@link BucketMetaRoot}からハッシュ範囲毎のメタページ({@link BucketMeta})を
+     * 参照する2階層の構造となり、更新時は対象のメタページのみを書き込む。このため、バケット数が増えてもBucketMetaの更新コストは一定となる。<br>
+     * {@link LockMode#KEY}でのみ使用することができる。
+     * 
+     * @return 1メタページ当たりのバケット数の上限
+     */
+    public int getMetaPageSize() {
+        return 0;
+    }
+
+    /**
+     * 新規キーの想定件数。0の場合は1つのバケットから開始し、件数の増加に応じて分割する(デフォルト)。<br>
+     * 1以上の場合、新規キーの作成時に想定件数に応じた数の空バケットを事前に作成する({@link #presize(Object, int)}と同じ)。
+     * 件数の多いkeyで、ロード中のバケット分割と{@link BucketTrasfer}の投入を避けることができる。
+     * 
+     * @return 新規キーの想定件数
+     */
+    public int getExpectedValueCount() {
+        return 0;
+    }
+
+    /**
+     * {@link #putBuffered(Object, Object, Object)}、{@link #removeBuffered(Object, Object)}で、
+     * 1つのkeyに溜める更新の件数の上限。この件数に達した時点で、そのkeyの更新をまとめて反映する。
+     * 
+     * @return 1つのkeyに溜める更新の件数の上限
+     */
+    public int getWriteBufferSize() {
+        return 1000;
+    }
+
+    /**
+     * {@link #putBuffered(Object, Object, Object)}、{@link #removeBuffered(Object, Object)}で、
+     * 更新を溜める時間(ミリ秒)。最初の更新からこの時間が経過したkeyの更新をまとめて反映する。
+     * 
+     * @return 更新を溜める時間
+     */
+    public long getWriteBufferMills() {
+        return 100;
+    }
+
+    /**
+     * バックグラウンドのスレッドでの、経過時間による溜めた更新の反映が例外で失敗した場合に呼び出される。
+     * デフォルトは何もしない(反映できなかった更新は戻され、次回の反映で再試行する)。<br>
+     * 失敗の件数は{@link #getTotalFlushErrors()}、直近の例外は{@link #getLastFlushError()}で参照できる。
+     * 
+     * @param key 反映に失敗したkey
+     * @param e 反映で発生した例外
+     */
+    public void onFlushError(K key, RuntimeException e) {
+    }
+
+    /**
+     * {@link #addChangeListener(ChangeListener)}で登録したリスナーが例外をスローした場合に呼び出される。
+     * デフォルトは何もしない(リスナーの例外でキャッシュの更新は失敗しない)。<br>
+     * 失敗の件数は{@link #getTotalChangeListenerErrors()}、直近の例外は{@link #getLastChangeListenerError()}で参照できる。
+     * 
+     * @param event 通知した変更
+     * @param e リスナーがスローした例外
+     */
+    public void onChangeListenerError(ChangeEvent<K, VK, V> event, RuntimeException e) {
+    }
+
+    /**
+     * trueの場合、valueKeyからkeyを引く逆引きインデックスを保持する(デフォルトはfalse)。<br>
+     * 逆引きインデックスは、{@link ReverseKey}(valueKey)を第一キー、keyを第二キーとする{@link DistributedOneToMany}として同じキャッシュに格納され、
+     * 多数のkeyから参照されるvalueKeyでも通常のkeyと同様にバケットの分割で拡張される。
+     * 更新は{@link LockMode#OPTIMISTIC}で行うため、逆引きインデックスのためのクラスタワイドロックは不要である。<br>
+     * {@link #put(Object, Object, Object)}、{@link #putAll(Object, Map)}では順引きの更新の前に、
+     * {@link #remove(Object, Object)}、{@link #removeAll(Object, Collection)}、{@link #remove(Object)}では順引きの更新の後に逆引きインデックスを更新する。
+     * このため、逆引きインデックスは順引きのkeyを漏らさないが、更新の途中で失敗した場合は削除済みのkeyを含むことがある。
+     * 同一keyの更新が呼び出し元で排他されていない場合({@link LockMode#KEY}以外、または{@link #isOwnerExecution()}がtrue)は、
+     * 同一のkeyとvalueKeyへの追加と削除が並行すると、一時的に順引きと一致しないことがある。<br>
+     * 有効にした場合、非同期の更新({@link #putAsync(Object, Object, Object)}等)は使用できない。
+     * 
+     * @return 逆引きインデックスを保持する場合はtrue
+     * @see #getKeys(Object)
+     */
+    public boolean isReverseIndex() {
+        return false;
+    }
+
     private AdvancedCache cache;
 
+    private DistributedExecutorService executor;
+
+    private volatile NearCache nearCache;
+
+    private NearCacheInvalidator nearCacheInvalidator;
+
+    private final AtomicInteger spreadCounter = new AtomicInteger();
+
+    private final ConcurrentHashMap<K, PendingWrites> pendingWrites = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService flushScheduler;
+
+    private final AtomicLong totalFlushErrors = new AtomicLong();
+
+    private volatile RuntimeException lastFlushError;
+
+    private volatile ReverseIndex<K, VK> reverseIndex;
+
+    private volatile ChangeNotifier changeNotifier;
+
+    private final AtomicLong totalChangeListenerErrors = new AtomicLong();
+
+    private volatile RuntimeException lastChangeListenerError;
+
     public DistributedOneToMany(Cache cache) {
         this.cache = (AdvancedCache) cache;
     }
@@ -62,7 +304,7 @@ abstract public class DistributedOneToMany<K, VK, V> {
      * この時、このキャッシュに対する読み取り操作の同時アクセスを可能とするためにデータ移行用のvalue(
      * {@link BucketTrasfer} が putされる。<br>
      * このBucketTrasferは、バケット分割前のsubKeyでバケット分割後のデータを読み取るために用いられる。<br>
-     * <b>必ずkeyでクラスタワイドロックを取得すること。</b>
+     * <b>{@link LockMode#KEY}の場合は、必ずkeyでクラスタワイドロックを取得すること。</b>
      * 
      * @param key 第一キー
      * @param valueKey 第二キー
@@ -70,18 +312,49 @@ abstract public class DistributedOneToMany<K, VK, V> {
      * @return 前回の値があれば、その値。無ければnull。
      */
     public V put(K key, VK valueKey, V value) {
+        addReverseIndex(key, Collections.singleton(valueKey));
+        try {
+            if (isOwnerExecution()) {
+                return (V) executeOnOwner(key, new OwnerMutationTask(getClass(), OwnerMutationTask.PUT, key, valueKey, value));
+            }
+            return doPut(key, valueKey, value);
+        } finally {
+            invalidateNearCache(key);
+        }
+    }
 
-        BucketMeta meta = (BucketMeta) cache.get(key);
+    private V doPut(K key, VK valueKey, V value) {
+        checkMetaPageSize();
+        if (getLockMode() == LockMode.OPTIMISTIC) {
+            return putOptimistic(key, valueKey, value);
+        }
+        if (getLockMode() == LockMode.BUCKET) {
+            checkBucketLock();
+            return putBucketLock(key, valueKey, value);
+        }
+
+        int hash = HashFunction.hash(valueKey);
+        MetaSlot slot = getMetaSlot(key, hash);
+        BucketMeta meta = slot.getMeta();
 
         if (meta == null) {
             // 新規キー
-            meta = new BucketMeta();
+            if (getExpectedValueCount() > 0) {
+                // 想定件数分のバケットを事前に作成
+                Map<SubKey, Object> newBuckets = new LinkedHashMap<>();
+                meta = newKeyLayout(key, getExpectedValueCount(), Collections.singletonMap(valueKey, value), newBuckets);
+                putNewBuckets(newBuckets);
+                slot.update(meta);
+                return null;
+            }
+
+            meta = newBucketMeta(key);
             meta.setBucketSize(0, 1);
 
-            BucketEntry bucket = new BucketEntry();
+            BucketEntry bucket = new BucketEntry(key);
             bucket.getValueMap().put(valueKey, value);
 
-            cache.put(meta.getSubKey(0), bucket);
+            putNewBuckets(Collections.<SubKey, Object> singletonMap(meta.getSubKey(0), bucket));
             cache.put(key, meta);
 
             return null;
@@ -89,7 +362,6 @@ abstract public class DistributedOneToMany<K, VK, V> {
 
         // System.out.println(meta);
         // バケットインデックス特定
-        int hash = HashFunction.hash(valueKey);
         int index = meta.getIndex(hash);
         // System.out.println(hash + "->" + index);
 
@@ -99,621 +371,5805 @@ abstract public class DistributedOneToMany<K, VK, V> {
         BucketEntry<K, VK, V> bucket = (BucketEntry) cache.get(subkey);
         
         if(bucket == null) {
-            bucket = new BucketEntry<>();
+            bucket = new BucketEntry<>(key);
         }
         
         if (bucket.getValueMap().containsKey(valueKey)) {
             // 既にvalueKeyが存在　-> valueを差し替えるだけでルートの構造は変化しない。
-            V preValue = bucket.getValueMap().put(valueKey, value);
-            cache.put(subkey, bucket);
+            V preValue = bucket.getValueMap().get(valueKey);
+            putDelta(subkey, BucketDelta.put(valueKey, value));
             return preValue;
         }
 
-        int bucketSize = meta.getBuketSize(index);
-        if (bucketSize < getMaxBucketSize()) {
+        if (bucket.getValueMap().size() < getMaxBucketSize()) {
             // 新規valueKey、且つ、バケット容量上限以内 -> バケットにvalue追加。
-            bucket.getValueMap().put(valueKey, value);
-            meta.setBucketSize(index, bucket.getValueMap().size());
-            cache.put(subkey, bucket);
-            cache.put(key, meta);
+            // ルートの構造は変化しないため、BucketMetaは更新しない(BucketMetaのバケットサイズは構造変更時点の目安)。
+            putDelta(subkey, BucketDelta.put(valueKey, value));
             return null;
         }
 
-        // バケット分割
-        meta = new BucketMeta(meta); // immutable
-        meta.splitDown(index);
-        int leftIndex = index;
-        int rightIndex = index + 1;
-        int splitPoint = meta.getHashRnge(rightIndex)[0];
-
-        BucketEntry newLeftBucket = new BucketEntry();
-        BucketEntry newRightBucket = new BucketEntry();
-
-        bucket.getValueMap().put(valueKey, value);
-        for (Entry<VK, V> entry : bucket.getValueMap().entrySet()) {
-            VK entryKey = entry.getKey();
-            V entryValue = entry.getValue();
-
-            int entryKeyHash = HashFunction.hash(entryKey);
-            if (entryKeyHash < splitPoint) {
-                newLeftBucket.getValueMap().put(entryKey, entryValue);
-            } else {
-                newRightBucket.getValueMap().put(entryKey, entryValue);
-            }
+        // バケット分割(キャッシュ上のインスタンスは変更しない)
+        Map<VK, V> entries = new HashMap<>(bucket.getValueMap());
+        entries.put(valueKey, value);
+        Map<SubKey, Object> newBuckets = new LinkedHashMap<>();
+        BucketTrasfer tbt = new BucketTrasfer();
+        BucketMeta newMeta = splitBucket(key, meta, index, slot.getHashRnge(meta, index)[0], entries, newBuckets, tbt);
+
+        if (newMeta == null) {
+            // 全てのvalueKeyが同じハッシュ値のため分割できない -> バケットにvalue追加。
+            putDelta(subkey, BucketDelta.put(valueKey, value));
+            return null;
         }
-        meta.setBucketSize(leftIndex, newLeftBucket.getValueMap().size());
-        meta.setBucketSize(rightIndex, newRightBucket.getValueMap().size());
 
-        // 更新 U1-U4までの実行順序が非常に重要
-        SubKey leftSubKey = meta.getSubKey(leftIndex);
-        SubKey RitghtSubKey = meta.getSubKey(rightIndex);
+        if (changeNotifier != null) {
+            // 変更を通知する場合は、追加するvalueを分割前のバケットへの差分として先に書き込む(分割による移動は通知しない)
+            putDelta(subkey, BucketDelta.put(valueKey, value));
+        }
 
+        // 更新 U1-U4までの実行順序が非常に重要
         // put new bucket(U1: order is important)
-        cache.put(leftSubKey, newLeftBucket);
-        cache.put(RitghtSubKey, newRightBucket);
+        putEntries(newBuckets, -1);
 
         // このタイミングでは、新旧バケットがキャッシュ上に存在する。
         // 但し、ローカルのバケットルートもリモートのバケットルートも旧バケットを指し示している。
 
         // transfer (U2: order is important)
         // 古いバケットは削除し、その代わりにデータ移行リンク情報を投入。
-        // データ移行リンク情報は直ぐにゴミになるのでガベージが必要。現状ではgarbageLocalTransferEntry()をJDGクラスタの各ノードで
+        // データ移行リンク情報は直ぐにゴミになるのでガベージが必要。BucketSweeperをJDGクラスタの各ノードで
         // で実行することによりゴミ削除する想定。
-        BucketTrasfer tbt = new BucketTrasfer();
-        tbt.getTransSubKeyList().add(leftSubKey);
-        tbt.getTransSubKeyList().add(RitghtSubKey);
         cache.put(subkey, tbt, getTransferExpireMills(), TimeUnit.MILLISECONDS);
 
         // この時点で旧バケットは消えているが、上記のデータ移行リンクにより、古いsubKeyでのアクセス時に
         // 新バケットに誘導可能となっている。
 
         // update (U4: order is important)
-        cache.put(key, meta);
+        slot.update(newMeta);
 
         return null;
     }
 
     /**
-     * 指定されたkey、valueKeyを元に、そのvalueKeyが存在している可能性があるBucketのsubKeyを特定する。<br>
-     * このメソッドはvalueKeyのハッシュ計算に基いてsubkeyを特定するため高速だが、そのvalueKeyが本当に存在しているかはチェックしない
-     * 。<br>
+     * 上限を超えたバケットを実際のハッシュ値の分布で分割し、分割後のBucketMetaとバケットを生成する。
      * 
      * @param key 第一キー
-     * @param valueKey 第二キー
-     * @return 指定されたKeyが存在しない場合はnull
+     * @param meta 分割前のBucketMeta(変更しない)
+     * @param index 分割するバケットのインデックス
+     * @param lo 分割するバケットのハッシュ範囲の下限
+     * @param entries 分割するバケットの内容(追加するvalueを含む)
+     * @param newBuckets 分割後のバケットの格納先
+     * @param tbt 分割後のバケットのサブキーの格納先
+     * @return 分割後のBucketMeta。全てのvalueKeyが同じハッシュ値のため分割できない場合はnull
      */
-    public SubKey getSubKey(K key, VK valueKey) {
-        BucketMeta meta = (BucketMeta) cache.get(key);
-        if (meta == null) {
+    private BucketMeta splitBucket(K key, BucketMeta meta, int index, int lo, Map<VK, V> entries, Map<SubKey, Object> newBuckets, BucketTrasfer tbt) {
+        List<Integer> minHashList = new ArrayList<>();
+        List<Map<VK, V>> pieceList = new ArrayList<>();
+        splitEntries(entries, lo, minHashList, pieceList);
+        if (minHashList.size() == 1) {
             return null;
         }
 
-        int hash = HashFunction.hash(valueKey);
-        int index = meta.getIndex(hash);
-        return meta.getSubKey(index);
+        meta = new BucketMeta(meta); // immutable
+        meta.splitDown(index, toIntArray(minHashList), subKeyFactory(key));
+        for (int i = 0; i < pieceList.size(); i++) {
+            BucketEntry newBucket = new BucketEntry(key);
+            newBucket.getValueMap().putAll(pieceList.get(i));
+            meta.setBucketSize(index + i, newBucket.getValueMap().size());
+
+            SubKey newSubKey = meta.getSubKey(index + i);
+            newBuckets.put(newSubKey, newBucket);
+            tbt.getTransSubKeyList().add(newSubKey);
+        }
+        return meta;
     }
 
     /**
-     * 指定されたkeyとvalueKeyに対応するvalueを削除する。<br>
-     * この操作の結果、第一キーにぶら下がる第二キーが0件になった場合は、第一キーごと削除する。<br>
-     * また、この操作の結果、対象バケットとその隣接バケットの合計データ件数が
-     * {@link #getMinCompactionBucketSize()}
-     * 以下になった場合は、その対象バケットの隣接バケットと統合を実施する。<br>
-     * バケット統合の際に、このキャッシュに対する読み取り操作の同時アクセスを可能とするためにデータ移行用のvalue(
-     * {@link BucketTrasfer} が putされる。<br>
-     * このBucketTrasferは、バケット統合前のsubKeyでバケット統合後のデータを読み取るために用いられる。<br>
-     * <b>必ずkeyでクラスタワイドロックを取得すること。</b>
+     * 指定されたkeyに複数のvalueKeyとvalueを一括でキャッシュする。<br>
+     * 全てのvalueKeyをハッシュ値でバケットに振り分け、最終的なバケット構成を一度に決定する。
+     * {@link #getMaxBucketSize()}を超えるバケットは、1回の操作で必要な数(N個)に分割される。<br>
+     * 対象バケットの更新(U1)、{@link BucketTrasfer}の投入(U2)、{@link BucketMeta}の更新(U4)は
+     * それぞれ1回ずつまとめて実行されるため、{@link #put(Object, Object, Object)}を繰り返すよりも大幅に高速である。<br>
+     * <b>{@link LockMode#KEY}の場合は、必ずkeyでクラスタワイドロックを取得すること。</b>
      * 
      * @param key 第一キー
-     * @param valueKey 第二キー
-     * @return 前回の値があれば、その値。無ければnull。
+     * @param values 第二キーとvalueのMap
      */
-    public V remove(K key, VK valueKey) {
-        BucketMeta meta = (BucketMeta) cache.get(key);
-        if (meta == null) {
-            return null;
+    public void putAll(K key, Map<? extends VK, ? extends V> values) {
+        if (values.isEmpty()) {
+            return;
+        }
+        addReverseIndex(key, values.keySet());
+        try {
+            if (isOwnerExecution()) {
+                executeOnOwner(key, new OwnerMutationTask(getClass(), OwnerMutationTask.PUT_ALL, key, null, new HashMap<>(values)));
+                return;
+            }
+            doPutAll(key, values);
+        } finally {
+            invalidateNearCache(key);
         }
+    }
 
-        int hash = HashFunction.hash(valueKey);
-        int index = meta.getIndex(hash);
-        SubKey subKey = meta.getSubKey(index);
+    /**
+     * 想定件数に応じた数の空バケットを持つkeyを事前に作成する。<br>
+     * ハッシュ範囲を等分割したバケットを1回の操作で作成するため、件数の多いkeyを1つのバケットから
+     * 分割を繰り返して成長させるよりも書き込みが少なく、ロード開始直後から一定のスループットとなる。
+     * 1バケットあたりの件数は{@link #getMaxBucketSize()}の半分を目安とする。<br>
+     * 既にkeyが存在する場合は何もしない。<br>
+     * <b>{@link LockMode#KEY}の場合は、必ずkeyでクラスタワイドロックを取得すること。</b>
+     * 
+     * @param key 第一キー
+     * @param expectedCount 想定件数
+     * @return keyを作成した場合はtrue。既にkeyが存在する場合はfalse
+     * @see #getExpectedValueCount()
+     */
+    public boolean presize(K key, int expectedCount) {
+        try {
+            if (isOwnerExecution()) {
+                return (Boolean) executeOnOwner(key, new OwnerMutationTask(getClass(), OwnerMutationTask.PRESIZE, key, null, expectedCount));
+            }
+            return doPresize(key, expectedCount);
+        } finally {
+            invalidateNearCache(key);
+        }
+    }
 
-        BucketEntry<K, VK, V> bucket = (BucketEntry) cache.get(subKey);
+    private boolean doPresize(K key, int expectedCount) {
+        checkMetaPageSize();
+        Map<VK, V> values = Collections.emptyMap();
+        if (getLockMode() == LockMode.OPTIMISTIC) {
+            return cache.get(key) == null && createKeyOptimistic(key, expectedCount, values);
+        }
+        if (getLockMode() == LockMode.BUCKET) {
+            checkBucketLock();
+            cache.lock(key);
+        }
 
-        if (bucket == null || !bucket.getValueMap().containsKey(valueKey)) {
-            return null;
+        MetaSlot slot = getMetaSlot(key, 0);
+        if (slot.getMeta() != null) {
+            return false;
         }
+        Map<SubKey, Object> newBuckets = new LinkedHashMap<>();
+        BucketMeta meta = newKeyLayout(key, expectedCount, values, newBuckets);
+        putEntries(newBuckets, -1);
+        slot.update(meta);
+        return true;
+    }
 
-        V pre = bucket.getValueMap().remove(valueKey);
+    private void doPutAll(K key, Map<? extends VK, ? extends V> values) {
+        checkMetaPageSize();
+        if (getLockMode() == LockMode.OPTIMISTIC) {
+            putAllOptimistic(key, values, null);
+            return;
+        }
+        if (getLockMode() == LockMode.BUCKET) {
+            checkBucketLock();
+            putAllBucketLock(key, values, null);
+            return;
+        }
 
-        // set decremented size
-        int bucketSize = meta.setBucketSize(index, bucket.getValueMap().size());
+        // 2階層の場合はメタページ毎に更新する
+        Map<VK, V> remaining = new HashMap<>(values);
+        while (!remaining.isEmpty()) {
+            MetaSlot slot = getMetaSlot(key, HashFunction.hash(remaining.keySet().iterator().next()));
+            putAll(slot, slot.extract(remaining));
+        }
+    }
 
-        if (meta.getTotalSize() <= 0) {
-            // completely delete
-            remove(key);
-            return pre;
+    private void putAll(MetaSlot slot, Map<VK, V> values) {
+        K key = slot.getKey();
+        BucketMeta meta = slot.getMeta();
+        if (meta == null) {
+            // 新規キー
+            Map<SubKey, Object> newBuckets = new LinkedHashMap<>();
+            meta = newKeyLayout(key, getExpectedValueCount(), values, newBuckets);
+            putNewBuckets(newBuckets);
+            slot.update(meta);
+            return;
         }
+        meta = new BucketMeta(meta); // immutable
 
-        if (meta.bucketNum() <= 1) {
-            // simple remove case
-            cache.put(subKey, bucket);
-            cache.put(key, meta);
-            return pre;
+        // バケットインデックス毎に振り分け(分割でインデックスがずれないよう降順で処理する)
+        TreeMap<Integer, Map<VK, V>> indexMap = groupByIndex(meta, values);
+
+        // バケット取得
+        List<SubKey> subKeyList = new ArrayList<>(indexMap.size());
+        for (Integer index : indexMap.descendingKeySet()) {
+            subKeyList.add(meta.getSubKey(index));
         }
+        List<BucketEntry> bucketList = getBuckets(subKeyList);
 
-        // size check
-        int anotherIndex;
-        int anotherBucketSize;
+        Map<SubKey, Object> deltas = new LinkedHashMap<>();
+        Map<SubKey, Object> newBuckets = new LinkedHashMap<>();
+        Map<SubKey, Object> transfers = new LinkedHashMap<>();
 
-        if (index == 0) {
-            anotherIndex = index + 1;
-        } else if (index == meta.bucketNum() - 1) {
-            anotherIndex = index - 1;
-        } else {
-            // 左右のバケットの内、小さい方を合併候補とする。
-            if (meta.getBuketSize(index - 1) < meta.getBuketSize(index + 1)) {
-                anotherIndex = index - 1;
-            } else {
-                anotherIndex = index + 1;
+        int i = 0;
+        for (Integer index : indexMap.descendingKeySet()) {
+            SubKey subkey = subKeyList.get(i);
+            BucketEntry<K, VK, V> bucket = bucketList.get(i);
+            i++;
+
+            if (bucket == null) {
+                bucket = new BucketEntry<>(key);
             }
-        }
-        anotherBucketSize = meta.getBuketSize(anotherIndex);
 
-        if (bucketSize + anotherBucketSize > getMinCompactionBucketSize()) {
-            // simple remove case
-            cache.put(subKey, bucket);
-            cache.put(key, meta);
-            return pre;
-        }
+            BucketDelta delta = new BucketDelta();
+            delta.setKey(key);
+            delta.getPutMap().putAll(indexMap.get(index));
 
-        // merge up
-        SubKey anotherSubKey = meta.getSubKey(anotherIndex);
-        BucketEntry<K, VK, V> anotherBucket = (BucketEntry) cache.get(anotherSubKey);
+            // キャッシュ上のインスタンスは変更しない
+            Map<VK, V> merged = new HashMap<>(bucket.getValueMap());
+            merged.putAll(indexMap.get(index));
 
-        int newIndex = Math.min(index, anotherIndex);
+            if (merged.size() <= getMaxBucketSize()) {
+                // バケット容量上限以内 -> 追加・更新したvalueKeyのみを差分で書き込む
+                newBuckets.put(subkey, delta);
+                continue;
+            }
+            if (changeNotifier != null) {
+                // 変更を通知する場合は、分割するバケットにも分割前に差分を書き込む(分割による移動は通知しない)
+                deltas.put(subkey, delta);
+            }
 
-        meta = new BucketMeta(meta); // immutable;
-        meta.mergeUp(newIndex);
+            // バケット分割(N分割)
+            int[] range = slot.getHashRnge(meta, index);
+            List<Integer> minHashList = new ArrayList<>();
+            List<Map<VK, V>> pieceList = new ArrayList<>();
+            splitEntries(merged, range[0], minHashList, pieceList);
 
-        SubKey newSubKey = meta.getSubKey(newIndex);
+            int[] newMinHash = toIntArray(minHashList);
+            meta.splitDown(index, newMinHash, subKeyFactory(key));
 
-        // new merged bucket
-        BucketEntry newBucket = new BucketEntry();
-        newBucket.getValueMap().putAll(bucket.getValueMap());
-        newBucket.getValueMap().putAll(anotherBucket.getValueMap());
-        meta.setBucketSize(newIndex, newBucket.getValueMap().size());
+            BucketTrasfer tbt = new BucketTrasfer();
+            for (int j = 0; j < newMinHash.length; j++) {
+                BucketEntry newBucket = new BucketEntry(key);
+                newBucket.getValueMap().putAll(pieceList.get(j));
+                meta.setBucketSize(index + j, newBucket.getValueMap().size());
 
-        // transfer link
-        BucketTrasfer tbt = new BucketTrasfer();
-        tbt.getTransSubKeyList().add(newSubKey);
+                SubKey newSubKey = meta.getSubKey(index + j);
+                newBuckets.put(newSubKey, newBucket);
+                tbt.getTransSubKeyList().add(newSubKey);
+            }
 
-        cache.put(newSubKey, newBucket);
-        cache.put(subKey, tbt, getTransferExpireMills(), TimeUnit.MILLISECONDS);
-        cache.put(anotherSubKey, tbt, getTransferExpireMills(), TimeUnit.MILLISECONDS);
-        cache.put(key, meta);
+            transfers.put(subkey, tbt);
+        }
 
-        return pre;
+        if (!deltas.isEmpty()) {
+            putEntries(deltas, -1);
+        }
+
+        // 更新 U1-U4までの実行順序が非常に重要
+        // put new bucket(U1: order is important)
+        putEntries(newBuckets, -1);
+
+        if (transfers.isEmpty()) {
+            // 分割なし -> ルートの構造は変化しないため、BucketMetaは更新しない
+            return;
+        }
+
+        // transfer (U2: order is important)
+        putEntries(transfers, getTransferExpireMills());
+
+        // update (U4: order is important)
+        slot.update(meta);
     }
 
     /**
-     * 指定されたkeyにぶら下がる全てのvalueKeyとvalueのMapを取得する(高コスト: バケットの数に比例する)
+     * valueKeyとvalueを、格納先のバケットインデックス毎に振り分ける。
      * 
-     * @param key 第一キー
-     * @return keyにぶら下がる全てのvalueKeyとvalue
+     * @param meta BucketMeta
+     * @param values 振り分け対象のvalueKeyとvalue
+     * @return バケットインデックス毎のvalueKeyとvalue
      */
-    public Map<VK, V> getValues(K key) {
-        Map<VK, V> values = new HashMap<>();
-        BucketMeta meta = (BucketMeta) cache.get(key);
-        if (meta != null) {
-            List<SubKey> subKeyList = meta.getSubKeyList();
-            for (SubKey subkey : subKeyList) {
-                BucketEntry bucket = getBucket(subkey);
-                if (bucket != null) {
-                    values.putAll((Map<VK, V>) bucket.getValueMap());
-                }
+    private TreeMap<Integer, Map<VK, V>> groupByIndex(BucketMeta meta, Map<? extends VK, ? extends V> values) {
+        TreeMap<Integer, Map<VK, V>> indexMap = new TreeMap<>();
+        for (Entry<? extends VK, ? extends V> entry : values.entrySet()) {
+            int index = meta.getIndex(HashFunction.hash(entry.getKey()));
+            Map<VK, V> indexValues = indexMap.get(index);
+            if (indexValues == null) {
+                indexValues = new HashMap<>();
+                indexMap.put(index, indexValues);
             }
+            indexValues.put(entry.getKey(), entry.getValue());
         }
-
-        return values;
-
+        return indexMap;
     }
 
     /**
-     * 指定されたsubKeyにぶら下がるvalueKeyとvalueのMapのみ取得する。(低コスト)
+     * valueKeyとvalueを、各々が{@link #getMaxBucketSize()}以下となるように、実際のハッシュ値の分布で振り分ける。
      * 
-     * @param subKey バケットのサブキー
-     * @return バケットに含まれる全てのvalueKeyとvalue
+     * @param entries 振り分け対象のvalueKeyとvalue
+     * @param lo ハッシュ範囲の下限(この値を含む)
+     * @param minHashList 分割後の各バケットのハッシュ範囲下限の格納先
+     * @param pieceList 分割後の各バケットの内容の格納先
+     * @see #splitPoints(int[], int, int)
      */
-    public Map<VK, V> getValuesBySubKey(SubKey subKey) {
-        Map<VK, V> values = new HashMap<>();
+    private void splitEntries(Map<VK, V> entries, int lo, List<Integer> minHashList, List<Map<VK, V>> pieceList) {
+        int[] hashes = new int[entries.size()];
+        int i = 0;
+        for (VK entryKey : entries.keySet()) {
+            hashes[i++] = HashFunction.hash(entryKey);
+        }
+        int[] bounds = splitPoints(hashes, lo, getMaxBucketSize());
 
-        BucketEntry<K, VK, V> bucket = getBucket(subKey);
-        if (bucket != null) {
-            values.putAll(bucket.getValueMap());
+        List<Map<VK, V>> pieces = new ArrayList<>(bounds.length);
+        for (int k = 0; k < bounds.length; k++) {
+            pieces.add(new HashMap<VK, V>());
+        }
+        for (Entry<VK, V> entry : entries.entrySet()) {
+            int k = Arrays.binarySearch(bounds, HashFunction.hash(entry.getKey()));
+            if (k < 0) {
+                k = -k - 2;
+            }
+            pieces.get(Math.max(0, k)).put(entry.getKey(), entry.getValue());
         }
 
-        return values;
+        for (int k = 0; k < bounds.length; k++) {
+            minHashList.add(bounds[k]);
+            pieceList.add(pieces.get(k));
+        }
     }
 
     /**
-     * 指定されたkeyにぶら下がるバケットのsubKeyのリストを取得する(低コスト)
+     * 実際のハッシュ値の分布(分位点)から、分割後の各バケットのハッシュ範囲下限を決定する。<br>
+     * 分割数は1バケットあたりの件数がmaxBucketSizeの半分を目安となるように決定し(最低2)、
+     * 大幅に超過している場合は1回でN分割する。分割点は隣接するハッシュ値の中間とする。
+     * 同じハッシュ値のvalueKeyは同じバケットとなるため、分割できない位置は飛ばす(全て同じハッシュ値の場合は分割しない)。
      * 
-     * @param key 第一キー
-     * @return バケットのサブキーのリスト
+     * @param hashes 振り分け対象のハッシュ値(この配列はソートされる)
+     * @param lo ハッシュ範囲の下限(この値を含む)
+     * @param maxBucketSize 1バケット当たりの最大件数
+     * @return 分割後の各バケットのハッシュ範囲下限(昇順、先頭はlo)。分割しない場合は長さ1
      */
-    public List<SubKey> getSubKeyList(K key) {
-        BucketMeta meta = (BucketMeta) cache.get(key);
-        if (meta != null) {
-            return meta.getSubKeyList();
-        } else {
-            return new ArrayList<>(0);
+    static int[] splitPoints(int[] hashes, int lo, int maxBucketSize) {
+        int size = hashes.length;
+        if (size <= maxBucketSize) {
+            return new int[] { lo };
+        }
+        Arrays.sort(hashes);
+
+        int n = Math.max(2, size / Math.max(1, maxBucketSize / 2));
+        int[] bounds = new int[n];
+        bounds[0] = lo;
+        int count = 1;
+        for (int k = 1; k < n; k++) {
+            int pos = (int) ((long) size * k / n);
+            // 同じハッシュ値の途中は分割できないため、次のハッシュ値まで進める
+            while (pos < size && hashes[pos] == hashes[pos - 1]) {
+                pos++;
+            }
+            if (pos >= size) {
+                break;
+            }
+            int below = hashes[pos - 1];
+            int above = hashes[pos];
+            int bound = below + (int) (((long) above - below + 1) / 2);
+            if (bound > bounds[count - 1]) {
+                bounds[count++] = bound;
+            }
         }
+        return Arrays.copyOf(bounds, count);
     }
 
     /**
-     * 指定されたキーに、指定されたvalueKeyが存在するかどうかを判定する。
+     * 指定されたエントリを非同期putで並列に書き込み、全ての完了を待ち合わせる。<br>
+     * 同時に発行する要求数は{@link #getMaxInFlightFetch()}で制限される。
      * 
-     * @param key 第一キー
-     * @param valueKey 第二キー
-     * @return valueKeyが含まれている場合はtrue
+     * @param entries 書き込むサブキーと値
+     * @param lifespanMills 有効期限(ミリ秒)。0以下の場合は無期限
      */
-    public boolean isContains(K key, VK valueKey) {
-        BucketMeta meta = (BucketMeta) cache.get(key);
-        if (meta == null) {
-            return false;
+    private void putEntries(Map<SubKey, Object> entries, long lifespanMills) {
+        AdvancedCache cache = this.cache.withFlags(Flag.IGNORE_RETURN_VALUES);
+        int maxInFlight = Math.max(1, getMaxInFlightFetch());
+        LinkedList<Future> inFlight = new LinkedList<>();
+        for (Entry<SubKey, Object> entry : entries.entrySet()) {
+            if (inFlight.size() >= maxInFlight) {
+                waitFor(inFlight.removeFirst());
+            }
+            if (lifespanMills > 0) {
+                inFlight.add(cache.putAsync(entry.getKey(), entry.getValue(), lifespanMills, TimeUnit.MILLISECONDS));
+            } else {
+                inFlight.add(cache.putAsync(entry.getKey(), entry.getValue()));
+            }
         }
+        while (!inFlight.isEmpty()) {
+            waitFor(inFlight.removeFirst());
+        }
+    }
 
-        int hash = HashFunction.hash(valueKey);
-        int index = meta.getIndex(hash);
+    /**
+     * 新規キーのバケットを書き込む。<br>
+     * {@link ChangeNotifier}はバケットの作成を分割・統合による移動とみなして通知しないため、
+     * {@link ChangeListener}の登録中は空のバケットを作成してから内容を書き込み、追加として通知させる。
+     * 
+     * @param newBuckets 新規キーのバケット
+     */
+    private void putNewBuckets(Map<SubKey, Object> newBuckets) {
+        if (changeNotifier != null) {
+            putEntries(emptyBuckets(newBuckets), -1);
+        }
+        putEntries(newBuckets, -1);
+    }
 
-        BucketEntry<K, VK, V> bucket = getBucket(meta.getSubKey(index));
-        if (bucket != null && bucket.getValueMap().containsKey(valueKey)) {
-            return true;
+    /**
+     * 指定されたバケットと同じサブキーの空のバケット
+     */
+    private static Map<SubKey, Object> emptyBuckets(Map<SubKey, Object> newBuckets) {
+        Map<SubKey, Object> emptyBuckets = new LinkedHashMap<>();
+        for (Entry<SubKey, Object> entry : newBuckets.entrySet()) {
+            if (entry.getValue() instanceof BucketEntry) {
+                emptyBuckets.put(entry.getKey(), new BucketEntry(((BucketEntry) entry.getValue()).getKey()));
+            }
         }
+        return emptyBuckets;
+    }
 
-        return false;
+    /**
+     * 指定されたkey、valueKeyを元に、そのvalueKeyが存在している可能性があるBucketのsubKeyを特定する。<br>
+     * このメソッドはvalueKeyのハッシュ計算に基いてsubkeyを特定するため高速だが、そのvalueKeyが本当に存在しているかはチェックしない
+     * 。<br>
+     * 
+     * @param key 第一キー
+     * @param valueKey 第二キー
+     * @return 指定されたKeyが存在しない場合はnull
+     */
+    public SubKey getSubKey(K key, VK valueKey) {
+        int hash = HashFunction.hash(valueKey);
+        BucketMeta meta = readMeta(cache, cache.get(key), hash);
+        if (meta == null) {
+            return null;
+        }
+
+        int index = meta.getIndex(hash);
+        return meta.getSubKey(index);
     }
 
     /**
-     * 指定されたkeyとvalueKeyでvalueを取得する。
+     * 指定されたkeyとvalueKeyに対応するvalueを削除する。<br>
+     * この操作の結果、第一キーにぶら下がる第二キーが0件になった場合は、第一キーごと削除する。<br>
+     * また、この操作の結果、対象バケットとその隣接バケットの合計データ件数が
+     * {@link #getMinCompactionBucketSize()}
+     * 以下になった場合は、その対象バケットの隣接バケットと統合を実施する。<br>
+     * バケット統合の際に、このキャッシュに対する読み取り操作の同時アクセスを可能とするためにデータ移行用のvalue(
+     * {@link BucketTrasfer} が putされる。<br>
+     * このBucketTrasferは、バケット統合前のsubKeyでバケット統合後のデータを読み取るために用いられる。<br>
+     * <b>{@link LockMode#KEY}の場合は、必ずkeyでクラスタワイドロックを取得すること。</b>
      * 
      * @param key 第一キー
      * @param valueKey 第二キー
-     * @return value
+     * @return 前回の値があれば、その値。無ければnull。
      */
-    public V get(K key, VK valueKey) {
-        BucketMeta meta = (BucketMeta) cache.get(key);
+    public V remove(K key, VK valueKey) {
+        V pre;
+        try {
+            if (isOwnerExecution()) {
+                pre = (V) executeOnOwner(key, new OwnerMutationTask(getClass(), OwnerMutationTask.REMOVE, key, valueKey, null));
+            } else {
+                pre = doRemove(key, valueKey);
+            }
+        } finally {
+            invalidateNearCache(key);
+        }
+        removeReverseIndex(key, Collections.singleton(valueKey));
+        return pre;
+    }
+
+    private V doRemove(K key, VK valueKey) {
+        checkMetaPageSize();
+        if (getLockMode() == LockMode.OPTIMISTIC) {
+            return removeOptimistic(key, valueKey);
+        }
+        if (getLockMode() == LockMode.BUCKET) {
+            checkBucketLock();
+            return removeBucketLock(key, valueKey);
+        }
+
+        int hash = HashFunction.hash(valueKey);
+        MetaSlot slot = getMetaSlot(key, hash);
+        BucketMeta meta = slot.getMeta();
         if (meta == null) {
             return null;
         }
 
-        int hash = HashFunction.hash(valueKey);
-        int index = meta.getIndex(hash);
+        int index = meta.getIndex(hash);
+        SubKey subKey = meta.getSubKey(index);
+
+        BucketEntry<K, VK, V> bucket = (BucketEntry) cache.get(subKey);
+
+        if (bucket == null || !bucket.getValueMap().containsKey(valueKey)) {
+            return null;
+        }
+
+        // キャッシュ上のインスタンスは変更しない
+        V pre = bucket.getValueMap().get(valueKey);
+        int bucketSize = bucket.getValueMap().size() - 1;
+
+        if (bucketSize == 0 && slot.isWholeKey() && isEmptyKey(meta, Collections.singleton(subKey))) {
+            // completely delete
+            doRemove(key);
+            return pre;
+        }
+
+        // 合併の判定はBucketMetaのバケットサイズ(目安)ではなく、実際のバケットサイズで行う
+        int anotherIndex = compactionIndex(meta, index, bucketSize);
+        BucketEntry<K, VK, V> anotherBucket = null;
+        if (anotherIndex >= 0) {
+            anotherBucket = getBucket(meta.getSubKey(anotherIndex));
+            if (!isCompaction(bucketSize, anotherBucket == null ? 0 : anotherBucket.getValueMap().size())) {
+                anotherIndex = -1;
+            }
+        }
+        if (anotherIndex < 0) {
+            // simple remove case(ルートの構造は変化しないため、BucketMetaは更新しない)
+            putDelta(subKey, BucketDelta.remove(valueKey));
+            if (bucketSize == 0 && meta.bucketNum() <= 1) {
+                // メタページの唯一のバケットが空になった -> 隣接メタページとの統合のためにBucketMetaを更新する
+                meta = new BucketMeta(meta); // immutable
+                meta.setBucketSize(index, 0);
+                slot.update(meta, true);
+            }
+            return pre;
+        }
+
+        // merge up
+        SubKey anotherSubKey = meta.getSubKey(anotherIndex);
+        if (anotherBucket == null) {
+            anotherBucket = new BucketEntry<>(key);
+        }
+
+        int newIndex = Math.min(index, anotherIndex);
+
+        meta = new BucketMeta(meta); // immutable;
+        meta.mergeUp(newIndex, subKeyFactory(key));
+
+        SubKey newSubKey = meta.getSubKey(newIndex);
+
+        // new merged bucket
+        BucketEntry newBucket = new BucketEntry(key);
+        newBucket.getValueMap().putAll(bucket.getValueMap());
+        newBucket.getValueMap().remove(valueKey);
+        newBucket.getValueMap().putAll(anotherBucket.getValueMap());
+        meta.setBucketSize(newIndex, newBucket.getValueMap().size());
+
+        // transfer link
+        BucketTrasfer tbt = new BucketTrasfer();
+        tbt.getTransSubKeyList().add(newSubKey);
+
+        if (changeNotifier != null) {
+            // 変更を通知する場合は、削除を統合前のバケットへの差分として先に書き込む(統合による移動は通知しない)
+            putDelta(subKey, BucketDelta.remove(valueKey));
+        }
+
+        cache.put(newSubKey, newBucket);
+        cache.put(subKey, tbt, getTransferExpireMills(), TimeUnit.MILLISECONDS);
+        cache.put(anotherSubKey, tbt, getTransferExpireMills(), TimeUnit.MILLISECONDS);
+        // 統合後のバケットがメタページの唯一のバケットで空の場合は、隣接メタページと統合させる
+        slot.update(meta, meta.bucketNum() == 1 && newBucket.getValueMap().isEmpty());
+
+        return pre;
+    }
+
+    /**
+     * 指定されたkeyの複数のvalueKeyのvalueを一括で削除する。<br>
+     * {@link BucketMeta}は1回だけ取得し、valueKeyを格納先のバケット毎に振り分けて、各バケットを1回だけ取得・更新する。
+     * バケットの統合が必要な場合は全ての統合を決定した後に、統合後のバケットの投入(U1)、{@link BucketTrasfer}の投入(U2)、
+     * {@link BucketMeta}の更新(U4)をそれぞれ1回ずつまとめて実行する。<br>
+     * {@link LockMode#OPTIMISTIC}、{@link LockMode#BUCKET}の場合は、valueKey毎に{@link #remove(Object, Object)}を実行する。<br>
+     * この操作の結果、第一キーにぶら下がる第二キーが0件になった場合は、第一キーごと削除する。<br>
+     * <b>{@link LockMode#KEY}の場合は、必ずkeyでクラスタワイドロックを取得すること。</b>
+     * 
+     * @param key 第一キー
+     * @param valueKeys 第二キーのコレクション
+     * @return 削除したvalueKeyと前回の値のMap
+     */
+    public Map<VK, V> removeAll(K key, Collection<? extends VK> valueKeys) {
+        if (valueKeys.isEmpty()) {
+            return new HashMap<>();
+        }
+        Map<VK, V> removed;
+        try {
+            if (isOwnerExecution()) {
+                removed = (Map<VK, V>) executeOnOwner(key, new OwnerMutationTask(getClass(), OwnerMutationTask.REMOVE_ALL, key, null, new ArrayList<>(valueKeys)));
+            } else {
+                removed = doRemoveAll(key, valueKeys);
+            }
+        } finally {
+            invalidateNearCache(key);
+        }
+        removeReverseIndex(key, valueKeys);
+        return removed;
+    }
+
+    private Map<VK, V> doRemoveAll(K key, Collection<? extends VK> valueKeys) {
+        checkMetaPageSize();
+        Map<VK, V> removed = new HashMap<>();
+        if (getLockMode() != LockMode.KEY) {
+            for (VK valueKey : valueKeys) {
+                V pre = doRemove(key, valueKey);
+                if (pre != null) {
+                    removed.put(valueKey, pre);
+                }
+            }
+            return removed;
+        }
+
+        // 2階層の場合はメタページ毎に更新する
+        Map<VK, V> remaining = new HashMap<>();
+        for (VK valueKey : valueKeys) {
+            remaining.put(valueKey, null);
+        }
+        while (!remaining.isEmpty()) {
+            MetaSlot slot = getMetaSlot(key, HashFunction.hash(remaining.keySet().iterator().next()));
+            Map<VK, V> slotKeys = slot.extract(remaining);
+            if (slot.getMeta() != null) {
+                removeAll(slot, slotKeys, removed);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @param valueKeys 削除するvalueKey(Mapのキーのみ使用する)
+     */
+    private void removeAll(MetaSlot slot, Map<VK, V> valueKeys, Map<VK, V> removed) {
+        K key = slot.getKey();
+        BucketMeta meta = new BucketMeta(slot.getMeta()); // immutable
+
+        // バケットインデックス毎に振り分け、対象バケットを1回だけ取得する
+        TreeMap<Integer, Map<VK, V>> indexMap = groupByIndex(meta, valueKeys);
+        List<SubKey> subKeyList = new ArrayList<>(indexMap.size());
+        for (Integer index : indexMap.keySet()) {
+            subKeyList.add(meta.getSubKey(index));
+        }
+        List<BucketEntry> bucketList = getBuckets(subKeyList);
+
+        // 統合後のバケットの内容(サブキー毎)
+        Map<SubKey, Map<VK, V>> contents = new HashMap<>();
+        Map<SubKey, BucketDelta> deltas = new LinkedHashMap<>();
+        int i = 0;
+        for (Entry<Integer, Map<VK, V>> entry : indexMap.entrySet()) {
+            SubKey subKey = subKeyList.get(i);
+            BucketEntry<K, VK, V> bucket = bucketList.get(i++);
+            if (bucket == null) {
+                continue;
+            }
+
+            Map<VK, V> content = new HashMap<>(bucket.getValueMap());
+            BucketDelta delta = new BucketDelta();
+            for (VK valueKey : entry.getValue().keySet()) {
+                V pre = content.remove(valueKey);
+                if (pre != null) {
+                    removed.put(valueKey, pre);
+                    delta.getRemoveSet().add(valueKey);
+                }
+            }
+            if (delta.getRemoveSet().isEmpty()) {
+                continue;
+            }
+            contents.put(subKey, content);
+            deltas.put(subKey, delta);
+        }
+        if (deltas.isEmpty()) {
+            return;
+        }
+
+        if (slot.isWholeKey()) {
+            Set<SubKey> emptied = new HashSet<>();
+            for (Entry<SubKey, Map<VK, V>> entry : contents.entrySet()) {
+                if (entry.getValue().isEmpty()) {
+                    emptied.add(entry.getKey());
+                }
+            }
+            if (emptied.size() == contents.size() && isEmptyKey(meta, emptied)) {
+                // completely delete
+                doRemove(key);
+                return;
+            }
+        }
+
+        // merge up(統合後のバケットが更に統合候補となる場合も含め、全ての統合を決定する)
+        BucketMeta before = slot.getMeta();
+        LinkedList<SubKey> candidates = new LinkedList<>(deltas.keySet());
+        while (!candidates.isEmpty()) {
+            SubKey subKey = candidates.removeFirst();
+            int index = meta.indexOf(subKey);
+            if (index < 0) {
+                continue;
+            }
+            int bucketSize = contents.get(subKey).size();
+            int anotherIndex = compactionIndex(meta, index, bucketSize);
+            if (anotherIndex < 0) {
+                continue;
+            }
+
+            SubKey anotherSubKey = meta.getSubKey(anotherIndex);
+            Map<VK, V> anotherContent = contents.get(anotherSubKey);
+            if (anotherContent == null) {
+                BucketEntry<K, VK, V> anotherBucket = getBucket(anotherSubKey);
+                anotherContent = anotherBucket == null ? new HashMap<VK, V>() : anotherBucket.getValueMap();
+            }
+            if (!isCompaction(bucketSize, anotherContent.size())) {
+                continue;
+            }
+            contents.remove(anotherSubKey);
+            Map<VK, V> merged = new HashMap<>(contents.remove(subKey));
+            merged.putAll(anotherContent);
+
+            int newIndex = Math.min(index, anotherIndex);
+            meta.mergeUp(newIndex, subKeyFactory(key));
+            meta.setBucketSize(newIndex, merged.size());
+
+            SubKey newSubKey = meta.getSubKey(newIndex);
+            contents.put(newSubKey, merged);
+            candidates.add(newSubKey);
+        }
+
+        // 更新 U1-U4までの実行順序が非常に重要
+        Map<SubKey, Object> newBuckets = new LinkedHashMap<>();
+        for (SubKey subKey : meta.getSubKeyList()) {
+            if (before.indexOf(subKey) < 0) {
+                BucketEntry newBucket = new BucketEntry(key);
+                newBucket.getValueMap().putAll(contents.get(subKey));
+                newBuckets.put(subKey, newBucket);
+            }
+        }
+        Map<SubKey, Object> transfers = new LinkedHashMap<>();
+        for (int index = 0; index < before.bucketNum(); index++) {
+            SubKey oldSubKey = before.getSubKey(index);
+            if (meta.indexOf(oldSubKey) < 0) {
+                // 統合により消えたバケットは、そのハッシュ範囲を含む統合後のバケットへ誘導する
+                BucketTrasfer tbt = new BucketTrasfer();
+                tbt.getTransSubKeyList().add(meta.getSubKey(meta.getIndex(before.getHashRnge(index)[0])));
+                transfers.put(oldSubKey, tbt);
+            }
+        }
+
+        // 統合されないバケットは差分のみ書き込む(変更を通知する場合は、統合するバケットにも統合前に差分を書き込む)
+        boolean notify = changeNotifier != null;
+        for (Entry<SubKey, BucketDelta> entry : deltas.entrySet()) {
+            if (notify || meta.indexOf(entry.getKey()) >= 0) {
+                putDelta(entry.getKey(), entry.getValue());
+            }
+        }
+
+        if (transfers.isEmpty()) {
+            // 統合なし -> ルートの構造は変化しないため、BucketMetaは更新しない
+            if (meta.bucketNum() == 1 && contents.get(meta.getSubKey(0)).isEmpty()) {
+                // メタページの唯一のバケットが空になった -> 隣接メタページとの統合のためにBucketMetaを更新する
+                meta.setBucketSize(0, 0);
+                slot.update(meta, true);
+            }
+            return;
+        }
+
+        // put new bucket(U1: order is important)
+        putEntries(newBuckets, -1);
+
+        // transfer (U2: order is important)
+        putEntries(transfers, getTransferExpireMills());
+
+        // update (U4: order is important)
+        // 統合後のバケットがメタページの唯一のバケットで空の場合は、隣接メタページと統合させる
+        Map<VK, V> only = meta.bucketNum() == 1 ? contents.get(meta.getSubKey(0)) : null;
+        slot.update(meta, only != null && only.isEmpty());
+    }
+
+    /**
+     * 指定されたkeyとvalueKeyでvalueをキャッシュする更新を溜める。<br>
+     * 溜めた更新は、keyの更新が{@link #getWriteBufferSize()}件に達した時点、{@link #getWriteBufferMills()}が経過した時点、
+     * または{@link #flush(Object)}の呼び出し時に、{@link #putAll(Object, Map)}と{@link #removeAll(Object, Collection)}で
+     * まとめて反映される。このため、小さな更新を大量に行う場合に、バケットと{@link BucketMeta}の書き込み回数を大幅に削減できる。<br>
+     * 反映前の更新は、このインスタンスの{@link #get(Object, Object)}、{@link #isContains(Object, Object)}、
+     * {@link #getValues(Object)}、{@link #getAll(Object, Collection)}、{@link #iterator(Object)}、{@link #getPage(Object, PageCursor, int)}、
+     * {@link #mapReduce(Object, BucketMapReducer)}、{@link #forEachValue(Object, ValueVisitor)}と、それらの非同期版から参照できる
+     * (他のインスタンス、他のノードからは参照できない)。バケット単位の{@link #getValuesBySubKey(SubKey)}には含まれない。<br>
+     * 経過時間による反映はバックグラウンドのスレッドで行う。{@link LockMode#KEY}、{@link LockMode#BUCKET}の場合は、
+     * バックグラウンドのスレッドでトランザクションを開始し、{@link LockMode#KEY}の場合はkeyでクラスタワイドロックを取得してから反映する
+     * (非トランザクショナルキャッシュの場合は、同じkeyの次の更新の呼び出し時、または{@link #flush(Object)}の呼び出し時に反映する)。
+     * バックグラウンドでの反映の失敗は{@link #onFlushError(Object, RuntimeException)}に通知される。<br>
+     * <b>{@link LockMode#KEY}の場合は、必ずkeyでクラスタワイドロックを取得すること。</b>
+     * 
+     * @param key 第一キー
+     * @param valueKey 第二キー
+     * @param value 保持するvalue
+     */
+    public void putBuffered(K key, VK valueKey, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        buffer(key, valueKey, value);
+    }
+
+    /**
+     * 指定されたkeyとvalueKeyに対応するvalueを削除する更新を溜める。<br>
+     * 反映のタイミングは{@link #putBuffered(Object, Object, Object)}と同じ。<br>
+     * <b>{@link LockMode#KEY}の場合は、必ずkeyでクラスタワイドロックを取得すること。</b>
+     * 
+     * @param key 第一キー
+     * @param valueKey 第二キー
+     */
+    public void removeBuffered(K key, VK valueKey) {
+        buffer(key, valueKey, null);
+    }
+
+    private void buffer(K key, VK valueKey, V value) {
+        startFlushScheduler();
+        for (;;) {
+            PendingWrites pending = pendingWrites.get(key);
+            if (pending == null) {
+                pending = new PendingWrites();
+                PendingWrites current = pendingWrites.putIfAbsent(key, pending);
+                if (current != null) {
+                    pending = current;
+                }
+            }
+            if (pending.add(valueKey, value)) {
+                if (pending.size() >= getWriteBufferSize() || pending.age() >= getWriteBufferMills()) {
+                    flush(key);
+                }
+                return;
+            }
+            // 反映済みで破棄されたPendingWrites -> 取り直す
+        }
+    }
+
+    /**
+     * 指定されたkeyの溜めている更新を反映する。<br>
+     * <b>{@link LockMode#KEY}の場合は、必ずkeyでクラスタワイドロックを取得すること。</b>
+     * 
+     * @param key 第一キー
+     */
+    public void flush(K key) {
+        flush(key, null);
+    }
+
+    /**
+     * @param tm バックグラウンドのスレッドで反映する場合のトランザクションマネージャ。
+     *            トランザクションを開始し、{@link LockMode#KEY}の場合はkeyをロックしてから反映してコミットする。呼び出し元のスレッドで反映する場合はnull
+     */
+    private void flush(K key, TransactionManager tm) {
+        PendingWrites pending = pendingWrites.get(key);
+        if (pending == null) {
+            return;
+        }
+
+        if (tm != null) {
+            // 呼び出し元と同じく、クラスタワイドロック→flushLockの順に取得する
+            begin(tm);
+            try {
+                if (getLockMode() == LockMode.KEY) {
+                    cache.lock(key);
+                }
+            } catch (RuntimeException e) {
+                rollback(tm);
+                throw e;
+            }
+        }
+
+        pending.flushLock.lock();
+        try {
+            Map<VK, V> batch = pending.drain();
+            Map<VK, V> puts = new HashMap<>();
+            List<VK> removes = new ArrayList<>();
+            for (Entry<VK, V> entry : batch.entrySet()) {
+                if (entry.getValue() != null) {
+                    puts.put(entry.getKey(), entry.getValue());
+                } else {
+                    removes.add(entry.getKey());
+                }
+            }
+
+            try {
+                removeAll(key, removes);
+                putAll(key, puts);
+                if (tm != null) {
+                    commit(tm);
+                }
+            } catch (RuntimeException e) {
+                if (tm != null) {
+                    rollback(tm);
+                }
+                // 反映できなかった更新は、その後の更新で上書きされていなければ戻す
+                pending.restore(batch);
+                throw e;
+            } finally {
+                if (pending.finish()) {
+                    pendingWrites.remove(key, pending);
+                }
+            }
+        } finally {
+            pending.flushLock.unlock();
+        }
+    }
+
+    /**
+     * 全てのkeyの溜めている更新を反映する。<br>
+     * <b>{@link LockMode#KEY}の場合は、必ず全ての対象keyでクラスタワイドロックを取得すること。</b>
+     */
+    public void flush() {
+        for (K key : pendingWrites.keySet()) {
+            flush(key);
+        }
+    }
+
+    /**
+     * バックグラウンドのスレッドでの反映が例外で失敗した件数の累計
+     */
+    public long getTotalFlushErrors() {
+        return totalFlushErrors.get();
+    }
+
+    /**
+     * バックグラウンドのスレッドでの反映で直近に発生した例外
+     * 
+     * @return 直近の例外。発生していない場合はnull
+     */
+    public RuntimeException getLastFlushError() {
+        return lastFlushError;
+    }
+
+    private static void begin(TransactionManager tm) {
+        try {
+            tm.begin();
+        } catch (Exception e) {
+            throw new CacheException(e);
+        }
+    }
+
+    private static void commit(TransactionManager tm) {
+        try {
+            tm.commit();
+        } catch (Exception e) {
+            throw new CacheException(e);
+        }
+    }
+
+    private static void rollback(TransactionManager tm) {
+        try {
+            if (tm.getTransaction() != null) {
+                tm.rollback();
+            }
+        } catch (Exception e) {
+            // 元の例外を優先する
+        }
+    }
+
+    /**
+     * 溜めている更新を反映した結果を返す。
+     */
+    private Map<VK, V> applyPendingWrites(K key, Map<VK, V> values) {
+        PendingWrites pending = pendingWrites.isEmpty() ? null : pendingWrites.get(key);
+        if (pending != null) {
+            pending.applyTo(values);
+        }
+        return values;
+    }
+
+    /**
+     * 溜めている更新の複製({@link #snapshotPendingWrites(Object)})を反映した結果を返す。
+     */
+    private static <VK, V> Map<VK, V> applyPendingWrites(Map<VK, V> values, Map<VK, V> pending) {
+        if (pending != null) {
+            for (Entry<VK, V> entry : pending.entrySet()) {
+                if (entry.getValue() != null) {
+                    values.put(entry.getKey(), entry.getValue());
+                } else {
+                    values.remove(entry.getKey());
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * 溜めている更新の複製を返す。
+     * 
+     * @return valueKeyと更新後のvalue(削除はnull)。溜めている更新が無い場合はnull
+     */
+    private Map<VK, V> snapshotPendingWrites(K key) {
+        PendingWrites pending = pendingWrites.isEmpty() ? null : pendingWrites.get(key);
+        if (pending == null) {
+            return null;
+        }
+        Map<VK, V> snapshot = pending.snapshot();
+        return snapshot.isEmpty() ? null : snapshot;
+    }
+
+    /**
+     * 経過時間による反映をバックグラウンドで行うスレッドを開始する。
+     */
+    private void startFlushScheduler() {
+        synchronized (this) {
+            if (flushScheduler != null) {
+                return;
+            }
+            flushScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "WriteBufferFlusher-" + cache.getName());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            long interval = Math.max(1, getWriteBufferMills());
+            flushScheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    boolean locking = getLockMode() != LockMode.OPTIMISTIC && !isOwnerExecution();
+                    TransactionManager tm = locking ? cache.getTransactionManager() : null;
+                    if (locking && tm == null) {
+                        // ロックを取得できないため、呼び出し元のスレッドで反映する
+                        return;
+                    }
+                    for (Entry<K, PendingWrites> entry : pendingWrites.entrySet()) {
+                        if (entry.getValue().age() < getWriteBufferMills()) {
+                            continue;
+                        }
+                        try {
+                            flush(entry.getKey(), tm);
+                        } catch (RuntimeException e) {
+                            // 次回の反映で再試行する
+                            totalFlushErrors.incrementAndGet();
+                            lastFlushError = e;
+                            onFlushError(entry.getKey(), e);
+                        }
+                    }
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 削除後のバケットと合併する候補のバケットを決定する。<br>
+     * 左右のバケットの内、{@link BucketMeta}のバケットサイズ(構造変更時点の目安)が小さい方を候補とする。
+     * 実際に合併するかは、候補のバケットを読み取って{@link #isCompaction(int, int)}で判定すること。
+     * 
+     * @param meta BucketMeta
+     * @param index 削除したバケットのインデックス
+     * @param bucketSize 削除後の実際のバケットサイズ
+     * @return 合併候補のバケットのインデックス。合併しない場合は-1
+     */
+    private int compactionIndex(BucketMeta meta, int index, int bucketSize) {
+        if (meta.bucketNum() <= 1 || bucketSize > getMinCompactionBucketSize()) {
+            return -1;
+        }
+
+        if (index == 0) {
+            return index + 1;
+        } else if (index == meta.bucketNum() - 1) {
+            return index - 1;
+        } else if (meta.getBuketSize(index - 1) < meta.getBuketSize(index + 1)) {
+            return index - 1;
+        } else {
+            return index + 1;
+        }
+    }
+
+    /**
+     * 削除後のバケットと候補のバケットを合併するかを判定する。<br>
+     * 空になったバケットは、BucketMetaのバケットサイズが実際より大きいまま残らないよう、常に合併する。
+     * 
+     * @param bucketSize 削除後の実際のバケットサイズ
+     * @param anotherSize 候補のバケットの実際のバケットサイズ
+     * @return 合併する場合はtrue
+     */
+    private boolean isCompaction(int bucketSize, int anotherSize) {
+        return bucketSize == 0 || bucketSize + anotherSize <= getMinCompactionBucketSize();
+    }
+
+    /**
+     * バケットを空にした後、keyの全てのバケットが空かを確認するために読み取る他のバケットを決定する。
+     * 
+     * @param meta BucketMeta
+     * @param emptied 空にしたバケットのサブキー
+     * @return 読み取るバケットのサブキー。他のバケットの目安に0でないものがある(keyは空ではない)場合はnull
+     */
+    private List<SubKey> emptyKeyCandidates(BucketMeta meta, Set<SubKey> emptied) {
+        List<SubKey> others = new ArrayList<>();
+        for (int i = 0; i < meta.bucketNum(); i++) {
+            SubKey subKey = meta.getSubKey(i);
+            if (emptied.contains(subKey)) {
+                continue;
+            }
+            if (meta.getBuketSize(i) > 0) {
+                return null;
+            }
+            others.add(subKey);
+        }
+        return others;
+    }
+
+    /**
+     * バケットを空にした結果、keyの全てのバケットが空になったかを判定する。<br>
+     * BucketMetaのバケットサイズは構造変更時点の目安のため、他のバケットの目安が全て0の場合のみ、実際のバケットを読み取って確認する。
+     * 
+     * @param meta BucketMeta
+     * @param emptied 空にしたバケットのサブキー
+     * @return 全てのバケットが空の場合はtrue
+     */
+    private boolean isEmptyKey(BucketMeta meta, Set<SubKey> emptied) {
+        List<SubKey> others = emptyKeyCandidates(meta, emptied);
+        if (others == null) {
+            return false;
+        }
+        for (BucketEntry bucket : getBuckets(others)) {
+            if (bucket != null && !bucket.getValueMap().isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 指定されたkeyにぶら下がる全てのvalueKeyとvalueのMapを取得する(高コスト: バケットの数に比例する)
+     * 
+     * @param key 第一キー
+     * @return keyにぶら下がる全てのvalueKeyとvalue
+     */
+    public Map<VK, V> getValues(K key) {
+        return applyPendingWrites(key, readValues(key));
+    }
+
+    private Map<VK, V> readValues(K key) {
+        NearCache near = getNearCache();
+        BucketMeta meta = near != null ? near.get(key) : null;
+        if (meta != null) {
+            List<BucketEntry> buckets = getBuckets(meta.getSubKeyList());
+            if (!buckets.contains(null)) {
+                return toValues(buckets);
+            }
+            // ニアキャッシュのBucketMetaが古い
+            near.remove(key, meta);
+        }
+
+        meta = readMeta(cache, key);
+        if (meta == null) {
+            return new HashMap<>();
+        }
+        if (near != null) {
+            near.put(key, meta);
+        }
+        return toValues(getBuckets(meta.getSubKeyList()));
+    }
+
+    private Map<VK, V> toValues(List<BucketEntry> buckets) {
+        Map<VK, V> values = new HashMap<>();
+        for (BucketEntry bucket : buckets) {
+            if (bucket != null) {
+                values.putAll((Map<VK, V>) bucket.getValueMap());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * 指定されたkeyにぶら下がる全てのvalueKeyとvalueを順に返すイテレータを取得する。<br>
+     * {@link #getValues(Object)}と異なり全件をMapにコピーせず、{@link #getReadAheadBuckets()}個のバケットを
+     * 非同期に先読みしながら1バケットずつ返すため、保持するメモリは先読みするバケット数分に制限される。<br>
+     * バケットの構成はイテレータ作成時点のものであり、その後のバケット分割・統合は{@link BucketTrasfer}を辿って読み取る。
+     * 並列に処理する場合は、{@link #getSubKeyList(Object)}で取得したバケット毎に
+     * {@link #getValuesBySubKey(SubKey)}を呼び出すこと。<br>
+     * 溜めている更新({@link #putBuffered(Object, Object, Object)})はイテレータ作成時点のものを反映し、追加されたvalueKeyは最後に返す。
+     * 
+     * @param key 第一キー
+     * @return valueKeyとvalueのイテレータ(削除はサポートしない)
+     */
+    public Iterator<Entry<VK, V>> iterator(K key) {
+        return new ValueIterator(getSubKeyList(key), snapshotPendingWrites(key));
+    }
+
+    /**
+     * 指定されたsubKeyにぶら下がるvalueKeyとvalueのMapのみ取得する。(低コスト)
+     * 
+     * @param subKey バケットのサブキー
+     * @return バケットに含まれる全てのvalueKeyとvalue
+     */
+    public Map<VK, V> getValuesBySubKey(SubKey subKey) {
+        Map<VK, V> values = new HashMap<>();
+
+        BucketEntry<K, VK, V> bucket = getBucket(subKey);
+        if (bucket != null) {
+            values.putAll(bucket.getValueMap());
+        }
+
+        return values;
+    }
+
+    /**
+     * 指定されたkeyにぶら下がるvalueKeyとvalueを、limit件ずつ取得する。<br>
+     * valueKeyのハッシュ値の順に返し、ページに必要なバケットのみを取得する。
+     * カーソルはバケット内のハッシュ値の位置を表すため、ページ間でバケット分割・統合が発生しても、
+     * 同じvalueKeyを重複して、または欠落して返すことはない(ページ間に追加・削除されたvalueKeyは、その位置により含まれない場合がある)。<br>
+     * 同じハッシュ値のvalueKeyは同じページで返すため、ページがlimit件を超える場合がある。<br>
+     * 溜めている更新({@link #putBuffered(Object, Object, Object)})は、ページの取得時点のものを反映する。
+     * 
+     * @param key 第一キー
+     * @param cursor 前回のページの{@link Page#getNextCursor()}。最初のページはnull
+     * @param limit 1ページ当たりの件数
+     * @return ページ
+     */
+    public Page<VK, V> getPage(K key, PageCursor cursor, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        }
+
+        Map<VK, V> values = new LinkedHashMap<>();
+        Map<VK, V> pending = snapshotPendingWrites(key);
+        BucketMeta meta = readMeta(cache, key);
+        if (meta == null && pending == null) {
+            return new Page<>(values, null);
+        }
+
+        int position = cursor == null ? Integer.MIN_VALUE : cursor.hash;
+        // keyが未反映の場合は、溜めている更新のみを全範囲の1つのバケットとして扱う
+        int bucketNum = meta != null ? meta.bucketNum() : 1;
+        for (int index = meta != null ? meta.getIndex(position) : 0; index < bucketNum; index++) {
+            int[] range = meta != null ? meta.getHashRnge(index) : new int[] { Integer.MIN_VALUE, Integer.MAX_VALUE };
+            BucketEntry<K, VK, V> bucket = meta != null ? getBucket(meta.getSubKey(index)) : null;
+            if (bucket == null && pending == null) {
+                continue;
+            }
+
+            // BucketTrasferの移行先(統合後のバケット)は、このバケットの範囲外のvalueKeyを含む場合がある
+            TreeMap<Integer, Map<VK, V>> sorted = new TreeMap<>();
+            if (bucket != null) {
+                for (Entry<VK, V> entry : bucket.getValueMap().entrySet()) {
+                    if (pending == null || !pending.containsKey(entry.getKey())) {
+                        addSorted(sorted, entry, position, range);
+                    }
+                }
+            }
+            if (pending != null) {
+                for (Entry<VK, V> entry : pending.entrySet()) {
+                    if (entry.getValue() != null) {
+                        addSorted(sorted, entry, position, range);
+                    }
+                }
+            }
+
+            for (Entry<Integer, Map<VK, V>> group : sorted.entrySet()) {
+                if (values.size() >= limit) {
+                    return new Page<>(values, new PageCursor(group.getKey()));
+                }
+                values.putAll(group.getValue());
+            }
+
+            if (values.size() >= limit) {
+                if (range[1] == Integer.MAX_VALUE) {
+                    break;
+                }
+                return new Page<>(values, new PageCursor(range[1] + 1));
+            }
+        }
+        return new Page<>(values, null);
+    }
+
+    /**
+     * ページの範囲内のvalueKeyとvalueを、ハッシュ値毎にまとめて追加する。
+     */
+    private static <VK, V> void addSorted(TreeMap<Integer, Map<VK, V>> sorted, Entry<VK, V> entry, int position, int[] range) {
+        int hash = HashFunction.hash(entry.getKey());
+        if (hash < position || hash < range[0] || hash > range[1]) {
+            return;
+        }
+        Map<VK, V> group = sorted.get(hash);
+        if (group == null) {
+            group = new HashMap<>(2);
+            sorted.put(hash, group);
+        }
+        group.put(entry.getKey(), entry.getValue());
+    }
+
+    /**
+     * 指定されたkeyにぶら下がるバケットのsubKeyのリストを取得する(低コスト)
+     * 
+     * @param key 第一キー
+     * @return バケットのサブキーのリスト
+     */
+    public List<SubKey> getSubKeyList(K key) {
+        BucketMeta meta = readMeta(cache, key);
+        if (meta != null) {
+            return meta.getSubKeyList();
+        } else {
+            return new ArrayList<>(0);
+        }
+    }
+
+    /**
+     * 指定されたキーに、指定されたvalueKeyが存在するかどうかを判定する。
+     * 
+     * @param key 第一キー
+     * @param valueKey 第二キー
+     * @return valueKeyが含まれている場合はtrue
+     */
+    public boolean isContains(K key, VK valueKey) {
+        PendingWrites pending = pendingWrites.isEmpty() ? null : pendingWrites.get(key);
+        if (pending != null && pending.contains(valueKey)) {
+            return pending.get(valueKey) != null;
+        }
+
+        BucketEntry<K, VK, V> bucket = getBucket(key, valueKey);
+        if (bucket != null && bucket.getValueMap().containsKey(valueKey)) {
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * 指定されたkeyの複数のvalueKeyのvalueを一括で取得する。<br>
+     * {@link BucketMeta}は1回だけ取得し(2階層の場合は該当するメタページのみ)、valueKeyを格納先のバケット毎に振り分けて
+     * 各バケットを1回だけ並列に取得する。このため、コストはvalueKeyの数ではなく対象となるバケットの数に比例する。
+     * 
+     * @param key 第一キー
+     * @param valueKeys 第二キーのコレクション
+     * @return 存在したvalueKeyとvalueのMap
+     */
+    public Map<VK, V> getAll(K key, Collection<? extends VK> valueKeys) {
+        Map<VK, V> values = readAll(key, valueKeys);
+        PendingWrites pending = pendingWrites.isEmpty() ? null : pendingWrites.get(key);
+        if (pending != null) {
+            for (VK valueKey : valueKeys) {
+                if (pending.contains(valueKey)) {
+                    V value = (V) pending.get(valueKey);
+                    if (value != null) {
+                        values.put(valueKey, value);
+                    } else {
+                        values.remove(valueKey);
+                    }
+                }
+            }
+        }
+        return values;
+    }
+
+    private Map<VK, V> readAll(K key, Collection<? extends VK> valueKeys) {
+        Map<VK, V> values = new HashMap<>();
+        if (valueKeys.isEmpty()) {
+            return values;
+        }
+
+        NearCache near = getNearCache();
+        BucketMeta meta = near != null ? near.get(key) : null;
+        if (meta != null) {
+            Map<SubKey, List<VK>> subKeyMap = groupBySubKey(meta, null, valueKeys);
+            List<BucketEntry> buckets = getBuckets(new ArrayList<>(subKeyMap.keySet()));
+            if (!buckets.contains(null)) {
+                collectValues(subKeyMap, buckets, values);
+                return values;
+            }
+            // ニアキャッシュのBucketMetaが古い
+            near.remove(key, meta);
+        }
+
+        Object stored = cache.get(key);
+        if (stored == null) {
+            return values;
+        }
+        if (near != null && stored instanceof BucketMeta) {
+            near.put(key, (BucketMeta) stored);
+        }
+        Map<SubKey, List<VK>> subKeyMap = groupBySubKey(stored, new HashMap<Integer, BucketMeta>(), valueKeys);
+        collectValues(subKeyMap, getBuckets(new ArrayList<>(subKeyMap.keySet())), values);
+        return values;
+    }
+
+    /**
+     * valueKeyを格納先のバケットのサブキー毎に振り分ける。
+     * 
+     * @param stored keyから取得した値(BucketMetaまたはBucketMetaRoot)
+     * @param pages 2階層の場合に取得したメタページの格納先
+     * @param valueKeys 振り分け対象のvalueKey
+     * @return サブキー毎のvalueKey。メタページが存在しないvalueKeyは含まない
+     */
+    private Map<SubKey, List<VK>> groupBySubKey(Object stored, Map<Integer, BucketMeta> pages, Collection<? extends VK> valueKeys) {
+        Map<SubKey, List<VK>> subKeyMap = new LinkedHashMap<>();
+        for (VK valueKey : valueKeys) {
+            int hash = HashFunction.hash(valueKey);
+            BucketMeta meta;
+            if (stored instanceof BucketMetaRoot) {
+                BucketMetaRoot root = (BucketMetaRoot) stored;
+                int page = root.getIndex(hash);
+                meta = pages.get(page);
+                if (meta == null && !pages.containsKey(page)) {
+                    meta = (BucketMeta) cache.get(root.getSubKey(page));
+                    pages.put(page, meta);
+                }
+                if (meta == null) {
+                    continue;
+                }
+            } else {
+                meta = (BucketMeta) stored;
+            }
+
+            SubKey subKey = meta.getSubKey(meta.getIndex(hash));
+            List<VK> list = subKeyMap.get(subKey);
+            if (list == null) {
+                list = new ArrayList<>();
+                subKeyMap.put(subKey, list);
+            }
+            list.add(valueKey);
+        }
+        return subKeyMap;
+    }
+
+    private void collectValues(Map<SubKey, List<VK>> subKeyMap, List<BucketEntry> buckets, Map<VK, V> values) {
+        int i = 0;
+        for (List<VK> list : subKeyMap.values()) {
+            BucketEntry<K, VK, V> bucket = buckets.get(i++);
+            if (bucket == null) {
+                continue;
+            }
+            for (VK valueKey : list) {
+                V value = bucket.getValueMap().get(valueKey);
+                if (value != null) {
+                    values.put(valueKey, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * 指定されたkeyとvalueKeyでvalueを取得する。
+     * 
+     * @param key 第一キー
+     * @param valueKey 第二キー
+     * @return value
+     */
+    public V get(K key, VK valueKey) {
+        PendingWrites pending = pendingWrites.isEmpty() ? null : pendingWrites.get(key);
+        if (pending != null && pending.contains(valueKey)) {
+            return (V) pending.get(valueKey);
+        }
+
+        BucketEntry<K, VK, V> bucket = getBucket(key, valueKey);
+        if (bucket != null) {
+            return bucket.getValueMap().get(valueKey);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * 指定されたkeyにぶら下がる全てのバケットを、各バケットのプライマリオーナーノード上で並列に処理し、その結果を集約する。<br>
+     * 各ノードは自身がプライマリオーナーであるバケットのみを処理するため、バケットのデータはネットワークを流れない。
+     * 各ノードの処理結果は{@link BucketMapReducer#reduce(Object, Object)}でノード内で集約された後、呼び出し元で更に集約される。<br>
+     * mapReducerは全てのノードのクラスパス上に存在し、シリアライズ可能でなければならない。<br>
+     * 溜めている更新({@link #putBuffered(Object, Object, Object)})がある場合、その対象のvalueKeyは各バケットの処理から除外し、
+     * 更新後のvalueは1つのバケットとして呼び出し元のノードで処理する。
+     * 
+     * @param key 第一キー
+     * @param mapReducer バケット毎の処理と集約処理
+     * @return 集約結果。keyが存在しない場合、または全ての処理結果がnullの場合はnull
+     */
+    public <R> R mapReduce(K key, BucketMapReducer<VK, V, R> mapReducer) {
+        Map<VK, V> pending = snapshotPendingWrites(key);
+        BucketMeta meta = readMeta(cache, key);
+        if (meta == null && pending == null) {
+            return null;
+        }
+
+        R result = null;
+        Set<VK> excludes = Collections.emptySet();
+        if (pending != null) {
+            // 溜めている更新は、バケットとは別に呼び出し元で処理する
+            excludes = new HashSet<>(pending.keySet());
+            Map<VK, V> puts = new HashMap<>();
+            for (Entry<VK, V> entry : pending.entrySet()) {
+                if (entry.getValue() != null) {
+                    puts.put(entry.getKey(), entry.getValue());
+                }
+            }
+            if (!puts.isEmpty()) {
+                result = mapReducer.map(Collections.unmodifiableMap(puts));
+            }
+        }
+        if (meta == null) {
+            return result;
+        }
+
+        List<SubKey> subKeyList = meta.getSubKeyList();
+        DistributionManager dm = cache.getDistributionManager();
+        if (dm == null) {
+            // ローカルキャッシュ
+            R partial = (R) BucketMapReduceTask.mapReduce(cache, subKeyList, mapReducer, excludes);
+            return partial == null ? result : result == null ? partial : mapReducer.reduce(result, partial);
+        }
+
+        List<Future> futures = new ArrayList<>();
+        for (Entry<Address, List<Integer>> entry : groupByOwner(dm, subKeyList).entrySet()) {
+            List<SubKey> ownerSubKeyList = new ArrayList<>(entry.getValue().size());
+            for (Integer index : entry.getValue()) {
+                ownerSubKeyList.add(subKeyList.get(index));
+            }
+            futures.add(getExecutor().submit(entry.getKey(), new BucketMapReduceTask(ownerSubKeyList, mapReducer, excludes)));
+        }
+
+        for (Future future : futures) {
+            R partial = (R) waitFor(future);
+            if (partial == null) {
+                continue;
+            }
+            result = result == null ? partial : mapReducer.reduce(result, partial);
+        }
+        return result;
+    }
+
+    /**
+     * 指定されたkeyにぶら下がる全てのvalueKeyとvalueを、各バケットのプライマリオーナーノード上で並列に処理する。<br>
+     * visitorは全てのノードのクラスパス上に存在し、シリアライズ可能でなければならない。
+     * 
+     * @param key 第一キー
+     * @param visitor valueKeyとvalue毎の処理
+     * @see #mapReduce(Object, BucketMapReducer)
+     */
+    public void forEachValue(K key, ValueVisitor<VK, V> visitor) {
+        mapReduce(key, new ValueVisitorAdapter<>(visitor));
+    }
+
+    /**
+     * BucketTrasferを考慮して、指定されたバケットを取得する。
+     * 
+     * @param subKey バケットのサブキー
+     * @return バケット
+     */
+    private BucketEntry getBucket(SubKey subKey) {
+        return getBucket(cache, subKey);
+    }
+
+    /**
+     * valueKeyが格納されるバケットを取得する。ニアキャッシュが有効な場合は、ニアキャッシュのBucketMetaを使用する。
+     * 
+     * @param key 第一キー
+     * @param valueKey 第二キー
+     * @return バケット。keyが存在しない場合はnull
+     */
+    private BucketEntry<K, VK, V> getBucket(K key, VK valueKey) {
+        int hash = HashFunction.hash(valueKey);
+
+        NearCache near = getNearCache();
+        BucketMeta meta = near != null ? near.get(key) : null;
+        if (meta != null) {
+            BucketEntry bucket = getBucket(meta.getSubKey(meta.getIndex(hash)));
+            if (bucket != null) {
+                return bucket;
+            }
+            // ニアキャッシュのBucketMetaが古い(keyの削除、またはBucketTrasferの期限切れ)
+            near.remove(key, meta);
+        }
+
+        Object stored = cache.get(key);
+        meta = readMeta(cache, stored, hash);
+        if (meta == null) {
+            return null;
+        }
+        if (near != null && stored == meta) {
+            // 2階層の場合はメタページのみを取得しているため、ニアキャッシュには格納しない
+            near.put(key, meta);
+        }
+        return getBucket(meta.getSubKey(meta.getIndex(hash)));
+    }
+
+    /**
+     * BucketTrasferを考慮して、指定されたキャッシュから指定されたバケットを取得する。
+     * 
+     * @param cache キャッシュ
+     * @param subKey バケットのサブキー
+     * @return バケット
+     */
+    static BucketEntry getBucket(Cache cache, SubKey subKey) {
+        return toBucket(cache, cache.get(subKey));
+    }
+
+    /**
+     * キャッシュから取得した値をバケットに変換する。BucketTrasferの場合は移行先のバケットを取得してマージする。
+     * 
+     * @param cache キャッシュ
+     * @param tmp キャッシュから取得した値
+     * @return バケット
+     */
+    static BucketEntry toBucket(Cache cache, Object tmp) {
+        if (tmp instanceof BucketEntry) {
+            return (BucketEntry) tmp;
+        } else if (tmp instanceof BucketTrasfer) {
+            BucketEntry mergeBucket = new BucketEntry();
+            BucketTrasfer trans = (BucketTrasfer) tmp;
+            for (SubKey transSubKey : trans.getTransSubKeyList()) {
+                BucketEntry actualBucket = getBucket(cache, transSubKey);
+                if (actualBucket == null) {
+                    // 移行先のバケットがkeyの削除等で既に存在しない
+                    return null;
+                }
+                mergeBucket.getValueMap().putAll(actualBucket.getValueMap());
+            }
+
+            return mergeBucket;
+        }
+
+        return null;
+    }
+
+    /**
+     * BucketTrasferを考慮して、指定された複数のバケットを並列に取得する。<br>
+     * subKeyをプライマリオーナー毎にグルーピングし、オーナーを順番に巡回しながら非同期getを発行する。
+     * 同時に発行する要求数は{@link #getMaxInFlightFetch()}で制限される。
+     * これにより、取得時間はバケット数ではなくオーナー毎のラウンドトリップ数に近くなる。
+     * 
+     * @param subKeyList バケットのサブキーのリスト
+     * @return subKeyListと同じ順序のバケットのリスト(存在しないバケットはnull)
+     */
+    private List<BucketEntry> getBuckets(List<SubKey> subKeyList) {
+        int size = subKeyList.size();
+        BucketEntry[] buckets = new BucketEntry[size];
+
+        if (size == 1) {
+            buckets[0] = getBucket(subKeyList.get(0));
+            return Arrays.asList(buckets);
+        }
+
+        int maxInFlight = Math.max(1, getMaxInFlightFetch());
+        int[] order = orderByOwner(subKeyList);
+        Future[] futures = new Future[size];
+
+        // order[head] ～ order[issued - 1] が応答待ち
+        int head = 0;
+        for (int issued = 0; issued < size; issued++) {
+            if (issued - head >= maxInFlight) {
+                int index = order[head++];
+                buckets[index] = toBucket(cache, waitFor(futures[index]));
+                futures[index] = null;
+            }
+            int index = order[issued];
+            futures[index] = cache.getAsync(subKeyList.get(index));
+        }
+        for (; head < size; head++) {
+            int index = order[head];
+            buckets[index] = toBucket(cache, waitFor(futures[index]));
+            futures[index] = null;
+        }
+
+        return Arrays.asList(buckets);
+    }
+
+    /**
+     * subKeyをプライマリオーナー毎にグルーピングし、オーナーを巡回する順序に並べ替える。<br>
+     * 同時に発行中の要求が特定のノードに偏らないようにするため。
+     * 
+     * @param subKeyList バケットのサブキーのリスト
+     * @return 要求を発行する順序(subKeyListのインデックス)
+     */
+    private int[] orderByOwner(List<SubKey> subKeyList) {
+        int size = subKeyList.size();
+        int[] order = new int[size];
+
+        DistributionManager dm = cache.getDistributionManager();
+        if (dm == null) {
+            // ローカルキャッシュ
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            return order;
+        }
+
+        Map<Address, List<Integer>> ownerMap = groupByOwner(dm, subKeyList);
+
+        List<Iterator<Integer>> iterators = new ArrayList<>(ownerMap.size());
+        for (List<Integer> indexList : ownerMap.values()) {
+            iterators.add(indexList.iterator());
+        }
+
+        int n = 0;
+        while (n < size) {
+            for (Iterator<Integer> it : iterators) {
+                if (it.hasNext()) {
+                    order[n++] = it.next();
+                }
+            }
+        }
+        return order;
+    }
+
+    /**
+     * バケットの差分をputする。<br>
+     * 差分はバケットのオーナーノード上で既存のバケットにマージされるため、
+     * ネットワークを流れるのは変更されたvalueKeyとvalueのみとなる。
+     * 
+     * @param subKey バケットのサブキー
+     * @param delta バケットの差分
+     */
+    private void putDelta(SubKey subKey, BucketDelta delta) {
+        cache.withFlags(Flag.IGNORE_RETURN_VALUES).put(subKey, delta);
+    }
+
+    /**
+     * 第一キーの{@link BucketMeta}を取得する。2階層の場合は全てのメタページを取得して連結する。
+     * 
+     * @param cache キャッシュ
+     * @param key 第一キー
+     * @return BucketMeta。keyが存在しない場合はnull
+     */
+    static BucketMeta readMeta(Cache cache, Object key) {
+        Object stored = cache.get(key);
+        while (stored instanceof BucketMetaRoot) {
+            BucketMetaRoot root = (BucketMetaRoot) stored;
+            List<BucketMeta> pages = new ArrayList<>(root.pageNum());
+            for (int i = 0; i < root.pageNum(); i++) {
+                BucketMeta page = (BucketMeta) cache.get(root.getSubKey(i));
+                if (page == null) {
+                    break;
+                }
+                // 統合された古いメタページは隣接するハッシュ範囲を含むため、ルートのハッシュ範囲に絞る
+                pages.add(page.subMeta(page.getIndex(root.getMinHash(i)), page.getIndex(root.getMaxHash(i)) + 1));
+            }
+            if (pages.size() == root.pageNum()) {
+                return BucketMeta.concat(pages);
+            }
+
+            // メタページが期限切れ -> ルートを読み直す
+            Object latest = cache.get(key);
+            if (root.equals(latest)) {
+                throw new CacheException("meta page not found: key=" + key + ", " + root);
+            }
+            stored = latest;
+        }
+        return (BucketMeta) stored;
+    }
+
+    /**
+     * 第一キーの、指定されたハッシュ値を含む{@link BucketMeta}を取得する。2階層の場合は該当するメタページのみを取得する。
+     * 
+     * @param cache キャッシュ
+     * @param stored keyから取得した値
+     * @param hash valueKeyのハッシュ値
+     * @return BucketMeta。keyが存在しない場合はnull
+     */
+    static BucketMeta readMeta(Cache cache, Object stored, int hash) {
+        if (stored instanceof BucketMetaRoot) {
+            BucketMetaRoot root = (BucketMetaRoot) stored;
+            return (BucketMeta) cache.get(root.getSubKey(root.getIndex(hash)));
+        }
+        return (BucketMeta) stored;
+    }
+
+    private void checkMetaPageSize() {
+        if (getMetaPageSize() > 0 && getLockMode() != LockMode.KEY) {
+            throw new IllegalStateException("getMetaPageSize() is supported only with LockMode.KEY: " + getLockMode());
+        }
+    }
+
+    /**
+     * {@link LockMode#BUCKET}の前提条件を確認する。<br>
+     * {@link AdvancedCache#lock(Object...)}は非トランザクショナルキャッシュ、楽観的ロックのキャッシュ、トランザクション外では使用できないため、
+     * 更新を開始する前に失敗させる。
+     * 
+     * @throws IllegalStateException 悲観的ロックのトランザクショナルキャッシュではない場合、またはトランザクションが開始されていない場合
+     */
+    private void checkBucketLock() {
+        TransactionManager tm = cache.getTransactionManager();
+        if (tm == null || cache.getCacheConfiguration().transaction().lockingMode() != LockingMode.PESSIMISTIC) {
+            throw new IllegalStateException("LockMode.BUCKET requires a transactional cache with pessimistic locking: " + cache.getName());
+        }
+        try {
+            if (tm.getTransaction() == null) {
+                throw new IllegalStateException("LockMode.BUCKET requires an active transaction: " + cache.getName());
+            }
+        } catch (SystemException e) {
+            throw new CacheException(e);
+        }
+    }
+
+    /**
+     * {@link LockMode#KEY}の更新で使用するBucketMetaの格納先を取得する。
+     * 
+     * @param key 第一キー
+     * @param hash 更新するvalueKeyのハッシュ値
+     * @return BucketMetaの格納先
+     */
+    private MetaSlot getMetaSlot(K key, int hash) {
+        Object stored = cache.get(key);
+        if (stored instanceof BucketMetaRoot) {
+            BucketMetaRoot root = (BucketMetaRoot) stored;
+            int page = root.getIndex(hash);
+            return new MetaSlot(key, root, page, (BucketMeta) cache.get(root.getSubKey(page)));
+        }
+        return new MetaSlot(key, null, 0, (BucketMeta) stored);
+    }
+
+    /**
+     * {@link LockMode#KEY}の更新でBucketMetaを読み書きする格納先<br>
+     * 1階層の場合はkey、2階層の場合は更新するvalueKeyのハッシュ値を含むメタページのサブキーとなる。
+     * BucketMetaのバケット数に応じて、メタページの分割・統合、1階層と2階層の切り替えを行う。
+     */
+    private class MetaSlot {
+        private final K key;
+        private final BucketMetaRoot root;
+        private final int page;
+        private final BucketMeta meta;
+
+        MetaSlot(K key, BucketMetaRoot root, int page, BucketMeta meta) {
+            this.key = key;
+            this.root = root;
+            this.page = page;
+            this.meta = meta;
+        }
+
+        K getKey() {
+            return key;
+        }
+
+        BucketMeta getMeta() {
+            return meta;
+        }
+
+        /**
+         * このBucketMetaのハッシュ範囲に含まれるvalueKeyとvalueを取り出す。
+         * 
+         * @param values 振り分け対象のvalueKeyとvalue(取り出したものは削除される)
+         * @return このBucketMetaのハッシュ範囲に含まれるvalueKeyとvalue
+         */
+        Map<VK, V> extract(Map<VK, V> values) {
+            if (root == null) {
+                Map<VK, V> all = new HashMap<>(values);
+                values.clear();
+                return all;
+            }
+            Map<VK, V> extracted = new HashMap<>();
+            for (Iterator<Entry<VK, V>> it = values.entrySet().iterator(); it.hasNext();) {
+                Entry<VK, V> entry = it.next();
+                int hash = HashFunction.hash(entry.getKey());
+                if (hash >= root.getMinHash(page) && hash <= root.getMaxHash(page)) {
+                    extracted.put(entry.getKey(), entry.getValue());
+                    it.remove();
+                }
+            }
+            return extracted;
+        }
+
+        /**
+         * このBucketMetaが第一キーの全てのバケットを保持しているかどうか(1階層、または1メタページのみ)
+         */
+        boolean isWholeKey() {
+            return root == null || root.pageNum() == 1;
+        }
+
+        /**
+         * 指定されたバケットのハッシュ範囲。メタページの最後のバケットは、メタページのハッシュ範囲上限までとなる。
+         */
+        int[] getHashRnge(BucketMeta target, int index) {
+            int[] range = target.getHashRnge(index);
+            if (root != null && index == target.bucketNum() - 1) {
+                range[1] = root.getMaxHash(page);
+            }
+            return range;
+        }
+
+        /**
+         * BucketMetaを書き込む(U4)。
+         * 
+         * @param newMeta 更新後のBucketMeta
+         */
+        void update(BucketMeta newMeta) {
+            update(newMeta, false);
+        }
+
+        /**
+         * BucketMetaを書き込む(U4)。<br>
+         * BucketMetaのバケットサイズは目安の値のため、メタページが空になったかどうかは呼び出し元がバケットの実際の内容で判定する。
+         * 
+         * @param newMeta 更新後のBucketMeta
+         * @param empty メタページの唯一のバケットが空の場合はtrue(バケットを隣接メタページのバケットに吸収させる)
+         */
+        void update(BucketMeta newMeta, boolean empty) {
+            int pageSize = getMetaPageSize();
+            if (root == null) {
+                if (pageSize <= 0 || newMeta.bucketNum() <= pageSize) {
+                    cache.put(key, newMeta);
+                } else {
+                    // 1階層 -> 2階層
+                    writePages(0, 0, newMeta);
+                }
+                return;
+            }
+
+            SubKey pageKey = root.getSubKey(page);
+            if (pageSize > 0 && newMeta.bucketNum() > pageSize) {
+                // メタページ分割
+                writePages(page, 1, newMeta);
+                return;
+            }
+
+            if (root.pageNum() > 1 && (empty || newMeta.bucketNum() <= pageSize / 4)) {
+                // 隣接メタページと統合
+                int another = page == root.pageNum() - 1 ? page - 1 : page + 1;
+                BucketMeta anotherMeta = (BucketMeta) cache.get(root.getSubKey(another));
+                if (anotherMeta != null && empty && newMeta.bucketNum() == 1) {
+                    // 空のバケットは隣接メタページのバケットに吸収させる(連結して再分割すると、空のバケットだけのメタページが残る場合がある)
+                    BucketMeta merged = BucketMeta.concat(page < another ? Arrays.asList(newMeta, anotherMeta) : Arrays.asList(anotherMeta, newMeta));
+                    int emptyIndex = page < another ? 0 : merged.bucketNum() - 1;
+                    int absorbIndex = merged.absorb(emptyIndex);
+
+                    // 古いBucketMetaで読み取り中の処理のため、空のバケットは吸収先へのBucketTrasferとして期限付きで残す(U2: order is important)
+                    BucketTrasfer tbt = new BucketTrasfer();
+                    tbt.getTransSubKeyList().add(merged.getSubKey(absorbIndex));
+                    cache.put(newMeta.getSubKey(0), tbt, getTransferExpireMills(), TimeUnit.MILLISECONDS);
+
+                    writePages(Math.min(page, another), 2, merged);
+                    return;
+                }
+                if (anotherMeta != null && newMeta.bucketNum() + anotherMeta.bucketNum() <= pageSize) {
+                    List<BucketMeta> pages = page < another ? Arrays.asList(newMeta, anotherMeta) : Arrays.asList(anotherMeta, newMeta);
+                    writePages(Math.min(page, another), 2, BucketMeta.concat(pages));
+                    return;
+                }
+            }
+
+            if (root.pageNum() == 1 && (pageSize <= 0 || newMeta.bucketNum() <= pageSize / 2)) {
+                // 2階層 -> 1階層
+                cache.put(key, newMeta);
+                cache.put(pageKey, newMeta, getTransferExpireMills(), TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            cache.put(pageKey, newMeta);
+        }
+
+        /**
+         * ルートのindexからcount個のメタページを、newMetaを{@link #getMetaPageSize()}の半分を目安に分割したメタページに置き換える。
+         */
+        private void writePages(int index, int count, BucketMeta newMeta) {
+            int pageSize = getMetaPageSize();
+            int num = newMeta.bucketNum();
+            int pieces = pageSize > 0 && num > pageSize ? Math.max(2, num / Math.max(1, (pageSize + 1) / 2)) : 1;
+
+            SubKeyFactory subKeyFactory = subKeyFactory(key);
+            int[] newMinHash = new int[pieces];
+            List<SubKey> newPageList = new ArrayList<>(pieces);
+            Map<SubKey, Object> newPages = new LinkedHashMap<>();
+            for (int i = 0; i < pieces; i++) {
+                BucketMeta pageMeta = newMeta.subMeta(num * i / pieces, num * (i + 1) / pieces);
+                SubKey pageKey = subKeyFactory.newSubKey();
+                newMinHash[i] = pageMeta.getHashRnge(0)[0];
+                newPageList.add(pageKey);
+                newPages.put(pageKey, pageMeta);
+            }
+
+            // put new page(U1: order is important)
+            putEntries(newPages, -1);
+
+            // 古いルートで読み取り中の処理のため、置き換えるメタページは期限付きで残す(U2: order is important)
+            Map<SubKey, Object> oldPages = new LinkedHashMap<>();
+            for (int i = index; i < index + count; i++) {
+                oldPages.put(root.getSubKey(i), newMeta);
+            }
+            putEntries(oldPages, getTransferExpireMills());
+
+            // update (U4: order is important)
+            BucketMetaRoot newRoot;
+            if (root == null) {
+                newRoot = new BucketMetaRoot(newMinHash, newPageList, newMeta.getGroup());
+            } else {
+                newRoot = root.replace(index, count, newMinHash, newPageList);
+            }
+            cache.put(key, newRoot);
+        }
+    }
+
+    /**
+     * 新規キー用の{@link BucketMeta}を生成する。
+     * 
+     * @param key 第一キー
+     * @return 1つの空バケットを持つBucketMeta
+     */
+    private BucketMeta newBucketMeta(K key) {
+        BucketMeta meta = new BucketMeta(subKeyFactory(key));
+        if (getSubKeyPlacement() == SubKeyPlacement.GROUPED) {
+            meta.setGroup(String.valueOf(key));
+        }
+        return meta;
+    }
+
+    /**
+     * 想定件数に応じて、ハッシュ範囲を等分割した空のバケットを持つ新規キー用の{@link BucketMeta}を生成する。<br>
+     * 1バケットあたりの件数が{@link #getMaxBucketSize()}の半分となるバケット数とする。
+     * 
+     * @param key 第一キー
+     * @param expectedCount 想定件数
+     * @return 空のバケットを持つBucketMeta
+     */
+    private BucketMeta newBucketMeta(K key, int expectedCount) {
+        BucketMeta meta = newBucketMeta(key);
+        int fill = Math.max(1, getMaxBucketSize() / 2);
+        int n = (int) (((long) expectedCount + fill - 1) / fill);
+        if (n > 1) {
+            int[] newMinHash = new int[n];
+            for (int i = 0; i < n; i++) {
+                newMinHash[i] = (int) (Integer.MIN_VALUE + (1L << 32) * i / n);
+            }
+            meta.splitDown(0, newMinHash, subKeyFactory(key));
+        }
+        return meta;
+    }
+
+    /**
+     * {@link #getSubKeyPlacement()}に従ってサブキーを生成するファクトリを返す。
+     * 
+     * @param key 第一キー
+     * @return サブキーのファクトリ
+     */
+    private SubKeyFactory subKeyFactory(K key) {
+        return subKeyFactory(cache, getSubKeyPlacement(), key, spreadCounter);
+    }
+
+    /**
+     * 指定された配置方針に従ってサブキーを生成するファクトリを返す({@link DistributedSearchableList}と共用)。
+     * 
+     * @param cache キャッシュ
+     * @param placement サブキーの配置方針
+     * @param key 第一キー
+     * @param spreadCounter {@link SubKeyPlacement#SPREAD}で巡回するセグメントのカウンタ
+     * @return サブキーのファクトリ
+     */
+    static SubKeyFactory subKeyFactory(AdvancedCache cache, SubKeyPlacement placement, final Object key, final AtomicInteger spreadCounter) {
+        final DistributionManager dm = cache.getDistributionManager();
+        if (dm == null) {
+            // ローカルキャッシュでは配置を考慮する必要が無い
+            return SubKeyFactory.RANDOM;
+        }
+
+        switch (placement) {
+        case SPREAD:
+            return new SubKeyFactory() {
+                @Override
+                public SubKey newSubKey() {
+                    ConsistentHash ch = dm.getConsistentHash();
+                    int segment = (spreadCounter.getAndIncrement() & Integer.MAX_VALUE) % ch.getNumSegments();
+                    SubKey subKey = new SubKey();
+                    for (int i = 0; i < ch.getNumSegments() * 16 && ch.getSegment(subKey) != segment; i++) {
+                        subKey = new SubKey();
+                    }
+                    return subKey;
+                }
+            };
+        case AFFINITY:
+            return new SubKeyFactory() {
+                @Override
+                public SubKey newSubKey() {
+                    ConsistentHash ch = dm.getConsistentHash();
+                    Address owner = ch.locatePrimaryOwner(key);
+                    SubKey subKey = new SubKey();
+                    for (int i = 0; i < ch.getMembers().size() * 16 && !owner.equals(ch.locatePrimaryOwner(subKey)); i++) {
+                        subKey = new SubKey();
+                    }
+                    return subKey;
+                }
+            };
+        default:
+            // RANDOM, GROUPED(グループはBucketMetaが保持する)
+            return SubKeyFactory.RANDOM;
+        }
+    }
+
+    /**
+     * 更新処理をkeyのプライマリオーナーノード上で実行し、その結果を返す。
+     * 
+     * @param key 第一キー
+     * @param task 更新処理
+     * @return 更新処理の結果
+     */
+    private Object executeOnOwner(K key, OwnerMutationTask task) {
+        try {
+            getClass().getConstructor(Cache.class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(getClass().getName() + " must have a public constructor(Cache) to use owner execution", e);
+        }
+
+        return waitFor(getExecutor().submit(task, key));
+    }
+
+    private NearCache getNearCache() {
+        NearCache near = nearCache;
+        if (near == null && getNearCacheSize() > 0) {
+            near = initNearCache();
+        }
+        return near;
+    }
+
+    private synchronized NearCache initNearCache() {
+        if (nearCache == null) {
+            NearCache near = new NearCache(getNearCacheSize());
+            nearCacheInvalidator = new NearCacheInvalidator(near);
+            cache.addListener(nearCacheInvalidator);
+            nearCache = near;
+        }
+        return nearCache;
+    }
+
+    private void invalidateNearCache(K key) {
+        NearCache near = nearCache;
+        if (near != null) {
+            near.remove(key);
+        }
+    }
+
+    /**
+     * 論理的な変更(valueKeyの追加・更新・削除、keyの削除)の通知を受けるリスナーを登録する。<br>
+     * 通知はキャッシュリスナーを元に、変更されたバケット(keyの削除はkey)のプライマリオーナーノード上でのみ行われる。
+     * このため、全ての変更を受け取るには、JDGクラスタの各ノードでリスナーを登録すること。<br>
+     * 変更は同じサブキーのバケットの書き込み前後の内容の差分から求めるため、コミットされた書き込みのみが通知され、
+     * {@link LockMode#OPTIMISTIC}の競合によるやり直しや、書き込みの取り消しは通知されない。
+     * バケットの作成と{@link BucketTrasfer}への置き換えは通知されないため、分割・統合によるvalueKeyの移動は通知されない。
+     * リスナーの登録中は、分割・統合を伴う更新では変更を元のバケットに書き込んでから分割・統合し、
+     * 新規キーは空のバケットを作成してから書き込む(リスナーを登録していない場合は、これらの追加の書き込みは行わない)。
+     * 値が同じ(equals)valueKeyの上書きは通知されない。
+     * keyごと削除された場合は{@link ChangeEvent.Type#KEY_REMOVED}のみが通知され、残っていたvalueKeyの削除は個別に通知されない。
+     * このノードで開始したトランザクション内の変更は、トランザクションのコミット後に通知される。<br>
+     * リスナーはキャッシュの更新処理の中で同期的に呼び出されるため、ブロックする処理や時間のかかる処理を行ってはならない。
+     * リスナーの例外は{@link #onChangeListenerError(ChangeEvent, RuntimeException)}に通知される。
+     * リスナーの登録中は、プライマリオーナーノードでバケットを書き込む毎に、書き込み前のバケットの内容を複製して比較する。
+     * リバランス中は、通知が重複する、または欠落することがある。<br>
+     * 同じキャッシュを使用する全ての{@link DistributedOneToMany}の変更が通知される({@link #isReverseIndex()}の逆引きインデックスを除く)。
+     * 但し、リスナーを登録していないインスタンスによる分割・統合を伴う更新と新規キーの追加は通知されないため、
+     * 更新に使用するインスタンスにリスナーを登録すること。
+     * 不要になった時点で{@link #removeChangeListener(ChangeListener)}、または{@link #close()}を呼び出すこと。
+     * 
+     * @param listener リスナー
+     */
+    public synchronized void addChangeListener(ChangeListener<K, VK, V> listener) {
+        if (changeNotifier == null) {
+            changeNotifier = new ChangeNotifier(this);
+            cache.addListener(changeNotifier);
+        }
+        changeNotifier.listeners.add(listener);
+    }
+
+    /**
+     * {@link #addChangeListener(ChangeListener)}で登録したリスナーを削除する。
+     * 
+     * @param listener リスナー
+     */
+    public synchronized void removeChangeListener(ChangeListener<K, VK, V> listener) {
+        if (changeNotifier == null) {
+            return;
+        }
+        changeNotifier.listeners.remove(listener);
+        if (changeNotifier.listeners.isEmpty()) {
+            cache.removeListener(changeNotifier);
+            changeNotifier = null;
+        }
+    }
+
+    /**
+     * {@link #addChangeListener(ChangeListener)}で登録したリスナーが例外をスローした件数の累計
+     */
+    public long getTotalChangeListenerErrors() {
+        return totalChangeListenerErrors.get();
+    }
+
+    /**
+     * {@link #addChangeListener(ChangeListener)}で登録したリスナーが直近にスローした例外
+     * 
+     * @return 直近の例外。発生していない場合はnull
+     */
+    public RuntimeException getLastChangeListenerError() {
+        return lastChangeListenerError;
+    }
+
+    /**
+     * ニアキャッシュのリスナー、{@link #addChangeListener(ChangeListener)}のリスナーと、{@link #isOwnerExecution()}等で使用した分散実行サービスを解放する。
+     */
+    public synchronized void close() {
+        if (flushScheduler != null) {
+            flushScheduler.shutdownNow();
+            flushScheduler = null;
+        }
+        flush();
+        if (nearCache != null) {
+            cache.removeListener(nearCacheInvalidator);
+            nearCache.clear();
+            nearCache = null;
+            nearCacheInvalidator = null;
+        }
+        if (changeNotifier != null) {
+            cache.removeListener(changeNotifier);
+            changeNotifier = null;
+        }
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    private synchronized DistributedExecutorService getExecutor() {
+        if (executor == null) {
+            executor = new DefaultExecutorService(cache);
+        }
+        return executor;
+    }
+
+    /**
+     * subKeyをプライマリオーナー毎にグルーピングする。
+     * 
+     * @param dm DistributionManager
+     * @param subKeyList バケットのサブキーのリスト
+     * @return プライマリオーナー毎のsubKeyListのインデックスのリスト
+     */
+    private static Map<Address, List<Integer>> groupByOwner(DistributionManager dm, List<SubKey> subKeyList) {
+        Map<Address, List<Integer>> ownerMap = new LinkedHashMap<>();
+        for (int i = 0; i < subKeyList.size(); i++) {
+            Address owner = dm.getPrimaryLocation(subKeyList.get(i));
+            List<Integer> indexList = ownerMap.get(owner);
+            if (indexList == null) {
+                indexList = new ArrayList<>();
+                ownerMap.put(owner, indexList);
+            }
+            indexList.add(i);
+        }
+        return ownerMap;
+    }
+
+    /**
+     * バケットを先読みしながらvalueKeyとvalueを返すイテレータ
+     */
+    private class ValueIterator implements Iterator<Entry<VK, V>> {
+
+        private final List<SubKey> subKeyList;
+        // 溜めている更新(削除はnull)。無い場合はnull
+        private final Map<VK, V> pending;
+        private final int readAhead;
+        private final LinkedList<Future> window = new LinkedList<>();
+        private int nextFetch;
+        private Iterator<Entry<VK, V>> current;
+        private Iterator<Entry<VK, V>> pendingIterator;
+        private Entry<VK, V> nextEntry;
+
+        ValueIterator(List<SubKey> subKeyList, Map<VK, V> pending) {
+            this.subKeyList = subKeyList;
+            this.pending = pending;
+            this.readAhead = Math.max(1, getReadAheadBuckets());
+            fill();
+        }
+
+        private void fill() {
+            while (window.size() < readAhead && nextFetch < subKeyList.size()) {
+                window.add(cache.getAsync(subKeyList.get(nextFetch++)));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (nextEntry == null) {
+                if (current != null && current.hasNext()) {
+                    Entry<VK, V> entry = current.next();
+                    // 溜めている更新の対象のvalueKeyは、バケットの内容ではなく更新後のvalueを最後に返す
+                    if (pending == null || !pending.containsKey(entry.getKey())) {
+                        nextEntry = entry;
+                    }
+                } else if (!window.isEmpty()) {
+                    BucketEntry<K, VK, V> bucket = toBucket(cache, waitFor(window.removeFirst()));
+                    fill();
+                    current = bucket == null ? null : bucket.getValueMap().entrySet().iterator();
+                } else {
+                    if (pending == null) {
+                        return false;
+                    }
+                    if (pendingIterator == null) {
+                        pendingIterator = pending.entrySet().iterator();
+                    }
+                    if (!pendingIterator.hasNext()) {
+                        return false;
+                    }
+                    Entry<VK, V> entry = pendingIterator.next();
+                    if (entry.getValue() != null) {
+                        nextEntry = entry;
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Entry<VK, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry<VK, V> entry = nextEntry;
+            nextEntry = null;
+            return new SimpleImmutableEntry<>(entry.getKey(), entry.getValue());
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * 非同期操作の完了を待ち合わせる。
+     * 
+     * @param future 非同期操作のFuture
+     * @return 非同期操作の結果
+     */
+    private static Object waitFor(Future future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CacheException(e);
+        } catch (ExecutionException e) {
+            throw new CacheException(e.getCause());
+        }
+    }
+
+    /**
+     * key指定で削除する
+     * 
+     * @param key 第一キー
+     */
+    public boolean remove(K key) {
+        // 逆引きインデックスから削除するため、削除前のvalueKeyを取得する(高コスト: バケットの数に比例する)
+        Collection<VK> valueKeys = isReverseIndex() ? getValues(key).keySet() : Collections.<VK> emptySet();
+        boolean removed;
+        try {
+            if (isOwnerExecution()) {
+                removed = (Boolean) executeOnOwner(key, new OwnerMutationTask(getClass(), OwnerMutationTask.REMOVE_KEY, key, null, null));
+            } else {
+                removed = doRemove(key);
+            }
+        } finally {
+            invalidateNearCache(key);
+        }
+        removeReverseIndex(key, valueKeys);
+        return removed;
+    }
+
+    /**
+     * 指定されたvalueKeyを持つ全てのkeyを逆引きインデックスから取得する(コスト: 逆引きインデックスのバケットの数に比例する)。<br>
+     * 更新の途中で失敗した場合は、valueKeyを持たないkeyを含むことがある({@link #isReverseIndex()}参照)。
+     * 
+     * @param valueKey 第二キー
+     * @return valueKeyを持つ全てのkey
+     * @throws IllegalStateException {@link #isReverseIndex()}がfalseの場合
+     */
+    public Set<K> getKeys(VK valueKey) {
+        ReverseIndex<K, VK> index = getReverseIndex();
+        if (index == null) {
+            throw new IllegalStateException("reverse index is disabled");
+        }
+        return new HashSet<>(index.getValues(new ReverseKey(valueKey)).keySet());
+    }
+
+    private ReverseIndex<K, VK> getReverseIndex() {
+        if (!isReverseIndex()) {
+            return null;
+        }
+        ReverseIndex<K, VK> index = reverseIndex;
+        if (index == null) {
+            index = new ReverseIndex<>(cache, this);
+            reverseIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * 逆引きインデックスにkeyを追加する。既に存在する場合は書き込まない。
+     */
+    private void addReverseIndex(K key, Collection<? extends VK> valueKeys) {
+        ReverseIndex<K, VK> index = getReverseIndex();
+        if (index == null) {
+            return;
+        }
+        for (VK valueKey : valueKeys) {
+            ReverseKey reverseKey = new ReverseKey(valueKey);
+            if (!index.isContains(reverseKey, key)) {
+                index.put(reverseKey, key, Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * 逆引きインデックスからkeyを削除する。
+     */
+    private void removeReverseIndex(K key, Collection<? extends VK> valueKeys) {
+        ReverseIndex<K, VK> index = getReverseIndex();
+        if (index == null) {
+            return;
+        }
+        for (VK valueKey : valueKeys) {
+            index.remove(new ReverseKey(valueKey), key);
+        }
+    }
+
+    private boolean doRemove(K key) {
+        checkMetaPageSize();
+        if (getLockMode() == LockMode.OPTIMISTIC) {
+            return removeOptimistic(key);
+        }
+        if (getLockMode() == LockMode.BUCKET) {
+            checkBucketLock();
+            return removeBucketLock(key);
+        }
+
+        Object stored = cache.get(key);
+        for (SubKey subKey : getSubKeyList(key)) {
+            cache.remove(subKey);
+        }
+        if (stored instanceof BucketMetaRoot) {
+            for (SubKey pageKey : ((BucketMetaRoot) stored).getSubKeyList()) {
+                cache.remove(pageKey);
+            }
+        }
+        return cache.remove(key) != null;
+    }
+
+    /**
+     * {@link #get(Object, Object)}の非同期版。<br>
+     * {@link BucketMeta}とバケットの取得をキャッシュの非同期getで連鎖させるため、呼び出し元のスレッドはブロックしない。
+     * ニアキャッシュは使用しない。
+     * 
+     * @param key 第一キー
+     * @param valueKey 第二キー
+     * @return valueのFuture。存在しない場合の結果はnull
+     */
+    public NotifyingFuture<V> getAsync(K key, final VK valueKey) {
+        final AsyncResult<V> result = new AsyncResult<>();
+        PendingWrites pending = pendingWrites.isEmpty() ? null : pendingWrites.get(key);
+        if (pending != null && pending.contains(valueKey)) {
+            result.complete((V) pending.get(valueKey));
+            return result;
+        }
+        final int hash = HashFunction.hash(valueKey);
+        readMetaAsync(key, hash, result, new AsyncStep<BucketMeta>() {
+            @Override
+            public void next(BucketMeta meta) {
+                if (meta == null) {
+                    result.complete(null);
+                    return;
+                }
+                getBucketAsync(meta.getSubKey(meta.getIndex(hash)), result, new AsyncStep<BucketEntry>() {
+                    @Override
+                    public void next(BucketEntry bucket) {
+                        result.complete(bucket == null ? null : (V) bucket.getValueMap().get(valueKey));
+                    }
+                });
+            }
+        });
+        return result;
+    }
+
+    /**
+     * {@link #getValues(Object)}の非同期版。<br>
+     * 全てのバケットの非同期getを一度に発行し、全ての応答が揃った時点で完了する。ニアキャッシュは使用しない。
+     * 
+     * @param key 第一キー
+     * @return keyにぶら下がる全てのvalueKeyとvalueのFuture
+     */
+    public NotifyingFuture<Map<VK, V>> getValuesAsync(K key) {
+        final AsyncResult<Map<VK, V>> result = new AsyncResult<>();
+        // 溜めている更新は呼び出し時点のものを反映する
+        final Map<VK, V> pending = snapshotPendingWrites(key);
+        readMetaAsync(key, null, result, new AsyncStep<BucketMeta>() {
+            @Override
+            public void next(BucketMeta meta) {
+                if (meta == null) {
+                    result.complete(applyPendingWrites(new HashMap<VK, V>(), pending));
+                    return;
+                }
+                getBucketsAsync(meta.getSubKeyList(), result, new AsyncStep<List<BucketEntry>>() {
+                    @Override
+                    public void next(List<BucketEntry> buckets) {
+                        result.complete(applyPendingWrites(toValues(buckets), pending));
+                    }
+                });
+            }
+        });
+        return result;
+    }
+
+    /**
+     * {@link #put(Object, Object, Object)}の非同期版。<br>
+     * 各更新はキャッシュの非同期putで連鎖させ、バケット分割時も新バケットの投入(U1)、{@link BucketTrasfer}の投入(U2)、
+     * {@link BucketMeta}の更新(U4)の順序で、前の段階の全ての書き込みが完了してから次の段階を発行する。<br>
+     * {@link LockMode#KEY}、且つ{@link #getMetaPageSize()}が0、且つ{@link #isOwnerExecution()}、{@link #isReverseIndex()}がfalseの場合のみ使用することができる。<br>
+     * 2段階目以降の書き込みはFutureのコールバックのスレッドで発行され、呼び出し元のトランザクションに参加できないため、
+     * トランザクショナルキャッシュでは使用できない({@link IllegalStateException}となる)。<br>
+     * <b>クラスタワイドロックは使用できないため、同一keyへの更新は前の更新のFutureが完了してから発行すること
+     * (key毎に書き込み元を1つに限定する、またはアプリケーション側でkey毎に排他してFutureの完了まで保持する)。同一keyへの更新を並行して発行してはならない。</b>
+     * 
+     * @param key 第一キー
+     * @param valueKey 第二キー
+     * @param value 保持するvalue
+     * @return 前回の値のFuture。無ければ結果はnull
+     */
+    public NotifyingFuture<V> putAsync(final K key, final VK valueKey, final V value) {
+        checkAsyncUpdate();
+        final AsyncResult<V> result = invalidateOnDone(key, new AsyncResult<V>());
+        final int hash = HashFunction.hash(valueKey);
+        then(cache.getAsync(key), result, new AsyncStep<Object>() {
+            @Override
+            public void next(Object stored) {
+                final BucketMeta meta = (BucketMeta) stored;
+                if (meta == null) {
+                    // 新規キー
+                    final Map<SubKey, Object> newBuckets = new LinkedHashMap<>();
+                    final BucketMeta newMeta = newKeyLayout(key, getExpectedValueCount(), Collections.singletonMap(valueKey, value), newBuckets);
+                    putNewBucketsAsync(newBuckets, result, new Runnable() {
+                        @Override
+                        public void run() {
+                            putThenComplete(key, newMeta, result, null);
+                        }
+                    });
+                    return;
+                }
+
+                final int index = meta.getIndex(hash);
+                final SubKey subkey = meta.getSubKey(index);
+                then(cache.getAsync(subkey), result, new AsyncStep<Object>() {
+                    @Override
+                    public void next(Object current) {
+                        BucketEntry<K, VK, V> bucket = (BucketEntry) current;
+                        if (bucket == null) {
+                            bucket = new BucketEntry<>(key);
+                        }
+
+                        if (bucket.getValueMap().containsKey(valueKey)) {
+                            // 既にvalueKeyが存在　-> valueを差し替えるだけでルートの構造は変化しない。
+                            V preValue = bucket.getValueMap().get(valueKey);
+                            putThenComplete(subkey, BucketDelta.put(valueKey, value), result, preValue);
+                            return;
+                        }
+
+                        final Map<SubKey, Object> newBuckets = new LinkedHashMap<>();
+                        final BucketTrasfer tbt = new BucketTrasfer();
+                        BucketMeta splitMeta = null;
+                        if (bucket.getValueMap().size() >= getMaxBucketSize()) {
+                            Map<VK, V> entries = new HashMap<>(bucket.getValueMap());
+                            entries.put(valueKey, value);
+                            splitMeta = splitBucket(key, meta, index, meta.getHashRnge(index)[0], entries, newBuckets, tbt);
+                        }
+
+                        if (splitMeta == null) {
+                            // バケットにvalue追加(ルートの構造は変化しないため、BucketMetaは更新しない)
+                            putThenComplete(subkey, BucketDelta.put(valueKey, value), result, null);
+                            return;
+                        }
+
+                        // バケット分割
+                        final BucketMeta newMeta = splitMeta;
+                        putChangeDeltaAsync(subkey, BucketDelta.put(valueKey, value), result, new Runnable() {
+                            @Override
+                            public void run() {
+                                // put new bucket(U1: order is important)
+                                putEntriesAsync(newBuckets, -1, result, new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        // transfer (U2: order is important)
+                                        then(cache.putAsync(subkey, tbt, getTransferExpireMills(), TimeUnit.MILLISECONDS), result, new AsyncStep<Object>() {
+                                            @Override
+                                            public void next(Object ignore) {
+                                                // update (U4: order is important)
+                                                putThenComplete(key, newMeta, result, null);
+                                            }
+                                        });
+                                    }
+                                });
+                            }
+                        });
+                    }
+                });
+            }
+        });
+        return result;
+    }
+
+    /**
+     * {@link #remove(Object, Object)}の非同期版。<br>
+     * バケット統合時も、統合後のバケットの投入、{@link BucketTrasfer}の投入、{@link BucketMeta}の更新の順序で書き込む。<br>
+     * 使用できる条件は{@link #putAsync(Object, Object, Object)}と同じ(トランザクショナルキャッシュでは使用できない)。<br>
+     * <b>同一keyへの更新は前の更新のFutureが完了してから発行すること。同一keyへの更新を並行して発行してはならない。</b>
+     * 
+     * @param key 第一キー
+     * @param valueKey 第二キー
+     * @return 前回の値のFuture。無ければ結果はnull
+     */
+    public NotifyingFuture<V> removeAsync(final K key, final VK valueKey) {
+        checkAsyncUpdate();
+        final AsyncResult<V> result = invalidateOnDone(key, new AsyncResult<V>());
+        final int hash = HashFunction.hash(valueKey);
+        then(cache.getAsync(key), result, new AsyncStep<Object>() {
+            @Override
+            public void next(Object stored) {
+                final BucketMeta meta = (BucketMeta) stored;
+                if (meta == null) {
+                    result.complete(null);
+                    return;
+                }
+
+                final int index = meta.getIndex(hash);
+                final SubKey subKey = meta.getSubKey(index);
+                then(cache.getAsync(subKey), result, new AsyncStep<Object>() {
+                    @Override
+                    public void next(Object current) {
+                        BucketEntry<K, VK, V> cached = (BucketEntry) current;
+                        if (cached == null || !cached.getValueMap().containsKey(valueKey)) {
+                            result.complete(null);
+                            return;
+                        }
+
+                        // キャッシュ上のインスタンスは変更しない
+                        final BucketEntry<K, VK, V> bucket = new BucketEntry<>(key);
+                        bucket.getValueMap().putAll(cached.getValueMap());
+                        final V pre = bucket.getValueMap().remove(valueKey);
+                        List<SubKey> others = bucket.getValueMap().isEmpty() ? emptyKeyCandidates(meta, Collections.singleton(subKey)) : null;
+                        if (others == null) {
+                            removeOrMergeAsync(key, meta, index, bucket, valueKey, pre, result);
+                            return;
+                        }
+
+                        // 他のバケットの目安が全て0 -> 実際のバケットを読み取って確認する
+                        getBucketsAsync(others, result, new AsyncStep<List<BucketEntry>>() {
+                            @Override
+                            public void next(List<BucketEntry> buckets) {
+                                for (BucketEntry other : buckets) {
+                                    if (other != null && !other.getValueMap().isEmpty()) {
+                                        removeOrMergeAsync(key, meta, index, bucket, valueKey, pre, result);
+                                        return;
+                                    }
+                                }
+
+                                // completely delete
+                                removeEntriesAsync(meta.getSubKeyList(), result, new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        then(cache.removeAsync(key), result, new AsyncStep<Object>() {
+                                            @Override
+                                            public void next(Object ignore) {
+                                                result.complete(pre);
+                                            }
+                                        });
+                                    }
+                                });
+                            }
+                        });
+                    }
+                });
+            }
+        });
+        return result;
+    }
+
+    /**
+     * {@link #removeAsync(Object, Object)}で、valueKeyを削除したバケットを書き込む。隣接バケットと合併する場合は合併する。
+     * 
+     * @param bucket valueKeyを削除したバケット
+     */
+    private void removeOrMergeAsync(final K key, final BucketMeta meta, final int index, final BucketEntry<K, VK, V> bucket, final VK valueKey,
+            final V pre, final AsyncResult<V> result) {
+        final SubKey subKey = meta.getSubKey(index);
+        final int anotherIndex = compactionIndex(meta, index, bucket.getValueMap().size());
+        if (anotherIndex < 0) {
+            // simple remove case(ルートの構造は変化しないため、BucketMetaは更新しない)
+            putThenComplete(subKey, BucketDelta.remove(valueKey), result, pre);
+            return;
+        }
+
+        final SubKey anotherSubKey = meta.getSubKey(anotherIndex);
+        getBucketAsync(anotherSubKey, result, new AsyncStep<BucketEntry>() {
+            @Override
+            public void next(BucketEntry another) {
+                int anotherSize = another == null ? 0 : another.getValueMap().size();
+                if (!isCompaction(bucket.getValueMap().size(), anotherSize)) {
+                    // simple remove case
+                    putThenComplete(subKey, BucketDelta.remove(valueKey), result, pre);
+                    return;
+                }
+
+                // merge up
+                int newIndex = Math.min(index, anotherIndex);
+                final BucketMeta newMeta = new BucketMeta(meta); // immutable
+                newMeta.mergeUp(newIndex, subKeyFactory(key));
+
+                BucketEntry newBucket = new BucketEntry(key);
+                newBucket.getValueMap().putAll(bucket.getValueMap());
+                if (another != null) {
+                    newBucket.getValueMap().putAll(another.getValueMap());
+                }
+                newMeta.setBucketSize(newIndex, newBucket.getValueMap().size());
+
+                final SubKey newSubKey = newMeta.getSubKey(newIndex);
+                final BucketTrasfer tbt = new BucketTrasfer();
+                tbt.getTransSubKeyList().add(newSubKey);
+
+                final Map<SubKey, Object> merged = Collections.singletonMap(newSubKey, (Object) newBucket);
+                putChangeDeltaAsync(subKey, BucketDelta.remove(valueKey), result, new Runnable() {
+                    @Override
+                    public void run() {
+                        putEntriesAsync(merged, -1, result, new Runnable() {
+                            @Override
+                            public void run() {
+                                Map<SubKey, Object> transfers = new LinkedHashMap<>();
+                                transfers.put(subKey, tbt);
+                                transfers.put(anotherSubKey, tbt);
+                                putEntriesAsync(transfers, getTransferExpireMills(), result, new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        putThenComplete(key, newMeta, result, pre);
+                                    }
+                                });
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    private void checkAsyncUpdate() {
+        if (getLockMode() != LockMode.KEY || getMetaPageSize() > 0 || isOwnerExecution() || isReverseIndex()) {
+            throw new IllegalStateException("async update is supported only with LockMode.KEY, no meta pages, no owner execution and no reverse index");
+        }
+        // コールバックのスレッドでの書き込みは呼び出し元のトランザクションに参加せず、呼び出し元が保持するロックを待つことになる
+        if (cache.getTransactionManager() != null) {
+            throw new IllegalStateException("async update is not supported on transactional caches. cache=" + cache.getName());
+        }
+    }
+
+    /**
+     * 完了時にニアキャッシュを無効化する。
+     */
+    private <T> AsyncResult<T> invalidateOnDone(final K key, AsyncResult<T> result) {
+        result.attachListener(new FutureListener<T>() {
+            @Override
+            public void futureDone(Future<T> future) {
+                invalidateNearCache(key);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 非同期の処理を連鎖させる1段階
+     */
+    private interface AsyncStep<T> {
+        void next(T value) throws Exception;
+    }
+
+    /**
+     * futureの完了後にstepを実行する。futureまたはstepが失敗した場合はresultを失敗させる。
+     */
+    private static <T> void then(NotifyingFuture<T> future, final AsyncResult<?> result, final AsyncStep<T> step) {
+        future.attachListener(new FutureListener<T>() {
+            @Override
+            public void futureDone(Future<T> done) {
+                try {
+                    step.next(done.get());
+                } catch (ExecutionException e) {
+                    result.fail(e.getCause());
+                } catch (Throwable e) {
+                    result.fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 非同期put(BucketDeltaの場合は差分の書き込み)の完了後に、resultを指定された値で完了する。
+     */
+    private <T> void putThenComplete(Object key, Object value, final AsyncResult<T> result, final T completeValue) {
+        NotifyingFuture future;
+        if (value instanceof BucketDelta) {
+            future = putDeltaAsync((SubKey) key, (BucketDelta) value);
+        } else {
+            future = cache.putAsync(key, value);
+        }
+        then(future, result, new AsyncStep<Object>() {
+            @Override
+            public void next(Object ignore) {
+                result.complete(completeValue);
+            }
+        });
+    }
+
+    private NotifyingFuture putDeltaAsync(SubKey subKey, BucketDelta delta) {
+        return cache.withFlags(Flag.IGNORE_RETURN_VALUES).putAsync(subKey, delta);
+    }
+
+    /**
+     * {@link ChangeListener}の登録中のみ、分割・統合前のバケットへ変更の差分を非同期で書き込み、完了後にnextを実行する。
+     * 登録していない場合は直ちにnextを実行する。
+     */
+    private void putChangeDeltaAsync(SubKey subKey, BucketDelta delta, AsyncResult<?> result, final Runnable next) {
+        if (changeNotifier == null) {
+            next.run();
+            return;
+        }
+        then(putDeltaAsync(subKey, delta), result, new AsyncStep<Object>() {
+            @Override
+            public void next(Object ignore) {
+                next.run();
+            }
+        });
+    }
+
+    /**
+     * 指定されたエントリの非同期putを全て発行し、全ての完了後にnextを実行する。
+     */
+    private void putEntriesAsync(Map<SubKey, Object> entries, long lifespanMills, AsyncResult<?> result, Runnable next) {
+        List<NotifyingFuture> futures = new ArrayList<>(entries.size());
+        for (Entry<SubKey, Object> entry : entries.entrySet()) {
+            if (lifespanMills > 0) {
+                futures.add(cache.putAsync(entry.getKey(), entry.getValue(), lifespanMills, TimeUnit.MILLISECONDS));
+            } else {
+                futures.add(cache.putAsync(entry.getKey(), entry.getValue()));
+            }
+        }
+        thenAll(futures, result, next);
+    }
+
+    /**
+     * {@link #putNewBuckets(Map)}の非同期版
+     */
+    private void putNewBucketsAsync(final Map<SubKey, Object> newBuckets, final AsyncResult<?> result, final Runnable next) {
+        if (changeNotifier == null) {
+            putEntriesAsync(newBuckets, -1, result, next);
+            return;
+        }
+        putEntriesAsync(emptyBuckets(newBuckets), -1, result, new Runnable() {
+            @Override
+            public void run() {
+                putEntriesAsync(newBuckets, -1, result, next);
+            }
+        });
+    }
+
+    /**
+     * 指定されたサブキーの非同期removeを全て発行し、全ての完了後にnextを実行する。
+     */
+    private void removeEntriesAsync(List<SubKey> subKeyList, AsyncResult<?> result, Runnable next) {
+        List<NotifyingFuture> futures = new ArrayList<>(subKeyList.size());
+        for (SubKey subKey : subKeyList) {
+            futures.add(cache.removeAsync(subKey));
+        }
+        thenAll(futures, result, next);
+    }
+
+    /**
+     * 全てのfutureの完了後にnextを実行する。いずれかが失敗した場合はresultを失敗させる。
+     */
+    private static void thenAll(List<NotifyingFuture> futures, final AsyncResult<?> result, final Runnable next) {
+        if (futures.isEmpty()) {
+            next.run();
+            return;
+        }
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        for (NotifyingFuture future : futures) {
+            then(future, result, new AsyncStep<Object>() {
+                @Override
+                public void next(Object ignore) {
+                    if (remaining.decrementAndGet() == 0) {
+                        next.run();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * {@link #readMeta(Cache, Object)}、{@link #readMeta(Cache, Object, int)}の非同期版。
+     * 
+     * @param key 第一キー
+     * @param hash valueKeyのハッシュ値。nullの場合は全てのメタページを取得して連結する
+     */
+    private void readMetaAsync(final K key, final Integer hash, final AsyncResult<?> result, final AsyncStep<BucketMeta> step) {
+        then(cache.getAsync(key), result, new AsyncStep<Object>() {
+            @Override
+            public void next(Object stored) throws Exception {
+                if (!(stored instanceof BucketMetaRoot)) {
+                    step.next((BucketMeta) stored);
+                    return;
+                }
+
+                final BucketMetaRoot root = (BucketMetaRoot) stored;
+                if (hash != null) {
+                    then(cache.getAsync(root.getSubKey(root.getIndex(hash))), result, new AsyncStep<Object>() {
+                        @Override
+                        public void next(Object page) throws Exception {
+                            step.next((BucketMeta) page);
+                        }
+                    });
+                    return;
+                }
+
+                final BucketMeta[] pages = new BucketMeta[root.pageNum()];
+                List<NotifyingFuture> futures = new ArrayList<>(pages.length);
+                for (int i = 0; i < pages.length; i++) {
+                    final int page = i;
+                    NotifyingFuture future = cache.getAsync(root.getSubKey(i));
+                    then(future, result, new AsyncStep<Object>() {
+                        @Override
+                        public void next(Object value) {
+                            pages[page] = (BucketMeta) value;
+                        }
+                    });
+                    futures.add(future);
+                }
+                thenAll(futures, result, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (Arrays.asList(pages).contains(null)) {
+                            // メタページが期限切れ -> ルートを読み直す
+                            then(cache.getAsync(key), result, new AsyncStep<Object>() {
+                                @Override
+                                public void next(Object latest) {
+                                    if (root.equals(latest)) {
+                                        result.fail(new CacheException("meta page not found: key=" + key + ", " + root));
+                                    } else {
+                                        readMetaAsync(key, hash, result, step);
+                                    }
+                                }
+                            });
+                            return;
+                        }
+                        for (int i = 0; i < pages.length; i++) {
+                            // 統合された古いメタページは隣接するハッシュ範囲を含むため、ルートのハッシュ範囲に絞る
+                            pages[i] = pages[i].subMeta(pages[i].getIndex(root.getMinHash(i)), pages[i].getIndex(root.getMaxHash(i)) + 1);
+                        }
+                        try {
+                            step.next(BucketMeta.concat(Arrays.asList(pages)));
+                        } catch (Throwable e) {
+                            result.fail(e);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * {@link #getBucket(Cache, SubKey)}の非同期版。BucketTrasferの場合は移行先のバケットを非同期に取得してマージする。
+     */
+    private void getBucketAsync(SubKey subKey, final AsyncResult<?> result, final AsyncStep<BucketEntry> step) {
+        then(cache.getAsync(subKey), result, new AsyncStep<Object>() {
+            @Override
+            public void next(Object tmp) throws Exception {
+                if (!(tmp instanceof BucketTrasfer)) {
+                    step.next(tmp instanceof BucketEntry ? (BucketEntry) tmp : null);
+                    return;
+                }
+                getBucketsAsync(((BucketTrasfer) tmp).getTransSubKeyList(), result, new AsyncStep<List<BucketEntry>>() {
+                    @Override
+                    public void next(List<BucketEntry> buckets) throws Exception {
+                        if (buckets.contains(null)) {
+                            // 移行先のバケットがkeyの削除等で既に存在しない
+                            step.next(null);
+                            return;
+                        }
+                        BucketEntry mergeBucket = new BucketEntry();
+                        for (BucketEntry bucket : buckets) {
+                            mergeBucket.getValueMap().putAll(bucket.getValueMap());
+                        }
+                        step.next(mergeBucket);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 指定された複数のバケットを非同期に取得し、全て揃った時点でstepを実行する。
+     */
+    private void getBucketsAsync(List<SubKey> subKeyList, final AsyncResult<?> result, final AsyncStep<List<BucketEntry>> step) {
+        final BucketEntry[] buckets = new BucketEntry[subKeyList.size()];
+        if (buckets.length == 0) {
+            try {
+                step.next(Arrays.asList(buckets));
+            } catch (Throwable e) {
+                result.fail(e);
+            }
+            return;
+        }
+        final AtomicInteger remaining = new AtomicInteger(buckets.length);
+        for (int i = 0; i < buckets.length; i++) {
+            final int index = i;
+            getBucketAsync(subKeyList.get(i), result, new AsyncStep<BucketEntry>() {
+                @Override
+                public void next(BucketEntry bucket) throws Exception {
+                    buckets[index] = bucket;
+                    if (remaining.decrementAndGet() == 0) {
+                        step.next(Arrays.asList(buckets));
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * {@link LockMode#OPTIMISTIC}のput
+     */
+    private V putOptimistic(K key, VK valueKey, V value) {
+        Map<VK, V> preValues = new HashMap<>(1);
+        putAllOptimistic(key, Collections.singletonMap(valueKey, value), preValues);
+        return preValues.get(valueKey);
+    }
+
+    /**
+     * {@link LockMode#OPTIMISTIC}のputAll<br>
+     * バケット毎に条件付きreplaceで更新し、競合したバケットのvalueKeyは最新のBucketMetaで振り分け直してやり直す。
+     * 
+     * @param key 第一キー
+     * @param values 第二キーとvalueのMap
+     * @param preValues 前回の値の格納先(不要な場合はnull)
+     */
+    private void putAllOptimistic(K key, Map<? extends VK, ? extends V> values, Map<VK, V> preValues) {
+        Map<VK, V> remaining = new HashMap<>(values);
+        for (int attempt = 0;; attempt++) {
+            checkOptimisticRetry(key, attempt);
+
+            BucketMeta meta = (BucketMeta) cache.get(key);
+            if (meta == null) {
+                // 新規キー
+                if (createKeyOptimistic(key, getExpectedValueCount(), remaining)) {
+                    return;
+                }
+                continue;
+            }
+
+            for (Entry<Integer, Map<VK, V>> entry : groupByIndex(meta, remaining).entrySet()) {
+                if (commitPutOptimistic(key, meta, entry.getKey(), entry.getValue(), preValues)) {
+                    remaining.keySet().removeAll(entry.getValue().keySet());
+                }
+            }
+            if (remaining.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 新規キーを作成する。既に他のスレッドがキーを作成していた場合は、書き込んだバケットを削除してfalseを返す。<br>
+     * {@link ChangeListener}の登録中は空のバケットで作成してfalseを返し、valueはキーの作成後に既存のキーと同様に条件付きreplaceで追加させる
+     * ({@link ChangeNotifier}はバケットの作成を通知しないため)。
+     * 
+     * @return valuesを含めてキーを作成した場合はtrue
+     */
+    private boolean createKeyOptimistic(K key, int expectedCount, Map<VK, V> values) {
+        boolean withValues = changeNotifier == null || values.isEmpty();
+        Map<SubKey, Object> newBuckets = new LinkedHashMap<>();
+        BucketMeta meta = withValues ? newKeyLayout(key, expectedCount, values, newBuckets)
+                : newKeyLayout(key, Math.max(expectedCount, values.size()), Collections.<VK, V> emptyMap(), newBuckets);
+
+        putEntries(newBuckets, -1);
+        if (cache.putIfAbsent(key, meta) == null) {
+            return withValues;
+        }
+        removeEntries(newBuckets.keySet());
+        return false;
+    }
+
+    /**
+     * 1つのバケットにvalueKeyとvalueを追加し、条件付きreplaceでコミットする。<br>
+     * バケットが上限を超える場合はコミット後に分割し、BucketMetaを最新の状態に対してリベースしながら更新する。
+     * 
+     * @return コミットできた場合はtrue。バケットが競合していた場合はfalse
+     */
+    private boolean commitPutOptimistic(K key, BucketMeta meta, int index, Map<VK, V> entries, Map<VK, V> preValues) {
+        final SubKey subKey = meta.getSubKey(index);
+        Object current = cache.get(subKey);
+        if (!(current instanceof BucketEntry)) {
+            // BucketMetaが古い
+            return false;
+        }
+
+        BucketEntry<K, VK, V> bucket = (BucketEntry) current;
+        BucketEntry<K, VK, V> newBucket = new BucketEntry<>(key);
+        newBucket.getValueMap().putAll(bucket.getValueMap());
+        newBucket.getValueMap().putAll(entries);
+
+        // 分割しない場合、または変更を通知する場合は、元のバケットへの条件付きreplaceで追加・更新をコミットする
+        // (変更を通知する場合の分割はこのコミットの後に行い、分割による移動は通知しない)
+        boolean split = newBucket.getValueMap().size() > getMaxBucketSize();
+        boolean committed = !split || changeNotifier != null;
+        if (committed) {
+            if (!cache.replace(subKey, bucket, newBucket)) {
+                return false;
+            }
+            collectPreValues(bucket, entries, preValues);
+            if (!split) {
+                return true;
+            }
+        }
+
+        // バケット分割(追加・更新をコミット済みの場合は、分割できなかった場合もtrueを返す)
+        int[] range = meta.getHashRnge(index);
+        List<Integer> minHashList = new ArrayList<>();
+        List<Map<VK, V>> pieceList = new ArrayList<>();
+        splitEntries(newBucket.getValueMap(), range[0], minHashList, pieceList);
+
+        final int[] newMinHash = toIntArray(minHashList);
+        final int[] newBucketSize = new int[newMinHash.length];
+        final List<SubKey> newSubKeyList = new ArrayList<>(newMinHash.length);
+        Map<SubKey, Object> newBuckets = new LinkedHashMap<>();
+        BucketTrasfer tbt = new BucketTrasfer();
+        SubKeyFactory factory = subKeyFactory(key);
+        for (int j = 0; j < newMinHash.length; j++) {
+            SubKey sKey = factory.newSubKey();
+            SubKey newSubKey = new SubKey(sKey.getUnique(), sKey.getCounter(), meta.getGroup());
+            BucketEntry piece = new BucketEntry(key);
+            piece.getValueMap().putAll(pieceList.get(j));
+
+            newBucketSize[j] = piece.getValueMap().size();
+            newSubKeyList.add(newSubKey);
+            newBuckets.put(newSubKey, piece);
+            tbt.getTransSubKeyList().add(newSubKey);
+        }
+
+        // put new bucket(U1: order is important)
+        putEntries(newBuckets, -1);
+
+        // transfer (U2: order is important)
+        // 追加・更新をコミットしていない場合は、このreplaceでコミットする
+        if (!cache.replace(subKey, committed ? newBucket : bucket, tbt, getTransferExpireMills(), TimeUnit.MILLISECONDS)) {
+            // 他のスレッドが先にバケットを更新した(コミット済みの場合、上限を超えたバケットは次のputで分割される)
+            removeEntries(newBuckets.keySet());
+            return committed;
+        }
+        if (!committed) {
+            collectPreValues(bucket, entries, preValues);
+        }
+
+        // update (U4: order is important)
+        // 旧バケットはBucketTrasferに置き換え済みのため、このバケットを変更できるのは自スレッドのみ。
+        // BucketMetaが他のバケットの分割・統合で変更されていても、最新のBucketMetaに対して同じ分割を適用すればよい。
+        boolean metaCommitted = commitMetaOptimistic(key, meta, new MetaChange() {
+            @Override
+            public boolean apply(BucketMeta target) {
+                int targetIndex = target.indexOf(subKey);
+                if (targetIndex < 0) {
+                    return false;
+                }
+                target.splitDown(targetIndex, newMinHash, new FixedSubKeyFactory(newSubKeyList));
+                for (int j = 0; j < newBucketSize.length; j++) {
+                    target.setBucketSize(targetIndex + j, newBucketSize[j]);
+                }
+                return true;
+            }
+        });
+        if (!metaCommitted) {
+            // keyが同時に削除された
+            removeEntries(newBuckets.keySet());
+            return committed;
+        }
+        return true;
+    }
+
+    /**
+     * {@link LockMode#OPTIMISTIC}のremove
+     */
+    private V removeOptimistic(K key, VK valueKey) {
+        for (int attempt = 0;; attempt++) {
+            checkOptimisticRetry(key, attempt);
+
+            BucketMeta meta = (BucketMeta) cache.get(key);
+            if (meta == null) {
+                return null;
+            }
+
+            int index = meta.getIndex(HashFunction.hash(valueKey));
+            Object current = cache.get(meta.getSubKey(index));
+            if (!(current instanceof BucketEntry)) {
+                // BucketMetaが古い
+                continue;
+            }
+
+            BucketEntry<K, VK, V> bucket = (BucketEntry) current;
+            if (!bucket.getValueMap().containsKey(valueKey)) {
+                return null;
+            }
+
+            BucketEntry<K, VK, V> newBucket = new BucketEntry<>(key);
+            newBucket.getValueMap().putAll(bucket.getValueMap());
+            V pre = newBucket.getValueMap().remove(valueKey);
+
+            if (commitRemoveOptimistic(key, meta, index, bucket, newBucket)) {
+                return pre;
+            }
+        }
+    }
+
+    /**
+     * valueKeyを削除したバケットを条件付きreplaceでコミットする。<br>
+     * 最後の1件の場合はkeyごと削除し、隣接バケットと合わせて{@link #getMinCompactionBucketSize()}以下の場合はコミット後にバケットを統合する。
+     * 
+     * @return コミットできた場合はtrue。バケットが競合していた場合はfalse
+     */
+    private boolean commitRemoveOptimistic(K key, BucketMeta meta, int index, BucketEntry<K, VK, V> bucket, BucketEntry<K, VK, V> newBucket) {
+        SubKey subKey = meta.getSubKey(index);
+        int bucketSize = newBucket.getValueMap().size();
+
+        if (bucketSize == 0 && meta.bucketNum() <= 1) {
+            // completely delete
+            // 空のBucketTrasferでバケットを閉じ、他のスレッドがこのバケットをコミットできないようにしてからkeyを削除する。
+            BucketTrasfer closed = new BucketTrasfer();
+            if (!cache.replace(subKey, bucket, closed, getTransferExpireMills(), TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+            if (!cache.remove(key, meta)) {
+                cache.replace(subKey, closed, bucket);
+                return false;
+            }
+            cache.remove(subKey);
+            return true;
+        }
+
+        if (meta.bucketNum() <= 1 || bucketSize > getMinCompactionBucketSize()) {
+            // simple remove case
+            return cache.replace(subKey, bucket, newBucket);
+        }
+
+        int anotherIndex;
+        if (index == 0) {
+            anotherIndex = index + 1;
+        } else if (index == meta.bucketNum() - 1) {
+            anotherIndex = index - 1;
+        } else if (meta.getBuketSize(index - 1) < meta.getBuketSize(index + 1)) {
+            anotherIndex = index - 1;
+        } else {
+            anotherIndex = index + 1;
+        }
+
+        SubKey anotherSubKey = meta.getSubKey(anotherIndex);
+        Object another = cache.get(anotherSubKey);
+        if (!(another instanceof BucketEntry) || bucketSize + ((BucketEntry) another).getValueMap().size() > getMinCompactionBucketSize()) {
+            // simple remove case
+            return cache.replace(subKey, bucket, newBucket);
+        }
+
+        // merge up
+        int newIndex = Math.min(index, anotherIndex);
+        final SubKey lowerSubKey = meta.getSubKey(newIndex);
+        final SubKey upperSubKey = meta.getSubKey(newIndex + 1);
+
+        final BucketEntry mergeBucket = new BucketEntry(key);
+        mergeBucket.getValueMap().putAll(newBucket.getValueMap());
+        mergeBucket.getValueMap().putAll(((BucketEntry) another).getValueMap());
+
+        SubKey sKey = subKeyFactory(key).newSubKey();
+        final SubKey newSubKey = new SubKey(sKey.getUnique(), sKey.getCounter(), meta.getGroup());
+
+        BucketTrasfer tbt = new BucketTrasfer();
+        tbt.getTransSubKeyList().add(newSubKey);
+
+        // 変更を通知する場合は、元のバケットへの条件付きreplaceで削除を先にコミットする(統合による移動は通知しない)
+        boolean committed = changeNotifier != null;
+        if (committed && !cache.replace(subKey, bucket, newBucket)) {
+            return false;
+        }
+        BucketEntry<K, VK, V> expected = committed ? newBucket : bucket;
+
+        // 削除をコミットしていない場合は、BucketTrasferへのreplaceでコミットする(コミット済みの場合は、統合できなかった場合もtrueを返す)
+        cache.put(newSubKey, mergeBucket);
+        if (!cache.replace(subKey, expected, tbt, getTransferExpireMills(), TimeUnit.MILLISECONDS)) {
+            cache.remove(newSubKey);
+            return committed;
+        }
+        if (!cache.replace(anotherSubKey, another, tbt, getTransferExpireMills(), TimeUnit.MILLISECONDS)) {
+            cache.replace(subKey, tbt, expected);
+            cache.remove(newSubKey);
+            return committed;
+        }
+
+        boolean metaCommitted = commitMetaOptimistic(key, meta, new MetaChange() {
+            @Override
+            public boolean apply(BucketMeta target) {
+                int targetIndex = target.indexOf(lowerSubKey);
+                if (targetIndex < 0 || target.indexOf(upperSubKey) != targetIndex + 1) {
+                    return false;
+                }
+                target.mergeUp(targetIndex, new FixedSubKeyFactory(Collections.singletonList(newSubKey)));
+                target.setBucketSize(targetIndex, mergeBucket.getValueMap().size());
+                return true;
+            }
+        });
+        if (!metaCommitted) {
+            // keyが同時に削除された
+            cache.remove(newSubKey);
+        }
+        return true;
+    }
+
+    /**
+     * {@link LockMode#OPTIMISTIC}のkey削除
+     */
+    private boolean removeOptimistic(K key) {
+        for (int attempt = 0;; attempt++) {
+            checkOptimisticRetry(key, attempt);
+
+            BucketMeta meta = (BucketMeta) cache.get(key);
+            if (meta == null) {
+                return false;
+            }
+            if (cache.remove(key, meta)) {
+                for (SubKey subKey : meta.getSubKeyList()) {
+                    cache.remove(subKey);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 新規キーのバケット構成を決定する。<br>
+     * 想定件数に応じたバケット数で事前に分割し、{@link #getMaxBucketSize()}を超えるバケットのみ実際の値で分割する。
+     * valueの無いバケットも空のバケットとして格納先に追加する。
+     * 
+     * @param key 第一キー
+     * @param expectedCount 想定件数(0以下の場合は1バケットから開始する)
+     * @param values 第二キーとvalueのMap
+     * @param newBuckets 新規バケットの格納先
+     * @return 新規キーのBucketMeta
+     */
+    private BucketMeta newKeyLayout(K key, int expectedCount, Map<VK, V> values, Map<SubKey, Object> newBuckets) {
+        BucketMeta meta = newBucketMeta(key, expectedCount);
+        TreeMap<Integer, Map<VK, V>> indexMap = groupByIndex(meta, values);
+
+        // 分割でインデックスがずれないよう降順で処理する
+        for (int index = meta.bucketNum() - 1; index >= 0; index--) {
+            Map<VK, V> indexValues = indexMap.get(index);
+            if (indexValues == null) {
+                indexValues = Collections.emptyMap();
+            }
+
+            List<Integer> minHashList = new ArrayList<>();
+            List<Map<VK, V>> pieceList = new ArrayList<>();
+            splitEntries(indexValues, meta.getHashRnge(index)[0], minHashList, pieceList);
+            if (pieceList.size() > 1) {
+                meta.splitDown(index, toIntArray(minHashList), subKeyFactory(key));
+            }
+
+            for (int i = 0; i < pieceList.size(); i++) {
+                BucketEntry newBucket = new BucketEntry(key);
+                newBucket.getValueMap().putAll(pieceList.get(i));
+                meta.setBucketSize(index + i, newBucket.getValueMap().size());
+                newBuckets.put(meta.getSubKey(index + i), newBucket);
+            }
+        }
+        return meta;
+    }
+
+    /**
+     * {@link LockMode#BUCKET}のput
+     */
+    private V putBucketLock(K key, VK valueKey, V value) {
+        Map<VK, V> preValues = new HashMap<>(1);
+        putAllBucketLock(key, Collections.singletonMap(valueKey, value), preValues);
+        return preValues.get(valueKey);
+    }
+
+    /**
+     * {@link LockMode#BUCKET}のputAll<br>
+     * 対象バケットのサブキーのみをロックして差分を書き込む。バケットの分割が必要な場合のみkeyをロックする。<br>
+     * ロック順序はサブキー→keyとし、keyのロックを取得した後のサブキーのロックは待たずに取得を試みる({@link #lockSubKeyNoWait(Object, SubKey)})。
+     * 
+     * @param key 第一キー
+     * @param values 第二キーとvalueのMap
+     * @param preValues 前回の値の格納先(不要な場合はnull)
+     */
+    private void putAllBucketLock(K key, Map<? extends VK, ? extends V> values, Map<VK, V> preValues) {
+        Map<VK, V> remaining = new HashMap<>(values);
+        boolean keyLocked = false;
+        BucketMeta meta = getCommittedMeta(key);
+        TreeMap<Integer, Map<VK, V>> indexMap = null;
+
+        while (!remaining.isEmpty()) {
+            if (meta == null) {
+                if (!keyLocked) {
+                    // 同一トランザクション内で作成済みの場合もあるため、keyをロックして読み直す
+                    cache.lock(key);
+                    keyLocked = true;
+                    meta = (BucketMeta) cache.get(key);
+                    continue;
+                }
+
+                // 新規キー
+                Map<SubKey, Object> newBuckets = new LinkedHashMap<>();
+                meta = newKeyLayout(key, getExpectedValueCount(), remaining, newBuckets);
+                putNewBuckets(newBuckets);
+                cache.put(key, meta);
+                return;
+            }
+
+            if (indexMap == null) {
+                indexMap = groupByIndex(meta, remaining);
+            }
+
+            // 分割でインデックスがずれないよう降順で処理する
+            Entry<Integer, Map<VK, V>> entry = indexMap.pollLastEntry();
+            Map<VK, V> entries = entry.getValue();
+            SubKey subKey = meta.getSubKey(entry.getKey());
+
+            lockSubKey(key, subKey, keyLocked);
+            Object current = cache.get(subKey);
+            if (!(current instanceof BucketEntry)) {
+                // BucketMetaが古い(他のトランザクションで分割・統合済み) -> keyをロックして最新のBucketMetaで振り分け直す
+                if (keyLocked) {
+                    throw new CacheException("Bucket not found. key=" + key + ", subKey=" + subKey);
+                }
+                cache.lock(key);
+                keyLocked = true;
+                meta = (BucketMeta) cache.get(key);
+                indexMap = null;
+                continue;
+            }
+
+            BucketEntry<K, VK, V> bucket = (BucketEntry) current;
+            collectPreValues(bucket, entries, preValues);
+
+            int newSize = bucket.getValueMap().size();
+            for (VK valueKey : entries.keySet()) {
+                if (!bucket.getValueMap().containsKey(valueKey)) {
+                    newSize++;
+                }
+            }
+
+            if (newSize <= getMaxBucketSize()) {
+                // バケット容量上限以内 -> サブキーのロックのみで差分を書き込む。BucketMetaは更新しない。
+                BucketDelta<K, VK, V> delta = new BucketDelta<>();
+                delta.getPutMap().putAll(entries);
+                putDelta(subKey, delta);
+            } else {
+                // バケット分割 -> BucketMetaの構成が変わるためkeyをロックする
+                if (!keyLocked) {
+                    cache.lock(key);
+                    keyLocked = true;
+                    BucketMeta latest = (BucketMeta) cache.get(key);
+                    if (!meta.equals(latest)) {
+                        meta = latest;
+                        indexMap = null;
+                    }
+                }
+                meta = splitBucket(key, meta, meta.indexOf(subKey), bucket, entries);
+            }
+            remaining.keySet().removeAll(entries.keySet());
+        }
+    }
+
+    /**
+     * バケットにvalueKeyとvalueを追加して分割し、U1→U2→U4の順に書き込む。
+     * 
+     * @return 分割後のBucketMeta
+     */
+    private BucketMeta splitBucket(K key, BucketMeta meta, int index, BucketEntry<K, VK, V> bucket, Map<VK, V> entries) {
+        SubKey subKey = meta.getSubKey(index);
+
+        Map<VK, V> merged = new HashMap<>(bucket.getValueMap());
+        merged.putAll(entries);
+
+        int[] range = meta.getHashRnge(index);
+        List<Integer> minHashList = new ArrayList<>();
+        List<Map<VK, V>> pieceList = new ArrayList<>();
+        splitEntries(merged, range[0], minHashList, pieceList);
+
+        meta = new BucketMeta(meta); // immutable
+        meta.splitDown(index, toIntArray(minHashList), subKeyFactory(key));
+
+        Map<SubKey, Object> newBuckets = new LinkedHashMap<>();
+        BucketTrasfer tbt = new BucketTrasfer();
+        for (int j = 0; j < pieceList.size(); j++) {
+            BucketEntry newBucket = new BucketEntry(key);
+            newBucket.getValueMap().putAll(pieceList.get(j));
+            meta.setBucketSize(index + j, newBucket.getValueMap().size());
+
+            SubKey newSubKey = meta.getSubKey(index + j);
+            newBuckets.put(newSubKey, newBucket);
+            tbt.getTransSubKeyList().add(newSubKey);
+        }
+
+        if (changeNotifier != null) {
+            // 変更を通知する場合は、追加・更新を分割前のバケットへの差分として先に書き込む(分割による移動は通知しない)
+            BucketDelta<K, VK, V> delta = new BucketDelta<>();
+            delta.getPutMap().putAll(entries);
+            putDelta(subKey, delta);
+        }
+
+        // put new bucket(U1: order is important)
+        putEntries(newBuckets, -1);
+
+        // transfer (U2: order is important)
+        cache.put(subKey, tbt, getTransferExpireMills(), TimeUnit.MILLISECONDS);
+
+        // update (U4: order is important)
+        cache.put(key, meta);
+
+        return meta;
+    }
+
+    /**
+     * {@link LockMode#BUCKET}のremove<br>
+     * 対象バケットのサブキーのみをロックして差分を書き込む。
+     * バケットの統合やkeyの削除が必要な場合のみkeyをロックする。
+     * 統合相手のバケットはロックを待たずに取得を試み、取得できない場合は統合しない。<br>
+     * ロック順序はサブキー→keyとし、keyのロックを取得した後のサブキーのロックは待たずに取得を試みる({@link #lockSubKeyNoWait(Object, SubKey)})。
+     */
+    private V removeBucketLock(K key, VK valueKey) {
+        boolean keyLocked = false;
+        BucketMeta meta = getCommittedMeta(key);
+        if (meta == null) {
+            // 同一トランザクション内で作成済みの場合もあるため、keyをロックして読み直す
+            cache.lock(key);
+            keyLocked = true;
+            meta = (BucketMeta) cache.get(key);
+        }
+
+        int hash = HashFunction.hash(valueKey);
+        while (true) {
+            if (meta == null) {
+                return null;
+            }
+
+            int index = meta.getIndex(hash);
+            SubKey subKey = meta.getSubKey(index);
+
+            lockSubKey(key, subKey, keyLocked);
+            Object current = cache.get(subKey);
+            if (!(current instanceof BucketEntry)) {
+                // BucketMetaが古い -> keyをロックして最新のBucketMetaで読み直す
+                if (keyLocked) {
+                    throw new CacheException("Bucket not found. key=" + key + ", subKey=" + subKey);
+                }
+                cache.lock(key);
+                keyLocked = true;
+                meta = (BucketMeta) cache.get(key);
+                continue;
+            }
+
+            BucketEntry<K, VK, V> bucket = (BucketEntry) current;
+            if (!bucket.getValueMap().containsKey(valueKey)) {
+                return null;
+            }
+            V pre = bucket.getValueMap().get(valueKey);
+            int bucketSize = bucket.getValueMap().size() - 1;
+
+            if (bucketSize == 0) {
+                if (!keyLocked) {
+                    cache.lock(key);
+                    keyLocked = true;
+                    meta = (BucketMeta) cache.get(key);
+                }
+                if (meta.bucketNum() <= 1) {
+                    // completely delete
+                    cache.remove(subKey);
+                    cache.remove(key);
+                    return pre;
+                }
+            }
+
+            if (bucketSize <= getMinCompactionBucketSize() && meta.bucketNum() > 1
+                    && mergeBucket(key, meta, meta.indexOf(subKey), bucket, valueKey, keyLocked)) {
+                return pre;
+            }
+
+            // simple remove case
+            putDelta(subKey, BucketDelta.remove(valueKey));
+            return pre;
+        }
+    }
+
+    /**
+     * valueKeyを削除したバケットを隣接バケットと統合する。
+     * 
+     * @return 統合した場合はtrue。隣接バケットのロックが取得できない、または統合後のサイズが大きい場合はfalse
+     */
+    private boolean mergeBucket(K key, BucketMeta meta, int index, BucketEntry<K, VK, V> bucket, VK valueKey, boolean keyLocked) {
+        // 左右のバケットの内、小さい方を合併候補とする(BucketMetaのバケットサイズは目安)。
+        int anotherIndex;
+        if (index == 0) {
+            anotherIndex = index + 1;
+        } else if (index == meta.bucketNum() - 1) {
+            anotherIndex = index - 1;
+        } else if (meta.getBuketSize(index - 1) < meta.getBuketSize(index + 1)) {
+            anotherIndex = index - 1;
+        } else {
+            anotherIndex = index + 1;
+        }
+
+        SubKey subKey = meta.getSubKey(index);
+        SubKey anotherSubKey = meta.getSubKey(anotherIndex);
+
+        // 他のトランザクションとのデッドロックを避けるため、隣接バケットのロックは待たない
+        if (!cache.withFlags(Flag.ZERO_LOCK_ACQUISITION_TIMEOUT, Flag.FAIL_SILENTLY).lock(anotherSubKey)) {
+            return false;
+        }
+        Object another = cache.get(anotherSubKey);
+        if (!(another instanceof BucketEntry)
+                || bucket.getValueMap().size() - 1 + ((BucketEntry) another).getValueMap().size() > getMinCompactionBucketSize()) {
+            return false;
+        }
+
+        // 両方のバケットをロック済み -> keyをロックしてBucketMetaを読み直す
+        if (!keyLocked) {
+            cache.lock(key);
+            meta = (BucketMeta) cache.get(key);
+            index = meta.indexOf(subKey);
+            anotherIndex = meta.indexOf(anotherSubKey);
+        }
+        if (Math.abs(index - anotherIndex) != 1) {
+            return false;
+        }
+
+        int newIndex = Math.min(index, anotherIndex);
+        meta = new BucketMeta(meta); // immutable
+        meta.mergeUp(newIndex, subKeyFactory(key));
+
+        SubKey newSubKey = meta.getSubKey(newIndex);
+
+        // new merged bucket
+        BucketEntry newBucket = new BucketEntry(key);
+        newBucket.getValueMap().putAll(bucket.getValueMap());
+        newBucket.getValueMap().remove(valueKey);
+        newBucket.getValueMap().putAll(((BucketEntry) another).getValueMap());
+        meta.setBucketSize(newIndex, newBucket.getValueMap().size());
+
+        // transfer link
+        BucketTrasfer tbt = new BucketTrasfer();
+        tbt.getTransSubKeyList().add(newSubKey);
+
+        if (changeNotifier != null) {
+            // 変更を通知する場合は、削除を統合前のバケットへの差分として先に書き込む(統合による移動は通知しない)
+            putDelta(subKey, BucketDelta.remove(valueKey));
+        }
+
+        cache.put(newSubKey, newBucket);
+        cache.put(subKey, tbt, getTransferExpireMills(), TimeUnit.MILLISECONDS);
+        cache.put(anotherSubKey, tbt, getTransferExpireMills(), TimeUnit.MILLISECONDS);
+        cache.put(key, meta);
+        return true;
+    }
+
+    /**
+     * {@link LockMode#BUCKET}のkey削除<br>
+     * 全てのサブキーをロックしてからkeyをロックする。
+     */
+    private boolean removeBucketLock(K key) {
+        BucketMeta meta = getCommittedMeta(key);
+        List<SubKey> locked = Collections.emptyList();
+        if (meta != null) {
+            locked = meta.getSubKeyList();
+            cache.lock(locked);
+        }
+        cache.lock(key);
+        meta = (BucketMeta) cache.get(key);
+        if (meta == null) {
+            return false;
+        }
+
+        // keyのロック取得後はBucketMetaの構成は変わらない。
+        // ロック前に分割・統合されていた場合、新しいサブキーは待たずにロックする。
+        for (SubKey subKey : meta.getSubKeyList()) {
+            if (!locked.contains(subKey)) {
+                lockSubKeyNoWait(key, subKey);
+            }
+            cache.remove(subKey);
+        }
+        cache.remove(key);
+        return true;
+    }
+
+    /**
+     * {@link LockMode#BUCKET}でサブキーをロックする。keyのロックを保持している場合は待たずに取得を試みる。
+     */
+    private void lockSubKey(K key, SubKey subKey, boolean keyLocked) {
+        if (keyLocked) {
+            lockSubKeyNoWait(key, subKey);
+        } else {
+            cache.lock(subKey);
+        }
+    }
+
+    /**
+     * keyのロックを保持した状態でサブキーをロックする。<br>
+     * ロック順序(サブキー→key)の逆となり、サブキーを保持したままkeyを待つトランザクションとデッドロックするため、ロックは待たない。
+     * 取得できない場合はトランザクションをロールバック対象とし、{@link CacheException}とする(呼び出し元でトランザクションをやり直すこと)。
+     */
+    private void lockSubKeyNoWait(K key, SubKey subKey) {
+        if (cache.withFlags(Flag.ZERO_LOCK_ACQUISITION_TIMEOUT, Flag.FAIL_SILENTLY).lock(subKey)) {
+            return;
+        }
+        try {
+            cache.getTransactionManager().getTransaction().setRollbackOnly();
+        } catch (SystemException e) {
+            throw new CacheException(e);
+        }
+        throw new CacheException("Bucket is locked by another transaction. Retry the transaction. key=" + key + ", subKey=" + subKey);
+    }
+
+    /**
+     * 実行中のトランザクションを一時停止して、コミット済みのBucketMetaを取得する。<br>
+     * トランザクション内で一度読み取ったキーは読み直しても同じ値となるため、
+     * {@link LockMode#BUCKET}ではロック前のBucketMetaをトランザクション外で読み取る。
+     */
+    private BucketMeta getCommittedMeta(K key) {
+        TransactionManager tm = cache.getTransactionManager();
+        if (tm == null) {
+            return (BucketMeta) cache.get(key);
+        }
+        try {
+            Transaction tx = tm.suspend();
+            try {
+                return (BucketMeta) cache.get(key);
+            } finally {
+                if (tx != null) {
+                    tm.resume(tx);
+                }
+            }
+        } catch (SystemException | InvalidTransactionException e) {
+            throw new CacheException(e);
+        }
+    }
+
+    /**
+     * BucketMetaの変更を条件付きreplaceでコミットする。競合した場合は最新のBucketMetaに同じ変更を適用してやり直す。
+     * 
+     * @param key 第一キー
+     * @param expected 変更元のBucketMeta
+     * @param change BucketMetaの変更
+     * @return コミットできた場合はtrue。keyが削除されている等、変更を適用できない場合はfalse
+     */
+    private boolean commitMetaOptimistic(K key, BucketMeta expected, MetaChange change) {
+        for (int attempt = 0;; attempt++) {
+            checkOptimisticRetry(key, attempt);
+
+            if (expected == null) {
+                return false;
+            }
+            BucketMeta newMeta = new BucketMeta(expected);
+            if (!change.apply(newMeta)) {
+                return false;
+            }
+            if (cache.replace(key, expected, newMeta)) {
+                return true;
+            }
+            expected = (BucketMeta) cache.get(key);
+        }
+    }
+
+    private void checkOptimisticRetry(K key, int attempt) {
+        if (attempt >= getMaxOptimisticRetry()) {
+            throw new CacheException("Too many optimistic write conflicts. key=" + key);
+        }
+        if (attempt > 0) {
+            Thread.yield();
+        }
+    }
+
+    private void collectPreValues(BucketEntry<K, VK, V> bucket, Map<VK, V> entries, Map<VK, V> preValues) {
+        if (preValues == null) {
+            return;
+        }
+        for (VK valueKey : entries.keySet()) {
+            V pre = bucket.getValueMap().get(valueKey);
+            if (pre != null) {
+                preValues.put(valueKey, pre);
+            }
+        }
+    }
+
+    private void removeEntries(Set<SubKey> subKeys) {
+        for (SubKey subKey : subKeys) {
+            cache.remove(subKey);
+        }
+    }
+
+    private static int[] toIntArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * {@link LockMode#OPTIMISTIC}でリベース可能なBucketMetaの変更
+     */
+    private static interface MetaChange {
+        boolean apply(BucketMeta target);
+    }
+
+    /**
+     * 更新系メソッドの排他方式
+     */
+    public static enum LockMode {
+        /**
+         * 呼び出し元がkeyでクラスタワイドロックを取得する(トランザクショナルキャッシュが必要)。
+         */
+        KEY,
+
+        /**
+         * ライブラリ内で対象バケットのサブキーのみをロックし、バケットの分割・統合でバケット構成が変わる場合のみkeyをロックする。<br>
+         * 同一keyの異なるバケットへの更新を並行して実行できる。
+         * 悲観的ロックのトランザクショナルキャッシュが必要で、呼び出し元はトランザクションを開始するだけでよい(ロックは不要)。
+         * それ以外のキャッシュ、またはトランザクション外で更新した場合は{@link IllegalStateException}となる。<br>
+         * keyのロック取得後に他のトランザクションがロック中のバケットを更新する必要がある場合は、デッドロックを避けるためロックを待たずに
+         * {@link CacheException}となり、トランザクションはロールバック対象となる(呼び出し元でやり直すこと)。<br>
+         * 分割・統合を伴わない更新では{@link BucketMeta}を書き込まないため、{@link BucketMeta}のバケットサイズは目安の値となる。
+         * そのため、同一キャッシュ上で他の排他方式と混在させてはならない。
+         */
+        BUCKET,
+
+        /**
+         * ロックを使用せず、{@link BucketMeta}とバケットを条件付きreplaceでコミットし、競合した場合はやり直す。<br>
+         * 呼び出し元でのロックは不要で、非トランザクショナルキャッシュでも使用できる。
+         * 条件付きreplaceのため、バケットの更新は差分ではなくバケット全体の書き込みとなる。
+         * また、{@link BucketMeta}のバケットサイズは分割・統合時のみ更新される目安の値となる。
+         */
+        OPTIMISTIC
+    }
+
+    /**
+     * バケットのサブキーの配置方針
+     */
+    public static enum SubKeyPlacement {
+        /**
+         * ランダムに配置する。1つのkeyのバケットはクラスタ全体に分散するため、DistExecによる全件処理に向いている。
+         */
+        RANDOM,
+
+        /**
+         * Infinispanのグルーピング機能により、1つのkeyのバケットを全て同じノードに配置する。
+         * グループはkeyの文字列表現であるため、keyがStringの場合は{@link BucketMeta}とも同じノードに配置される。<br>
+         * キャッシュ設定でグルーピングを有効にすること(&lt;hash&gt;&lt;groups enabled="true"/&gt;&lt;/hash&gt;)。
+         */
+        GROUPED,
+
+        /**
+         * 1つのkeyのバケットを、セグメントを順番に巡回するように配置する。バケットが全ノードに均等に分散する。
+         */
+        SPREAD,
+
+        /**
+         * 1つのkeyのバケットを、サブキー生成時点でkeyのプライマリオーナーとなっているノードに配置する。
+         * グルーピングの設定は不要だが、トポロジが変化すると配置は崩れる。
+         */
+        AFFINITY
+    }
+
+    /**
+     * {@link DistributedOneToMany#mapReduce(Object, BucketMapReducer)}で各ノードに送信される処理
+     */
+    public static interface BucketMapReducer<VK, V, R> extends Serializable {
+
+        /**
+         * 1つのバケットを処理する。バケットのプライマリオーナーノード上で実行される。
+         * 
+         * @param values バケットに含まれる全てのvalueKeyとvalue(変更不可)
+         * @return 処理結果。nullの場合は集約の対象外となる
+         */
+        R map(Map<VK, V> values);
+
+        /**
+         * 2つの処理結果を集約する。各ノード上と呼び出し元で実行される。
+         * 
+         * @param result1 処理結果
+         * @param result2 処理結果
+         * @return 集約結果
+         */
+        R reduce(R result1, R result2);
+    }
+
+    /**
+     * {@link DistributedOneToMany#forEachValue(Object, ValueVisitor)}で各ノードに送信される処理
+     */
+    public static interface ValueVisitor<VK, V> extends Serializable {
+
+        /**
+         * 1つのvalueKeyとvalueを処理する。バケットのプライマリオーナーノード上で実行される。
+         * 
+         * @param valueKey 第二キー
+         * @param value value
+         */
+        void visit(VK valueKey, V value);
+    }
+
+    /**
+     * {@link DistributedOneToMany#getPage(Object, PageCursor, int)}の結果
+     */
+    public static class Page<VK, V> implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final Map<VK, V> values;
+        private final PageCursor nextCursor;
+
+        public Page(Map<VK, V> values, PageCursor nextCursor) {
+            this.values = values;
+            this.nextCursor = nextCursor;
+        }
+
+        /**
+         * このページのvalueKeyとvalue(valueKeyのハッシュ値の順)
+         */
+        public Map<VK, V> getValues() {
+            return values;
+        }
+
+        /**
+         * 次のページのカーソル。最後のページの場合はnull
+         */
+        public PageCursor getNextCursor() {
+            return nextCursor;
+        }
+
+        public boolean hasNext() {
+            return nextCursor != null;
+        }
+    }
+
+    /**
+     * ページの位置を表すカーソル。次のページの先頭となるvalueKeyのハッシュ値を保持する。<br>
+     * バケットの構成に依存しないため、保存してから後で使用することができる。
+     */
+    public static class PageCursor implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int hash;
+
+        PageCursor(int hash) {
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof PageCursor && ((PageCursor) obj).hash == hash;
+        }
+
+        @Override
+        public String toString() {
+            return "PageCursor [hash=" + hash + "]";
+        }
+    }
+
+    private static class ValueVisitorAdapter<VK, V> implements BucketMapReducer<VK, V, Object> {
+        private static final long serialVersionUID = 1L;
+
+        private final ValueVisitor<VK, V> visitor;
+
+        ValueVisitorAdapter(ValueVisitor<VK, V> visitor) {
+            this.visitor = visitor;
+        }
+
+        @Override
+        public Object map(Map<VK, V> values) {
+            for (Entry<VK, V> entry : values.entrySet()) {
+                visitor.visit(entry.getKey(), entry.getValue());
+            }
+            return null;
+        }
+
+        @Override
+        public Object reduce(Object result1, Object result2) {
+            return null;
+        }
+    }
+
+    /**
+     * 割り当てられたバケットを実行ノード上で処理するタスク
+     */
+    public static class BucketMapReduceTask implements DistributedCallable<Object, Object, Object>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final List<SubKey> subKeyList;
+        private final BucketMapReducer mapReducer;
+        // 処理から除外するvalueKey(呼び出し元で溜めている更新の対象)
+        private final Set excludes;
+
+        private transient Cache cache;
+
+        public BucketMapReduceTask(List<SubKey> subKeyList, BucketMapReducer mapReducer) {
+            this(subKeyList, mapReducer, Collections.emptySet());
+        }
+
+        public BucketMapReduceTask(List<SubKey> subKeyList, BucketMapReducer mapReducer, Set excludes) {
+            this.subKeyList = subKeyList;
+            this.mapReducer = mapReducer;
+            this.excludes = excludes;
+        }
+
+        @Override
+        public void setEnvironment(Cache<Object, Object> cache, Set<Object> inputKeys) {
+            this.cache = cache;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            return mapReduce(cache, subKeyList, mapReducer, excludes);
+        }
+
+        static Object mapReduce(Cache cache, List<SubKey> subKeyList, BucketMapReducer mapReducer, Set excludes) {
+            Object result = null;
+            for (SubKey subKey : subKeyList) {
+                BucketEntry bucket = getBucket(cache, subKey);
+                if (bucket == null) {
+                    continue;
+                }
+                Map values = bucket.getValueMap();
+                if (!excludes.isEmpty() && !Collections.disjoint(values.keySet(), excludes)) {
+                    values = new HashMap(values);
+                    values.keySet().removeAll(excludes);
+                }
+                Object partial = mapReducer.map(Collections.unmodifiableMap(values));
+                if (partial == null) {
+                    continue;
+                }
+                result = result == null ? partial : mapReducer.reduce(result, partial);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * サブキーのファクトリ
+     */
+    public static interface SubKeyFactory {
+
+        SubKeyFactory RANDOM = new SubKeyFactory() {
+            @Override
+            public SubKey newSubKey() {
+                return new SubKey();
+            }
+        };
+
+        SubKey newSubKey();
+    }
+
+    /**
+     * 1つのkeyの反映前の更新(valueKey毎の最後の更新のみ保持する。削除はnull)
+     */
+    private static class PendingWrites {
+        private static final Object REMOVED = new Object();
+
+        final ReentrantLock flushLock = new ReentrantLock();
+
+        private Map<Object, Object> writes = new HashMap<>();
+        // 反映中の更新(反映が完了するまで参照できるように保持する)
+        private Map<Object, Object> flushing = Collections.emptyMap();
+        private long firstWrite;
+        private boolean discarded;
+
+        /**
+         * @return 反映済みで破棄されている場合はfalse
+         */
+        synchronized boolean add(Object valueKey, Object value) {
+            if (discarded) {
+                return false;
+            }
+            if (writes.isEmpty()) {
+                firstWrite = System.currentTimeMillis();
+            }
+            writes.put(valueKey, value != null ? value : REMOVED);
+            return true;
+        }
+
+        synchronized int size() {
+            return writes.size();
+        }
+
+        /**
+         * 最初の更新からの経過時間
+         */
+        synchronized long age() {
+            return writes.isEmpty() ? 0 : System.currentTimeMillis() - firstWrite;
+        }
+
+        synchronized boolean contains(Object valueKey) {
+            return writes.containsKey(valueKey) || flushing.containsKey(valueKey);
+        }
+
+        /**
+         * @return 更新後のvalue。削除の場合はnull
+         */
+        synchronized Object get(Object valueKey) {
+            Object value = writes.containsKey(valueKey) ? writes.get(valueKey) : flushing.get(valueKey);
+            return value == REMOVED ? null : value;
+        }
+
+        synchronized void applyTo(Map values) {
+            apply(flushing, values);
+            apply(writes, values);
+        }
+
+        /**
+         * @return valueKeyと更新後のvalue(削除はnull)
+         */
+        synchronized Map snapshot() {
+            Map snapshot = new HashMap<>();
+            for (Map<Object, Object> updates : Arrays.asList(flushing, writes)) {
+                for (Entry<Object, Object> entry : updates.entrySet()) {
+                    snapshot.put(entry.getKey(), entry.getValue() == REMOVED ? null : entry.getValue());
+                }
+            }
+            return snapshot;
+        }
+
+        private static void apply(Map<Object, Object> updates, Map values) {
+            for (Entry<Object, Object> entry : updates.entrySet()) {
+                if (entry.getValue() == REMOVED) {
+                    values.remove(entry.getKey());
+                } else {
+                    values.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        /**
+         * 溜めている更新を反映中に移して返す。
+         * 
+         * @return valueKeyと更新後のvalue(削除はnull)
+         */
+        synchronized Map drain() {
+            flushing = writes;
+            writes = new HashMap<>();
+            Map batch = new HashMap<>();
+            for (Entry<Object, Object> entry : flushing.entrySet()) {
+                batch.put(entry.getKey(), entry.getValue() == REMOVED ? null : entry.getValue());
+            }
+            return batch;
+        }
+
+        synchronized void restore(Map batch) {
+            for (Entry<Object, Object> entry : ((Map<Object, Object>) batch).entrySet()) {
+                if (!writes.containsKey(entry.getKey())) {
+                    if (writes.isEmpty()) {
+                        firstWrite = System.currentTimeMillis();
+                    }
+                    writes.put(entry.getKey(), entry.getValue() != null ? entry.getValue() : REMOVED);
+                }
+            }
+        }
+
+        /**
+         * 反映を完了する。
+         * 
+         * @return 溜めている更新が無く、破棄した場合はtrue
+         */
+        synchronized boolean finish() {
+            flushing = Collections.emptyMap();
+            discarded = writes.isEmpty();
+            return discarded;
+        }
+    }
+
+    /**
+     * {@link BucketMeta}のニアキャッシュ(LRU)
+     */
+    private static class NearCache {
+        private final LinkedHashMap<Object, BucketMeta> map;
+
+        NearCache(final int maxSize) {
+            map = new LinkedHashMap<Object, BucketMeta>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Entry<Object, BucketMeta> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        synchronized BucketMeta get(Object key) {
+            return map.get(key);
+        }
+
+        synchronized void put(Object key, BucketMeta meta) {
+            map.put(key, meta);
+        }
+
+        synchronized void remove(Object key) {
+            map.remove(key);
+        }
+
+        synchronized void remove(Object key, BucketMeta meta) {
+            if (map.get(key) == meta) {
+                map.remove(key);
+            }
+        }
+
+        synchronized void clear() {
+            map.clear();
+        }
+    }
+
+    /**
+     * ローカルノードで検知したkeyの更新・削除でニアキャッシュを無効化するリスナー
+     */
+    @Listener
+    public static class NearCacheInvalidator {
+        private final NearCache nearCache;
+
+        NearCacheInvalidator(NearCache nearCache) {
+            this.nearCache = nearCache;
+        }
+
+        @CacheEntryModified
+        @CacheEntryRemoved
+        @CacheEntryInvalidated
+        public void onChange(CacheEntryEvent event) {
+            if (!(event.getKey() instanceof SubKey)) {
+                nearCache.remove(event.getKey());
+            }
+        }
+    }
+
+    /**
+     * 論理的な変更の通知を受けるリスナー
+     * 
+     * @see DistributedOneToMany#addChangeListener(ChangeListener)
+     */
+    public interface ChangeListener<K, VK, V> {
+        void onChange(ChangeEvent<K, VK, V> event);
+    }
+
+    /**
+     * 論理的な変更
+     */
+    public static class ChangeEvent<K, VK, V> {
+
+        public enum Type {
+            /** valueKeyの追加 */
+            ADDED,
+            /** 既存のvalueKeyのvalueの更新 */
+            UPDATED,
+            /** valueKeyの削除 */
+            REMOVED,
+            /** keyごとの削除(valueKeyはnull) */
+            KEY_REMOVED
+        }
+
+        private final Type type;
+        private final K key;
+        private final VK valueKey;
+        private final V value;
+
+        public ChangeEvent(Type type, K key, VK valueKey, V value) {
+            this.type = type;
+            this.key = key;
+            this.valueKey = valueKey;
+            this.value = value;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        /**
+         * @return 第二キー。{@link Type#KEY_REMOVED}の場合はnull
+         */
+        public VK getValueKey() {
+            return valueKey;
+        }
+
+        /**
+         * @return 変更後のvalue。{@link Type#REMOVED}、{@link Type#KEY_REMOVED}の場合はnull
+         */
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return "ChangeEvent [type=" + type + ", key=" + key + ", valueKey=" + valueKey + ", value=" + value + "]";
+        }
+    }
+
+    /**
+     * バケットの書き込み前後の内容の差分とkeyの削除を、論理的な変更として{@link ChangeListener}に通知するキャッシュリスナー<br>
+     * 変更されたエントリのプライマリオーナーノードでのみ通知する。
+     * 書き込み前後の値が共に{@link BucketEntry}の書き込みのみを変更とし、
+     * {@link BucketTrasfer}との置き換えと、バケットの作成(分割・統合後のバケット、新規キーのバケット)は通知しない。
+     * 新規キーの追加は、空のバケットを作成してから書き込むことで通知する。<br>
+     * このノードで開始したトランザクション内の変更は保留し、トランザクションのコミット後に通知する。
+     */
+    @Listener
+    public static class ChangeNotifier {
+        private final DistributedOneToMany owner;
+        private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+        // 書き込み前のバケットの内容(サブキー毎)。書き込み中はサブキーがロックされている。
+        private final ConcurrentHashMap<Object, Map> preValues = new ConcurrentHashMap<>();
+        // コミット前のトランザクション内の変更
+        private final ConcurrentHashMap<GlobalTransaction, List<ChangeEvent>> pending = new ConcurrentHashMap<>();
+
+        ChangeNotifier(DistributedOneToMany owner) {
+            this.owner = owner;
+        }
+
+        @CacheEntryModified
+        public void onModified(CacheEntryModifiedEvent event) {
+            Object subKey = event.getKey();
+            if (!(subKey instanceof SubKey) || !isPrimary(subKey)) {
+                return;
+            }
+            if (event.isPre()) {
+                Object value = event.getValue();
+                if (value instanceof BucketEntry) {
+                    // 差分のマージはキャッシュ上のインスタンスを変更するため、書き込み前の内容を複製しておく
+                    preValues.put(subKey, new HashMap(((BucketEntry) value).getValueMap()));
+                } else {
+                    // バケットの作成(分割・統合による移動)、またはBucketTrasferからの復元
+                    preValues.remove(subKey);
+                }
+                return;
+            }
+
+            Map pre = preValues.remove(subKey);
+            if (pre == null || !(event.getValue() instanceof BucketEntry)) {
+                // バケットの作成、BucketTrasferへの置き換え、またはBucketTrasferからの復元
+                return;
+            }
+            BucketEntry bucket = (BucketEntry) event.getValue();
+            Object key = bucket.getKey();
+            if (key == null || key instanceof ReverseKey) {
+                return;
+            }
+
+            List<ChangeEvent> events = new ArrayList<>();
+            Map valueMap = bucket.getValueMap();
+            for (Object entry : valueMap.entrySet()) {
+                Object valueKey = ((Entry) entry).getKey();
+                Object value = ((Entry) entry).getValue();
+                Object preValue = pre.get(valueKey);
+                if (preValue == null) {
+                    events.add(new ChangeEvent(ChangeEvent.Type.ADDED, key, valueKey, value));
+                } else if (!preValue.equals(value)) {
+                    events.add(new ChangeEvent(ChangeEvent.Type.UPDATED, key, valueKey, value));
+                }
+            }
+            for (Object valueKey : pre.keySet()) {
+                if (!valueMap.containsKey(valueKey)) {
+                    events.add(new ChangeEvent(ChangeEvent.Type.REMOVED, key, valueKey, null));
+                }
+            }
+            fire(event, events);
+        }
+
+        @CacheEntryRemoved
+        public void onRemoved(CacheEntryRemovedEvent event) {
+            // 削除前の値はpreのイベントでのみ取得できる
+            if (!event.isPre() || event.getKey() instanceof SubKey || event.getKey() instanceof ReverseKey) {
+                return;
+            }
+            if ((event.getValue() instanceof BucketMeta || event.getValue() instanceof BucketMetaRoot) && isPrimary(event.getKey())) {
+                List<ChangeEvent> events = new ArrayList<>(1);
+                events.add(new ChangeEvent(ChangeEvent.Type.KEY_REMOVED, event.getKey(), null, null));
+                fire(event, events);
+            }
+        }
+
+        @TransactionCompleted
+        public void onTransactionCompleted(TransactionCompletedEvent event) {
+            List<ChangeEvent> events = pending.remove(event.getGlobalTransaction());
+            if (events != null && event.isTransactionSuccessful()) {
+                notify(events);
+            }
+        }
+
+        private boolean isPrimary(Object key) {
+            AdvancedCache cache = owner.cache;
+            DistributionManager dm = cache.getDistributionManager();
+            Address self = cache.getCacheManager().getAddress();
+            return dm == null || self == null || self.equals(dm.getPrimaryLocation(key));
+        }
+
+        private void fire(CacheEntryEvent event, List<ChangeEvent> events) {
+            if (events.isEmpty()) {
+                return;
+            }
+            GlobalTransaction tx = event.getGlobalTransaction();
+            if (tx != null && event.isOriginLocal()) {
+                // このノードで開始したトランザクションの書き込みはコミット前に通知されるため、コミットまで保留する
+                List<ChangeEvent> txEvents = pending.get(tx);
+                if (txEvents == null) {
+                    txEvents = new ArrayList<>();
+                    pending.put(tx, txEvents);
+                }
+                txEvents.addAll(events);
+                return;
+            }
+            notify(events);
+        }
+
+        private void notify(List<ChangeEvent> events) {
+            for (ChangeEvent event : events) {
+                for (ChangeListener listener : listeners) {
+                    try {
+                        listener.onChange(event);
+                    } catch (RuntimeException e) {
+                        // リスナーの例外でキャッシュの更新を失敗させない
+                        owner.totalChangeListenerErrors.incrementAndGet();
+                        owner.lastChangeListenerError = e;
+                        owner.onChangeListenerError(event, e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 逆引きインデックスの第一キー。順引きのkeyと衝突しないようにvalueKeyを包む。
+     */
+    public static class ReverseKey implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Object valueKey;
+
+        public ReverseKey(Object valueKey) {
+            this.valueKey = valueKey;
+        }
+
+        public Object getValueKey() {
+            return valueKey;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 + (valueKey == null ? 0 : valueKey.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            ReverseKey other = (ReverseKey) obj;
+            return valueKey == null ? other.valueKey == null : valueKey.equals(other.valueKey);
+        }
+
+        @Override
+        public String toString() {
+            return "ReverseKey [valueKey=" + valueKey + "]";
+        }
+    }
+
+    /**
+     * 逆引きインデックス(valueKey -> key)。バケットサイズ等の設定は順引きに合わせ、{@link LockMode#OPTIMISTIC}で更新する。
+     */
+    private static class ReverseIndex<K, VK> extends DistributedOneToMany<ReverseKey, K, Boolean> {
+        private final DistributedOneToMany<K, VK, ?> forward;
+
+        ReverseIndex(Cache cache, DistributedOneToMany<K, VK, ?> forward) {
+            super(cache);
+            this.forward = forward;
+        }
+
+        @Override
+        public int getMaxBucketSize() {
+            return forward.getMaxBucketSize();
+        }
+
+        @Override
+        public int getMinCompactionBucketSize() {
+            return forward.getMinCompactionBucketSize();
+        }
+
+        @Override
+        public long getTransferExpireMills() {
+            return forward.getTransferExpireMills();
+        }
+
+        @Override
+        public int getMaxInFlightFetch() {
+            return forward.getMaxInFlightFetch();
+        }
+
+        @Override
+        public SubKeyPlacement getSubKeyPlacement() {
+            return forward.getSubKeyPlacement();
+        }
+
+        @Override
+        public LockMode getLockMode() {
+            return LockMode.OPTIMISTIC;
+        }
+
+        @Override
+        public int getMaxOptimisticRetry() {
+            return forward.getMaxOptimisticRetry();
+        }
+    }
+
+    /**
+     * 予め生成されたサブキーを順番に返すファクトリ
+     */
+    private static class FixedSubKeyFactory implements SubKeyFactory {
+        private final Iterator<SubKey> subKeys;
+
+        FixedSubKeyFactory(List<SubKey> subKeyList) {
+            this.subKeys = subKeyList.iterator();
+        }
+
+        @Override
+        public SubKey newSubKey() {
+            return subKeys.next();
+        }
+    }
+
+    /**
+     * 非同期APIの結果。{@link #complete(Object)}または{@link #fail(Throwable)}で完了し、登録されたリスナーに通知する。<br>
+     * リスナーは完了させたスレッド(キャッシュの非同期処理のスレッドの場合もある)で呼び出されるため、ブロックする処理を行ってはならない。
+     */
+    public static class AsyncResult<T> implements NotifyingFuture<T> {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final List<FutureListener<T>> listeners = new ArrayList<>();
+        private T value;
+        private Throwable error;
+
+        boolean complete(T value) {
+            return finish(value, null);
+        }
+
+        boolean fail(Throwable error) {
+            return finish(null, error);
+        }
+
+        private boolean finish(T value, Throwable error) {
+            List<FutureListener<T>> notify;
+            synchronized (this) {
+                if (isDone()) {
+                    return false;
+                }
+                this.value = value;
+                this.error = error;
+                done.countDown();
+                notify = new ArrayList<>(listeners);
+                listeners.clear();
+            }
+            for (FutureListener<T> listener : notify) {
+                listener.futureDone(this);
+            }
+            return true;
+        }
+
+        @Override
+        public NotifyingFuture<T> attachListener(FutureListener<T> listener) {
+            synchronized (this) {
+                if (!isDone()) {
+                    listeners.add(listener);
+                    return this;
+                }
+            }
+            listener.futureDone(this);
+            return this;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            done.await();
+            return result();
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        private synchronized T result() throws ExecutionException {
+            if (error != null) {
+                throw new ExecutionException(error);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * keyのプライマリオーナーノード上で更新処理を実行するタスク<br>
+     * オーナーノード上でサブクラスのインスタンスを生成し、ノード内のロックでkey毎に排他した上で更新処理を行う。
+     */
+    public static class OwnerMutationTask implements DistributedCallable<Object, Object, Object>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        static final int PUT = 0;
+        static final int PUT_ALL = 1;
+        static final int REMOVE = 2;
+        static final int REMOVE_KEY = 3;
+        static final int PRESIZE = 4;
+        static final int REMOVE_ALL = 5;
+
+        private static final ReentrantLock[] ownerLocks = new ReentrantLock[256];
+        static {
+            for (int i = 0; i < ownerLocks.length; i++) {
+                ownerLocks[i] = new ReentrantLock();
+            }
+        }
+
+        private final Class<? extends DistributedOneToMany> type;
+        private final int op;
+        private final Object key;
+        private final Object valueKey;
+        private final Object value;
+
+        private transient Cache cache;
+
+        public OwnerMutationTask(Class<? extends DistributedOneToMany> type, int op, Object key, Object valueKey, Object value) {
+            this.type = type;
+            this.op = op;
+            this.key = key;
+            this.valueKey = valueKey;
+            this.value = value;
+        }
+
+        @Override
+        public void setEnvironment(Cache<Object, Object> cache, Set<Object> inputKeys) {
+            this.cache = cache;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            DistributedOneToMany target = type.getConstructor(Cache.class).newInstance(cache);
+
+            ReentrantLock lock = ownerLocks[(key.hashCode() & Integer.MAX_VALUE) % ownerLocks.length];
+            lock.lock();
+            try {
+                switch (op) {
+                case PUT:
+                    return target.doPut(key, valueKey, value);
+                case PUT_ALL:
+                    target.doPutAll(key, (Map) value);
+                    return null;
+                case REMOVE:
+                    return target.doRemove(key, valueKey);
+                case REMOVE_KEY:
+                    return target.doRemove(key);
+                case PRESIZE:
+                    return target.doPresize(key, (Integer) value);
+                case REMOVE_ALL:
+                    return target.doRemoveAll(key, (Collection) value);
+                default:
+                    throw new IllegalArgumentException("op=" + op);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public static class BucketMeta implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private int[] minHash;
+        // バケットサイズは分割・統合などの構造変更時点の目安(バケットへの追加・削除では更新しない)
+        private int[] bucketSize;
+        private long[] subkey;
+        private String group;
+
+        // 参照系の呼び出し毎にSubKeyを生成しないためのキャッシュ(シリアライズしない)
+        private transient SubKey[] subKeyCache;
+        private transient List<SubKey> subKeyList;
+
+        /**
+         * Constructor
+         */
+        public BucketMeta() {
+            this(SubKeyFactory.RANDOM);
+        }
+
+        /**
+         * Constructor
+         * 
+         * @param subKeyFactory サブキーのファクトリ
+         */
+        public BucketMeta(SubKeyFactory subKeyFactory) {
+            minHash = new int[1];
+            minHash[0] = Integer.MIN_VALUE;
+
+            bucketSize = new int[1];
+            bucketSize[0] = 0;
+
+            SubKey sKey = subKeyFactory.newSubKey();
+            subkey = new long[2];
+            subkey[0] = sKey.getUnique();
+            subkey[1] = sKey.getCounter();
+        }
+
+        /**
+         * Copy constructor
+         * 
+         * @param origin
+         */
+        public BucketMeta(BucketMeta origin) {
+            minHash = new int[origin.minHash.length];
+            System.arraycopy(origin.minHash, 0, minHash, 0, origin.minHash.length);
+
+            bucketSize = new int[origin.bucketSize.length];
+            System.arraycopy(origin.bucketSize, 0, bucketSize, 0, origin.bucketSize.length);
+
+            subkey = new long[origin.subkey.length];
+            System.arraycopy(origin.subkey, 0, subkey, 0, origin.subkey.length);
+
+            group = origin.group;
+        }
+
+        private BucketMeta(int[] minHash, int[] bucketSize, long[] subkey, String group) {
+            this.minHash = minHash;
+            this.bucketSize = bucketSize;
+            this.subkey = subkey;
+            this.group = group;
+        }
+
+        /**
+         * 指定されたハッシュ値を含むバケットのインデックス(二分探索)。minHash[0]より小さいハッシュ値は0番目のバケットとなる。
+         * 
+         * @param hash valueKeyのハッシュ値
+         * @return バケットのインデックス
+         */
+        public int getIndex(int hash) {
+            // minHash[index] <= hash となる最大のindex(同じ値が連続する場合は最後のもの)
+            int low = 1;
+            int high = minHash.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (minHash[mid] <= hash) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low - 1;
+        }
+
+        /**
+         * 指定されたインデックスのバケットのサブキー。生成したサブキーはこのインスタンスで再利用する。
+         * 
+         * @param index バケットのインデックス
+         * @return サブキー
+         */
+        public SubKey getSubKey(int index) {
+            SubKey[] keys = subKeyCache;
+            if (keys == null) {
+                keys = new SubKey[minHash.length];
+                subKeyCache = keys;
+            }
+            SubKey subKey = keys[index];
+            if (subKey == null) {
+                subKey = new SubKey(subkey[index * 2], subkey[index * 2 + 1], group);
+                keys[index] = subKey;
+            }
+            return subKey;
+        }
+
+        /**
+         * 構造の変更時にサブキーのキャッシュを破棄する。
+         */
+        private void clearSubKeyCache() {
+            subKeyCache = null;
+            subKeyList = null;
+        }
+
+        public String getGroup() {
+            return group;
+        }
+
+        public void setGroup(String group) {
+            this.group = group;
+            clearSubKeyCache();
+        }
+
+        public int getBuketSize(int index) {
+            return bucketSize[index];
+        }
+
+        public int setBucketSize(int index, int size) {
+            bucketSize[index] = size;
+            return bucketSize[index];
+        }
+
+        public int[] getHashRnge(int index) {
+            if (index == minHash.length - 1) {
+                return new int[] { minHash[index], Integer.MAX_VALUE };
+            } else {
+                return new int[] { minHash[index], minHash[index + 1] - 1 };
+            }
+        }
+
+        public void splitDown(int index) {
+            splitDown(index, SubKeyFactory.RANDOM);
+        }
+
+        public void splitDown(int index, SubKeyFactory subKeyFactory) {
+            int lowerHash = minHash[index];
+            int upperHash;
+            if (index == minHash.length - 1) {
+                upperHash = lowerHash / 2 + Integer.MAX_VALUE / 2;
+            } else {
+                upperHash = lowerHash / 2 + minHash[index + 1] / 2;
+            }
+            splitDown(index, new int[] { lowerHash, upperHash }, subKeyFactory);
+        }
+
+        /**
+         * 指定されたインデックスのバケットを、指定されたハッシュ範囲下限を持つN個のバケットに分割する。<br>
+         * newMinHash[0]は分割前のバケットのハッシュ範囲下限と一致していなければならない。
+         * 
+         * @param index 分割するバケットのインデックス
+         * @param newMinHash 分割後の各バケットのハッシュ範囲下限(昇順)
+         */
+        public void splitDown(int index, int[] newMinHash) {
+            splitDown(index, newMinHash, SubKeyFactory.RANDOM);
+        }
+
+        /**
+         * 指定されたインデックスのバケットを、指定されたハッシュ範囲下限を持つN個のバケットに分割する。<br>
+         * newMinHash[0]は分割前のバケットのハッシュ範囲下限と一致していなければならない。
+         * 
+         * @param index 分割するバケットのインデックス
+         * @param newMinHash 分割後の各バケットのハッシュ範囲下限(昇順)
+         * @param subKeyFactory 分割後のバケットのサブキーのファクトリ
+         */
+        public void splitDown(int index, int[] newMinHash, SubKeyFactory subKeyFactory) {
+            clearSubKeyCache();
+            int n = newMinHash.length;
+            int[] oldMinHash = minHash;
+            int[] oldBucketSize = bucketSize;
+            long[] oldSubkey = subkey;
+
+            minHash = new int[oldMinHash.length + n - 1];
+            bucketSize = new int[oldBucketSize.length + n - 1];
+            subkey = new long[oldSubkey.length + (n - 1) * 2];
+
+            // [A, B, C] -> [ A, B1, B2, .. Bn, C]
+            System.arraycopy(oldMinHash, 0, minHash, 0, index);
+            System.arraycopy(oldMinHash, index + 1, minHash, index + n, oldMinHash.length - index - 1);
+
+            System.arraycopy(oldBucketSize, 0, bucketSize, 0, index);
+            System.arraycopy(oldBucketSize, index + 1, bucketSize, index + n, oldBucketSize.length - index - 1);
+
+            System.arraycopy(oldSubkey, 0, subkey, 0, index * 2);
+            System.arraycopy(oldSubkey, (index + 1) * 2, subkey, (index + n) * 2, oldSubkey.length - (index + 1) * 2);
+
+            for (int i = 0; i < n; i++) {
+                minHash[index + i] = newMinHash[i];
+                bucketSize[index + i] = 0;
+
+                SubKey sKey = subKeyFactory.newSubKey();
+                subkey[(index + i) * 2] = sKey.getUnique();
+                subkey[(index + i) * 2 + 1] = sKey.getCounter();
+            }
+        }
+
+        public void mergeUp(int index) {
+            mergeUp(index, SubKeyFactory.RANDOM);
+        }
+
+        public void mergeUp(int index, SubKeyFactory subKeyFactory) {
+            clearSubKeyCache();
+
+            int[] oldMinHash = minHash;
+            int[] oldBucketSize = bucketSize;
+            long[] oldSubkey = subkey;
+
+            minHash = new int[minHash.length - 1];
+            bucketSize = new int[bucketSize.length - 1];
+            subkey = new long[subkey.length - 2];
+
+            if (index == 0) {
+                if (oldMinHash.length <= 2) {
+                    // [A1, A2] -> [A]
+                } else {
+                    // [A1, A2, B, C] -> [ A, B, C]
+                    System.arraycopy(oldMinHash, 2, minHash, 1, oldMinHash.length - 2);
+                    System.arraycopy(oldBucketSize, 2, bucketSize, 1, oldBucketSize.length - 2);
+                    System.arraycopy(oldSubkey, 4, subkey, 2, oldSubkey.length - 4);
+                }
+            } else if (index >= oldMinHash.length - 2) {
+                // [ A, B, C1, C2] -> [A, B, C]
+                System.arraycopy(oldMinHash, 0, minHash, 0, oldMinHash.length - 2);
+                System.arraycopy(oldBucketSize, 0, bucketSize, 0, oldBucketSize.length - 2);
+                System.arraycopy(oldSubkey, 0, subkey, 0, oldSubkey.length - 4);
+
+            } else {
+                // [ A, B1, B2, C] -> [A, B, C]
+                System.arraycopy(oldMinHash, 0, minHash, 0, index);
+                System.arraycopy(oldMinHash, index + 2, minHash, index + 1, oldMinHash.length - index - 2);
+
+                System.arraycopy(oldBucketSize, 0, bucketSize, 0, index);
+                System.arraycopy(oldBucketSize, index + 2, bucketSize, index + 1, oldBucketSize.length - index - 2);
+
+                System.arraycopy(oldSubkey, 0, subkey, 0, (index) * 2);
+                System.arraycopy(oldSubkey, (index + 2) * 2, subkey, (index + 1) * 2, oldSubkey.length - (index + 2) * 2);
+            }
+
+            minHash[index] = oldMinHash[index];
+            bucketSize[index] = 0;
+
+            SubKey sKey = subKeyFactory.newSubKey();
+            subkey[index * 2] = sKey.getUnique();
+            subkey[index * 2 + 1] = sKey.getCounter();
+
+        }
+
+        /**
+         * 指定されたインデックスの空のバケットを取り除き、そのハッシュ範囲を隣接するバケットに含める(隣接するバケットのサブキーは変更しない)。<br>
+         * 先頭のバケットの場合は次のバケット、それ以外は前のバケットがハッシュ範囲を引き継ぐ。
+         * 
+         * @param index 取り除く空のバケットのインデックス
+         * @return ハッシュ範囲を引き継いだバケットのインデックス(取り除いた後のインデックス)
+         */
+        public int absorb(int index) {
+            clearSubKeyCache();
+
+            int[] oldMinHash = minHash;
+            int[] oldBucketSize = bucketSize;
+            long[] oldSubkey = subkey;
+
+            minHash = new int[oldMinHash.length - 1];
+            bucketSize = new int[oldBucketSize.length - 1];
+            subkey = new long[oldSubkey.length - 2];
+
+            System.arraycopy(oldMinHash, 0, minHash, 0, index);
+            System.arraycopy(oldMinHash, index + 1, minHash, index, oldMinHash.length - index - 1);
+            System.arraycopy(oldBucketSize, 0, bucketSize, 0, index);
+            System.arraycopy(oldBucketSize, index + 1, bucketSize, index, oldBucketSize.length - index - 1);
+            System.arraycopy(oldSubkey, 0, subkey, 0, index * 2);
+            System.arraycopy(oldSubkey, (index + 1) * 2, subkey, index * 2, oldSubkey.length - (index + 1) * 2);
+
+            if (index == 0) {
+                minHash[0] = oldMinHash[0];
+                return 0;
+            }
+            return index - 1;
+        }
+
+        /**
+         * 全てのバケットのサブキー。変更できないリストをこのインスタンスで再利用する。
+         * 
+         * @return サブキーのリスト
+         */
+        public List<SubKey> getSubKeyList() {
+            List<SubKey> list = subKeyList;
+            if (list == null) {
+                SubKey[] keys = new SubKey[minHash.length];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = getSubKey(i);
+                }
+                list = Collections.unmodifiableList(Arrays.asList(keys));
+                subKeyList = list;
+            }
+            return list;
+        }
+
+        /**
+         * 指定されたサブキーのバケットのインデックスを返す。
+         * 
+         * @param subKey バケットのサブキー
+         * @return インデックス。存在しない場合は-1
+         */
+        public int indexOf(SubKey subKey) {
+            for (int i = 0; i < subkey.length - 1; i = i + 2) {
+                if (subkey[i] == subKey.getUnique() && subkey[i + 1] == subKey.getCounter()) {
+                    return i / 2;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * 指定されたインデックスの範囲のバケットのみを持つBucketMetaを返す(メタページの分割に使用する)。
+         * 
+         * @param fromIndex 開始インデックス(この値を含む)
+         * @param toIndex 終了インデックス(この値を含まない)
+         * @return 部分的なBucketMeta
+         */
+        public BucketMeta subMeta(int fromIndex, int toIndex) {
+            return new BucketMeta(Arrays.copyOfRange(minHash, fromIndex, toIndex), Arrays.copyOfRange(bucketSize, fromIndex, toIndex),
+                    Arrays.copyOfRange(subkey, fromIndex * 2, toIndex * 2), group);
+        }
+
+        /**
+         * ハッシュ範囲の昇順に並んだBucketMetaを連結する(メタページの統合と、2階層のBucketMetaの読み取りに使用する)。
+         * 
+         * @param metaList 連結するBucketMeta
+         * @return 連結したBucketMeta
+         */
+        public static BucketMeta concat(List<BucketMeta> metaList) {
+            int num = 0;
+            for (BucketMeta meta : metaList) {
+                num += meta.bucketNum();
+            }
+            int[] minHash = new int[num];
+            int[] bucketSize = new int[num];
+            long[] subkey = new long[num * 2];
+            int pos = 0;
+            for (BucketMeta meta : metaList) {
+                int n = meta.bucketNum();
+                System.arraycopy(meta.minHash, 0, minHash, pos, n);
+                System.arraycopy(meta.bucketSize, 0, bucketSize, pos, n);
+                System.arraycopy(meta.subkey, 0, subkey, pos * 2, n * 2);
+                pos += n;
+            }
+            return new BucketMeta(minHash, bucketSize, subkey, metaList.get(0).group);
+        }
+
+        public long getTotalSize() {
+            long sum = 0;
+            for (int size : bucketSize) {
+                sum += (long) size;
+            }
+            return sum;
+        }
+
+        public int bucketNum() {
+            return minHash.length;
+        }
+
+        @Override
+        public String toString() {
+            return "DHMBMeta [minHash=" + Arrays.toString(minHash) + ", bucketSize=" + Arrays.toString(bucketSize) + ", subkey=" + Arrays.toString(subkey) + ", group=" + group + "]";
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + Arrays.hashCode(minHash);
+            result = prime * result + Arrays.hashCode(bucketSize);
+            result = prime * result + Arrays.hashCode(subkey);
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            BucketMeta other = (BucketMeta) obj;
+            if (!Arrays.equals(minHash, other.minHash))
+                return false;
+            if (!Arrays.equals(bucketSize, other.bucketSize))
+                return false;
+            if (!Arrays.equals(subkey, other.subkey))
+                return false;
+            if (group == null ? other.group != null : !group.equals(other.group))
+                return false;
+            return true;
+        }
+    }
+
+    /**
+     * 2階層のBucketMetaのルート<br>
+     * ハッシュ範囲毎のメタページ({@link BucketMeta})のサブキーを保持する。メタページの分割・統合時のみ更新される。
+     * 各メタページの先頭バケットのハッシュ範囲下限は、ルートのハッシュ範囲下限と一致する。
+     * 
+     * @see DistributedOneToMany#getMetaPageSize()
+     */
+    public static class BucketMetaRoot implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private int[] minHash;
+        private long[] subkey;
+        private String group;
+
+        /**
+         * Constructor
+         * 
+         * @param minHash 各メタページのハッシュ範囲下限(昇順、先頭はInteger.MIN_VALUE)
+         * @param pageList 各メタページのサブキー
+         * @param group サブキーのグループ
+         */
+        public BucketMetaRoot(int[] minHash, List<SubKey> pageList, String group) {
+            this.minHash = minHash;
+            this.subkey = new long[pageList.size() * 2];
+            for (int i = 0; i < pageList.size(); i++) {
+                subkey[i * 2] = pageList.get(i).getUnique();
+                subkey[i * 2 + 1] = pageList.get(i).getCounter();
+            }
+            this.group = group;
+        }
+
+        private BucketMetaRoot(int[] minHash, long[] subkey, String group) {
+            this.minHash = minHash;
+            this.subkey = subkey;
+            this.group = group;
+        }
+
+        public int getIndex(int hash) {
+            int index = Arrays.binarySearch(minHash, hash);
+            return index >= 0 ? index : -index - 2;
+        }
+
+        public SubKey getSubKey(int index) {
+            return new SubKey(subkey[index * 2], subkey[index * 2 + 1], group);
+        }
+
+        public String getGroup() {
+            return group;
+        }
+
+        public int getMinHash(int index) {
+            return minHash[index];
+        }
+
+        /**
+         * 指定されたメタページのハッシュ範囲上限(この値を含む)
+         */
+        public int getMaxHash(int index) {
+            return index == minHash.length - 1 ? Integer.MAX_VALUE : minHash[index + 1] - 1;
+        }
+
+        /**
+         * 指定されたメタページを、指定されたメタページ群に置き換えたルートを返す。
+         * 
+         * @param index 置き換えるメタページのインデックス
+         * @param count 置き換えるメタページの数
+         * @param newMinHash 置き換え後の各メタページのハッシュ範囲下限
+         * @param newPageList 置き換え後の各メタページのサブキー
+         * @return 新しいルート
+         */
+        public BucketMetaRoot replace(int index, int count, int[] newMinHash, List<SubKey> newPageList) {
+            int num = pageNum() - count + newMinHash.length;
+            int[] mergedMinHash = new int[num];
+            List<SubKey> mergedPageList = new ArrayList<>(num);
+
+            System.arraycopy(minHash, 0, mergedMinHash, 0, index);
+            System.arraycopy(newMinHash, 0, mergedMinHash, index, newMinHash.length);
+            System.arraycopy(minHash, index + count, mergedMinHash, index + newMinHash.length, pageNum() - index - count);
+
+            List<SubKey> pageList = getSubKeyList();
+            mergedPageList.addAll(pageList.subList(0, index));
+            mergedPageList.addAll(newPageList);
+            mergedPageList.addAll(pageList.subList(index + count, pageNum()));
+
+            return new BucketMetaRoot(mergedMinHash, mergedPageList, group);
+        }
+
+        public List<SubKey> getSubKeyList() {
+            List<SubKey> subKeyList = new ArrayList<>(pageNum());
+            for (int i = 0; i < pageNum(); i++) {
+                subKeyList.add(getSubKey(i));
+            }
+            return subKeyList;
+        }
+
+        public int pageNum() {
+            return minHash.length;
+        }
+
+        @Override
+        public String toString() {
+            return "BucketMetaRoot [minHash=" + Arrays.toString(minHash) + ", subkey=" + Arrays.toString(subkey) + ", group=" + group + "]";
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(minHash) + Arrays.hashCode(subkey);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof BucketMetaRoot))
+                return false;
+            BucketMetaRoot other = (BucketMetaRoot) obj;
+            return Arrays.equals(minHash, other.minHash) && Arrays.equals(subkey, other.subkey)
+                    && (group == null ? other.group == null : group.equals(other.group));
+        }
+    }
+
+    public static class BucketEntry<K, VK, V> implements DeltaAware, Serializable {
+        private static final long serialVersionUID = 1L;
+        private Map<VK, V> valueMap = new ConcurrentHashMap<>();
+        private K key;
+
+        public BucketEntry() {
+        }
+
+        /**
+         * @param key このバケットを保持する第一キー({@link BucketSweeper}が孤立バケットの判定に使用する)
+         */
+        public BucketEntry(K key) {
+            this.key = key;
+        }
+
+        public Map<VK, V> getValueMap() {
+            return valueMap;
+        }
+
+        /**
+         * このバケットを保持する第一キー
+         * 
+         * @return 第一キー。不明な場合はnull
+         */
+        public K getKey() {
+            return key;
+        }
+
+        public void setKey(K key) {
+            this.key = key;
+        }
+
+        /**
+         * バケット全体を置き換える差分を返す。
+         */
+        @Override
+        public Delta delta() {
+            BucketDelta<K, VK, V> delta = new BucketDelta<>();
+            delta.setClear(true);
+            delta.setKey(key);
+            delta.getPutMap().putAll(valueMap);
+            return delta;
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public int hashCode() {
+            return valueMap.hashCode();
+        }
 
-        BucketEntry<K, VK, V> bucket = getBucket(meta.getSubKey(index));
-        if (bucket != null) {
-            return bucket.getValueMap().get(valueKey);
-        } else {
-            return null;
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            BucketEntry other = (BucketEntry) obj;
+            return valueMap.equals(other.valueMap);
         }
     }
 
     /**
-     * BucketTrasferを考慮して、指定されたバケットを取得する。
-     * 
-     * @param subKey バケットのサブキー
-     * @return バケット
+     * バケットの差分<br>
+     * バケットのオーナーノード上で既存の{@link BucketEntry}にマージされる。
+     * マージ先のバケットが存在しない場合は、新しいバケットを作成する。
      */
-    private BucketEntry getBucket(SubKey subKey) {
-        Object tmp = cache.get(subKey);
-        if (tmp instanceof BucketEntry) {
-            return (BucketEntry) tmp;
-        } else if (tmp instanceof BucketTrasfer) {
-            BucketEntry mergeBucket = new BucketEntry();
-            BucketTrasfer trans = (BucketTrasfer) tmp;
-            for (SubKey transSubKey : trans.getTransSubKeyList()) {
-                BucketEntry actualBucket = getBucket(transSubKey);
-                mergeBucket.getValueMap().putAll(actualBucket.getValueMap());
+    public static class BucketDelta<K, VK, V> implements Delta, Serializable {
+        private static final long serialVersionUID = 1L;
+        private boolean clear;
+        private K key;
+        private Map<VK, V> putMap = new HashMap<>();
+        private Set<VK> removeSet = new HashSet<>();
+
+        public static <K, VK, V> BucketDelta<K, VK, V> put(VK valueKey, V value) {
+            BucketDelta<K, VK, V> delta = new BucketDelta<>();
+            delta.putMap.put(valueKey, value);
+            return delta;
+        }
+
+        public static <K, VK, V> BucketDelta<K, VK, V> remove(VK valueKey) {
+            BucketDelta<K, VK, V> delta = new BucketDelta<>();
+            delta.removeSet.add(valueKey);
+            return delta;
+        }
+
+        @Override
+        public DeltaAware merge(DeltaAware d) {
+            BucketEntry<K, VK, V> bucket;
+            if (d instanceof BucketEntry) {
+                bucket = (BucketEntry<K, VK, V>) d;
+            } else {
+                bucket = new BucketEntry<>();
             }
 
-            return mergeBucket;
+            if (key != null) {
+                bucket.setKey(key);
+            }
+            if (clear) {
+                bucket.getValueMap().clear();
+            }
+            for (VK valueKey : removeSet) {
+                bucket.getValueMap().remove(valueKey);
+            }
+            bucket.getValueMap().putAll(putMap);
+            return bucket;
         }
 
-        return null;
-    }
+        public boolean isClear() {
+            return clear;
+        }
 
-    /**
-     * key指定で削除する
-     * 
-     * @param key 第一キー
-     */
-    public boolean remove(K key) {
-        for (SubKey subKey : getSubKeyList(key)) {
-            cache.remove(subKey);
+        public void setClear(boolean clear) {
+            this.clear = clear;
         }
-        return cache.remove(key) != null;
-    }
 
-    public static class BucketMeta implements Serializable {
+        public K getKey() {
+            return key;
+        }
+
+        public void setKey(K key) {
+            this.key = key;
+        }
+
+        public Map<VK, V> getPutMap() {
+            return putMap;
+        }
+
+        public Set<VK> getRemoveSet() {
+            return removeSet;
+        }
+    }
 
+    public static class BucketTrasfer implements Serializable {
         private static final long serialVersionUID = 1L;
+        private List<SubKey> transSubKeyList = new ArrayList<>();
 
-        private int[] minHash;
-        private int[] bucketSize;
-        private long[] subkey;
+        public List<SubKey> getTransSubKeyList() {
+            return transSubKeyList;
+        }
 
-        /**
-         * Constructor
-         */
-        public BucketMeta() {
-            minHash = new int[1];
-            minHash[0] = Integer.MIN_VALUE;
+        public void setTransSubKeyList(List<SubKey> transSubKeyList) {
+            this.transSubKeyList = transSubKeyList;
+        }
 
-            bucketSize = new int[1];
-            bucketSize[0] = 0;
+        @Override
+        public int hashCode() {
+            return transSubKeyList.hashCode();
+        }
 
-            SubKey sKey = new SubKey();
-            subkey = new long[2];
-            subkey[0] = sKey.getUnique();
-            subkey[1] = sKey.getCounter();
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            BucketTrasfer other = (BucketTrasfer) obj;
+            return transSubKeyList.equals(other.transSubKeyList);
         }
+    }
+
+    /**
+     * バケット構造を構成するクラスのInfinispan用のAdvancedExternalizer<br>
+     * Javaシリアライゼーションのクラス記述子やConcurrentHashMapの内部構造を書き込まず、可変長整数で詰めて書き込む。
+     * キャッシュマネージャのグローバル設定で登録すること。
+     * 
+     * <pre>
+     * &lt;serialization&gt;
+     *   &lt;advancedExternalizers&gt;
+     *     &lt;advancedExternalizer id="7300" externalizerClass="org.mk300.dcoll.DistributedOneToMany$Externalizers$BucketMetaExternalizer" /&gt;
+     *     ...
+     *   &lt;/advancedExternalizers&gt;
+     * &lt;/serialization&gt;
+     * </pre>
+     * 
+     * または、{@link #getAll()}をGlobalConfigurationBuilder#serialization()#addAdvancedExternalizer()で登録する。
+     */
+    public static class Externalizers {
+        public static final int BUCKET_META_ID = 7300;
+        public static final int BUCKET_ENTRY_ID = 7301;
+        public static final int BUCKET_DELTA_ID = 7302;
+        public static final int BUCKET_TRANSFER_ID = 7303;
+        public static final int SUB_KEY_ID = 7304;
+        public static final int LONG_BUCKET_ENTRY_ID = 7305;
+        public static final int LONG_BUCKET_DELTA_ID = 7306;
+        public static final int BUCKET_META_ROOT_ID = 7307;
+        public static final int RANGE_META_ID = 7308;
+        public static final int SORTED_BUCKET_ENTRY_ID = 7309;
+        public static final int SORTED_BUCKET_DELTA_ID = 7310;
 
         /**
-         * Copy constructor
+         * 全てのAdvancedExternalizer
          * 
-         * @param origin
+         * @return AdvancedExternalizerの配列
          */
-        public BucketMeta(BucketMeta origin) {
-            minHash = new int[origin.minHash.length];
-            System.arraycopy(origin.minHash, 0, minHash, 0, origin.minHash.length);
+        public static AdvancedExternalizer<?>[] getAll() {
+            return new AdvancedExternalizer<?>[] { new BucketMetaExternalizer(), new BucketEntryExternalizer(), new BucketDeltaExternalizer(),
+                    new BucketTrasferExternalizer(), new SubKeyExternalizer(), new LongOneToMany.LongBucketEntryExternalizer(),
+                    new LongOneToMany.LongBucketDeltaExternalizer(), new BucketMetaRootExternalizer(), new DistributedSearchableList.RangeMetaExternalizer(),
+                    new DistributedSearchableList.SortedBucketEntryExternalizer(), new DistributedSearchableList.SortedBucketDeltaExternalizer() };
+        }
 
-            bucketSize = new int[origin.bucketSize.length];
-            System.arraycopy(origin.bucketSize, 0, bucketSize, 0, origin.bucketSize.length);
+        public static class BucketMetaExternalizer extends AbstractExternalizer<BucketMeta> {
+            private static final long serialVersionUID = 1L;
 
-            subkey = new long[origin.subkey.length];
-            System.arraycopy(origin.subkey, 0, subkey, 0, origin.subkey.length);
-        }
+            @Override
+            public Set<Class<? extends BucketMeta>> getTypeClasses() {
+                return Collections.<Class<? extends BucketMeta>> singleton(BucketMeta.class);
+            }
 
-        public int getIndex(int hash) {
-            int index = 1;
-            for (; index < minHash.length; index++) {
-                if (hash < minHash[index]) {
-                    return index - 1;
+            @Override
+            public Integer getId() {
+                return BUCKET_META_ID;
+            }
+
+            @Override
+            public void writeObject(ObjectOutput output, BucketMeta meta) throws IOException {
+                int num = meta.minHash.length;
+                writeVarInt(output, num);
+                writeNullableUTF(output, meta.group);
+
+                // minHashは昇順のため差分を書き込む
+                long prev = Integer.MIN_VALUE;
+                for (int i = 0; i < num; i++) {
+                    writeVarLong(output, meta.minHash[i] - prev);
+                    prev = meta.minHash[i];
                 }
+                for (int i = 0; i < num; i++) {
+                    writeVarInt(output, meta.bucketSize[i]);
+                }
+                writeSubKeys(output, meta.subkey);
             }
-            return minHash.length - 1;
-        }
 
-        public SubKey getSubKey(int index) {
-            long s1 = subkey[index * 2];
-            long s2 = subkey[index * 2 + 1];
+            @Override
+            public BucketMeta readObject(ObjectInput input) throws IOException {
+                int num = readVarInt(input);
+                String group = readNullableUTF(input);
 
-            return new SubKey(s1, s2);
+                int[] minHash = new int[num];
+                long prev = Integer.MIN_VALUE;
+                for (int i = 0; i < num; i++) {
+                    prev += readVarLong(input);
+                    minHash[i] = (int) prev;
+                }
+                int[] bucketSize = new int[num];
+                for (int i = 0; i < num; i++) {
+                    bucketSize[i] = readVarInt(input);
+                }
+                long[] subkey = readSubKeys(input, num);
+                return new BucketMeta(minHash, bucketSize, subkey, group);
+            }
         }
 
-        public int getBuketSize(int index) {
-            return bucketSize[index];
-        }
+        public static class BucketMetaRootExternalizer extends AbstractExternalizer<BucketMetaRoot> {
+            private static final long serialVersionUID = 1L;
 
-        public int setBucketSize(int index, int size) {
-            bucketSize[index] = size;
-            return bucketSize[index];
-        }
+            @Override
+            public Set<Class<? extends BucketMetaRoot>> getTypeClasses() {
+                return Collections.<Class<? extends BucketMetaRoot>> singleton(BucketMetaRoot.class);
+            }
 
-        public int[] getHashRnge(int index) {
-            if (index == minHash.length - 1) {
-                return new int[] { minHash[index], Integer.MAX_VALUE };
-            } else {
-                return new int[] { minHash[index], minHash[index + 1] - 1 };
+            @Override
+            public Integer getId() {
+                return BUCKET_META_ROOT_ID;
+            }
+
+            @Override
+            public void writeObject(ObjectOutput output, BucketMetaRoot root) throws IOException {
+                int num = root.minHash.length;
+                writeVarInt(output, num);
+                writeNullableUTF(output, root.group);
+
+                long prev = Integer.MIN_VALUE;
+                for (int i = 0; i < num; i++) {
+                    writeVarLong(output, root.minHash[i] - prev);
+                    prev = root.minHash[i];
+                }
+                writeSubKeys(output, root.subkey);
+            }
+
+            @Override
+            public BucketMetaRoot readObject(ObjectInput input) throws IOException {
+                int num = readVarInt(input);
+                String group = readNullableUTF(input);
+
+                int[] minHash = new int[num];
+                long prev = Integer.MIN_VALUE;
+                for (int i = 0; i < num; i++) {
+                    prev += readVarLong(input);
+                    minHash[i] = (int) prev;
+                }
+                long[] subkey = readSubKeys(input, num);
+                return new BucketMetaRoot(minHash, subkey, group);
             }
         }
 
-        public void splitDown(int index) {
-            int[] oldMinHash = minHash;
-            int[] oldBucketSize = bucketSize;
-            long[] oldSubkey = subkey;
+        public static class BucketEntryExternalizer extends AbstractExternalizer<BucketEntry> {
+            private static final long serialVersionUID = 1L;
 
-            minHash = new int[minHash.length + 1];
-            bucketSize = new int[bucketSize.length + 1];
-            subkey = new long[subkey.length + 2];
+            @Override
+            public Set<Class<? extends BucketEntry>> getTypeClasses() {
+                return Collections.<Class<? extends BucketEntry>> singleton(BucketEntry.class);
+            }
 
-            if (index == 0) {
-                // [A, B, C] -> [ A1, A2, B, C]
-                System.arraycopy(oldMinHash, 1, minHash, 2, oldMinHash.length - 1);
-                System.arraycopy(oldBucketSize, 1, bucketSize, 2, oldBucketSize.length - 1);
-                System.arraycopy(oldSubkey, 2, subkey, 4, oldSubkey.length - 2);
+            @Override
+            public Integer getId() {
+                return BUCKET_ENTRY_ID;
+            }
 
-            } else if (index == oldMinHash.length - 1) {
-                // [A, B, C] -> [ A, B, C1, C2]
-                System.arraycopy(oldMinHash, 0, minHash, 0, oldMinHash.length - 1);
-                System.arraycopy(oldBucketSize, 0, bucketSize, 0, oldBucketSize.length - 1);
-                System.arraycopy(oldSubkey, 0, subkey, 0, oldSubkey.length - 2);
+            @Override
+            public void writeObject(ObjectOutput output, BucketEntry bucket) throws IOException {
+                output.writeObject(bucket.key);
+                writeMap(output, bucket.valueMap);
+            }
 
-            } else {
-                // [A, B, C] -> [ A, B1, B2, C]
-                System.arraycopy(oldMinHash, 0, minHash, 0, index);
-                System.arraycopy(oldMinHash, index + 1, minHash, index + 2, oldMinHash.length - index - 1);
+            @Override
+            public BucketEntry readObject(ObjectInput input) throws IOException, ClassNotFoundException {
+                BucketEntry bucket = new BucketEntry(input.readObject());
+                readMap(input, bucket.valueMap);
+                return bucket;
+            }
+        }
 
-                System.arraycopy(oldBucketSize, 0, bucketSize, 0, index);
-                System.arraycopy(oldBucketSize, index + 1, bucketSize, index + 2, oldBucketSize.length - index - 1);
+        public static class BucketDeltaExternalizer extends AbstractExternalizer<BucketDelta> {
+            private static final long serialVersionUID = 1L;
 
-                System.arraycopy(oldSubkey, 0, subkey, 0, index * 2);
-                System.arraycopy(oldSubkey, (index + 1) * 2, subkey, (index + 2) * 2, oldSubkey.length - (index + 1) * 2);
+            @Override
+            public Set<Class<? extends BucketDelta>> getTypeClasses() {
+                return Collections.<Class<? extends BucketDelta>> singleton(BucketDelta.class);
             }
 
-            minHash[index] = oldMinHash[index];
-            if (index == oldMinHash.length - 1) {
-                minHash[index + 1] = oldMinHash[index] / 2 + Integer.MAX_VALUE / 2;
-            } else {
-                minHash[index + 1] = oldMinHash[index] / 2 + oldMinHash[index + 1] / 2;
+            @Override
+            public Integer getId() {
+                return BUCKET_DELTA_ID;
             }
-            bucketSize[index] = 0;
-            bucketSize[index + 1] = 0;
 
-            SubKey sKey1 = new SubKey();
-            subkey[index * 2] = sKey1.getUnique();
-            subkey[index * 2 + 1] = sKey1.getCounter();
+            @Override
+            public void writeObject(ObjectOutput output, BucketDelta delta) throws IOException {
+                output.writeBoolean(delta.clear);
+                output.writeObject(delta.key);
+                writeMap(output, delta.putMap);
+                writeVarInt(output, delta.removeSet.size());
+                for (Object valueKey : delta.removeSet) {
+                    output.writeObject(valueKey);
+                }
+            }
 
-            SubKey sKey2 = new SubKey();
-            subkey[index * 2 + 2] = sKey2.getUnique();
-            subkey[index * 2 + 3] = sKey2.getCounter();
+            @Override
+            public BucketDelta readObject(ObjectInput input) throws IOException, ClassNotFoundException {
+                BucketDelta delta = new BucketDelta();
+                delta.clear = input.readBoolean();
+                delta.key = input.readObject();
+                readMap(input, delta.putMap);
+                int removeNum = readVarInt(input);
+                for (int i = 0; i < removeNum; i++) {
+                    delta.removeSet.add(input.readObject());
+                }
+                return delta;
+            }
         }
 
-        public void mergeUp(int index) {
+        public static class BucketTrasferExternalizer extends AbstractExternalizer<BucketTrasfer> {
+            private static final long serialVersionUID = 1L;
 
-            int[] oldMinHash = minHash;
-            int[] oldBucketSize = bucketSize;
-            long[] oldSubkey = subkey;
+            @Override
+            public Set<Class<? extends BucketTrasfer>> getTypeClasses() {
+                return Collections.<Class<? extends BucketTrasfer>> singleton(BucketTrasfer.class);
+            }
 
-            minHash = new int[minHash.length - 1];
-            bucketSize = new int[bucketSize.length - 1];
-            subkey = new long[subkey.length - 2];
+            @Override
+            public Integer getId() {
+                return BUCKET_TRANSFER_ID;
+            }
 
-            if (index == 0) {
-                if (oldMinHash.length <= 2) {
-                    // [A1, A2] -> [A]
-                } else {
-                    // [A1, A2, B, C] -> [ A, B, C]
-                    System.arraycopy(oldMinHash, 2, minHash, 1, oldMinHash.length - 2);
-                    System.arraycopy(oldBucketSize, 2, bucketSize, 1, oldBucketSize.length - 2);
-                    System.arraycopy(oldSubkey, 4, subkey, 2, oldSubkey.length - 4);
+            @Override
+            public void writeObject(ObjectOutput output, BucketTrasfer transfer) throws IOException {
+                List<SubKey> subKeyList = transfer.transSubKeyList;
+                writeVarInt(output, subKeyList.size());
+                for (SubKey subKey : subKeyList) {
+                    SubKeyExternalizer.write(output, subKey);
                 }
-            } else if (index >= oldMinHash.length - 2) {
-                // [ A, B, C1, C2] -> [A, B, C]
-                System.arraycopy(oldMinHash, 0, minHash, 0, oldMinHash.length - 2);
-                System.arraycopy(oldBucketSize, 0, bucketSize, 0, oldBucketSize.length - 2);
-                System.arraycopy(oldSubkey, 0, subkey, 0, oldSubkey.length - 4);
+            }
 
-            } else {
-                // [ A, B1, B2, C] -> [A, B, C]
-                System.arraycopy(oldMinHash, 0, minHash, 0, index);
-                System.arraycopy(oldMinHash, index + 2, minHash, index + 1, oldMinHash.length - index - 2);
+            @Override
+            public BucketTrasfer readObject(ObjectInput input) throws IOException {
+                BucketTrasfer transfer = new BucketTrasfer();
+                int num = readVarInt(input);
+                for (int i = 0; i < num; i++) {
+                    transfer.transSubKeyList.add(SubKeyExternalizer.read(input));
+                }
+                return transfer;
+            }
+        }
 
-                System.arraycopy(oldBucketSize, 0, bucketSize, 0, index);
-                System.arraycopy(oldBucketSize, index + 2, bucketSize, index + 1, oldBucketSize.length - index - 2);
+        public static class SubKeyExternalizer extends AbstractExternalizer<SubKey> {
+            private static final long serialVersionUID = 1L;
 
-                System.arraycopy(oldSubkey, 0, subkey, 0, (index) * 2);
-                System.arraycopy(oldSubkey, (index + 2) * 2, subkey, (index + 1) * 2, oldSubkey.length - (index + 2) * 2);
+            @Override
+            public Set<Class<? extends SubKey>> getTypeClasses() {
+                return Collections.<Class<? extends SubKey>> singleton(SubKey.class);
             }
 
-            minHash[index] = oldMinHash[index];
-            bucketSize[index] = 0;
+            @Override
+            public Integer getId() {
+                return SUB_KEY_ID;
+            }
 
-            SubKey sKey = new SubKey();
-            subkey[index * 2] = sKey.getUnique();
-            subkey[index * 2 + 1] = sKey.getCounter();
+            @Override
+            public void writeObject(ObjectOutput output, SubKey subKey) throws IOException {
+                write(output, subKey);
+            }
+
+            @Override
+            public SubKey readObject(ObjectInput input) throws IOException {
+                return read(input);
+            }
+
+            static void write(ObjectOutput output, SubKey subKey) throws IOException {
+                // uniqueは乱数のため固定長、counterは連番のため可変長
+                output.writeLong(subKey.getUnique());
+                writeVarLong(output, subKey.getCounter());
+                writeNullableUTF(output, subKey.getGroup());
+            }
+
+            static SubKey read(ObjectInput input) throws IOException {
+                long unique = input.readLong();
+                long counter = readVarLong(input);
+                return new SubKey(unique, counter, readNullableUTF(input));
+            }
+        }
 
+        /**
+         * uniqueとcounterの組の配列を書き込む。同じノードで生成されたサブキーはuniqueが同じため、直前と同じ場合は省略する。
+         */
+        static void writeSubKeys(ObjectOutput output, long[] subkey) throws IOException {
+            long prevUnique = 0;
+            for (int i = 0; i < subkey.length; i = i + 2) {
+                boolean same = i > 0 && subkey[i] == prevUnique;
+                output.writeBoolean(same);
+                if (!same) {
+                    output.writeLong(subkey[i]);
+                }
+                writeVarLong(output, subkey[i + 1]);
+                prevUnique = subkey[i];
+            }
         }
 
-        public List<SubKey> getSubKeyList() {
-            List<SubKey> subKeyList = new ArrayList<>(subkey.length / 2);
-            for (int i = 0; i < subkey.length - 1; i = i + 2) {
-                subKeyList.add(new SubKey(subkey[i], subkey[i + 1]));
+        static long[] readSubKeys(ObjectInput input, int num) throws IOException {
+            long[] subkey = new long[num * 2];
+            long prevUnique = 0;
+            for (int i = 0; i < subkey.length; i = i + 2) {
+                subkey[i] = input.readBoolean() ? prevUnique : input.readLong();
+                subkey[i + 1] = readVarLong(input);
+                prevUnique = subkey[i];
             }
-            return subKeyList;
+            return subkey;
         }
 
-        public long getTotalSize() {
-            long sum = 0;
-            for (int size : bucketSize) {
-                sum += (long) size;
+        private static void writeMap(ObjectOutput output, Map<?, ?> map) throws IOException {
+            writeVarInt(output, map.size());
+            for (Entry<?, ?> entry : map.entrySet()) {
+                output.writeObject(entry.getKey());
+                output.writeObject(entry.getValue());
             }
-            return sum;
         }
 
-        public int bucketNum() {
-            return minHash.length;
+        private static void readMap(ObjectInput input, Map map) throws IOException, ClassNotFoundException {
+            int num = readVarInt(input);
+            for (int i = 0; i < num; i++) {
+                map.put(input.readObject(), input.readObject());
+            }
         }
 
-        @Override
-        public String toString() {
-            return "DHMBMeta [minHash=" + Arrays.toString(minHash) + ", bucketSize=" + Arrays.toString(bucketSize) + ", subkey=" + Arrays.toString(subkey) + "]";
+        static void writeNullableUTF(ObjectOutput output, String value) throws IOException {
+            output.writeBoolean(value != null);
+            if (value != null) {
+                output.writeUTF(value);
+            }
         }
-    }
 
-    public static class BucketEntry<K, VK, V> implements Serializable {
-        private static final long serialVersionUID = 1L;
-        private Map<VK, V> valueMap = new ConcurrentHashMap<>();
+        static String readNullableUTF(ObjectInput input) throws IOException {
+            return input.readBoolean() ? input.readUTF() : null;
+        }
 
-        public Map<VK, V> getValueMap() {
-            return valueMap;
+        /**
+         * 符号なし可変長整数(7bit単位)を書き込む。
+         */
+        static void writeVarInt(ObjectOutput output, int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                output.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            output.writeByte(value);
         }
-    }
 
-    public static class BucketTrasfer implements Serializable {
-        private static final long serialVersionUID = 1L;
-        private List<SubKey> transSubKeyList = new ArrayList<>();
+        static int readVarInt(ObjectInput input) throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte b = input.readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
 
-        public List<SubKey> getTransSubKeyList() {
-            return transSubKeyList;
+        static void writeVarLong(ObjectOutput output, long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                output.writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            output.writeByte((int) value);
         }
 
-        public void setTransSubKeyList(List<SubKey> transSubKeyList) {
-            this.transSubKeyList = transSubKeyList;
+        static long readVarLong(ObjectInput input) throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = input.readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varlong");
         }
     }
 
     public static class HashFunction {
         public static int hash(Object valueKey) {
-            int hashcode = valueKey.hashCode();
-
-            byte b0 = (byte) hashcode;
-            byte b1 = (byte) (hashcode >>> 8);
-            byte b2 = (byte) (hashcode >>> 16);
-            byte b3 = (byte) (hashcode >>> 24);
-            State state = new State();
-
-            state.h1 = 0x9368e53c2f6af274L ^ 9001;
-            state.h2 = 0x586dcd208f7cd3fdL ^ 9001;
-
-            state.c1 = 0x87c37b91114253d5L;
-            state.c2 = 0x4cf5ad432745937fL;
-
-            state.k1 = 0;
-            state.k2 = 0;
-
-            state.k1 ^= (long) b3 << 24;
-            state.k1 ^= (long) b2 << 16;
-            state.k1 ^= (long) b1 << 8;
-            state.k1 ^= b0;
-            bmix(state);
-
-            state.h2 ^= 4;
-
-            state.h1 += state.h2;
-            state.h2 += state.h1;
-
-            state.h1 = fmix(state.h1);
-            state.h2 = fmix(state.h2);
-
-            state.h1 += state.h2;
-            state.h2 += state.h1;
-
-            int ret = (int) (state.h1 >>> 32);
-            return ret;
+            return hashInt(valueKey.hashCode());
         }
 
-        private static void bmix(State state) {
-            state.k1 *= state.c1;
-            state.k1 = (state.k1 << 23) | (state.k1 >>> 64 - 23);
-            state.k1 *= state.c2;
-            state.h1 ^= state.k1;
-            state.h1 += state.h2;
-
-            state.h2 = (state.h2 << 41) | (state.h2 >>> 64 - 41);
-
-            state.k2 *= state.c2;
-            state.k2 = (state.k2 << 23) | (state.k2 >>> 64 - 23);
-            state.k2 *= state.c1;
-            state.h2 ^= state.k2;
-            state.h2 += state.h1;
-
-            state.h1 = state.h1 * 3 + 0x52dce729;
-            state.h2 = state.h2 * 3 + 0x38495ab5;
+        /**
+         * longのvalueKeyのハッシュ値(ボクシングしない)。{@link Long#hashCode()}と同じ値を元にするため、
+         * {@code hash(Long.valueOf(valueKey))}と同じ値となる。
+         * 
+         * @param valueKey 第二キー
+         * @return ハッシュ値
+         */
+        public static int hash(long valueKey) {
+            return hashInt((int) (valueKey ^ (valueKey >>> 32)));
+        }
 
-            state.c1 = state.c1 * 5 + 0x7b7d159c;
-            state.c2 = state.c2 * 5 + 0x6bce6396;
+        /**
+         * MurmurHash3(x64 128bit)の4バイト入力の場合の計算を展開したもの。ヒープ上にオブジェクトを生成しない。
+         */
+        private static int hashInt(int hashcode) {
+            long h1 = 0x9368e53c2f6af274L ^ 9001;
+            long h2 = 0x586dcd208f7cd3fdL ^ 9001;
+
+            // 各バイトは符号拡張される(従来の計算結果と互換)
+            long k1 = 0;
+            k1 ^= (long) (byte) (hashcode >>> 24) << 24;
+            k1 ^= (long) (byte) (hashcode >>> 16) << 16;
+            k1 ^= (long) (byte) (hashcode >>> 8) << 8;
+            k1 ^= (byte) hashcode;
+
+            // bmix(k2は常に0)
+            k1 *= 0x87c37b91114253d5L;
+            k1 = Long.rotateLeft(k1, 23);
+            k1 *= 0x4cf5ad432745937fL;
+            h1 ^= k1;
+            h1 += h2;
+            h2 = Long.rotateLeft(h2, 41);
+            h2 += h1;
+            h1 = h1 * 3 + 0x52dce729;
+            h2 = h2 * 3 + 0x38495ab5;
+
+            h2 ^= 4;
+
+            h1 += h2;
+            h2 += h1;
+
+            h1 = fmix(h1);
+            h2 = fmix(h2);
+
+            h1 += h2;
+
+            return (int) (h1 >>> 32);
         }
 
         private static long fmix(long k) {
@@ -724,9 +6180,5 @@ abstract public class DistributedOneToMany<K, VK, V> {
             k ^= k >>> 33;
             return k;
         }
-
-        private static class State {
-            long h1, h2, k1, k2, c1, c2;
-        }
     }
 }
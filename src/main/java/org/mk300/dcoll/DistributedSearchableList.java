@@ -0,0 +1,1123 @@
+/*
+ * Copyright 2016 Masazumi Kobayashi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mk300.dcoll;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.atomic.Delta;
+import org.infinispan.atomic.DeltaAware;
+import org.infinispan.commons.marshall.AbstractExternalizer;
+import org.infinispan.context.Flag;
+import org.mk300.dcoll.DistributedOneToMany.BucketTrasfer;
+import org.mk300.dcoll.DistributedOneToMany.Externalizers;
+import org.mk300.dcoll.DistributedOneToMany.SubKeyFactory;
+import org.mk300.dcoll.DistributedOneToMany.SubKeyPlacement;
+
+/**
+ * Distributed searchable list<br>
+ * {@link DistributedOneToMany}と同じく第一キー(key)と第二キー(valueKey)でバケット構造を管理するが、
+ * バケットをvalueKeyのハッシュ値ではなく、valueKeyの順序(自然順序、または{@link #getComparator()})の範囲で分割する。
+ * 各バケットの中もvalueKeyの順序で保持するため、範囲検索({@link #subMap(Object, Object, Object)})、
+ * 先頭・末尾の取得、逆順の走査で、範囲に重なるバケットのみを取得する。<br>
+ * バケットの分割・統合と{@link BucketTrasfer}による移行手順(U1→U2→U4)、サブキーの配置方針({@link #getSubKeyPlacement()})は
+ * {@link DistributedOneToMany}と同じ。<br>
+ * 構造が変化しない追加・削除は、{@link SortedBucketDelta}(1件の差分)のみを書き込み、オーナーノード上でバケットのコピーにマージする。
+ * 差分のマージにはvalueKeyの順序が必要なため、{@link #getComparator()}がシリアライズできない場合はバケット全体を書き込む。<br>
+ * 各クラスのAdvancedExternalizerは{@link Externalizers#getAll()}に含まれる。<br>
+ * <b>更新系メソッドは、必ずkeyでクラスタワイドロックを取得すること。</b>
+ *
+ * @author mkobayas@redhat.com
+ *
+ * @param <K> 第一キー
+ * @param <VK> 第二キー
+ * @param <V> value
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public abstract class DistributedSearchableList<K, VK, V> {
+
+    /**
+     * 1バケット当たりの最大valueKey数
+     *
+     * @return 1バケット当たりの最大valueKey数
+     */
+    abstract public int getMaxBucketSize();
+
+    /**
+     * この数を下回ると、隣接バケットとの合併が検討される。
+     *
+     * @return 合併の閾値
+     */
+    abstract public int getMinCompactionBucketSize();
+
+    /**
+     * バケット分割・合併時の{@link BucketTrasfer}の有効期限(ミリ秒)
+     *
+     * @return BucketTrasferの有効期限
+     */
+    abstract public long getTransferExpireMills();
+
+    /**
+     * valueKeyの順序。nullの場合は自然順序(valueKeyは{@link Comparable}であること)。<br>
+     * 全てのノード・インスタンスで同じ順序となること。
+     *
+     * @return valueKeyの順序
+     */
+    public Comparator<? super VK> getComparator() {
+        return null;
+    }
+
+    /**
+     * バケットのサブキーの配置方針。デフォルトは{@link SubKeyPlacement#RANDOM}。<br>
+     * 配置方針は新しく生成されるサブキーにのみ適用される。
+     *
+     * @return サブキーの配置方針
+     * @see DistributedOneToMany#getSubKeyPlacement()
+     */
+    public SubKeyPlacement getSubKeyPlacement() {
+        return SubKeyPlacement.RANDOM;
+    }
+
+    private AdvancedCache cache;
+
+    private final AtomicInteger spreadCounter = new AtomicInteger();
+
+    public DistributedSearchableList(Cache cache) {
+        this.cache = cache.getAdvancedCache();
+    }
+
+    /**
+     * 指定されたkeyとvalueKeyでvalueをキャッシュする。<br>
+     * バケットが{@link #getMaxBucketSize()}を超えた時は、バケット内の中央のvalueKeyで分割する。<br>
+     * <b>必ずkeyでクラスタワイドロックを取得すること。</b>
+     *
+     * @param key 第一キー
+     * @param valueKey 第二キー
+     * @param value 保持するvalue
+     * @return 前回の値があれば、その値。無ければnull。
+     */
+    public V put(K key, VK valueKey, V value) {
+        if (valueKey == null || value == null) {
+            throw new NullPointerException();
+        }
+
+        RangeMeta meta = (RangeMeta) cache.get(key);
+        if (meta == null) {
+            // 新規キー
+            meta = newRangeMeta(key);
+            SortedBucketEntry bucket = new SortedBucketEntry(key).with(valueKey, value, getComparator());
+            meta.setBucketSize(0, bucket.size());
+
+            cache.put(meta.getSubKey(0), bucket);
+            cache.put(key, meta);
+            return null;
+        }
+
+        int index = meta.getIndex(valueKey, getComparator());
+        SubKey subKey = meta.getSubKey(index);
+
+        SortedBucketEntry bucket = getBucket(subKey);
+        if (bucket == null) {
+            bucket = new SortedBucketEntry(key);
+        }
+        V pre = (V) bucket.get(valueKey, getComparator());
+        SortedBucketEntry newBucket = bucket.with(valueKey, value, getComparator());
+
+        if (newBucket.size() <= getMaxBucketSize()) {
+            // ルートの構造は変化しないため、RangeMetaは更新しない(RangeMetaのバケットサイズは構造変更時点の目安)。
+            putDelta(key, subKey, valueKey, value, newBucket);
+            return pre;
+        }
+
+        // バケット分割(中央のvalueKeyで2分割)
+        int mid = newBucket.size() / 2;
+        SortedBucketEntry newLeftBucket = newBucket.slice(0, mid);
+        SortedBucketEntry newRightBucket = newBucket.slice(mid, newBucket.size());
+
+        meta = new RangeMeta(meta); // immutable
+        meta.splitDown(index, newRightBucket.keyAt(0), subKeyFactory(key));
+        meta.setBucketSize(index, newLeftBucket.size());
+        meta.setBucketSize(index + 1, newRightBucket.size());
+
+        SubKey leftSubKey = meta.getSubKey(index);
+        SubKey rightSubKey = meta.getSubKey(index + 1);
+
+        // put new bucket(U1: order is important)
+        cache.put(leftSubKey, newLeftBucket);
+        cache.put(rightSubKey, newRightBucket);
+
+        // transfer (U2: order is important)
+        BucketTrasfer tbt = new BucketTrasfer();
+        tbt.getTransSubKeyList().add(leftSubKey);
+        tbt.getTransSubKeyList().add(rightSubKey);
+        cache.put(subKey, tbt, getTransferExpireMills(), TimeUnit.MILLISECONDS);
+
+        // update (U4: order is important)
+        cache.put(key, meta);
+
+        return pre;
+    }
+
+    /**
+     * 指定されたkeyとvalueKeyのvalueを削除する。<br>
+     * <b>必ずkeyでクラスタワイドロックを取得すること。</b>
+     *
+     * @param key 第一キー
+     * @param valueKey 第二キー
+     * @return 前回の値があれば、その値。無ければnull。
+     */
+    public V remove(K key, VK valueKey) {
+        RangeMeta meta = (RangeMeta) cache.get(key);
+        if (meta == null) {
+            return null;
+        }
+
+        int index = meta.getIndex(valueKey, getComparator());
+        SubKey subKey = meta.getSubKey(index);
+
+        SortedBucketEntry bucket = getBucket(subKey);
+        V pre = bucket == null ? null : (V) bucket.get(valueKey, getComparator());
+        if (pre == null) {
+            return null;
+        }
+
+        SortedBucketEntry newBucket = bucket.without(valueKey, getComparator());
+
+        // 空になったバケットは常に統合されるため、空のバケットが存在するのはバケットが1つの場合のみ
+        if (newBucket.size() == 0 && meta.bucketNum() <= 1) {
+            // completely delete
+            remove(key);
+            return pre;
+        }
+
+        // 合併の判定はRangeMetaのバケットサイズ(目安)ではなく、実際のバケットサイズで行う
+        int anotherIndex = -1;
+        if (meta.bucketNum() > 1 && newBucket.size() <= getMinCompactionBucketSize()) {
+            if (index == 0) {
+                anotherIndex = index + 1;
+            } else if (index == meta.bucketNum() - 1) {
+                anotherIndex = index - 1;
+            } else if (meta.getBucketSize(index - 1) < meta.getBucketSize(index + 1)) {
+                anotherIndex = index - 1;
+            } else {
+                anotherIndex = index + 1;
+            }
+        }
+
+        SortedBucketEntry anotherBucket = null;
+        if (anotherIndex >= 0) {
+            anotherBucket = getBucket(meta.getSubKey(anotherIndex));
+            if (newBucket.size() > 0 && newBucket.size() + (anotherBucket == null ? 0 : anotherBucket.size()) > getMinCompactionBucketSize()) {
+                anotherIndex = -1;
+            }
+        }
+
+        if (anotherIndex < 0) {
+            // simple remove case(ルートの構造は変化しないため、RangeMetaは更新しない)
+            putDelta(key, subKey, valueKey, null, newBucket);
+            return pre;
+        }
+
+        // merge up
+        SubKey anotherSubKey = meta.getSubKey(anotherIndex);
+
+        int newIndex = Math.min(index, anotherIndex);
+        meta = new RangeMeta(meta); // immutable
+        meta.mergeUp(newIndex, subKeyFactory(key));
+        SubKey newSubKey = meta.getSubKey(newIndex);
+
+        SortedBucketEntry mergeBucket;
+        if (anotherBucket == null) {
+            mergeBucket = newBucket;
+        } else if (index < anotherIndex) {
+            mergeBucket = newBucket.concat(anotherBucket);
+        } else {
+            mergeBucket = anotherBucket.concat(newBucket);
+        }
+        meta.setBucketSize(newIndex, mergeBucket.size());
+
+        // transfer link
+        BucketTrasfer tbt = new BucketTrasfer();
+        tbt.getTransSubKeyList().add(newSubKey);
+
+        cache.put(newSubKey, mergeBucket);
+        cache.put(subKey, tbt, getTransferExpireMills(), TimeUnit.MILLISECONDS);
+        cache.put(anotherSubKey, tbt, getTransferExpireMills(), TimeUnit.MILLISECONDS);
+        cache.put(key, meta);
+
+        return pre;
+    }
+
+    /**
+     * 新規キー用の{@link RangeMeta}を生成する。
+     */
+    private RangeMeta newRangeMeta(K key) {
+        RangeMeta meta = new RangeMeta(subKeyFactory(key));
+        if (getSubKeyPlacement() == SubKeyPlacement.GROUPED) {
+            meta.setGroup(String.valueOf(key));
+        }
+        return meta;
+    }
+
+    private SubKeyFactory subKeyFactory(K key) {
+        return DistributedOneToMany.subKeyFactory(cache, getSubKeyPlacement(), key, spreadCounter);
+    }
+
+    /**
+     * バケットへの1件の追加・削除を書き込む。<br>
+     * {@link #getComparator()}がシリアライズできる場合は差分のみを書き込み、できない場合は更新後のバケット全体を書き込む。
+     *
+     * @param value 追加するvalue。削除の場合はnull
+     * @param newBucket 更新後のバケット
+     */
+    private void putDelta(K key, SubKey subKey, VK valueKey, V value, SortedBucketEntry newBucket) {
+        Comparator cmp = getComparator();
+        if (cmp == null || cmp instanceof Serializable) {
+            cache.withFlags(Flag.IGNORE_RETURN_VALUES).put(subKey, new SortedBucketDelta(key, valueKey, value, cmp));
+        } else {
+            cache.put(subKey, newBucket);
+        }
+    }
+
+    /**
+     * 指定されたkeyにぶら下がる全てのvalueを削除する。<br>
+     * <b>必ずkeyでクラスタワイドロックを取得すること。</b>
+     *
+     * @param key 第一キー
+     * @return 削除した場合はtrue
+     */
+    public boolean remove(K key) {
+        RangeMeta meta = (RangeMeta) cache.get(key);
+        if (meta == null) {
+            return false;
+        }
+        for (SubKey subKey : meta.getSubKeyList()) {
+            cache.remove(subKey);
+        }
+        return cache.remove(key) != null;
+    }
+
+    /**
+     * 指定されたkeyとvalueKeyのvalueを取得する。
+     *
+     * @param key 第一キー
+     * @param valueKey 第二キー
+     * @return value。無ければnull
+     */
+    public V get(K key, VK valueKey) {
+        RangeMeta meta = (RangeMeta) cache.get(key);
+        if (meta == null) {
+            return null;
+        }
+        SortedBucketEntry bucket = getBucket(meta.getSubKey(meta.getIndex(valueKey, getComparator())));
+        return bucket == null ? null : (V) bucket.get(valueKey, getComparator());
+    }
+
+    public boolean isContains(K key, VK valueKey) {
+        return get(key, valueKey) != null;
+    }
+
+    /**
+     * fromValueKey以上、toValueKey未満のvalueKeyとvalueを取得する。範囲に重なるバケットのみを取得する。
+     *
+     * @param key 第一キー
+     * @param fromValueKey 範囲の下限(含む)。nullの場合は先頭から
+     * @param toValueKey 範囲の上限(含まない)。nullの場合は末尾まで
+     * @return valueKeyの順序でソートされたMap
+     */
+    public SortedMap<VK, V> subMap(K key, VK fromValueKey, VK toValueKey) {
+        SortedMap<VK, V> result = new TreeMap<>(getComparator());
+        RangeMeta meta = (RangeMeta) cache.get(key);
+        if (meta == null) {
+            return result;
+        }
+
+        Comparator cmp = getComparator();
+        int fromIndex = fromValueKey == null ? 0 : meta.getIndex(fromValueKey, cmp);
+        int toIndex = toValueKey == null ? meta.bucketNum() - 1 : meta.getIndex(toValueKey, cmp);
+
+        for (int i = fromIndex; i <= toIndex; i++) {
+            SortedBucketEntry bucket = getBucket(meta, i);
+            for (int j = 0; j < bucket.size(); j++) {
+                Object valueKey = bucket.keyAt(j);
+                if (fromValueKey != null && compare(cmp, valueKey, fromValueKey) < 0) {
+                    continue;
+                }
+                if (toValueKey != null && compare(cmp, valueKey, toValueKey) >= 0) {
+                    break;
+                }
+                result.put((VK) valueKey, (V) bucket.valueAt(j));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 指定されたkeyにぶら下がる全てのvalueKeyとvalueを取得する(高コスト: バケットの数に比例する)
+     *
+     * @param key 第一キー
+     * @return valueKeyの順序でソートされたMap
+     */
+    public SortedMap<VK, V> getValues(K key) {
+        return subMap(key, null, null);
+    }
+
+    /**
+     * 最小のvalueKeyのエントリを取得する。
+     *
+     * @param key 第一キー
+     * @return 最小のvalueKeyとvalue。無ければnull
+     */
+    public Entry<VK, V> firstEntry(K key) {
+        Iterator<Entry<VK, V>> it = iterator(key);
+        return it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * 最大のvalueKeyのエントリを取得する。
+     *
+     * @param key 第一キー
+     * @return 最大のvalueKeyとvalue。無ければnull
+     */
+    public Entry<VK, V> lastEntry(K key) {
+        Iterator<Entry<VK, V>> it = descendingIterator(key);
+        return it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * valueKeyの昇順のイテレータ。バケットは必要になった時点で1つずつ取得する。<br>
+     * 生成時点のバケット構成で走査し、走査中の分割・統合は{@link BucketTrasfer}を辿って読み取る。
+     *
+     * @param key 第一キー
+     * @return 読み取り専用のイテレータ
+     */
+    public Iterator<Entry<VK, V>> iterator(K key) {
+        return new RangeIterator((RangeMeta) cache.get(key), false);
+    }
+
+    /**
+     * valueKeyの降順のイテレータ。
+     *
+     * @param key 第一キー
+     * @return 読み取り専用のイテレータ
+     * @see #iterator(Object)
+     */
+    public Iterator<Entry<VK, V>> descendingIterator(K key) {
+        return new RangeIterator((RangeMeta) cache.get(key), true);
+    }
+
+    /**
+     * 指定されたkeyのバケットのサブキーのリストを取得する。
+     *
+     * @param key 第一キー
+     * @return サブキーのリスト(valueKeyの順序)
+     */
+    public List<SubKey> getSubKeyList(K key) {
+        RangeMeta meta = (RangeMeta) cache.get(key);
+        if (meta != null) {
+            return meta.getSubKeyList();
+        } else {
+            return new ArrayList<>(0);
+        }
+    }
+
+    private class RangeIterator implements Iterator<Entry<VK, V>> {
+        private final RangeMeta meta;
+        private final boolean descending;
+        private int bucketIndex;
+        private SortedBucketEntry bucket;
+        private int entryIndex;
+
+        RangeIterator(RangeMeta meta, boolean descending) {
+            this.meta = meta;
+            this.descending = descending;
+            this.bucketIndex = meta == null ? -1 : (descending ? meta.bucketNum() : -1);
+        }
+
+        private boolean fill() {
+            while (bucket == null || (descending ? entryIndex < 0 : entryIndex >= bucket.size())) {
+                bucketIndex += descending ? -1 : 1;
+                if (meta == null || bucketIndex < 0 || bucketIndex >= meta.bucketNum()) {
+                    bucket = null;
+                    return false;
+                }
+                bucket = getBucket(meta, bucketIndex);
+                entryIndex = descending ? bucket.size() - 1 : 0;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return fill();
+        }
+
+        @Override
+        public Entry<VK, V> next() {
+            if (!fill()) {
+                throw new NoSuchElementException();
+            }
+            Entry<VK, V> entry = new SimpleImmutableEntry<>((VK) bucket.keyAt(entryIndex), (V) bucket.valueAt(entryIndex));
+            entryIndex += descending ? -1 : 1;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * metaのindex番目のバケットを、そのバケットの範囲に絞って取得する。<br>
+     * metaが古く、{@link BucketTrasfer}の移行先が統合により隣のバケットの範囲を含む場合でも、重複して読み取らない。
+     */
+    private SortedBucketEntry getBucket(RangeMeta meta, int index) {
+        Object tmp = cache.get(meta.getSubKey(index));
+        if (tmp instanceof SortedBucketEntry) {
+            return (SortedBucketEntry) tmp;
+        }
+        SortedBucketEntry bucket = toBucket(tmp);
+        if (bucket == null) {
+            return new SortedBucketEntry();
+        }
+        return bucket.range(meta.getLowerBound(index), index + 1 < meta.bucketNum() ? meta.getLowerBound(index + 1) : null, getComparator());
+    }
+
+    private SortedBucketEntry getBucket(SubKey subKey) {
+        return toBucket(cache.get(subKey));
+    }
+
+    private SortedBucketEntry toBucket(Object tmp) {
+        if (tmp instanceof SortedBucketEntry) {
+            return (SortedBucketEntry) tmp;
+        } else if (tmp instanceof BucketTrasfer) {
+            TreeMap<Object, Object> merged = new TreeMap<>((Comparator) getComparator());
+            for (SubKey transSubKey : ((BucketTrasfer) tmp).getTransSubKeyList()) {
+                SortedBucketEntry actualBucket = getBucket(transSubKey);
+                if (actualBucket == null) {
+                    // 移行先のバケットがkeyの削除等で既に存在しない
+                    return null;
+                }
+                for (int i = 0; i < actualBucket.size(); i++) {
+                    merged.put(actualBucket.keyAt(i), actualBucket.valueAt(i));
+                }
+            }
+            return SortedBucketEntry.of(merged);
+        }
+        return null;
+    }
+
+    static int compare(Comparator cmp, Object o1, Object o2) {
+        return cmp == null ? ((Comparable) o1).compareTo(o2) : cmp.compare(o1, o2);
+    }
+
+    /**
+     * valueKeyの範囲でバケットを管理するメタ情報<br>
+     * index番目のバケットは、lowerBound[index]以上、lowerBound[index + 1]未満のvalueKeyを保持する(lowerBound[0]はnullで下限なし)。
+     */
+    public static class RangeMeta implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private Object[] lowerBound;
+        private int[] bucketSize;
+        private long[] subkey;
+        private String group;
+
+        public RangeMeta() {
+            this(SubKeyFactory.RANDOM);
+        }
+
+        /**
+         * Constructor
+         *
+         * @param subKeyFactory サブキーのファクトリ
+         */
+        public RangeMeta(SubKeyFactory subKeyFactory) {
+            lowerBound = new Object[1];
+            bucketSize = new int[1];
+            SubKey sKey = subKeyFactory.newSubKey();
+            subkey = new long[] { sKey.getUnique(), sKey.getCounter() };
+        }
+
+        /**
+         * Copy constructor
+         *
+         * @param origin
+         */
+        public RangeMeta(RangeMeta origin) {
+            lowerBound = origin.lowerBound.clone();
+            bucketSize = origin.bucketSize.clone();
+            subkey = origin.subkey.clone();
+            group = origin.group;
+        }
+
+        private RangeMeta(Object[] lowerBound, int[] bucketSize, long[] subkey, String group) {
+            this.lowerBound = lowerBound;
+            this.bucketSize = bucketSize;
+            this.subkey = subkey;
+            this.group = group;
+        }
+
+        /**
+         * valueKeyを保持するバケットのインデックス(二分探索)
+         */
+        public int getIndex(Object valueKey, Comparator cmp) {
+            int low = 1;
+            int high = lowerBound.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (compare(cmp, lowerBound[mid], valueKey) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low - 1;
+        }
+
+        public Object getLowerBound(int index) {
+            return lowerBound[index];
+        }
+
+        public SubKey getSubKey(int index) {
+            return new SubKey(subkey[index * 2], subkey[index * 2 + 1], group);
+        }
+
+        public String getGroup() {
+            return group;
+        }
+
+        public void setGroup(String group) {
+            this.group = group;
+        }
+
+        public int getBucketSize(int index) {
+            return bucketSize[index];
+        }
+
+        public int setBucketSize(int index, int size) {
+            return bucketSize[index] = size;
+        }
+
+        public void splitDown(int index, Object splitKey) {
+            splitDown(index, splitKey, SubKeyFactory.RANDOM);
+        }
+
+        /**
+         * index番目のバケットをsplitKeyで2つに分割する。分割後のバケットは両方とも新しいサブキーとなる。
+         */
+        public void splitDown(int index, Object splitKey, SubKeyFactory subKeyFactory) {
+            int num = lowerBound.length;
+
+            Object[] newLowerBound = new Object[num + 1];
+            System.arraycopy(lowerBound, 0, newLowerBound, 0, index + 1);
+            newLowerBound[index + 1] = splitKey;
+            System.arraycopy(lowerBound, index + 1, newLowerBound, index + 2, num - index - 1);
+
+            int[] newBucketSize = new int[num + 1];
+            System.arraycopy(bucketSize, 0, newBucketSize, 0, index);
+            System.arraycopy(bucketSize, index + 1, newBucketSize, index + 2, num - index - 1);
+
+            long[] newSubkey = new long[(num + 1) * 2];
+            System.arraycopy(subkey, 0, newSubkey, 0, index * 2);
+            for (int i = 0; i < 2; i++) {
+                SubKey sKey = subKeyFactory.newSubKey();
+                newSubkey[(index + i) * 2] = sKey.getUnique();
+                newSubkey[(index + i) * 2 + 1] = sKey.getCounter();
+            }
+            System.arraycopy(subkey, (index + 1) * 2, newSubkey, (index + 2) * 2, (num - index - 1) * 2);
+
+            lowerBound = newLowerBound;
+            bucketSize = newBucketSize;
+            subkey = newSubkey;
+        }
+
+        public void mergeUp(int index) {
+            mergeUp(index, SubKeyFactory.RANDOM);
+        }
+
+        /**
+         * index番目とindex + 1番目のバケットを新しいサブキーの1つのバケットに統合する。
+         */
+        public void mergeUp(int index, SubKeyFactory subKeyFactory) {
+            int num = lowerBound.length;
+
+            Object[] newLowerBound = new Object[num - 1];
+            System.arraycopy(lowerBound, 0, newLowerBound, 0, index + 1);
+            System.arraycopy(lowerBound, index + 2, newLowerBound, index + 1, num - index - 2);
+
+            int[] newBucketSize = new int[num - 1];
+            System.arraycopy(bucketSize, 0, newBucketSize, 0, index);
+            newBucketSize[index] = bucketSize[index] + bucketSize[index + 1];
+            System.arraycopy(bucketSize, index + 2, newBucketSize, index + 1, num - index - 2);
+
+            long[] newSubkey = new long[(num - 1) * 2];
+            System.arraycopy(subkey, 0, newSubkey, 0, index * 2);
+            SubKey sKey = subKeyFactory.newSubKey();
+            newSubkey[index * 2] = sKey.getUnique();
+            newSubkey[index * 2 + 1] = sKey.getCounter();
+            System.arraycopy(subkey, (index + 2) * 2, newSubkey, (index + 1) * 2, (num - index - 2) * 2);
+
+            lowerBound = newLowerBound;
+            bucketSize = newBucketSize;
+            subkey = newSubkey;
+        }
+
+        public List<SubKey> getSubKeyList() {
+            List<SubKey> subKeyList = new ArrayList<>(bucketNum());
+            for (int i = 0; i < bucketNum(); i++) {
+                subKeyList.add(getSubKey(i));
+            }
+            return subKeyList;
+        }
+
+        /**
+         * 指定されたサブキーのバケットのインデックスを返す。
+         *
+         * @param subKey バケットのサブキー
+         * @return インデックス。存在しない場合は-1
+         */
+        public int indexOf(SubKey subKey) {
+            for (int i = 0; i < subkey.length - 1; i = i + 2) {
+                if (subkey[i] == subKey.getUnique() && subkey[i + 1] == subKey.getCounter()) {
+                    return i / 2;
+                }
+            }
+            return -1;
+        }
+
+        public long getTotalSize() {
+            long total = 0;
+            for (int size : bucketSize) {
+                total += size;
+            }
+            return total;
+        }
+
+        public int bucketNum() {
+            return lowerBound.length;
+        }
+
+        @Override
+        public String toString() {
+            return "RangeMeta [lowerBound=" + Arrays.toString(lowerBound) + ", bucketSize=" + Arrays.toString(bucketSize) + ", subkey="
+                    + Arrays.toString(subkey) + ", group=" + group + "]";
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + Arrays.hashCode(lowerBound);
+            result = prime * result + Arrays.hashCode(bucketSize);
+            result = prime * result + Arrays.hashCode(subkey);
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            RangeMeta other = (RangeMeta) obj;
+            if (!Arrays.equals(lowerBound, other.lowerBound))
+                return false;
+            if (!Arrays.equals(bucketSize, other.bucketSize))
+                return false;
+            if (!Arrays.equals(subkey, other.subkey))
+                return false;
+            if (group == null ? other.group != null : !group.equals(other.group))
+                return false;
+            return true;
+        }
+    }
+
+    /**
+     * valueKeyの順序でソートされた配列で保持するバケット<br>
+     * キャッシュに格納した後は変更しない(更新時は{@link SortedBucketDelta}のマージを含めてコピーを作成する)ため、ロック無しで読み取ることができる。
+     */
+    public static class SortedBucketEntry implements DeltaAware, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private static final Object[] EMPTY = new Object[0];
+
+        private Object key;
+        private Object[] keys = EMPTY;
+        private Object[] values = EMPTY;
+
+        public SortedBucketEntry() {
+        }
+
+        /**
+         * @param key このバケットを保持する第一キー({@link BucketSweeper}が孤立バケットの判定に使用する)
+         */
+        public SortedBucketEntry(Object key) {
+            this.key = key;
+        }
+
+        static SortedBucketEntry of(SortedMap<Object, Object> map) {
+            SortedBucketEntry bucket = new SortedBucketEntry();
+            bucket.keys = map.keySet().toArray();
+            bucket.values = map.values().toArray();
+            return bucket;
+        }
+
+        public Object getKey() {
+            return key;
+        }
+
+        public int size() {
+            return keys.length;
+        }
+
+        public Object keyAt(int index) {
+            return keys[index];
+        }
+
+        public Object valueAt(int index) {
+            return values[index];
+        }
+
+        public Object get(Object valueKey, Comparator cmp) {
+            int index = search(valueKey, cmp);
+            return index >= 0 ? values[index] : null;
+        }
+
+        SortedBucketEntry with(Object valueKey, Object value, Comparator cmp) {
+            int index = search(valueKey, cmp);
+            SortedBucketEntry bucket = new SortedBucketEntry(key);
+            if (index >= 0) {
+                bucket.keys = keys;
+                bucket.values = values.clone();
+                bucket.values[index] = value;
+                return bucket;
+            }
+            int insert = -index - 1;
+            bucket.keys = insert(keys, insert, valueKey);
+            bucket.values = insert(values, insert, value);
+            return bucket;
+        }
+
+        SortedBucketEntry without(Object valueKey, Comparator cmp) {
+            int index = search(valueKey, cmp);
+            if (index < 0) {
+                return this;
+            }
+            SortedBucketEntry bucket = new SortedBucketEntry(key);
+            bucket.keys = delete(keys, index);
+            bucket.values = delete(values, index);
+            return bucket;
+        }
+
+        SortedBucketEntry slice(int from, int to) {
+            SortedBucketEntry bucket = new SortedBucketEntry(key);
+            bucket.keys = Arrays.copyOfRange(keys, from, to);
+            bucket.values = Arrays.copyOfRange(values, from, to);
+            return bucket;
+        }
+
+        SortedBucketEntry concat(SortedBucketEntry upper) {
+            SortedBucketEntry bucket = new SortedBucketEntry(key != null ? key : upper.key);
+            bucket.keys = Arrays.copyOf(keys, keys.length + upper.keys.length);
+            System.arraycopy(upper.keys, 0, bucket.keys, keys.length, upper.keys.length);
+            bucket.values = Arrays.copyOf(values, values.length + upper.values.length);
+            System.arraycopy(upper.values, 0, bucket.values, values.length, upper.values.length);
+            return bucket;
+        }
+
+        /**
+         * from以上、to未満に絞ったバケット(nullは無制限)
+         */
+        SortedBucketEntry range(Object from, Object to, Comparator cmp) {
+            int start = 0;
+            if (from != null) {
+                start = search(from, cmp);
+                start = start >= 0 ? start : -start - 1;
+            }
+            int end = keys.length;
+            if (to != null) {
+                end = search(to, cmp);
+                end = end >= 0 ? end : -end - 1;
+            }
+            return start == 0 && end == keys.length ? this : slice(start, Math.max(start, end));
+        }
+
+        private int search(Object valueKey, Comparator cmp) {
+            return Arrays.binarySearch(keys, valueKey, cmp);
+        }
+
+        private static Object[] insert(Object[] array, int index, Object element) {
+            Object[] newArray = new Object[array.length + 1];
+            System.arraycopy(array, 0, newArray, 0, index);
+            newArray[index] = element;
+            System.arraycopy(array, index, newArray, index + 1, array.length - index);
+            return newArray;
+        }
+
+        private static Object[] delete(Object[] array, int index) {
+            Object[] newArray = new Object[array.length - 1];
+            System.arraycopy(array, 0, newArray, 0, index);
+            System.arraycopy(array, index + 1, newArray, index, array.length - index - 1);
+            return newArray;
+        }
+
+        public Map<Object, Object> toMap(Comparator cmp) {
+            TreeMap<Object, Object> map = new TreeMap<>(cmp);
+            for (int i = 0; i < keys.length; i++) {
+                map.put(keys[i], values[i]);
+            }
+            return map;
+        }
+
+        /**
+         * バケット全体を置き換える差分を返す。
+         */
+        @Override
+        public Delta delta() {
+            return new SortedBucketDelta(this);
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(keys) + Arrays.hashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            SortedBucketEntry other = (SortedBucketEntry) obj;
+            return Arrays.equals(keys, other.keys) && Arrays.equals(values, other.values);
+        }
+    }
+
+    /**
+     * バケットへの1件の追加・削除の差分<br>
+     * バケットのオーナーノード上で既存の{@link SortedBucketEntry}のコピーにマージされる(キャッシュ上のインスタンスは変更しない)。
+     * マージ先のバケットが存在しない場合は、新しいバケットを作成する。
+     */
+    public static class SortedBucketDelta implements Delta, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private Object key;
+        private Object valueKey;
+        // 削除の場合はnull
+        private Object value;
+        private Comparator comparator;
+        // バケット全体の置き換えの場合のみ
+        private SortedBucketEntry replace;
+
+        /**
+         * @param key 第一キー
+         * @param valueKey 第二キー
+         * @param value 追加するvalue。削除の場合はnull
+         * @param comparator valueKeyの順序(シリアライズ可能であること)。nullの場合は自然順序
+         */
+        public SortedBucketDelta(Object key, Object valueKey, Object value, Comparator comparator) {
+            this.key = key;
+            this.valueKey = valueKey;
+            this.value = value;
+            this.comparator = comparator;
+        }
+
+        SortedBucketDelta(SortedBucketEntry replace) {
+            this.replace = replace;
+        }
+
+        private SortedBucketDelta() {
+        }
+
+        @Override
+        public DeltaAware merge(DeltaAware d) {
+            if (replace != null) {
+                return replace;
+            }
+            SortedBucketEntry bucket = d instanceof SortedBucketEntry ? (SortedBucketEntry) d : new SortedBucketEntry(key);
+            return value != null ? bucket.with(valueKey, value, comparator) : bucket.without(valueKey, comparator);
+        }
+
+        public Object getKey() {
+            return key;
+        }
+
+        public Object getValueKey() {
+            return valueKey;
+        }
+
+        public Object getValue() {
+            return value;
+        }
+    }
+
+    public static class RangeMetaExternalizer extends AbstractExternalizer<RangeMeta> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Set<Class<? extends RangeMeta>> getTypeClasses() {
+            return Collections.<Class<? extends RangeMeta>> singleton(RangeMeta.class);
+        }
+
+        @Override
+        public Integer getId() {
+            return Externalizers.RANGE_META_ID;
+        }
+
+        @Override
+        public void writeObject(ObjectOutput output, RangeMeta meta) throws IOException {
+            int num = meta.lowerBound.length;
+            Externalizers.writeVarInt(output, num);
+            Externalizers.writeNullableUTF(output, meta.group);
+
+            // lowerBound[0]は常にnull
+            for (int i = 1; i < num; i++) {
+                output.writeObject(meta.lowerBound[i]);
+            }
+            for (int i = 0; i < num; i++) {
+                Externalizers.writeVarInt(output, meta.bucketSize[i]);
+            }
+            Externalizers.writeSubKeys(output, meta.subkey);
+        }
+
+        @Override
+        public RangeMeta readObject(ObjectInput input) throws IOException, ClassNotFoundException {
+            int num = Externalizers.readVarInt(input);
+            String group = Externalizers.readNullableUTF(input);
+
+            Object[] lowerBound = new Object[num];
+            for (int i = 1; i < num; i++) {
+                lowerBound[i] = input.readObject();
+            }
+            int[] bucketSize = new int[num];
+            for (int i = 0; i < num; i++) {
+                bucketSize[i] = Externalizers.readVarInt(input);
+            }
+            long[] subkey = Externalizers.readSubKeys(input, num);
+            return new RangeMeta(lowerBound, bucketSize, subkey, group);
+        }
+    }
+
+    public static class SortedBucketEntryExternalizer extends AbstractExternalizer<SortedBucketEntry> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Set<Class<? extends SortedBucketEntry>> getTypeClasses() {
+            return Collections.<Class<? extends SortedBucketEntry>> singleton(SortedBucketEntry.class);
+        }
+
+        @Override
+        public Integer getId() {
+            return Externalizers.SORTED_BUCKET_ENTRY_ID;
+        }
+
+        @Override
+        public void writeObject(ObjectOutput output, SortedBucketEntry bucket) throws IOException {
+            output.writeObject(bucket.key);
+            Externalizers.writeVarInt(output, bucket.keys.length);
+            for (int i = 0; i < bucket.keys.length; i++) {
+                output.writeObject(bucket.keys[i]);
+                output.writeObject(bucket.values[i]);
+            }
+        }
+
+        @Override
+        public SortedBucketEntry readObject(ObjectInput input) throws IOException, ClassNotFoundException {
+            SortedBucketEntry bucket = new SortedBucketEntry(input.readObject());
+            int num = Externalizers.readVarInt(input);
+            if (num > 0) {
+                bucket.keys = new Object[num];
+                bucket.values = new Object[num];
+                for (int i = 0; i < num; i++) {
+                    bucket.keys[i] = input.readObject();
+                    bucket.values[i] = input.readObject();
+                }
+            }
+            return bucket;
+        }
+    }
+
+    public static class SortedBucketDeltaExternalizer extends AbstractExternalizer<SortedBucketDelta> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Set<Class<? extends SortedBucketDelta>> getTypeClasses() {
+            return Collections.<Class<? extends SortedBucketDelta>> singleton(SortedBucketDelta.class);
+        }
+
+        @Override
+        public Integer getId() {
+            return Externalizers.SORTED_BUCKET_DELTA_ID;
+        }
+
+        @Override
+        public void writeObject(ObjectOutput output, SortedBucketDelta delta) throws IOException {
+            output.writeBoolean(delta.replace != null);
+            if (delta.replace != null) {
+                output.writeObject(delta.replace);
+                return;
+            }
+            output.writeObject(delta.key);
+            output.writeObject(delta.valueKey);
+            output.writeObject(delta.value);
+            output.writeObject(delta.comparator);
+        }
+
+        @Override
+        public SortedBucketDelta readObject(ObjectInput input) throws IOException, ClassNotFoundException {
+            SortedBucketDelta delta = new SortedBucketDelta();
+            if (input.readBoolean()) {
+                delta.replace = (SortedBucketEntry) input.readObject();
+                return delta;
+            }
+            delta.key = input.readObject();
+            delta.valueKey = input.readObject();
+            delta.value = input.readObject();
+            delta.comparator = (Comparator) input.readObject();
+            return delta;
+        }
+    }
+}
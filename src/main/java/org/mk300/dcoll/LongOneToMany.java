@@ -0,0 +1,787 @@
+/*
+ * Copyright 2016 Masazumi Kobayashi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mk300.dcoll;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.atomic.Delta;
+import org.infinispan.atomic.DeltaAware;
+import org.infinispan.commons.marshall.AbstractExternalizer;
+import org.infinispan.context.Flag;
+import org.mk300.dcoll.DistributedOneToMany.BucketMeta;
+import org.mk300.dcoll.DistributedOneToMany.BucketTrasfer;
+import org.mk300.dcoll.DistributedOneToMany.Externalizers;
+import org.mk300.dcoll.DistributedOneToMany.HashFunction;
+
+/**
+ * 第二キー(valueKey)がlongの{@link DistributedOneToMany}<br>
+ * バケットをlong配列のオープンアドレス法のハッシュテーブル({@link LongBucketEntry})で保持するため、
+ * valueKeyのボクシングとConcurrentHashMapのノードが不要となり、エントリ当たりのヒープ使用量が大幅に小さくなる。<br>
+ * バケット構造({@link BucketMeta}、{@link BucketTrasfer}、{@link SubKey})と更新手順は{@link DistributedOneToMany}と同じ。
+ * 排他方式は{@link DistributedOneToMany.LockMode#KEY}のみ対応する。
+ *
+ * @author mkobayas@redhat.com
+ *
+ * @param <K> 第一キー
+ * @param <V> value
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public abstract class LongOneToMany<K, V> {
+
+    /**
+     * 1バケット当たりの最大valueKey数
+     *
+     * @return 1バケット当たりの最大valueKey数
+     */
+    abstract public int getMaxBucketSize();
+
+    /**
+     * この数を下回ると、隣接バケットとの合併が検討される。
+     *
+     * @return 合併の閾値
+     */
+    abstract public int getMinCompactionBucketSize();
+
+    /**
+     * バケット分割・合併時の{@link BucketTrasfer}の有効期限(ミリ秒)
+     *
+     * @return BucketTrasferの有効期限
+     */
+    abstract public long getTransferExpireMills();
+
+    private AdvancedCache cache;
+
+    public LongOneToMany(Cache cache) {
+        this.cache = cache.getAdvancedCache();
+    }
+
+    /**
+     * 指定されたkeyとvalueKeyでvalueをキャッシュする。<br>
+     * <b>必ずkeyでクラスタワイドロックを取得すること。</b>
+     *
+     * @param key 第一キー
+     * @param valueKey 第二キー
+     * @param value 保持するvalue
+     * @return 前回の値があれば、その値。無ければnull。
+     */
+    public V put(K key, long valueKey, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+
+        BucketMeta meta = (BucketMeta) cache.get(key);
+
+        if (meta == null) {
+            // 新規キー
+            meta = new BucketMeta();
+            meta.setBucketSize(0, 1);
+
+            LongBucketEntry<K, V> bucket = new LongBucketEntry<>(key);
+            bucket.put(valueKey, value);
+
+            cache.put(meta.getSubKey(0), bucket);
+            cache.put(key, meta);
+            return null;
+        }
+
+        int index = meta.getIndex(HashFunction.hash(valueKey));
+        SubKey subkey = meta.getSubKey(index);
+
+        LongBucketEntry<K, V> bucket = (LongBucketEntry) cache.get(subkey);
+        if (bucket == null) {
+            bucket = new LongBucketEntry<>(key);
+        }
+
+        V preValue = bucket.get(valueKey);
+        if (preValue != null) {
+            // 既にvalueKeyが存在 -> valueを差し替えるだけでルートの構造は変化しない。
+            putDelta(subkey, LongBucketDelta.put(valueKey, value));
+            return preValue;
+        }
+
+        if (bucket.size() < getMaxBucketSize()) {
+            // 新規valueKey、且つ、バケット容量上限以内 -> バケットにvalue追加。
+            // ルートの構造は変化しないため、BucketMetaは更新しない(BucketMetaのバケットサイズは構造変更時点の目安)。
+            putDelta(subkey, LongBucketDelta.put(valueKey, value));
+            return null;
+        }
+
+        // バケット分割(実際のハッシュ値の分布から分割点を決定する)
+        LongBucketEntry<K, V> merged = bucket.copy();
+        merged.put(valueKey, value);
+
+        int[] hashes = new int[merged.size()];
+        int n = 0;
+        for (int i = 0; i < merged.capacity(); i++) {
+            if (merged.valueAt(i) != null) {
+                hashes[n++] = HashFunction.hash(merged.keyAt(i));
+            }
+        }
+        int[] newMinHash = DistributedOneToMany.splitPoints(hashes, meta.getHashRnge(index)[0], getMaxBucketSize());
+        if (newMinHash.length == 1) {
+            // 全てのvalueKeyが同じハッシュ値のため分割できない -> バケットにvalue追加。
+            putDelta(subkey, LongBucketDelta.put(valueKey, value));
+            return null;
+        }
+
+        meta = new BucketMeta(meta); // immutable
+        meta.splitDown(index, newMinHash);
+
+        List<LongBucketEntry<K, V>> newBuckets = new ArrayList<>(newMinHash.length);
+        for (int k = 0; k < newMinHash.length; k++) {
+            newBuckets.add(new LongBucketEntry<K, V>(key));
+        }
+        for (int i = 0; i < merged.capacity(); i++) {
+            V entryValue = merged.valueAt(i);
+            if (entryValue == null) {
+                continue;
+            }
+            long entryKey = merged.keyAt(i);
+            int k = Arrays.binarySearch(newMinHash, HashFunction.hash(entryKey));
+            if (k < 0) {
+                k = -k - 2;
+            }
+            newBuckets.get(Math.max(0, k)).put(entryKey, entryValue);
+        }
+
+        // put new bucket(U1: order is important)
+        BucketTrasfer tbt = new BucketTrasfer();
+        for (int k = 0; k < newMinHash.length; k++) {
+            meta.setBucketSize(index + k, newBuckets.get(k).size());
+            SubKey newSubKey = meta.getSubKey(index + k);
+            cache.put(newSubKey, newBuckets.get(k));
+            tbt.getTransSubKeyList().add(newSubKey);
+        }
+
+        // transfer (U2: order is important)
+        cache.put(subkey, tbt, getTransferExpireMills(), TimeUnit.MILLISECONDS);
+
+        // update (U4: order is important)
+        cache.put(key, meta);
+
+        return null;
+    }
+
+    /**
+     * 指定されたkeyとvalueKeyのvalueを削除する。<br>
+     * <b>必ずkeyでクラスタワイドロックを取得すること。</b>
+     *
+     * @param key 第一キー
+     * @param valueKey 第二キー
+     * @return 前回の値があれば、その値。無ければnull。
+     */
+    public V remove(K key, long valueKey) {
+        BucketMeta meta = (BucketMeta) cache.get(key);
+        if (meta == null) {
+            return null;
+        }
+
+        int index = meta.getIndex(HashFunction.hash(valueKey));
+        SubKey subKey = meta.getSubKey(index);
+
+        LongBucketEntry<K, V> bucket = (LongBucketEntry) cache.get(subKey);
+        V pre = bucket == null ? null : bucket.get(valueKey);
+        if (pre == null) {
+            return null;
+        }
+
+        int bucketSize = bucket.size() - 1;
+
+        // 空になったバケットは常に統合されるため、空のバケットが存在するのはバケットが1つの場合のみ
+        if (bucketSize == 0 && meta.bucketNum() <= 1) {
+            // completely delete
+            remove(key);
+            return pre;
+        }
+
+        // 合併の判定はBucketMetaのバケットサイズ(目安)ではなく、実際のバケットサイズで行う
+        int anotherIndex = -1;
+        if (meta.bucketNum() > 1 && bucketSize <= getMinCompactionBucketSize()) {
+            if (index == 0) {
+                anotherIndex = index + 1;
+            } else if (index == meta.bucketNum() - 1) {
+                anotherIndex = index - 1;
+            } else if (meta.getBuketSize(index - 1) < meta.getBuketSize(index + 1)) {
+                anotherIndex = index - 1;
+            } else {
+                anotherIndex = index + 1;
+            }
+        }
+
+        LongBucketEntry<K, V> anotherBucket = null;
+        if (anotherIndex >= 0) {
+            anotherBucket = (LongBucketEntry) cache.get(meta.getSubKey(anotherIndex));
+            if (bucketSize > 0 && bucketSize + (anotherBucket == null ? 0 : anotherBucket.size()) > getMinCompactionBucketSize()) {
+                anotherIndex = -1;
+            }
+        }
+
+        if (anotherIndex < 0) {
+            // simple remove case(ルートの構造は変化しないため、BucketMetaは更新しない)
+            putDelta(subKey, LongBucketDelta.remove(valueKey));
+            return pre;
+        }
+
+        // merge up
+        SubKey anotherSubKey = meta.getSubKey(anotherIndex);
+
+        int newIndex = Math.min(index, anotherIndex);
+        meta = new BucketMeta(meta); // immutable
+        meta.mergeUp(newIndex);
+        SubKey newSubKey = meta.getSubKey(newIndex);
+
+        LongBucketEntry<K, V> newBucket = bucket.copy();
+        newBucket.remove(valueKey);
+        if (anotherBucket != null) {
+            newBucket.putAll(anotherBucket);
+        }
+        meta.setBucketSize(newIndex, newBucket.size());
+
+        // transfer link
+        BucketTrasfer tbt = new BucketTrasfer();
+        tbt.getTransSubKeyList().add(newSubKey);
+
+        cache.put(newSubKey, newBucket);
+        cache.put(subKey, tbt, getTransferExpireMills(), TimeUnit.MILLISECONDS);
+        cache.put(anotherSubKey, tbt, getTransferExpireMills(), TimeUnit.MILLISECONDS);
+        cache.put(key, meta);
+
+        return pre;
+    }
+
+    /**
+     * 指定されたkeyにぶら下がる全てのvalueを削除する。<br>
+     * <b>必ずkeyでクラスタワイドロックを取得すること。</b>
+     *
+     * @param key 第一キー
+     * @return 削除した場合はtrue
+     */
+    public boolean remove(K key) {
+        for (SubKey subKey : getSubKeyList(key)) {
+            cache.remove(subKey);
+        }
+        return cache.remove(key) != null;
+    }
+
+    /**
+     * 指定されたkeyとvalueKeyのvalueを取得する。
+     *
+     * @param key 第一キー
+     * @param valueKey 第二キー
+     * @return value。無ければnull
+     */
+    public V get(K key, long valueKey) {
+        BucketMeta meta = (BucketMeta) cache.get(key);
+        if (meta == null) {
+            return null;
+        }
+
+        LongBucketEntry<K, V> bucket = getBucket(meta.getSubKey(meta.getIndex(HashFunction.hash(valueKey))));
+        return bucket == null ? null : bucket.get(valueKey);
+    }
+
+    /**
+     * 指定されたkeyとvalueKeyのvalueが存在するかどうか。
+     *
+     * @param key 第一キー
+     * @param valueKey 第二キー
+     * @return 存在する場合はtrue
+     */
+    public boolean isContains(K key, long valueKey) {
+        return get(key, valueKey) != null;
+    }
+
+    /**
+     * 指定されたkeyにぶら下がる全てのvalueKeyとvalueを走査する(高コスト: バケットの数に比例する)
+     *
+     * @param key 第一キー
+     * @param visitor 各valueKeyとvalueに適用するビジター
+     */
+    public void forEachValue(K key, LongValueVisitor<V> visitor) {
+        for (SubKey subKey : getSubKeyList(key)) {
+            LongBucketEntry<K, V> bucket = getBucket(subKey);
+            if (bucket == null) {
+                continue;
+            }
+            for (int i = 0; i < bucket.capacity(); i++) {
+                V value = bucket.valueAt(i);
+                if (value != null) {
+                    visitor.visit(bucket.keyAt(i), value);
+                }
+            }
+        }
+    }
+
+    /**
+     * 指定されたkeyにぶら下がる全てのvalueKeyとvalueのMapを取得する(高コスト: バケットの数に比例する)<br>
+     * valueKeyはボクシングされるため、大量のvalueKeyを走査する場合は{@link #forEachValue(Object, LongValueVisitor)}を使用すること。
+     *
+     * @param key 第一キー
+     * @return keyにぶら下がる全てのvalueKeyとvalue
+     */
+    public Map<Long, V> getValues(K key) {
+        final Map<Long, V> values = new HashMap<>();
+        forEachValue(key, new LongValueVisitor<V>() {
+            @Override
+            public void visit(long valueKey, V value) {
+                values.put(valueKey, value);
+            }
+        });
+        return values;
+    }
+
+    /**
+     * 指定されたkeyのバケットのサブキーのリストを取得する。
+     *
+     * @param key 第一キー
+     * @return サブキーのリスト
+     */
+    public List<SubKey> getSubKeyList(K key) {
+        BucketMeta meta = (BucketMeta) cache.get(key);
+        if (meta != null) {
+            return meta.getSubKeyList();
+        } else {
+            return new ArrayList<>(0);
+        }
+    }
+
+    private LongBucketEntry<K, V> getBucket(SubKey subKey) {
+        Object tmp = cache.get(subKey);
+        if (tmp instanceof LongBucketEntry) {
+            return (LongBucketEntry) tmp;
+        } else if (tmp instanceof BucketTrasfer) {
+            LongBucketEntry<K, V> mergeBucket = new LongBucketEntry<>();
+            for (SubKey transSubKey : ((BucketTrasfer) tmp).getTransSubKeyList()) {
+                LongBucketEntry<K, V> actualBucket = getBucket(transSubKey);
+                if (actualBucket == null) {
+                    // 移行先のバケットがkeyの削除等で既に存在しない
+                    return null;
+                }
+                mergeBucket.putAll(actualBucket);
+            }
+            return mergeBucket;
+        }
+        return null;
+    }
+
+    private void putDelta(SubKey subKey, LongBucketDelta delta) {
+        cache.withFlags(Flag.IGNORE_RETURN_VALUES).put(subKey, delta);
+    }
+
+    /**
+     * {@link #forEachValue(Object, LongValueVisitor)}で各valueKeyとvalueに適用するビジター
+     */
+    public static interface LongValueVisitor<V> {
+        void visit(long valueKey, V value);
+    }
+
+    /**
+     * longのvalueKeyのバケット(オープンアドレス法・線形探索のハッシュテーブル)<br>
+     * キャッシュに格納した後は変更しない({@link LongBucketDelta}のマージはコピーに対して行う)ため、
+     * ロック無しで読み取ることができる。
+     */
+    public static class LongBucketEntry<K, V> implements DeltaAware, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private static final int MIN_CAPACITY = 8;
+
+        private K key;
+        private transient long[] keys;
+        private transient Object[] values;
+        private transient int size;
+
+        public LongBucketEntry() {
+            this(null);
+        }
+
+        /**
+         * @param key このバケットを保持する第一キー({@link BucketSweeper}が孤立バケットの判定に使用する)
+         */
+        public LongBucketEntry(K key) {
+            this.key = key;
+            allocate(MIN_CAPACITY);
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        public void setKey(K key) {
+            this.key = key;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public V get(long valueKey) {
+            int mask = keys.length - 1;
+            for (int i = slot(valueKey, mask);; i = (i + 1) & mask) {
+                Object value = values[i];
+                if (value == null) {
+                    return null;
+                }
+                if (keys[i] == valueKey) {
+                    return (V) value;
+                }
+            }
+        }
+
+        public boolean containsKey(long valueKey) {
+            return get(valueKey) != null;
+        }
+
+        /**
+         * @return 前回の値。無ければnull
+         */
+        public V put(long valueKey, V value) {
+            if (value == null) {
+                throw new NullPointerException("value");
+            }
+            if ((size + 1) * 4 > keys.length * 3) {
+                resize(keys.length * 2);
+            }
+            int mask = keys.length - 1;
+            for (int i = slot(valueKey, mask);; i = (i + 1) & mask) {
+                Object pre = values[i];
+                if (pre == null) {
+                    keys[i] = valueKey;
+                    values[i] = value;
+                    size++;
+                    return null;
+                }
+                if (keys[i] == valueKey) {
+                    values[i] = value;
+                    return (V) pre;
+                }
+            }
+        }
+
+        public void putAll(LongBucketEntry<?, ? extends V> other) {
+            for (int i = 0; i < other.keys.length; i++) {
+                Object value = other.values[i];
+                if (value != null) {
+                    put(other.keys[i], (V) value);
+                }
+            }
+        }
+
+        /**
+         * @return 削除した値。無ければnull
+         */
+        public V remove(long valueKey) {
+            int mask = keys.length - 1;
+            int i = slot(valueKey, mask);
+            for (;; i = (i + 1) & mask) {
+                if (values[i] == null) {
+                    return null;
+                }
+                if (keys[i] == valueKey) {
+                    break;
+                }
+            }
+            V pre = (V) values[i];
+
+            // 後続のエントリを詰める(墓標を残さない)
+            int hole = i;
+            for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+                int home = slot(keys[j], mask);
+                // homeがholeからjの間(循環)に無い場合は、holeに移動できる
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    keys[hole] = keys[j];
+                    values[hole] = values[j];
+                    hole = j;
+                }
+            }
+            values[hole] = null;
+            size--;
+            return pre;
+        }
+
+        /**
+         * 内部配列の長さ。{@link #keyAt(int)}と{@link #valueAt(int)}で走査する際に使用する。
+         */
+        public int capacity() {
+            return keys.length;
+        }
+
+        public long keyAt(int index) {
+            return keys[index];
+        }
+
+        /**
+         * @return 指定位置の値。空きの場合はnull
+         */
+        public V valueAt(int index) {
+            return (V) values[index];
+        }
+
+        public LongBucketEntry<K, V> copy() {
+            LongBucketEntry<K, V> copy = new LongBucketEntry<>(key);
+            copy.keys = keys.clone();
+            copy.values = values.clone();
+            copy.size = size;
+            return copy;
+        }
+
+        /**
+         * バケット全体を置き換える差分を返す。
+         */
+        @Override
+        public Delta delta() {
+            LongBucketDelta<K, V> delta = new LongBucketDelta<>();
+            delta.clear = true;
+            delta.key = key;
+            delta.puts = this;
+            return delta;
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        /**
+         * バケット内のvalueKeyは{@link HashFunction}の値が同じ範囲に偏るため、テーブル上の位置は別の乗算ハッシュで決める。
+         */
+        private static int slot(long valueKey, int mask) {
+            long h = valueKey * 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 32) & mask;
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+            size = 0;
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            allocate(capacity);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != null) {
+                    put(oldKeys[i], (V) oldValues[i]);
+                }
+            }
+        }
+
+        private static int capacityFor(int size) {
+            int capacity = MIN_CAPACITY;
+            while (size * 4 > capacity * 3) {
+                capacity <<= 1;
+            }
+            return capacity;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
+            writeEntries(out);
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            readEntries(in);
+        }
+
+        void writeEntries(ObjectOutput out) throws IOException {
+            Externalizers.writeVarInt(out, size);
+            for (int i = 0; i < keys.length; i++) {
+                if (values[i] != null) {
+                    out.writeLong(keys[i]);
+                    out.writeObject(values[i]);
+                }
+            }
+        }
+
+        void readEntries(ObjectInput in) throws IOException, ClassNotFoundException {
+            int num = Externalizers.readVarInt(in);
+            allocate(capacityFor(num));
+            for (int i = 0; i < num; i++) {
+                long valueKey = in.readLong();
+                put(valueKey, (V) in.readObject());
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            int h = size;
+            for (int i = 0; i < keys.length; i++) {
+                if (values[i] != null) {
+                    h += (int) (keys[i] ^ (keys[i] >>> 32)) ^ values[i].hashCode();
+                }
+            }
+            return h;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            LongBucketEntry other = (LongBucketEntry) obj;
+            if (size != other.size)
+                return false;
+            for (int i = 0; i < keys.length; i++) {
+                if (values[i] != null && !values[i].equals(other.get(keys[i])))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * {@link LongBucketEntry}の差分<br>
+     * マージ先のバケットは変更せず、差分を適用したコピーを返す。
+     */
+    public static class LongBucketDelta<K, V> implements Delta, Serializable {
+        private static final long serialVersionUID = 1L;
+        private boolean clear;
+        private K key;
+        private LongBucketEntry<K, V> puts;
+        private long[] removes;
+
+        public static <K, V> LongBucketDelta<K, V> put(long valueKey, V value) {
+            LongBucketDelta<K, V> delta = new LongBucketDelta<>();
+            delta.puts = new LongBucketEntry<>();
+            delta.puts.put(valueKey, value);
+            return delta;
+        }
+
+        public static <K, V> LongBucketDelta<K, V> remove(long valueKey) {
+            LongBucketDelta<K, V> delta = new LongBucketDelta<>();
+            delta.removes = new long[] { valueKey };
+            return delta;
+        }
+
+        @Override
+        public DeltaAware merge(DeltaAware d) {
+            LongBucketEntry<K, V> bucket;
+            if (d instanceof LongBucketEntry && !clear) {
+                bucket = ((LongBucketEntry<K, V>) d).copy();
+            } else {
+                bucket = new LongBucketEntry<>(d instanceof LongBucketEntry ? ((LongBucketEntry<K, V>) d).getKey() : null);
+            }
+
+            if (key != null) {
+                bucket.setKey(key);
+            }
+            if (removes != null) {
+                for (long valueKey : removes) {
+                    bucket.remove(valueKey);
+                }
+            }
+            if (puts != null) {
+                bucket.putAll(puts);
+            }
+            return bucket;
+        }
+    }
+
+    public static class LongBucketEntryExternalizer extends AbstractExternalizer<LongBucketEntry> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Set<Class<? extends LongBucketEntry>> getTypeClasses() {
+            return Collections.<Class<? extends LongBucketEntry>> singleton(LongBucketEntry.class);
+        }
+
+        @Override
+        public Integer getId() {
+            return Externalizers.LONG_BUCKET_ENTRY_ID;
+        }
+
+        @Override
+        public void writeObject(ObjectOutput output, LongBucketEntry bucket) throws IOException {
+            output.writeObject(bucket.key);
+            bucket.writeEntries(output);
+        }
+
+        @Override
+        public LongBucketEntry readObject(ObjectInput input) throws IOException, ClassNotFoundException {
+            LongBucketEntry bucket = new LongBucketEntry(input.readObject());
+            bucket.readEntries(input);
+            return bucket;
+        }
+    }
+
+    public static class LongBucketDeltaExternalizer extends AbstractExternalizer<LongBucketDelta> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Set<Class<? extends LongBucketDelta>> getTypeClasses() {
+            return Collections.<Class<? extends LongBucketDelta>> singleton(LongBucketDelta.class);
+        }
+
+        @Override
+        public Integer getId() {
+            return Externalizers.LONG_BUCKET_DELTA_ID;
+        }
+
+        @Override
+        public void writeObject(ObjectOutput output, LongBucketDelta delta) throws IOException {
+            output.writeBoolean(delta.clear);
+            output.writeObject(delta.key);
+            output.writeBoolean(delta.puts != null);
+            if (delta.puts != null) {
+                delta.puts.writeEntries(output);
+            }
+            Externalizers.writeVarInt(output, delta.removes == null ? 0 : delta.removes.length);
+            if (delta.removes != null) {
+                for (long valueKey : delta.removes) {
+                    output.writeLong(valueKey);
+                }
+            }
+        }
+
+        @Override
+        public LongBucketDelta readObject(ObjectInput input) throws IOException, ClassNotFoundException {
+            LongBucketDelta delta = new LongBucketDelta();
+            delta.clear = input.readBoolean();
+            delta.key = input.readObject();
+            if (input.readBoolean()) {
+                delta.puts = new LongBucketEntry();
+                delta.puts.readEntries(input);
+            }
+            int removeNum = Externalizers.readVarInt(input);
+            if (removeNum > 0) {
+                delta.removes = new long[removeNum];
+                for (int i = 0; i < removeNum; i++) {
+                    delta.removes[i] = input.readLong();
+                }
+            }
+            return delta;
+        }
+    }
+}
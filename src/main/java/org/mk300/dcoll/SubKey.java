@@ -20,8 +20,11 @@ import java.io.Serializable;
 import java.security.SecureRandom;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.infinispan.distribution.group.Group;
+
 /**
- * バケット管理用のユニークキー
+ * バケット管理用のユニークキー<br>
+ * グループが指定されている場合、Infinispanのグルーピング機能により同一グループのキーは同じノードに配置される。
  * 
  * @author mkobayas@redhat.com
  *
@@ -34,15 +37,22 @@ public class SubKey implements Serializable {
 
     private final long unique;
     private final long counter;
+    private final String group;
 
     public SubKey() {
         unique = uniqueHolder;
         counter = counterHolder.incrementAndGet();
+        group = null;
     }
 
     public SubKey(long unique, long counter) {
+        this(unique, counter, null);
+    }
+
+    public SubKey(long unique, long counter, String group) {
         this.unique = unique;
         this.counter = counter;
+        this.group = group;
     }
 
     public long getUnique() {
@@ -53,6 +63,16 @@ public class SubKey implements Serializable {
         return counter;
     }
 
+    /**
+     * Infinispanのグルーピング用のグループ。グループが無い場合はnull(通常のハッシュで配置される)。
+     * 
+     * @return グループ
+     */
+    @Group
+    public String getGroup() {
+        return group;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
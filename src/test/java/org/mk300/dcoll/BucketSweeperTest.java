@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016 Masazumi Kobayashi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mk300.dcoll;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mk300.dcoll.BucketSweeper.SweepResult;
+import org.mk300.dcoll.DistributedOneToMany.BucketEntry;
+import org.mk300.dcoll.DistributedOneToMany.BucketTrasfer;
+
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class BucketSweeperTest {
+
+    static DefaultCacheManager manager;
+    static AdvancedCache cache;
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        manager = new DefaultCacheManager("infinispan-ut.xml");
+        manager.start();
+        cache = manager.getCache("testCache").getAdvancedCache();
+    }
+
+    @AfterClass
+    public static void afterClass() throws Exception {
+        manager.stop();
+    }
+
+    @Before
+    public void clean() {
+        cache.clear();
+    }
+
+    @Test
+    public void testSweepTransfer() throws Exception {
+        TestO2M tb = new TestO2M(cache);
+        for (int i = 0; i < 1000; i++) {
+            tb.put("test1", "valueKey" + i, "data");
+        }
+
+        // TransferがExpireするのを待つ
+        Thread.sleep(tb.getTransferExpireMills() * 2);
+
+        SweepResult result = new TestSweeper(cache).sweep();
+        assertTrue(result.getTransfers() > 0);
+        assertEquals(0, result.getOrphans());
+        for (Object value : cache.values()) {
+            assertTrue(value instanceof BucketEntry || value instanceof DistributedOneToMany.BucketMeta);
+        }
+        assertEquals(1000, tb.getValues("test1").size());
+    }
+
+    @Test
+    public void testSweepOrphan() throws Exception {
+        TestO2M tb = new TestO2M(cache);
+        for (int i = 0; i < 1000; i++) {
+            tb.put("test1", "valueKey" + i, "data");
+        }
+
+        // U1の後に失敗した更新の残骸
+        SubKey orphan = new SubKey();
+        BucketEntry bucket = new BucketEntry("test1");
+        bucket.getValueMap().put("valueKey", "data");
+        cache.put(orphan, bucket);
+
+        // 参照されていないがkeyが不明なバケットは対象外
+        SubKey unknown = new SubKey();
+        cache.put(unknown, new BucketEntry());
+
+        TestSweeper sweeper = new TestSweeper(cache);
+
+        // 1回目は候補とするだけ
+        SweepResult result = sweeper.sweep();
+        assertEquals(0, result.getOrphans());
+        assertEquals(1, result.getOrphanCandidates());
+        assertNotNull(cache.get(orphan));
+
+        // 2回目で削除
+        result = sweeper.sweep();
+        assertEquals(1, result.getOrphans());
+        assertNull(cache.get(orphan));
+        assertNotNull(cache.get(unknown));
+        assertEquals(1, sweeper.getTotalOrphans());
+
+        assertEquals(1000, tb.getValues("test1").size());
+        for (SubKey subKey : tb.getSubKeyList("test1")) {
+            assertTrue(cache.get(subKey) instanceof BucketEntry);
+        }
+    }
+
+    @Test
+    public void testSweepRemovedKey() throws Exception {
+        TestO2M tb = new TestO2M(cache);
+        for (int i = 0; i < 1000; i++) {
+            tb.put("test1", "valueKey" + i, "data");
+        }
+        // keyのみ削除されたバケット
+        cache.remove("test1");
+
+        TestSweeper sweeper = new TestSweeper(cache);
+        sweeper.sweep();
+        sweeper.sweep();
+
+        for (Object value : cache.values()) {
+            assertTrue(value instanceof BucketTrasfer);
+        }
+    }
+
+    @Test
+    public void testSweepError() throws Exception {
+        final List<RuntimeException> errors = new CopyOnWriteArrayList<>();
+        BucketSweeper sweeper = new TestSweeper(cache) {
+            @Override
+            public long getSweepIntervalMills() {
+                return 10;
+            }
+
+            @Override
+            public int getMaxOperationsPerSecond() {
+                throw new IllegalStateException("sweep failure");
+            }
+
+            @Override
+            public void onError(RuntimeException e) {
+                errors.add(e);
+            }
+        };
+
+        // 失敗した走査は例外を呼び出し元に通知し、次回の走査で再試行する
+        sweeper.start();
+        try {
+            for (int i = 0; i < 200 && errors.size() < 2; i++) {
+                Thread.sleep(10);
+            }
+        } finally {
+            sweeper.stop();
+        }
+        assertTrue(sweeper.getTotalErrors() >= 2);
+        assertEquals("sweep failure", sweeper.getLastError().getMessage());
+        assertTrue(errors.size() >= 2);
+        assertEquals(0, sweeper.getTotalSweeps());
+    }
+
+    static class TestSweeper extends BucketSweeper {
+
+        public TestSweeper(Cache cache) {
+            super(cache);
+        }
+
+        @Override
+        public long getOrphanGraceMills() {
+            return 0;
+        }
+
+        @Override
+        public int getMaxOperationsPerSecond() {
+            return 0;
+        }
+    }
+
+    static class TestO2M extends DistributedOneToMany<String, String, String> {
+
+        public TestO2M(Cache cache) {
+            super(cache);
+        }
+
+        @Override
+        public int getMaxBucketSize() {
+            return 50;
+        }
+
+        @Override
+        public int getMinCompactionBucketSize() {
+            return 10;
+        }
+
+        @Override
+        public long getTransferExpireMills() {
+            return 100;
+        }
+    }
+}
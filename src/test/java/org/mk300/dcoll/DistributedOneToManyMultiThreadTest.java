@@ -16,9 +16,13 @@
 
 package org.mk300.dcoll;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.infinispan.AdvancedCache;
@@ -30,6 +34,8 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.mk300.dcoll.DistributedOneToMany;
+import org.mk300.dcoll.DistributedOneToMany.ChangeEvent;
+import org.mk300.dcoll.DistributedOneToMany.ChangeListener;
 import org.mk300.dcoll.SubKey;
 
 /**
@@ -393,6 +399,217 @@ public class DistributedOneToManyMultiThreadTest {
 
     }
 
+    /**
+     * {@link DistributedOneToMany.LockMode#OPTIMISTIC}では、排他せずに複数スレッドから更新できること
+     */
+    @Test
+    public void testOptimisticConcurrentUpdate() throws InterruptedException {
+        final String key = "item1";
+        final int threadNum = 4;
+        final int perThread = 5000;
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final OptimisticO2M tb = new OptimisticO2M(cache);
+
+        // put
+        Thread[] threads = new Thread[threadNum];
+        for (int i = 0; i < threadNum; i++) {
+            final int no = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < perThread; j++) {
+                            tb.put(key, "valueKey" + no + "-" + j, "data");
+                        }
+                    } catch (Exception e) {
+                        error.set(e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (error.get() != null) {
+            error.get().printStackTrace();
+            Assert.fail();
+        }
+
+        Map<String, String> values = tb.getValues(key);
+        Assert.assertEquals(threadNum * perThread, values.size());
+        for (int i = 0; i < threadNum; i++) {
+            for (int j = 0; j < perThread; j++) {
+                Assert.assertEquals("data", values.get("valueKey" + i + "-" + j));
+            }
+        }
+
+        // remove
+        for (int i = 0; i < threadNum; i++) {
+            final int no = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < perThread; j++) {
+                            if (tb.remove(key, "valueKey" + no + "-" + j) == null) {
+                                throw new RuntimeException("not removed. valueKey" + no + "-" + j);
+                            }
+                        }
+                    } catch (Exception e) {
+                        error.set(e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (error.get() != null) {
+            error.get().printStackTrace();
+            Assert.fail();
+        }
+
+        Assert.assertTrue(tb.getValues(key).isEmpty());
+        Assert.assertNull(cache.get(key));
+    }
+
+    /**
+     * {@link DistributedOneToMany.LockMode#OPTIMISTIC}で競合してやり直した更新や、分割・統合の取り消しが通知されず、
+     * valueKey毎に1回だけ通知されること
+     */
+    @Test
+    public void testOptimisticChangeListener() throws InterruptedException {
+        final String key = "item1";
+        final int threadNum = 4;
+        final int perThread = 2000;
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final OptimisticO2M tb = new OptimisticO2M(cache);
+        final List<ChangeEvent<String, String, String>> events = Collections.synchronizedList(new ArrayList<ChangeEvent<String, String, String>>());
+        tb.addChangeListener(new ChangeListener<String, String, String>() {
+            @Override
+            public void onChange(ChangeEvent<String, String, String> event) {
+                events.add(event);
+            }
+        });
+
+        // keyごと削除されないように、最後まで残すvalueKey
+        tb.put(key, "anchor", "data");
+
+        // put(分割が競合する)
+        Thread[] threads = new Thread[threadNum];
+        for (int i = 0; i < threadNum; i++) {
+            final int no = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < perThread; j++) {
+                            tb.put(key, "valueKey" + no + "-" + j, "data" + j);
+                        }
+                    } catch (Exception e) {
+                        error.set(e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (error.get() != null) {
+            error.get().printStackTrace();
+            Assert.fail();
+        }
+        Assert.assertTrue(tb.getSubKeyList(key).size() > 1);
+
+        Map<String, String> added = countEvents(events, ChangeEvent.Type.ADDED);
+        Assert.assertEquals(threadNum * perThread + 1, events.size());
+        Assert.assertEquals(threadNum * perThread + 1, added.size());
+        Assert.assertEquals("data", added.get("anchor"));
+        for (int i = 0; i < threadNum; i++) {
+            for (int j = 0; j < perThread; j++) {
+                Assert.assertEquals("data" + j, added.get("valueKey" + i + "-" + j));
+            }
+        }
+
+        // remove(同じvalueKeyを2つのスレッドで削除し、統合が競合する)
+        events.clear();
+        final AtomicInteger removed = new AtomicInteger();
+        for (int i = 0; i < threadNum; i++) {
+            final int no = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < perThread; j++) {
+                            for (int k = 0; k < 2; k++) {
+                                if (tb.remove(key, "valueKey" + ((no + k) % threadNum) + "-" + j) != null) {
+                                    removed.incrementAndGet();
+                                }
+                            }
+                        }
+                    } catch (Exception e) {
+                        error.set(e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (error.get() != null) {
+            error.get().printStackTrace();
+            Assert.fail();
+        }
+        Assert.assertEquals(threadNum * perThread, removed.get());
+        Assert.assertEquals(1, tb.getSubKeyList(key).size());
+
+        Map<String, String> removedEvents = countEvents(events, ChangeEvent.Type.REMOVED);
+        Assert.assertEquals(threadNum * perThread, events.size());
+        Assert.assertEquals(threadNum * perThread, removedEvents.size());
+        Assert.assertFalse(removedEvents.containsKey("anchor"));
+
+        events.clear();
+        tb.remove(key, "anchor");
+        Assert.assertEquals(1, events.size());
+        Assert.assertEquals(ChangeEvent.Type.KEY_REMOVED, events.get(0).getType());
+        tb.close();
+    }
+
+    /**
+     * 全ての通知が指定された種類であることを確認し、valueKeyとvalueのMapを返す。同じvalueKeyが複数回通知された場合は失敗する。
+     */
+    private static Map<String, String> countEvents(List<ChangeEvent<String, String, String>> events, ChangeEvent.Type type) {
+        Map<String, String> result = new HashMap<>();
+        for (ChangeEvent<String, String, String> event : events) {
+            Assert.assertEquals(type, event.getType());
+            Assert.assertEquals("item1", event.getKey());
+            Assert.assertFalse("duplicate event. " + event, result.containsKey(event.getValueKey()));
+            result.put(event.getValueKey(), event.getValue());
+        }
+        return result;
+    }
+
+    static class OptimisticO2M extends TestO2M {
+
+        public OptimisticO2M(Cache cache) {
+            super(cache);
+        }
+
+        @Override
+        public LockMode getLockMode() {
+            return LockMode.OPTIMISTIC;
+        }
+
+        @Override
+        public int getMaxOptimisticRetry() {
+            return 10000;
+        }
+    }
+
     static class TestO2M extends DistributedOneToMany<String, String, String> {
 
         public TestO2M(Cache cache) {
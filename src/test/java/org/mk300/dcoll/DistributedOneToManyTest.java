@@ -22,17 +22,51 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.transaction.TransactionManager;
 
 import org.infinispan.AdvancedCache;
 import org.infinispan.Cache;
+import org.infinispan.commons.CacheException;
+import org.infinispan.distribution.ch.ConsistentHash;
 import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.event.CacheEntryModifiedEvent;
+import org.infinispan.remoting.transport.Address;
 import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.mk300.dcoll.DistributedOneToMany.BucketMeta;
+import org.mk300.dcoll.DistributedOneToMany.BucketMetaRoot;
+import org.mk300.dcoll.DistributedOneToMany.BucketTrasfer;
+import org.mk300.dcoll.DistributedOneToMany.ChangeEvent;
+import org.mk300.dcoll.DistributedOneToMany.ChangeListener;
+import org.mk300.dcoll.DistributedOneToMany.HashFunction;
+import org.mk300.dcoll.DistributedOneToMany.ReverseKey;
+import org.mk300.dcoll.DistributedOneToMany.SubKeyPlacement;
 
 import com.thoughtworks.xstream.XStream;
 
@@ -41,12 +75,16 @@ public class DistributedOneToManyTest {
 
     static DefaultCacheManager manager;
     static AdvancedCache cache;
+    static AdvancedCache txCache;
+    static TransactionManager tm;
 
     @BeforeClass
     public static void beforeClass() throws Exception {
         manager = new DefaultCacheManager("infinispan-ut.xml");
         manager.start();
         cache = manager.getCache("testCache").getAdvancedCache();
+        txCache = manager.getCache("txCache").getAdvancedCache();
+        tm = txCache.getTransactionManager();
     }
 
     @AfterClass
@@ -57,6 +95,7 @@ public class DistributedOneToManyTest {
     @Before
     public void clean() {
         cache.clear();
+        txCache.clear();
     }
 
     @Test
@@ -144,6 +183,1357 @@ public class DistributedOneToManyTest {
 
     }
 
+    /**
+     * 同時要求数の上限が小さくても、全てのバケットが取得されること。
+     */
+    @Test
+    public void testGetValuesMaxInFlight() throws Exception {
+        TestO2M tb = new TestO2M(cache) {
+            public int getMaxInFlightFetch() {
+                return 1;
+            }
+        };
+
+        for (int i = 0; i < 10000; i++) {
+            tb.put("test1", "valueKey" + i, "data" + i);
+        }
+
+        Map<String, String> valueMap = tb.getValues("test1");
+
+        assertEquals(10000, valueMap.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals("data" + i, valueMap.get("valueKey" + i));
+        }
+    }
+
+    @Test
+    public void testIterator() throws Exception {
+        TestO2M tb = new TestO2M(cache) {
+            public int getReadAheadBuckets() {
+                return 1;
+            }
+        };
+
+        // 存在しないkey
+        assertFalse(tb.iterator("test1").hasNext());
+
+        for (int i = 0; i < 10000; i++) {
+            tb.put("test1", "valueKey" + i, "data" + i);
+        }
+
+        Map<String, String> valueMap = new HashMap<>();
+        Iterator<Entry<String, String>> it = tb.iterator("test1");
+        while (it.hasNext()) {
+            Entry<String, String> entry = it.next();
+            assertNull(valueMap.put(entry.getKey(), entry.getValue()));
+        }
+        assertEquals(tb.getValues("test1"), valueMap);
+    }
+
+    @Test
+    public void testGetPage() throws Exception {
+        TestO2M tb = new TestO2M(cache);
+
+        // 存在しないkey
+        assertFalse(tb.getPage("test1", null, 100).hasNext());
+
+        for (int i = 0; i < 10000; i++) {
+            tb.put("test1", "valueKey" + i, "data" + i);
+        }
+
+        // ページ間でバケット分割・統合を発生させても、既存のvalueKeyを重複・欠落なく返すこと
+        Map<String, String> valueMap = new HashMap<>();
+        DistributedOneToMany.PageCursor cursor = null;
+        int pages = 0;
+        do {
+            DistributedOneToMany.Page<String, String> page = tb.getPage("test1", cursor, 100);
+            for (Entry<String, String> entry : page.getValues().entrySet()) {
+                if (entry.getKey().startsWith("valueKey")) {
+                    assertNull(valueMap.put(entry.getKey(), entry.getValue()));
+                }
+            }
+            cursor = page.getNextCursor();
+            pages++;
+
+            for (int i = 0; i < 50; i++) {
+                tb.put("test1", "extra" + pages + "-" + i, "data");
+            }
+            if (pages % 2 == 0) {
+                for (int i = 0; i < 50; i++) {
+                    tb.remove("test1", "extra" + (pages - 1) + "-" + i);
+                    tb.remove("test1", "extra" + pages + "-" + i);
+                }
+            }
+        } while (cursor != null);
+
+        assertEquals(10000, valueMap.size());
+        assertTrue(pages > 100);
+    }
+
+    @Test
+    public void testPutAll() throws Exception {
+        TestO2M tb = new TestO2M(cache);
+
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < 100000; i++) {
+            values.put("valueKey" + i, "data" + i);
+        }
+
+        long start = System.currentTimeMillis();
+        tb.putAll("test1", values);
+        long end = System.currentTimeMillis();
+        System.out.println("putAll " + (end - start) + "ms");
+
+        assertEquals(values, tb.getValues("test1"));
+
+        // 各バケットのサイズがgetMaxBucketSize以下であること。
+        for (SubKey subKey : tb.getSubKeyList("test1")) {
+            int size = tb.getValuesBySubKey(subKey).size();
+            assertTrue(0 < size && size <= tb.getMaxBucketSize());
+        }
+
+        assertEquals(100000, tb.getValues("test1").size());
+    }
+
+    @Test
+    public void testPutAllExistingKey() throws Exception {
+        TestO2M tb = new TestO2M(cache);
+
+        for (int i = 0; i < 1000; i++) {
+            tb.put("test1", "valueKey" + i, "data");
+        }
+
+        // 既存valueKeyの更新と新規valueKeyの追加を混在させる
+        Map<String, String> values = new HashMap<>();
+        for (int i = 500; i < 20000; i++) {
+            values.put("valueKey" + i, "new");
+        }
+        tb.putAll("test1", values);
+
+        Map<String, String> valueMap = tb.getValues("test1");
+        assertEquals(20000, valueMap.size());
+        for (int i = 0; i < 20000; i++) {
+            assertEquals(i < 500 ? "data" : "new", valueMap.get("valueKey" + i));
+        }
+
+        // putAll後も通常のput/removeが行えること
+        for (int i = 0; i < 20000; i++) {
+            assertNotNull(tb.remove("test1", "valueKey" + i));
+        }
+        assertTrue(tb.getValues("test1").isEmpty());
+    }
+
+    /**
+     * 分割・統合を伴わない追加・削除ではBucketMetaを書き込まないこと
+     */
+    @Test
+    public void testMetaNotRewritten() throws Exception {
+        TestO2M tb = new TestO2M(cache);
+        for (int i = 0; i < 1000; i++) {
+            tb.put("test1", "valueKey" + i, "data" + i);
+        }
+        BucketMeta before = new BucketMeta((BucketMeta) cache.get("test1"));
+        assertTrue(before.bucketNum() > 1);
+
+        int puts = 0;
+        for (int i = 1000; puts < 10; i++) {
+            String valueKey = "valueKey" + i;
+            if (tb.getValuesBySubKey(tb.getSubKey("test1", valueKey)).size() < tb.getMaxBucketSize()) {
+                assertNull(tb.put("test1", valueKey, "data" + i));
+                puts++;
+            }
+        }
+        int removes = 0;
+        for (int i = 0; removes < 10; i++) {
+            String valueKey = "valueKey" + i;
+            if (tb.getValuesBySubKey(tb.getSubKey("test1", valueKey)).size() > tb.getMinCompactionBucketSize() + 1) {
+                assertEquals("data" + i, tb.remove("test1", valueKey));
+                removes++;
+            }
+        }
+        assertEquals(before, cache.get("test1"));
+        assertEquals(1000, tb.getValues("test1").size());
+
+        // 全て削除するとkeyごと削除される
+        for (String valueKey : tb.getValues("test1").keySet()) {
+            tb.remove("test1", valueKey);
+        }
+        assertNull(cache.get("test1"));
+
+        // 事前作成した空のバケットが残っていても、最後の1件の削除でkeyごと削除される
+        assertTrue(tb.presize("test2", 500));
+        tb.put("test2", "valueKey1", "data1");
+        tb.put("test2", "valueKey2", "data2");
+        assertEquals("data1", tb.remove("test2", "valueKey1"));
+        assertEquals("data2", tb.remove("test2", "valueKey2"));
+        assertNull(cache.get("test2"));
+    }
+
+    @Test
+    public void testPresize() throws Exception {
+        TestO2M tb = new TestO2M(cache);
+
+        // 10000件 / (bucketSize=50の半分) = 400バケット
+        assertTrue(tb.presize("test1", 10000));
+        assertFalse(tb.presize("test1", 20000));
+        List<SubKey> subKeyList = tb.getSubKeyList("test1");
+        assertEquals(400, subKeyList.size());
+        assertTrue(tb.getValues("test1").isEmpty());
+
+        // ロード中に分割が発生しないこと
+        for (int i = 0; i < 10000; i++) {
+            tb.put("test1", "valueKey" + i, "data" + i);
+        }
+        assertEquals(subKeyList, tb.getSubKeyList("test1"));
+        assertEquals(10000, tb.getValues("test1").size());
+
+        // getExpectedValueCountを指定した場合は、最初のput/putAllで事前分割される
+        TestO2M expected = new TestO2M(cache) {
+            @Override
+            public int getExpectedValueCount() {
+                return 1000;
+            }
+        };
+        expected.put("test2", "valueKey1", "data1");
+        assertEquals(40, expected.getSubKeyList("test2").size());
+        assertEquals("data1", expected.get("test2", "valueKey1"));
+
+        expected.putAll("test3", Collections.singletonMap("valueKey1", "data1"));
+        assertEquals(40, expected.getSubKeyList("test3").size());
+        assertEquals(1, expected.getValues("test3").size());
+
+        // 2階層のBucketMeta
+        MetaPageO2M paged = new MetaPageO2M(cache);
+        assertTrue(paged.presize("test4", 1000));
+        assertTrue(cache.get("test4") instanceof BucketMetaRoot);
+        assertEquals(40, paged.getSubKeyList("test4").size());
+    }
+
+    @Test
+    public void testGetAllRemoveAll() throws Exception {
+        for (TestO2M tb : new TestO2M[] { new TestO2M(cache), new MetaPageO2M(cache) }) {
+            cache.clear();
+            Map<String, String> expected = new HashMap<>();
+            for (int i = 0; i < 5000; i++) {
+                expected.put("valueKey" + i, "data" + i);
+            }
+            tb.putAll("test1", expected);
+
+            List<String> valueKeys = new ArrayList<>();
+            for (int i = 0; i < 60; i++) {
+                valueKeys.add("valueKey" + (i * 83));
+            }
+            valueKeys.add("none");
+            Map<String, String> values = tb.getAll("test1", valueKeys);
+            assertEquals(60, values.size());
+            for (String valueKey : values.keySet()) {
+                assertEquals(expected.get(valueKey), values.get(valueKey));
+            }
+            assertTrue(tb.getAll("none", valueKeys).isEmpty());
+
+            // 500件ずつ削除(バケットの統合を含む)
+            for (int n = 0; n < 5000; n += 500) {
+                List<String> removeKeys = new ArrayList<>();
+                for (int i = n; i < n + 500; i++) {
+                    removeKeys.add("valueKey" + i);
+                }
+                removeKeys.add("none");
+                Map<String, String> removed = tb.removeAll("test1", removeKeys);
+                assertEquals(500, removed.size());
+                for (String valueKey : removed.keySet()) {
+                    assertEquals(expected.remove(valueKey), removed.get(valueKey));
+                }
+
+                assertEquals(expected, tb.getValues("test1"));
+                for (SubKey subKey : tb.getSubKeyList("test1")) {
+                    assertTrue(tb.getValuesBySubKey(subKey).size() <= tb.getMaxBucketSize());
+                }
+            }
+            assertNull(cache.get("test1"));
+            assertTrue(tb.removeAll("test1", valueKeys).isEmpty());
+        }
+    }
+
+    @Test
+    public void testWriteBuffer() throws Exception {
+        TestO2M tb = new TestO2M(cache) {
+            @Override
+            public int getWriteBufferSize() {
+                return 100;
+            }
+
+            @Override
+            public long getWriteBufferMills() {
+                return 60000;
+            }
+        };
+
+        tb.put("test1", "valueKey0", "data0");
+        for (int i = 1; i < 50; i++) {
+            tb.putBuffered("test1", "valueKey" + i, "data" + i);
+        }
+        tb.removeBuffered("test1", "valueKey0");
+
+        // 反映前の更新も参照できること
+        assertEquals(1, tb.getValuesBySubKey(tb.getSubKey("test1", "valueKey0")).size());
+        assertNull(tb.get("test1", "valueKey0"));
+        assertFalse(tb.isContains("test1", "valueKey0"));
+        assertEquals("data1", tb.get("test1", "valueKey1"));
+        assertTrue(tb.isContains("test1", "valueKey1"));
+        assertEquals(49, tb.getValues("test1").size());
+        assertEquals(Collections.singletonMap("valueKey2", "data2"), tb.getAll("test1", Arrays.asList("valueKey0", "valueKey2")));
+
+        tb.flush("test1");
+        Map<String, String> values = tb.getValues("test1");
+        assertEquals(49, values.size());
+        assertEquals(values, new TestO2M(cache).getValues("test1"));
+
+        // 件数の上限に達した時点で反映されること
+        for (int i = 0; i < 100; i++) {
+            tb.putBuffered("test2", "valueKey" + i, "data" + i);
+        }
+        assertEquals(100, new TestO2M(cache).getValues("test2").size());
+
+        // 通常のputとの比較
+        int num = 20000;
+        long start = System.nanoTime();
+        for (int i = 0; i < num; i++) {
+            tb.put("test3", "valueKey" + i, "data");
+        }
+        long direct = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < num; i++) {
+            tb.putBuffered("test4", "valueKey" + i, "data");
+        }
+        tb.flush();
+        long buffered = System.nanoTime() - start;
+        System.out.println("put " + direct / num + " ns/op, putBuffered " + buffered / num + " ns/op");
+        assertEquals(tb.getValues("test3"), new TestO2M(cache).getValues("test4"));
+    }
+
+    /**
+     * 反映前の更新が、イテレータ、ページ、mapReduce、forEachValue、非同期の取得にも反映されること。
+     */
+    @Test
+    public void testWriteBufferReads() throws Exception {
+        TestO2M tb = new TestO2M(cache) {
+            @Override
+            public int getWriteBufferSize() {
+                return 1000;
+            }
+
+            @Override
+            public long getWriteBufferMills() {
+                return 60000;
+            }
+        };
+
+        for (int i = 0; i < 500; i++) {
+            tb.put("test1", "valueKey" + i, String.valueOf(i));
+        }
+        assertTrue(tb.getSubKeyList("test1").size() > 1);
+        for (int i = 0; i < 100; i++) {
+            tb.removeBuffered("test1", "valueKey" + i);
+        }
+        tb.putBuffered("test1", "valueKey100", "1000");
+        for (int i = 500; i < 600; i++) {
+            tb.putBuffered("test1", "valueKey" + i, String.valueOf(i));
+        }
+        // keyが未反映の場合
+        for (int i = 0; i < 10; i++) {
+            tb.putBuffered("test2", "valueKey" + i, String.valueOf(i));
+        }
+
+        Map<String, String> expected = tb.getValues("test1");
+        assertEquals(500, expected.size());
+        assertEquals("1000", expected.get("valueKey100"));
+
+        Map<String, String> valueMap = new HashMap<>();
+        Iterator<Entry<String, String>> it = tb.iterator("test1");
+        while (it.hasNext()) {
+            Entry<String, String> entry = it.next();
+            assertNull(valueMap.put(entry.getKey(), entry.getValue()));
+        }
+        assertEquals(expected, valueMap);
+
+        valueMap.clear();
+        DistributedOneToMany.PageCursor cursor = null;
+        do {
+            DistributedOneToMany.Page<String, String> page = tb.getPage("test1", cursor, 30);
+            for (Entry<String, String> entry : page.getValues().entrySet()) {
+                assertNull(valueMap.put(entry.getKey(), entry.getValue()));
+            }
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        assertEquals(expected, valueMap);
+
+        long sum = 0;
+        for (String value : expected.values()) {
+            sum += Long.parseLong(value);
+        }
+        assertEquals(Long.valueOf(500), tb.mapReduce("test1", new CountMapReducer()));
+        assertEquals(Long.valueOf(sum), tb.mapReduce("test1", new SumMapReducer()));
+        CountVisitor.counter.set(0);
+        tb.forEachValue("test1", new CountVisitor());
+        assertEquals(500, CountVisitor.counter.get());
+
+        assertEquals(expected, tb.getValuesAsync("test1").get());
+        assertNull(tb.getAsync("test1", "valueKey0").get());
+        assertEquals("1000", tb.getAsync("test1", "valueKey100").get());
+
+        assertEquals(10, tb.getValues("test2").size());
+        assertEquals(10, tb.getPage("test2", null, 100).getValues().size());
+        assertEquals(Long.valueOf(10), tb.mapReduce("test2", new CountMapReducer()));
+        assertTrue(tb.iterator("test2").hasNext());
+        assertNull(cache.get("test2"));
+
+        // 反映後も同じ結果になること
+        tb.flush();
+        assertEquals(expected, new TestO2M(cache).getValues("test1"));
+        assertEquals(Long.valueOf(sum), tb.mapReduce("test1", new SumMapReducer()));
+    }
+
+    @Test
+    public void testWriteBufferScheduledFlush() throws Exception {
+        final AtomicInteger failures = new AtomicInteger(1);
+        final List<String> errorKeys = new CopyOnWriteArrayList<>();
+        TestO2M tb = new TestO2M(txCache) {
+            @Override
+            public long getWriteBufferMills() {
+                return 20;
+            }
+
+            @Override
+            public void putAll(String key, Map<? extends String, ? extends String> values) {
+                if (failures.getAndDecrement() > 0) {
+                    throw new IllegalStateException("flush failure");
+                }
+                super.putAll(key, values);
+            }
+
+            @Override
+            public void onFlushError(String key, RuntimeException e) {
+                errorKeys.add(key);
+            }
+        };
+
+        // LockMode.KEY: 呼び出し元はトランザクション内でkeyをロックして溜める
+        tm.begin();
+        txCache.lock("test1");
+        for (int i = 0; i < 10; i++) {
+            tb.putBuffered("test1", "valueKey" + i, "data" + i);
+        }
+        tm.commit();
+        assertNull(txCache.get("test1"));
+
+        // 同じkeyの更新やflush()を呼び出さなくても、バックグラウンドのスレッドで反映されること(1回目の失敗は通知され、再試行される)
+        TestO2M reader = new TestO2M(txCache);
+        for (int i = 0; i < 200 && reader.getValues("test1").size() < 10; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(10, reader.getValues("test1").size());
+        assertEquals(1, tb.getTotalFlushErrors());
+        assertEquals("flush failure", tb.getLastFlushError().getMessage());
+        assertEquals(Collections.singletonList("test1"), errorKeys);
+        tb.close();
+    }
+
+    @Test
+    public void testReverseIndex() throws Exception {
+        ReverseIndexO2M tb = new ReverseIndexO2M(cache);
+
+        // 多数のkeyから参照されるvalueKeyは逆引きインデックスでもバケットが分割される
+        for (int i = 0; i < 200; i++) {
+            tb.put("user" + i, "hot", "data" + i);
+            tb.put("user" + i, "item" + i, "data" + i);
+        }
+        assertEquals(200, tb.getKeys("hot").size());
+        assertTrue(DistributedOneToMany.readMeta(cache, new ReverseKey("hot")).bucketNum() > 1);
+        assertEquals(Collections.singleton("user5"), tb.getKeys("item5"));
+        assertTrue(tb.getKeys("none").isEmpty());
+
+        // 既存のvalueKeyの更新
+        tb.put("user0", "hot", "data0-2");
+        assertEquals(200, tb.getKeys("hot").size());
+
+        tb.remove("user1", "hot");
+        tb.removeAll("user2", Arrays.asList("hot", "item2"));
+        tb.remove("user3");
+        assertEquals(197, tb.getKeys("hot").size());
+        assertFalse(tb.getKeys("hot").contains("user1"));
+        assertTrue(tb.getKeys("item2").isEmpty());
+        assertTrue(tb.getKeys("item3").isEmpty());
+        assertNull(cache.get(new ReverseKey("item3")));
+
+        Map<String, String> values = new HashMap<>();
+        values.put("hot", "data");
+        values.put("item1000", "data");
+        tb.putAll("user1", values);
+        assertEquals(198, tb.getKeys("hot").size());
+        assertEquals(Collections.singleton("user1"), tb.getKeys("item1000"));
+
+        try {
+            tb.putAsync("user1", "hot", "data");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // 非同期の更新は使用できない
+        }
+        try {
+            new TestO2M(cache).getKeys("hot");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // 逆引きインデックスが無効
+        }
+    }
+
+    @Test
+    public void testChangeListener() throws Exception {
+        TestO2M tb = new TestO2M(cache);
+        final List<ChangeEvent<String, String, String>> events = Collections.synchronizedList(new ArrayList<ChangeEvent<String, String, String>>());
+        ChangeListener<String, String, String> listener = new ChangeListener<String, String, String>() {
+            @Override
+            public void onChange(ChangeEvent<String, String, String> event) {
+                events.add(event);
+            }
+        };
+        tb.addChangeListener(listener);
+        try {
+            // 分割による移動は通知されず、追加したvalueKeyのみが1回ずつ通知される
+            for (int i = 0; i < 500; i++) {
+                tb.put("test1", "key" + i, "data" + i);
+            }
+            assertTrue(tb.getSubKeyList("test1").size() > 1);
+            assertEquals(500, events.size());
+            for (int i = 0; i < 500; i++) {
+                ChangeEvent<String, String, String> event = events.get(i);
+                assertEquals(ChangeEvent.Type.ADDED, event.getType());
+                assertEquals("test1", event.getKey());
+                assertEquals("key" + i, event.getValueKey());
+                assertEquals("data" + i, event.getValue());
+            }
+
+            events.clear();
+            tb.put("test1", "key0", "data0-2");
+            assertEquals(1, events.size());
+            assertEquals(ChangeEvent.Type.UPDATED, events.get(0).getType());
+            assertEquals("data0-2", events.get(0).getValue());
+
+            // 分割を伴うputAllは追加と更新のみが通知される
+            events.clear();
+            Map<String, String> values = new HashMap<>();
+            for (int i = 0; i < 200; i++) {
+                values.put("key" + (i + 400), "data");
+            }
+            tb.putAll("test1", values);
+            assertEquals(200, events.size());
+            int added = 0;
+            for (ChangeEvent<String, String, String> event : events) {
+                if (event.getType() == ChangeEvent.Type.ADDED) {
+                    added++;
+                } else {
+                    assertEquals(ChangeEvent.Type.UPDATED, event.getType());
+                }
+            }
+            assertEquals(100, added);
+
+            // 統合による移動は通知されず、削除したvalueKeyのみが1回ずつ通知される
+            events.clear();
+            for (int i = 0; i < 590; i++) {
+                tb.remove("test1", "key" + i);
+            }
+            assertEquals(1, tb.getSubKeyList("test1").size());
+            assertEquals(590, events.size());
+            for (int i = 0; i < 590; i++) {
+                assertEquals(ChangeEvent.Type.REMOVED, events.get(i).getType());
+                assertEquals("key" + i, events.get(i).getValueKey());
+                assertNull(events.get(i).getValue());
+            }
+
+            events.clear();
+            tb.remove("test1");
+            assertEquals(1, events.size());
+            assertEquals(ChangeEvent.Type.KEY_REMOVED, events.get(0).getType());
+            assertEquals("test1", events.get(0).getKey());
+
+            // 逆引きインデックスの更新は通知されない(新規キーの追加はリスナーを登録したインスタンスで行う)
+            tb.put("test2", "key0", "data0");
+            events.clear();
+            ReverseIndexO2M reverse = new ReverseIndexO2M(cache);
+            reverse.put("test2", "key1", "data1");
+            assertEquals(1, events.size());
+            assertEquals("test2", events.get(0).getKey());
+            assertEquals("key1", events.get(0).getValueKey());
+        } finally {
+            tb.removeChangeListener(listener);
+        }
+
+        events.clear();
+        tb.put("test3", "key0", "data0");
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void testChangeListenerWrites() throws Exception {
+        TestO2M tb = new TestO2M(cache);
+        WriteCounter counter = new WriteCounter();
+        cache.addListener(counter);
+        try {
+            // リスナー未登録の場合、分割前のバケットへの書き込みはBucketTrasferのみ
+            for (int i = 0; i < tb.getMaxBucketSize(); i++) {
+                tb.put("test1", "key" + i, "data");
+            }
+            SubKey subKey = tb.getSubKeyList("test1").get(0);
+            counter.keys.clear();
+            tb.put("test1", "key" + tb.getMaxBucketSize(), "data");
+            List<SubKey> pieces = tb.getSubKeyList("test1");
+            assertTrue(pieces.size() > 1);
+            assertEquals(1, Collections.frequency(counter.keys, subKey));
+            // 分割後のバケットの書き込みは他のキャッシュリスナーに通知される
+            for (SubKey piece : pieces) {
+                assertEquals(1, Collections.frequency(counter.keys, piece));
+            }
+
+            // リスナー登録中は、変更を分割前のバケットに書き込んでから分割する
+            final List<ChangeEvent<String, String, String>> events = new ArrayList<>();
+            ChangeListener<String, String, String> listener = new ChangeListener<String, String, String>() {
+                @Override
+                public void onChange(ChangeEvent<String, String, String> event) {
+                    events.add(event);
+                }
+            };
+            tb.addChangeListener(listener);
+            try {
+                for (int i = 0; i < tb.getMaxBucketSize(); i++) {
+                    tb.put("test2", "key" + i, "data");
+                }
+                subKey = tb.getSubKeyList("test2").get(0);
+                counter.keys.clear();
+                events.clear();
+                tb.put("test2", "key" + tb.getMaxBucketSize(), "data");
+                assertTrue(tb.getSubKeyList("test2").size() > 1);
+                assertEquals(2, Collections.frequency(counter.keys, subKey));
+                assertEquals(1, events.size());
+                assertEquals(ChangeEvent.Type.ADDED, events.get(0).getType());
+            } finally {
+                tb.removeChangeListener(listener);
+            }
+        } finally {
+            cache.removeListener(counter);
+        }
+    }
+
+    @Test
+    public void testChangeListenerTransaction() throws Exception {
+        BucketLockO2M tb = new BucketLockO2M(txCache);
+        final List<ChangeEvent<String, String, String>> events = Collections.synchronizedList(new ArrayList<ChangeEvent<String, String, String>>());
+        ChangeListener<String, String, String> listener = new ChangeListener<String, String, String>() {
+            @Override
+            public void onChange(ChangeEvent<String, String, String> event) {
+                events.add(event);
+            }
+        };
+        tb.addChangeListener(listener);
+        try {
+            // ロールバックした更新は通知されない
+            tm.begin();
+            tb.put("test1", "key0", "data0");
+            assertTrue(events.isEmpty());
+            tm.rollback();
+            assertTrue(events.isEmpty());
+
+            // コミット後に通知される
+            tm.begin();
+            tb.put("test1", "key1", "data1");
+            assertTrue(events.isEmpty());
+            tm.commit();
+            assertEquals(1, events.size());
+            assertEquals(ChangeEvent.Type.ADDED, events.get(0).getType());
+            assertEquals("key1", events.get(0).getValueKey());
+        } finally {
+            tb.removeChangeListener(listener);
+        }
+    }
+
+    @Test
+    public void testChangeListenerError() throws Exception {
+        final List<ChangeEvent<String, String, String>> errors = new ArrayList<>();
+        TestO2M tb = new TestO2M(cache) {
+            @Override
+            public void onChangeListenerError(ChangeEvent<String, String, String> event, RuntimeException e) {
+                errors.add(event);
+            }
+        };
+        final List<ChangeEvent<String, String, String>> events = new ArrayList<>();
+        ChangeListener<String, String, String> failing = new ChangeListener<String, String, String>() {
+            @Override
+            public void onChange(ChangeEvent<String, String, String> event) {
+                throw new IllegalStateException("listener error");
+            }
+        };
+        ChangeListener<String, String, String> listener = new ChangeListener<String, String, String>() {
+            @Override
+            public void onChange(ChangeEvent<String, String, String> event) {
+                events.add(event);
+            }
+        };
+        tb.addChangeListener(failing);
+        tb.addChangeListener(listener);
+        try {
+            assertEquals(0, tb.getTotalChangeListenerErrors());
+            assertNull(tb.getLastChangeListenerError());
+
+            // リスナの例外は更新を失敗させず、後続のリスナにも通知される
+            assertNull(tb.put("test1", "key0", "data0"));
+            assertEquals("data0", tb.get("test1", "key0"));
+            assertEquals(1, events.size());
+            assertEquals(1, errors.size());
+            assertEquals("key0", errors.get(0).getValueKey());
+            assertEquals(1, tb.getTotalChangeListenerErrors());
+            assertEquals("listener error", tb.getLastChangeListenerError().getMessage());
+        } finally {
+            tb.removeChangeListener(failing);
+            tb.removeChangeListener(listener);
+        }
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        TestO2M tb = new TestO2M(cache);
+
+        // 異なるkeyへの更新は並行して発行できる
+        List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(tb.putAsync("test" + i, "valueKey1", "data" + i));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertNull(futures.get(i).get());
+            assertEquals("data" + i, tb.get("test" + i, "valueKey1"));
+        }
+
+        // 同一keyへの更新は完了を待ってから発行する(バケット分割・統合を含む)
+        for (int i = 0; i < 3000; i++) {
+            assertNull(tb.putAsync("test1000", "valueKey" + i, "data" + i).get(10, TimeUnit.SECONDS));
+        }
+        assertEquals("data1", tb.putAsync("test1000", "valueKey1", "new").get());
+        assertTrue(tb.getSubKeyList("test1000").size() > 1);
+
+        Map<String, String> values = tb.getValuesAsync("test1000").get();
+        assertEquals(tb.getValues("test1000"), values);
+        assertEquals(3000, values.size());
+        for (int i = 0; i < 3000; i++) {
+            assertEquals(i == 1 ? "new" : "data" + i, tb.getAsync("test1000", "valueKey" + i).get());
+        }
+        assertNull(tb.getAsync("test1000", "valueKey-1").get());
+        assertNull(tb.getAsync("none", "valueKey1").get());
+
+        for (int i = 0; i < 3000; i++) {
+            assertEquals(i == 1 ? "new" : "data" + i, tb.removeAsync("test1000", "valueKey" + i).get(10, TimeUnit.SECONDS));
+        }
+        assertNull(tb.removeAsync("test1000", "valueKey1").get());
+        assertNull(cache.get("test1000"));
+        assertTrue(tb.getValuesAsync("test1000").get().isEmpty());
+
+        // 2階層のBucketMetaは非同期の更新に対応しない
+        try {
+            new MetaPageO2M(cache).putAsync("test1", "valueKey1", "data1");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // OK
+        }
+    }
+
+    @Test
+    public void testAsyncLocking() throws Exception {
+        // トランザクショナルキャッシュでは使用できない(トランザクション内外とも)
+        TestO2M txTb = new TestO2M(txCache);
+        try {
+            txTb.putAsync("test1", "valueKey1", "data1");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // OK
+        }
+        tm.begin();
+        try {
+            txTb.putAsync("test1", "valueKey1", "data1");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // OK
+        } finally {
+            tm.rollback();
+        }
+        try {
+            txTb.removeAsync("test1", "valueKey1");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // OK
+        }
+        assertNull(txCache.get("test1"));
+
+        // 複数スレッドから同一keyを更新する場合は、アプリケーション側でkey毎に排他してFutureの完了まで保持する
+        final TestO2M tb = new TestO2M(cache);
+        final ReentrantLock keyLock = new ReentrantLock();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final int thread = t;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < 500; i++) {
+                            keyLock.lock();
+                            try {
+                                assertNull(tb.putAsync("test1", "valueKey" + thread + "-" + i, "data").get(10, TimeUnit.SECONDS));
+                            } finally {
+                                keyLock.unlock();
+                            }
+                        }
+                        for (int i = 0; i < 450; i++) {
+                            keyLock.lock();
+                            try {
+                                assertEquals("data", tb.removeAsync("test1", "valueKey" + thread + "-" + i).get(10, TimeUnit.SECONDS));
+                            } finally {
+                                keyLock.unlock();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Map<String, String> values = tb.getValues("test1");
+        assertEquals(200, values.size());
+        for (int t = 0; t < 4; t++) {
+            for (int i = 450; i < 500; i++) {
+                assertEquals("data", values.get("valueKey" + t + "-" + i));
+            }
+        }
+        for (SubKey subKey : tb.getSubKeyList("test1")) {
+            assertTrue(tb.getValuesBySubKey(subKey).size() <= tb.getMaxBucketSize());
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testBucketDelta() throws Exception {
+        // マージ先が存在しない場合は新しいバケットが作成される
+        DistributedOneToMany.BucketEntry<String, String, String> bucket = (DistributedOneToMany.BucketEntry) DistributedOneToMany.BucketDelta.put("vk1", "v1").merge(null);
+        assertEquals("v1", bucket.getValueMap().get("vk1"));
+
+        // 既存バケットへの追加、更新、削除
+        DistributedOneToMany.BucketDelta.put("vk2", "v2").merge(bucket);
+        DistributedOneToMany.BucketDelta.put("vk1", "v1-2").merge(bucket);
+        assertEquals(2, bucket.getValueMap().size());
+        assertEquals("v1-2", bucket.getValueMap().get("vk1"));
+
+        DistributedOneToMany.BucketDelta.remove("vk2").merge(bucket);
+        assertEquals(1, bucket.getValueMap().size());
+        assertFalse(bucket.getValueMap().containsKey("vk2"));
+
+        // バケット全体の差分はバケットを置き換える
+        DistributedOneToMany.BucketEntry<String, String, String> other = new DistributedOneToMany.BucketEntry<>();
+        other.getValueMap().put("vk3", "v3");
+        other.delta().merge(bucket);
+        assertEquals(other.getValueMap(), bucket.getValueMap());
+    }
+
+    @Test
+    public void testOwnerExecution() throws Exception {
+        OwnerO2M tb = new OwnerO2M(cache);
+
+        for (int i = 0; i < 10000; i++) {
+            assertNull(tb.put("test1", "valueKey" + i, "data"));
+        }
+        assertEquals("data", tb.put("test1", "valueKey0", "data0"));
+        assertEquals("data0", tb.get("test1", "valueKey0"));
+
+        Map<String, String> values = new HashMap<>();
+        for (int i = 10000; i < 20000; i++) {
+            values.put("valueKey" + i, "data");
+        }
+        tb.putAll("test1", values);
+        assertEquals(20000, tb.getValues("test1").size());
+
+        for (int i = 0; i < 19999; i++) {
+            assertNotNull(tb.remove("test1", "valueKey" + i));
+        }
+        assertEquals(1, tb.getValues("test1").size());
+
+        assertTrue(tb.remove("test1"));
+        assertFalse(tb.remove("test1"));
+    }
+
+    @Test
+    public void testBucketLock() throws Exception {
+        BucketLockO2M tb = new BucketLockO2M(txCache);
+
+        // 更新毎にトランザクションを開始する(ロックはライブラリ内で取得される)
+        for (int i = 0; i < 10000; i++) {
+            tm.begin();
+            assertNull(tb.put("test1", "valueKey" + i, "data"));
+            tm.commit();
+        }
+        tm.begin();
+        assertEquals("data", tb.put("test1", "valueKey0", "data0"));
+        tm.commit();
+        assertEquals("data0", tb.get("test1", "valueKey0"));
+
+        Map<String, String> values = new HashMap<>();
+        for (int i = 10000; i < 20000; i++) {
+            values.put("valueKey" + i, "data");
+        }
+        tm.begin();
+        tb.putAll("test1", values);
+        tm.commit();
+        assertEquals(20000, tb.getValues("test1").size());
+        for (SubKey subKey : tb.getSubKeyList("test1")) {
+            assertTrue(tb.getValuesBySubKey(subKey).size() <= tb.getMaxBucketSize());
+        }
+
+        for (int i = 0; i < 19999; i++) {
+            tm.begin();
+            assertNotNull(tb.remove("test1", "valueKey" + i));
+            tm.commit();
+        }
+        tm.begin();
+        assertNull(tb.remove("test1", "valueKey0"));
+        tm.commit();
+        assertEquals(1, tb.getValues("test1").size());
+        assertEquals(1, tb.getSubKeyList("test1").size());
+
+        tm.begin();
+        assertNotNull(tb.remove("test1", "valueKey19999"));
+        tm.commit();
+        assertNull(txCache.get("test1"));
+
+        tm.begin();
+        tb.put("test1", "valueKey", "data");
+        assertTrue(tb.remove("test1"));
+        assertFalse(tb.remove("test1"));
+        tm.commit();
+
+        // presize
+        tm.begin();
+        assertTrue(tb.presize("test2", 1000));
+        assertFalse(tb.presize("test2", 2000));
+        tm.commit();
+        int bucketNum = tb.getSubKeyList("test2").size();
+        assertTrue(bucketNum > 1);
+        for (int i = 0; i < 1000; i++) {
+            tm.begin();
+            tb.put("test2", "valueKey" + i, "data");
+            tm.commit();
+        }
+        assertEquals(1000, tb.getValues("test2").size());
+        assertEquals(bucketNum, tb.getSubKeyList("test2").size());
+    }
+
+    @Test
+    public void testBucketLockPrecondition() throws Exception {
+        // 非トランザクショナルキャッシュ
+        try {
+            new BucketLockO2M(cache).put("test1", "valueKey", "data");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // lock()を呼び出す前に失敗する
+        }
+
+        // トランザクション外
+        BucketLockO2M tb = new BucketLockO2M(txCache);
+        try {
+            tb.put("test1", "valueKey", "data");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // lock()を呼び出す前に失敗する
+        }
+        try {
+            tb.remove("test1", "valueKey");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // lock()を呼び出す前に失敗する
+        }
+        try {
+            tb.presize("test1", 1000);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // lock()を呼び出す前に失敗する
+        }
+        assertNull(txCache.get("test1"));
+    }
+
+    @Test
+    public void testBucketLockOrder() throws Exception {
+        final BucketLockO2M tb = new BucketLockO2M(txCache);
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < 200; i++) {
+            values.put("valueKey" + i, "data");
+        }
+        tm.begin();
+        tb.putAll("test1", values);
+        tm.commit();
+
+        // 先頭と末尾のバケットに振り分けられるvalueKeyを用意する
+        BucketMeta meta = (BucketMeta) txCache.get("test1");
+        int last = meta.bucketNum() - 1;
+        assertTrue(last > 0);
+        List<String> firstKeys = new ArrayList<>();
+        final Map<String, String> lastValues = new HashMap<>();
+        for (int i = 0; firstKeys.size() < 60 || lastValues.size() < 60; i++) {
+            String valueKey = "new" + i;
+            int index = meta.getIndex(HashFunction.hash(valueKey));
+            if (index == 0 && firstKeys.size() < 60) {
+                firstKeys.add(valueKey);
+            } else if (index == last && lastValues.size() < 60) {
+                lastValues.put(valueKey, "data");
+            }
+        }
+        lastValues.put(firstKeys.get(0), "data");
+
+        // 先頭バケットのロックを保持する
+        tm.begin();
+        tb.put("test1", firstKeys.get(1), "data");
+
+        // 末尾バケットの分割でkeyをロックした後は先頭バケットのロックを待たずに失敗する
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Exception> future = executor.submit(new Callable<Exception>() {
+                @Override
+                public Exception call() throws Exception {
+                    tm.begin();
+                    try {
+                        tb.putAll("test1", lastValues);
+                        tm.commit();
+                        return null;
+                    } catch (CacheException e) {
+                        tm.rollback();
+                        return e;
+                    }
+                }
+            });
+            assertTrue(future.get(5, TimeUnit.SECONDS) instanceof CacheException);
+        } finally {
+            executor.shutdown();
+        }
+
+        // keyのロックは解放されているため、先頭バケットの分割を続けられる
+        for (String valueKey : firstKeys.subList(2, firstKeys.size())) {
+            tb.put("test1", valueKey, "data");
+        }
+        tm.commit();
+        assertEquals(259, tb.getValues("test1").size());
+        assertNull(tb.get("test1", firstKeys.get(0)));
+    }
+
+    @Test
+    public void testMetaPage() throws Exception {
+        MetaPageO2M tb = new MetaPageO2M(cache);
+
+        for (int i = 0; i < 10000; i++) {
+            assertNull(tb.put("test1", "valueKey" + i, "data" + i));
+        }
+        BucketMetaRoot root = (BucketMetaRoot) cache.get("test1");
+        assertTrue(root.pageNum() > 1);
+        int bucketNum = 0;
+        for (SubKey pageKey : root.getSubKeyList()) {
+            BucketMeta page = (BucketMeta) cache.get(pageKey);
+            assertTrue(page.bucketNum() <= tb.getMetaPageSize());
+            bucketNum += page.bucketNum();
+        }
+        assertEquals(bucketNum, tb.getSubKeyList("test1").size());
+        assertEquals(10000, tb.getValues("test1").size());
+
+        // メタページ内の更新ではルートを書き込まない
+        assertEquals("data0", tb.put("test1", "valueKey0", "data0-2"));
+        assertNull(tb.put("test1", "extra", "data"));
+        assertEquals(root, cache.get("test1"));
+
+        Map<String, String> values = new HashMap<>();
+        for (int i = 10000; i < 20000; i++) {
+            values.put("valueKey" + i, "data" + i);
+        }
+        tb.putAll("test1", values);
+
+        Map<String, String> valueMap = tb.getValues("test1");
+        assertEquals(20001, valueMap.size());
+        for (int i = 1; i < 20000; i++) {
+            assertEquals("data" + i, tb.get("test1", "valueKey" + i));
+            assertEquals("data" + i, valueMap.get("valueKey" + i));
+        }
+        assertEquals("data0-2", tb.get("test1", "valueKey0"));
+        for (SubKey subKey : tb.getSubKeyList("test1")) {
+            assertTrue(tb.getValuesBySubKey(subKey).size() <= tb.getMaxBucketSize());
+        }
+
+        // 削除によりメタページが統合され、最後は1階層に戻ってから削除される
+        assertEquals("data", tb.remove("test1", "extra"));
+        for (int i = 0; i < 19999; i++) {
+            assertNotNull(tb.remove("test1", "valueKey" + i));
+        }
+        assertTrue(cache.get("test1") instanceof BucketMeta);
+        assertEquals(1, tb.getValues("test1").size());
+        assertNotNull(tb.remove("test1", "valueKey19999"));
+        assertNull(cache.get("test1"));
+
+        tb.putAll("test1", values);
+        assertTrue(cache.get("test1") instanceof BucketMetaRoot);
+        assertTrue(tb.remove("test1"));
+        assertFalse(tb.remove("test1"));
+    }
+
+    /**
+     * 削除でキャッシュ上のメタページ(BucketMeta)のインスタンスを変更しないこと。
+     */
+    @Test
+    public void testMetaPageImmutable() throws Exception {
+        // 1メタページ1バケットとし、メタページの唯一のバケットが空になる削除を発生させる
+        MetaPageO2M tb = new MetaPageO2M(cache) {
+            @Override
+            public int getMetaPageSize() {
+                return 2;
+            }
+        };
+        for (int i = 0; i < 2000; i++) {
+            tb.put("test1", "valueKey" + i, "data");
+        }
+        assertTrue(cache.get("test1") instanceof BucketMetaRoot);
+
+        for (int i = 0; i < 2000; i++) {
+            Map<BucketMeta, BucketMeta> pages = new IdentityHashMap<>();
+            Object stored = cache.get("test1");
+            if (stored instanceof BucketMetaRoot) {
+                for (SubKey pageKey : ((BucketMetaRoot) stored).getSubKeyList()) {
+                    BucketMeta page = (BucketMeta) cache.get(pageKey);
+                    pages.put(page, new BucketMeta(page));
+                }
+            } else {
+                pages.put((BucketMeta) stored, new BucketMeta((BucketMeta) stored));
+            }
+
+            assertEquals("data", tb.remove("test1", "valueKey" + i));
+            for (Entry<BucketMeta, BucketMeta> entry : pages.entrySet()) {
+                assertEquals(entry.getValue(), entry.getKey());
+            }
+        }
+        assertNull(cache.get("test1"));
+    }
+
+    /**
+     * 他のインスタンス(他ノード相当)での更新を検知できず、ニアキャッシュのBucketMetaが古くなっても正しく読み取れること。
+     */
+    @Test
+    public void testNearCacheStaleMeta() throws Exception {
+        NearCacheO2M reader = new NearCacheO2M(cache);
+        TestO2M writer = new TestO2M(cache);
+
+        writer.put("test1", "valueKey0", "data0");
+        assertEquals("data0", reader.get("test1", "valueKey0")); // ニアキャッシュに保持
+
+        // バケット分割(旧バケットはBucketTrasferに置き換わる)
+        for (int i = 1; i < 1000; i++) {
+            writer.put("test1", "valueKey" + i, "data" + i);
+        }
+        assertTrue(writer.getSubKeyList("test1").size() > 1);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("data" + i, reader.get("test1", "valueKey" + i));
+        }
+        assertEquals(1000, reader.getValues("test1").size());
+
+        // BucketTrasferの期限切れ
+        Thread.sleep(writer.getTransferExpireMills() * 2);
+        cache.getEvictionManager().processEviction();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(reader.isContains("test1", "valueKey" + i));
+        }
+
+        // key削除
+        writer.remove("test1");
+        assertNull(reader.get("test1", "valueKey0"));
+        assertFalse(reader.isContains("test1", "valueKey1"));
+        assertTrue(reader.getValues("test1").isEmpty());
+
+        // 自インスタンスでの更新はニアキャッシュに即時反映
+        reader.put("test1", "valueKey0", "data0");
+        assertEquals("data0", reader.get("test1", "valueKey0"));
+        reader.remove("test1", "valueKey0");
+        assertNull(reader.get("test1", "valueKey0"));
+
+        reader.close();
+    }
+
+    /**
+     * 匿名クラスではオーナーノード上でインスタンスを生成できないため、エラーとなること。
+     */
+    @Test
+    public void testOwnerExecutionAnonymousClass() throws Exception {
+        TestO2M tb = new TestO2M(cache) {
+            public boolean isOwnerExecution() {
+                return true;
+            }
+        };
+
+        try {
+            tb.put("test1", "valueKey", "data");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // OK
+        }
+    }
+
+    @Test
+    public void testGroupedPlacement() throws Exception {
+        List<SubKey> subKeyList = placeBuckets(SubKeyPlacement.GROUPED);
+
+        // 分割・統合後のバケットも全て第一キーのグループに属し、グループと同じセグメント・オーナーに配置されること
+        ConsistentHash ch = cache.getDistributionManager().getConsistentHash();
+        Address owner = cache.getDistributionManager().getPrimaryLocation("test1");
+        for (SubKey subKey : subKeyList) {
+            assertEquals("test1", subKey.getGroup());
+            assertEquals(ch.getSegment("test1"), ch.getSegment(subKey));
+            assertEquals(owner, cache.getDistributionManager().getPrimaryLocation(subKey));
+        }
+    }
+
+    @Test
+    public void testRandomPlacement() throws Exception {
+        List<SubKey> subKeyList = placeBuckets(SubKeyPlacement.RANDOM);
+
+        // グループを持たず、サブキー自身のハッシュで配置されること
+        for (SubKey subKey : subKeyList) {
+            assertNull(subKey.getGroup());
+        }
+    }
+
+    @Test
+    public void testSpreadPlacement() throws Exception {
+        List<SubKey> subKeyList = placeBuckets(SubKeyPlacement.SPREAD);
+
+        // バケットはセグメントを巡回して配置される(ランダム配置では同じセグメントへの偏りが生じる)
+        ConsistentHash ch = cache.getDistributionManager().getConsistentHash();
+        Set<Integer> segments = new HashSet<>();
+        for (SubKey subKey : subKeyList) {
+            assertNull(subKey.getGroup());
+            segments.add(ch.getSegment(subKey));
+        }
+        System.out.println("spread: " + subKeyList.size() + " buckets, " + segments.size() + " segments");
+        assertTrue(segments.size() >= Math.min(subKeyList.size(), ch.getNumSegments()) * 3 / 4);
+    }
+
+    @Test
+    public void testAffinityPlacement() throws Exception {
+        List<SubKey> subKeyList = placeBuckets(SubKeyPlacement.AFFINITY);
+
+        // 全てのバケットがkeyのプライマリオーナーに配置されること
+        Address owner = cache.getDistributionManager().getPrimaryLocation("test1");
+        for (SubKey subKey : subKeyList) {
+            assertNull(subKey.getGroup());
+            assertEquals(owner, cache.getDistributionManager().getPrimaryLocation(subKey));
+            assertEquals(owner, cache.getDistributionManager().getConsistentHash().locatePrimaryOwner(subKey));
+        }
+    }
+
+    /**
+     * 指定された配置方針で分割・統合を繰り返したkeyのサブキーを返す。
+     */
+    private static List<SubKey> placeBuckets(final SubKeyPlacement placement) {
+        TestO2M tb = new TestO2M(cache) {
+            public SubKeyPlacement getSubKeyPlacement() {
+                return placement;
+            }
+        };
+
+        for (int i = 0; i < 10000; i++) {
+            tb.put("test1", "valueKey" + i, "data");
+        }
+        for (int i = 0; i < 9000; i++) {
+            tb.remove("test1", "valueKey" + i);
+        }
+
+        List<SubKey> subKeyList = tb.getSubKeyList("test1");
+        assertTrue(subKeyList.size() > 1);
+        for (SubKey subKey : subKeyList) {
+            assertNotNull(cache.get(subKey));
+        }
+        assertEquals(1000, tb.getValues("test1").size());
+        return subKeyList;
+    }
+
+    @Test
+    public void testMapReduce() throws Exception {
+        TestO2M tb = new TestO2M(cache);
+
+        for (int i = 0; i < 10000; i++) {
+            tb.put("test1", "valueKey" + i, String.valueOf(i));
+        }
+
+        // 件数と合計
+        assertEquals(Long.valueOf(10000), tb.mapReduce("test1", new CountMapReducer()));
+        assertEquals(Long.valueOf(49995000), tb.mapReduce("test1", new SumMapReducer()));
+
+        // 存在しないkey
+        assertNull(tb.mapReduce("test2", new CountMapReducer()));
+    }
+
+    @Test
+    public void testForEachValue() throws Exception {
+        TestO2M tb = new TestO2M(cache);
+
+        for (int i = 0; i < 10000; i++) {
+            tb.put("test1", "valueKey" + i, "data");
+        }
+
+        CountVisitor.counter.set(0);
+        tb.forEachValue("test1", new CountVisitor());
+        assertEquals(10000, CountVisitor.counter.get());
+    }
+
+    static class CountMapReducer implements DistributedOneToMany.BucketMapReducer<String, String, Long> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Long map(Map<String, String> values) {
+            return (long) values.size();
+        }
+
+        @Override
+        public Long reduce(Long result1, Long result2) {
+            return result1 + result2;
+        }
+    }
+
+    static class SumMapReducer implements DistributedOneToMany.BucketMapReducer<String, String, Long> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Long map(Map<String, String> values) {
+            long sum = 0;
+            for (String value : values.values()) {
+                sum += Long.parseLong(value);
+            }
+            return sum;
+        }
+
+        @Override
+        public Long reduce(Long result1, Long result2) {
+            return result1 + result2;
+        }
+    }
+
+    static class CountVisitor implements DistributedOneToMany.ValueVisitor<String, String> {
+        private static final long serialVersionUID = 1L;
+        static final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public void visit(String valueKey, String value) {
+            counter.incrementAndGet();
+        }
+    }
+
     @Test
     public void testMultiKey() throws Exception {
         TestO2M tb = new TestO2M(cache);
@@ -248,6 +1638,187 @@ public class DistributedOneToManyTest {
         // System.out.println(toXML(cache.get("test1")));
     }
 
+    /**
+     * ハッシュ値が狭い範囲に偏っている場合でも、空のバケットを作らずに分割されること。
+     */
+    @Test
+    public void testSkewedHashSplit() throws Exception {
+        DistributedOneToMany<String, Long, String> tb = new DistributedOneToMany<String, Long, String>(cache) {
+            public int getMaxBucketSize() {
+                return 100;
+            }
+
+            public int getMinCompactionBucketSize() {
+                return 20;
+            }
+
+            public long getTransferExpireMills() {
+                return 500;
+            }
+        };
+
+        // ハッシュ値が[0, 2^24)のvalueKeyのみ(全ハッシュ範囲の1/256)。
+        // 更に[0, 2^20)はその他の範囲の8倍の密度とする(ハッシュ範囲の中点は件数の中央値と一致しない)
+        TransferCounter splits = new TransferCounter();
+        cache.addListener(splits);
+        List<Integer> hashes = new ArrayList<>();
+        int num = 0;
+        try {
+            for (long valueKey = 0; num < 20000; valueKey++) {
+                int hash = HashFunction.hash(valueKey);
+                if (hash >= 0 && hash < (1 << 24) && (hash < (1 << 20) || valueKey % 8 == 0)) {
+                    tb.put("test1", valueKey, "data");
+                    hashes.add(hash);
+                    num++;
+                }
+            }
+        } finally {
+            cache.removeListener(splits);
+        }
+
+        List<SubKey> subKeyList = tb.getSubKeyList("test1");
+        long total = 0;
+        long square = 0;
+        for (SubKey subKey : subKeyList) {
+            int size = tb.getValuesBySubKey(subKey).size();
+            total += size;
+            square += (long) size * size;
+            assertTrue(0 < size && size <= tb.getMaxBucketSize());
+        }
+        assertEquals(num, total);
+        // 1バケットあたりの件数はgetMaxBucketSizeの1/2～1倍
+        assertTrue(subKeyList.size() <= num / (tb.getMaxBucketSize() / 2));
+
+        double mean = (double) total / subKeyList.size();
+        double variance = (double) square / subKeyList.size() - mean * mean;
+
+        // 同じ入力をハッシュ範囲の中点で2分割していた場合との比較
+        int[] midpoint = midpointSplit(hashes, tb.getMaxBucketSize());
+        double midpointMean = (double) num / midpoint[0];
+        double midpointVariance = (double) midpoint[1] / midpoint[0] - midpointMean * midpointMean;
+        System.out.println("testSkewedHashSplit: splits " + midpoint[2] + " -> " + splits.count + ", buckets " + midpoint[0] + " -> "
+                + subKeyList.size() + ", variance " + midpointVariance + " -> " + variance);
+        assertTrue(splits.count > 0);
+        assertTrue(splits.count < midpoint[2]);
+        assertTrue(variance < midpointVariance);
+
+        // 同じハッシュ値の途中では分割しない
+        int[] bounds = DistributedOneToMany.splitPoints(new int[] { 5, 1, 1, 1, 1, 1, 9, 9 }, 0, 4);
+        assertEquals(3, bounds.length);
+        assertEquals(0, bounds[0]);
+        assertEquals(3, bounds[1]);
+        assertEquals(7, bounds[2]);
+        assertEquals(1, DistributedOneToMany.splitPoints(new int[] { 7, 7, 7, 7, 7 }, 0, 4).length);
+    }
+
+    /**
+     * 分割点を使用しない、ハッシュ範囲の中点での2分割をBucketMetaで再現する(上限に達したバケットへの追加時に分割する)。
+     * 
+     * @return バケット数、バケットサイズの二乗和、分割回数
+     */
+    private static int[] midpointSplit(List<Integer> hashes, int maxBucketSize) {
+        BucketMeta meta = new BucketMeta();
+        List<List<Integer>> buckets = new ArrayList<>();
+        buckets.add(new ArrayList<Integer>());
+        int splits = 0;
+        for (int hash : hashes) {
+            int index = meta.getIndex(hash);
+            List<Integer> bucket = buckets.get(index);
+            bucket.add(hash);
+            if (bucket.size() <= maxBucketSize) {
+                continue;
+            }
+            meta.splitDown(index);
+            splits++;
+            List<Integer> lower = new ArrayList<>();
+            List<Integer> upper = new ArrayList<>();
+            for (int h : bucket) {
+                (meta.getIndex(h) == index ? lower : upper).add(h);
+            }
+            buckets.set(index, lower);
+            buckets.add(index + 1, upper);
+        }
+        long square = 0;
+        for (List<Integer> bucket : buckets) {
+            square += (long) bucket.size() * bucket.size();
+        }
+        return new int[] { buckets.size(), (int) square, splits };
+    }
+
+    /**
+     * 分割毎に書き込まれるBucketTrasferの数
+     */
+    @Listener
+    public static class WriteCounter {
+        final List<Object> keys = new CopyOnWriteArrayList<>();
+
+        @CacheEntryModified
+        public void onModified(CacheEntryModifiedEvent event) {
+            if (!event.isPre()) {
+                keys.add(event.getKey());
+            }
+        }
+    }
+
+    @Listener
+    public static class TransferCounter {
+        int count;
+
+        @CacheEntryModified
+        public void onModified(CacheEntryModifiedEvent event) {
+            if (!event.isPre() && event.getValue() instanceof BucketTrasfer) {
+                count++;
+            }
+        }
+    }
+
+    /**
+     * valueKeyからバケットのサブキーを特定する処理(ハッシュ計算、二分探索、サブキー取得)がヒープを消費しないこと。
+     */
+    @Test
+    public void testRoutingAllocation() throws Exception {
+        BucketMeta meta = new BucketMeta();
+        for (int i = 0; i < 20000; i++) {
+            meta.splitDown(meta.getIndex(HashFunction.hash("valueKey" + i)));
+        }
+        String[] valueKeys = new String[1000];
+        for (int i = 0; i < valueKeys.length; i++) {
+            valueKeys[i] = "valueKey" + i;
+            valueKeys[i].hashCode();
+        }
+
+        // 二分探索が線形探索と同じ結果となること
+        for (int i = 0; i < 100000; i++) {
+            int hash = HashFunction.hash(Integer.valueOf(i));
+            int expected = 0;
+            for (int index = 1; index < meta.bucketNum() && meta.getHashRnge(index)[0] <= hash; index++) {
+                expected = index;
+            }
+            assertEquals(expected, meta.getIndex(hash));
+        }
+
+        com.sun.management.ThreadMXBean mxBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long sink = 0;
+        for (int warmup = 0; warmup < 2; warmup++) {
+            long before = mxBean.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (int i = 0; i < 1000000; i++) {
+                String valueKey = valueKeys[i % valueKeys.length];
+                SubKey subKey = meta.getSubKey(meta.getIndex(HashFunction.hash(valueKey)));
+                sink += subKey.getCounter() + HashFunction.hash(i);
+            }
+            long elapsed = System.nanoTime() - start;
+            long allocated = mxBean.getThreadAllocatedBytes(threadId) - before;
+            System.out.println("routing(" + meta.bucketNum() + " buckets): " + elapsed / 1000000 + " ns/op, allocated " + allocated + " bytes / 1000000 ops");
+            if (warmup == 1) {
+                // 計測自体の誤差を許容する
+                assertTrue(allocated < 1024);
+            }
+        }
+        assertTrue(sink != 0);
+    }
+
     @Test
     public void testTree() throws Exception {
         DistributedOneToMany<String, String, String> tb = new DistributedOneToMany<String, String, String>(cache) {
@@ -306,10 +1877,8 @@ public class DistributedOneToManyTest {
             tb.put(key, valueKey, next);
         }
 
-        DistributedOneToMany.BucketMeta meta = (DistributedOneToMany.BucketMeta) cache.get(key);
-
         // ルートのLeafの件数が1件
-        Assert.assertEquals(1, meta.getTotalSize());
+        Assert.assertEquals(1, tb.getValues(key).size());
 
         // 更新されたvalueは10万になっている
         Integer result = (Integer) tb.get(key, valueKey);
@@ -321,7 +1890,7 @@ public class DistributedOneToManyTest {
     }
 
     /**
-     * removeでバケットマージが発生しても、rootのTree構造が管理するBranch,Leafのサイズが正しくなっていること
+     * removeでバケットマージが発生しても、件数が正しくなっていること
      */
     @Test
     public void testPut_and_remove_check_BranchSize() throws Exception {
@@ -362,8 +1931,7 @@ public class DistributedOneToManyTest {
         // System.out.println(toXML(result));
 
         // 件数が5件
-        DistributedOneToMany.BucketMeta meta = (DistributedOneToMany.BucketMeta) cache.get(key);
-        Assert.assertEquals(5, meta.getTotalSize());
+        Assert.assertEquals(5, tb.getValues(key).size());
     }
 
     @Test
@@ -446,8 +2014,7 @@ public class DistributedOneToManyTest {
 //        }
 //        System.out.println(toXML(result));
 
-        DistributedOneToMany.BucketMeta meta = (DistributedOneToMany.BucketMeta) cache.get(key);
-        Assert.assertEquals(4, meta.getTotalSize());
+        Assert.assertEquals(4, tb.getValues(key).size());
 
         // 更新されたvalueは10万になっている
         Integer result2 = tb.get(key, valueKey);
@@ -460,6 +2027,66 @@ public class DistributedOneToManyTest {
         return xstream.toXML(obj);
     }
 
+    public static class OwnerO2M extends TestO2M {
+
+        public OwnerO2M(Cache cache) {
+            super(cache);
+        }
+
+        @Override
+        public boolean isOwnerExecution() {
+            return true;
+        }
+    }
+
+    public static class BucketLockO2M extends TestO2M {
+
+        public BucketLockO2M(Cache cache) {
+            super(cache);
+        }
+
+        @Override
+        public LockMode getLockMode() {
+            return LockMode.BUCKET;
+        }
+    }
+
+    public static class MetaPageO2M extends TestO2M {
+
+        public MetaPageO2M(Cache cache) {
+            super(cache);
+        }
+
+        @Override
+        public int getMetaPageSize() {
+            return 8;
+        }
+    }
+
+    public static class ReverseIndexO2M extends TestO2M {
+
+        public ReverseIndexO2M(Cache cache) {
+            super(cache);
+        }
+
+        @Override
+        public boolean isReverseIndex() {
+            return true;
+        }
+    }
+
+    public static class NearCacheO2M extends TestO2M {
+
+        public NearCacheO2M(Cache cache) {
+            super(cache);
+        }
+
+        @Override
+        public int getNearCacheSize() {
+            return 100;
+        }
+    }
+
     static class TestO2M extends DistributedOneToMany<String, String, String> {
 
         public TestO2M(Cache cache) {
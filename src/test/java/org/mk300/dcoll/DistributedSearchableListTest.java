@@ -0,0 +1,275 @@
+/*
+ * Copyright 2016 Masazumi Kobayashi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mk300.dcoll;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mk300.dcoll.DistributedOneToMany.SubKeyPlacement;
+import org.mk300.dcoll.DistributedSearchableList.RangeMeta;
+import org.mk300.dcoll.DistributedSearchableList.SortedBucketEntry;
+
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class DistributedSearchableListTest {
+
+    static DefaultCacheManager manager;
+    static AdvancedCache cache;
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        manager = new DefaultCacheManager("infinispan-ut.xml");
+        manager.start();
+        cache = manager.getCache("testCache").getAdvancedCache();
+    }
+
+    @AfterClass
+    public static void afterClass() throws Exception {
+        manager.stop();
+    }
+
+    @Before
+    public void clean() {
+        cache.clear();
+    }
+
+    /**
+     * ランダムな更新後もTreeMapと同じ順序・内容となること
+     */
+    @Test
+    public void testRandomAgainstTreeMap() {
+        TestDSL tb = new TestDSL(cache);
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        Random random = new Random(1);
+
+        for (int i = 0; i < 20000; i++) {
+            int valueKey = random.nextInt(3000);
+            if (random.nextInt(3) > 0) {
+                assertEquals(expected.put(valueKey, "data" + i), tb.put("test1", valueKey, "data" + i));
+            } else {
+                assertEquals(expected.remove(valueKey), tb.remove("test1", valueKey));
+            }
+        }
+
+        RangeMeta meta = (RangeMeta) cache.get("test1");
+        assertTrue(meta.bucketNum() > 1);
+
+        assertEquals(expected, tb.getValues("test1"));
+        assertEquals(expected.subMap(500, 1500), tb.subMap("test1", 500, 1500));
+        assertEquals(expected.headMap(700), tb.subMap("test1", null, 700));
+        assertEquals(expected.tailMap(2900), tb.subMap("test1", 2900, null));
+        assertEquals(expected.firstKey(), tb.firstEntry("test1").getKey());
+        assertEquals(expected.lastKey(), tb.lastEntry("test1").getKey());
+
+        List<Integer> descending = new ArrayList<>();
+        for (Iterator<Entry<Integer, String>> it = tb.descendingIterator("test1"); it.hasNext();) {
+            descending.add(it.next().getKey());
+        }
+        assertEquals(new ArrayList<>(expected.descendingKeySet()), descending);
+
+        for (Integer valueKey : new ArrayList<>(expected.keySet())) {
+            assertEquals(expected.remove(valueKey), tb.remove("test1", valueKey));
+        }
+        assertNull(cache.get("test1"));
+        assertNull(tb.firstEntry("test1"));
+        assertFalse(tb.iterator("test1").hasNext());
+    }
+
+    /**
+     * 範囲検索は範囲に重なるバケットのみを読み取ること
+     */
+    @Test
+    public void testSubMapTouchesOverlappingBuckets() {
+        TestDSL tb = new TestDSL(cache);
+        for (int i = 0; i < 1000; i++) {
+            tb.put("test1", i, "data" + i);
+        }
+        RangeMeta meta = (RangeMeta) cache.get("test1");
+
+        // 範囲外のバケットを消しても結果に影響しない
+        int fromIndex = meta.getIndex(400, null);
+        int toIndex = meta.getIndex(420, null);
+        for (int i = 0; i < meta.bucketNum(); i++) {
+            if (i < fromIndex || i > toIndex) {
+                cache.remove(meta.getSubKey(i));
+            }
+        }
+        SortedMap<Integer, String> sub = tb.subMap("test1", 400, 420);
+        assertEquals(20, sub.size());
+        assertEquals(Integer.valueOf(400), sub.firstKey());
+        assertEquals(Integer.valueOf(419), sub.lastKey());
+    }
+
+    /**
+     * 古いバケット構成のイテレータが、分割・統合後のバケットを重複なく読み取ること
+     */
+    @Test
+    public void testIteratorOverTransfer() {
+        TestDSL tb = new TestDSL(cache);
+        for (int i = 0; i < 500; i++) {
+            tb.put("test1", i * 2, "data" + i);
+        }
+        Iterator<Entry<Integer, String>> it = tb.iterator("test1");
+
+        // 分割・統合を発生させる
+        for (int i = 0; i < 500; i++) {
+            tb.put("test1", i * 2 + 1, "odd" + i);
+        }
+        for (int i = 0; i < 1000; i += 3) {
+            tb.remove("test1", i);
+        }
+
+        int pre = -1;
+        while (it.hasNext()) {
+            int valueKey = it.next().getKey();
+            assertTrue(valueKey > pre);
+            pre = valueKey;
+        }
+    }
+
+    @Test
+    public void testComparator() {
+        TestDSL tb = new TestDSL(cache) {
+            @Override
+            public Comparator<? super Integer> getComparator() {
+                return Collections.reverseOrder();
+            }
+        };
+        for (int i = 0; i < 300; i++) {
+            tb.put("test1", i, "data" + i);
+        }
+        assertEquals(Integer.valueOf(299), tb.firstEntry("test1").getKey());
+        assertEquals(Integer.valueOf(0), tb.lastEntry("test1").getKey());
+        SortedMap<Integer, String> sub = tb.subMap("test1", 200, 100);
+        assertEquals(100, sub.size());
+        assertEquals(Integer.valueOf(200), sub.firstKey());
+        assertEquals("data150", tb.get("test1", 150));
+    }
+
+    /**
+     * 構造が変化しない追加・削除は差分で書き込み、キャッシュ上のバケットのインスタンスを変更しないこと。
+     * シリアライズできないComparatorの場合はバケット全体を書き込むこと。
+     */
+    @Test
+    public void testDeltaWrite() {
+        TestDSL tb = new TestDSL(cache);
+        TestDSL custom = new TestDSL(cache) {
+            @Override
+            public Comparator<? super Integer> getComparator() {
+                // シリアライズできないComparator
+                return new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer o1, Integer o2) {
+                        return o2.compareTo(o1);
+                    }
+                };
+            }
+        };
+
+        for (TestDSL target : Arrays.asList(tb, custom)) {
+            cache.clear();
+            for (int i = 0; i < 30; i++) {
+                target.put("test1", i, "data" + i);
+            }
+            RangeMeta meta = (RangeMeta) cache.get("test1");
+            SortedBucketEntry bucket = (SortedBucketEntry) cache.get(meta.getSubKey(0));
+            SortedBucketEntry copy = SortedBucketEntry.of((SortedMap<Object, Object>) bucket.toMap(target.getComparator()));
+
+            assertEquals("data5", target.put("test1", 5, "data5-2"));
+            assertNull(target.put("test1", 100, "data100"));
+            assertEquals("data6", target.remove("test1", 6));
+
+            // 読み取り中のインスタンスは変更されない
+            assertEquals(copy, bucket);
+            assertTrue(cache.get(meta.getSubKey(0)) instanceof SortedBucketEntry);
+            assertEquals("test1", ((SortedBucketEntry) cache.get(meta.getSubKey(0))).getKey());
+            assertEquals(meta, cache.get("test1"));
+
+            assertEquals(30, target.getValues("test1").size());
+            assertEquals("data5-2", target.get("test1", 5));
+            assertEquals("data100", target.get("test1", 100));
+            assertNull(target.get("test1", 6));
+        }
+    }
+
+    /**
+     * {@link SubKeyPlacement#GROUPED}の場合は、分割・統合後も全てのサブキーがkeyのグループを持つこと
+     */
+    @Test
+    public void testGroupedPlacement() {
+        TestDSL tb = new TestDSL(cache) {
+            @Override
+            public SubKeyPlacement getSubKeyPlacement() {
+                return SubKeyPlacement.GROUPED;
+            }
+        };
+        for (int i = 0; i < 500; i++) {
+            tb.put("test1", i, "data" + i);
+        }
+        for (int i = 0; i < 500; i += 2) {
+            tb.remove("test1", i);
+        }
+        List<SubKey> subKeyList = tb.getSubKeyList("test1");
+        assertTrue(subKeyList.size() > 1);
+        for (SubKey subKey : subKeyList) {
+            assertEquals("test1", subKey.getGroup());
+            assertTrue(cache.get(subKey) instanceof SortedBucketEntry);
+        }
+        assertEquals(250, tb.getValues("test1").size());
+    }
+
+    static class TestDSL extends DistributedSearchableList<String, Integer, String> {
+
+        public TestDSL(Cache cache) {
+            super(cache);
+        }
+
+        @Override
+        public int getMaxBucketSize() {
+            return 50;
+        }
+
+        @Override
+        public int getMinCompactionBucketSize() {
+            return 10;
+        }
+
+        @Override
+        public long getTransferExpireMills() {
+            return 100;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2016 Masazumi Kobayashi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mk300.dcoll;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.infinispan.commons.marshall.AdvancedExternalizer;
+import org.junit.Test;
+import org.mk300.dcoll.DistributedOneToMany.BucketDelta;
+import org.mk300.dcoll.DistributedOneToMany.BucketEntry;
+import org.mk300.dcoll.DistributedOneToMany.BucketMeta;
+import org.mk300.dcoll.DistributedOneToMany.BucketMetaRoot;
+import org.mk300.dcoll.DistributedOneToMany.BucketTrasfer;
+import org.mk300.dcoll.DistributedOneToMany.Externalizers;
+import org.mk300.dcoll.DistributedSearchableList.RangeMeta;
+import org.mk300.dcoll.DistributedSearchableList.RangeMetaExternalizer;
+import org.mk300.dcoll.DistributedSearchableList.SortedBucketDelta;
+import org.mk300.dcoll.DistributedSearchableList.SortedBucketDeltaExternalizer;
+import org.mk300.dcoll.DistributedSearchableList.SortedBucketEntry;
+import org.mk300.dcoll.DistributedSearchableList.SortedBucketEntryExternalizer;
+
+/**
+ * AdvancedExternalizerの往復と、Javaシリアライゼーションとのサイズ・スループットの比較
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class ExternalizersTest {
+
+    @Test
+    public void testBucketMeta() throws Exception {
+        BucketMeta meta = new BucketMeta();
+        meta.setGroup("group1");
+        for (int i = 0; i < 100; i++) {
+            meta.splitDown(meta.bucketNum() - 1);
+        }
+        for (int i = 0; i < meta.bucketNum(); i++) {
+            meta.setBucketSize(i, i * 3);
+        }
+        // 他ノードで生成されたサブキー
+        meta.splitDown(50, new DistributedOneToMany.SubKeyFactory() {
+            @Override
+            public SubKey newSubKey() {
+                return new SubKey(12345L, Long.MAX_VALUE);
+            }
+        });
+
+        BucketMeta copy = roundTrip(new Externalizers.BucketMetaExternalizer(), meta);
+        assertEquals(meta, copy);
+        assertEquals(meta.getSubKeyList(), copy.getSubKeyList());
+
+        compare("BucketMeta(" + meta.bucketNum() + " buckets)", new Externalizers.BucketMetaExternalizer(), meta);
+    }
+
+    @Test
+    public void testBucketMetaRoot() throws Exception {
+        List<SubKey> pageList = new ArrayList<>();
+        int[] minHash = new int[20];
+        for (int i = 0; i < minHash.length; i++) {
+            minHash[i] = Integer.MIN_VALUE + i * 200000000;
+            pageList.add(new SubKey());
+        }
+        BucketMetaRoot root = new BucketMetaRoot(minHash, pageList, "group1");
+
+        BucketMetaRoot copy = roundTrip(new Externalizers.BucketMetaRootExternalizer(), root);
+        assertEquals(root, copy);
+        assertEquals(pageList, copy.getSubKeyList());
+
+        compare("BucketMetaRoot(20 pages)", new Externalizers.BucketMetaRootExternalizer(), root);
+    }
+
+    @Test
+    public void testBucketEntry() throws Exception {
+        BucketEntry bucket = new BucketEntry("key1");
+        for (int i = 0; i < 500; i++) {
+            bucket.getValueMap().put("valueKey" + i, "data" + i);
+        }
+
+        BucketEntry copy = roundTrip(new Externalizers.BucketEntryExternalizer(), bucket);
+        assertEquals(bucket, copy);
+        assertEquals("key1", copy.getKey());
+
+        compare("BucketEntry(500 entries)", new Externalizers.BucketEntryExternalizer(), bucket);
+    }
+
+    @Test
+    public void testBucketDelta() throws Exception {
+        BucketDelta delta = BucketDelta.put("valueKey1", "data1");
+        delta.getRemoveSet().add("valueKey2");
+        delta.setKey("key1");
+
+        BucketDelta copy = roundTrip(new Externalizers.BucketDeltaExternalizer(), delta);
+        assertEquals(delta.isClear(), copy.isClear());
+        assertEquals(delta.getKey(), copy.getKey());
+        assertEquals(delta.getPutMap(), copy.getPutMap());
+        assertEquals(delta.getRemoveSet(), copy.getRemoveSet());
+
+        compare("BucketDelta(put 1)", new Externalizers.BucketDeltaExternalizer(), BucketDelta.put("valueKey1", "data1"));
+    }
+
+    @Test
+    public void testBucketTrasferAndSubKey() throws Exception {
+        BucketTrasfer transfer = new BucketTrasfer();
+        transfer.getTransSubKeyList().add(new SubKey());
+        transfer.getTransSubKeyList().add(new SubKey(-1L, -1L, "group1"));
+
+        BucketTrasfer copy = roundTrip(new Externalizers.BucketTrasferExternalizer(), transfer);
+        assertEquals(transfer, copy);
+        assertEquals("group1", copy.getTransSubKeyList().get(1).getGroup());
+
+        SubKey subKey = new SubKey(1L, 2L, "group1");
+        SubKey subKeyCopy = roundTrip(new Externalizers.SubKeyExternalizer(), subKey);
+        assertEquals(subKey, subKeyCopy);
+        assertEquals("group1", subKeyCopy.getGroup());
+
+        compare("SubKey", new Externalizers.SubKeyExternalizer(), new SubKey());
+    }
+
+    @Test
+    public void testRangeMeta() throws Exception {
+        RangeMeta meta = new RangeMeta();
+        meta.setGroup("group1");
+        for (int i = 1; i <= 100; i++) {
+            meta.splitDown(meta.bucketNum() - 1, i * 10);
+        }
+        for (int i = 0; i < meta.bucketNum(); i++) {
+            meta.setBucketSize(i, i * 3);
+        }
+
+        RangeMeta copy = roundTrip(new RangeMetaExternalizer(), meta);
+        assertEquals(meta, copy);
+        assertEquals(meta.getSubKeyList(), copy.getSubKeyList());
+        assertEquals("group1", copy.getSubKey(0).getGroup());
+        assertEquals(50, copy.getIndex(505, null));
+
+        compare("RangeMeta(" + meta.bucketNum() + " buckets)", new RangeMetaExternalizer(), meta);
+    }
+
+    @Test
+    public void testSortedBucketEntry() throws Exception {
+        TreeMap<Object, Object> map = new TreeMap<>();
+        for (int i = 0; i < 500; i++) {
+            map.put(i, "data" + i);
+        }
+        SortedBucketEntry bucket = new SortedBucketEntry("key1");
+        for (int i = 0; i < 500; i++) {
+            bucket = (SortedBucketEntry) new SortedBucketDelta("key1", i, "data" + i, null).merge(bucket);
+        }
+        assertEquals(SortedBucketEntry.of(map), bucket);
+
+        SortedBucketEntry copy = roundTrip(new SortedBucketEntryExternalizer(), bucket);
+        assertEquals(bucket, copy);
+        assertEquals("key1", copy.getKey());
+        assertEquals(0, roundTrip(new SortedBucketEntryExternalizer(), new SortedBucketEntry()).size());
+
+        compare("SortedBucketEntry(500 entries)", new SortedBucketEntryExternalizer(), bucket);
+    }
+
+    @Test
+    public void testSortedBucketDelta() throws Exception {
+        SortedBucketDelta delta = new SortedBucketDelta("key1", 1, "data1", Collections.reverseOrder());
+        SortedBucketDelta copy = roundTrip(new SortedBucketDeltaExternalizer(), delta);
+        assertEquals("key1", copy.getKey());
+        assertEquals(1, copy.getValueKey());
+        assertEquals("data1", copy.getValue());
+
+        // マージ結果が一致すること(Comparatorも復元される)
+        SortedBucketEntry bucket = (SortedBucketEntry) new SortedBucketDelta("key1", 0, "data0", Collections.reverseOrder()).merge(null);
+        SortedBucketEntry merged = (SortedBucketEntry) copy.merge(bucket);
+        assertEquals(delta.merge(bucket), merged);
+        assertEquals(1, merged.keyAt(0));
+        assertEquals(1, bucket.size());
+
+        // 削除
+        SortedBucketDelta remove = roundTrip(new SortedBucketDeltaExternalizer(), new SortedBucketDelta("key1", 1, null, Collections.reverseOrder()));
+        assertEquals(bucket, remove.merge(merged));
+
+        // バケット全体の置き換え
+        SortedBucketDelta replace = roundTrip(new SortedBucketDeltaExternalizer(), (SortedBucketDelta) merged.delta());
+        assertEquals(merged, replace.merge(bucket));
+
+        compare("SortedBucketDelta(put 1)", new SortedBucketDeltaExternalizer(), new SortedBucketDelta("key1", 1, "data1", null));
+    }
+
+    @Test
+    public void testIds() throws Exception {
+        AdvancedExternalizer<?>[] all = Externalizers.getAll();
+        assertEquals(11, all.length);
+        for (int i = 0; i < all.length; i++) {
+            assertEquals(Externalizers.BUCKET_META_ID + i, all[i].getId().intValue());
+        }
+    }
+
+    private static <T> T roundTrip(AdvancedExternalizer<T> externalizer, T object) throws Exception {
+        return (T) read(externalizer, write(externalizer, object));
+    }
+
+    private static byte[] write(AdvancedExternalizer externalizer, Object object) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        if (externalizer != null) {
+            externalizer.writeObject(out, object);
+        } else {
+            out.writeObject(object);
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Object read(AdvancedExternalizer externalizer, byte[] data) throws Exception {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+        if (externalizer != null) {
+            return externalizer.readObject(in);
+        } else {
+            return in.readObject();
+        }
+    }
+
+    /**
+     * バイトサイズとスループットをJavaシリアライゼーションと比較する。
+     */
+    private static void compare(String name, AdvancedExternalizer externalizer, Object object) throws Exception {
+        int serializedSize = write(null, object).length;
+        int externalizedSize = write(externalizer, object).length;
+
+        long serializedNanos = measure(null, object);
+        long externalizedNanos = measure(externalizer, object);
+
+        System.out.println(name + ": size " + serializedSize + " -> " + externalizedSize + " bytes, write+read " + serializedNanos / 1000 + " -> "
+                + externalizedNanos / 1000 + " us/op");
+        assertTrue(externalizedSize < serializedSize);
+    }
+
+    private static long measure(AdvancedExternalizer externalizer, Object object) throws Exception {
+        int loop = 2000;
+        // warm up
+        for (int i = 0; i < loop; i++) {
+            read(externalizer, write(externalizer, object));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < loop; i++) {
+            read(externalizer, write(externalizer, object));
+        }
+        return (System.nanoTime() - start) / loop;
+    }
+}
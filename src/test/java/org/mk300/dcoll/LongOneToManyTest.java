@@ -0,0 +1,189 @@
+/*
+ * Copyright 2016 Masazumi Kobayashi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mk300.dcoll;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mk300.dcoll.DistributedOneToMany.BucketEntry;
+import org.mk300.dcoll.LongOneToMany.LongBucketDelta;
+import org.mk300.dcoll.LongOneToMany.LongBucketEntry;
+
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class LongOneToManyTest {
+
+    static DefaultCacheManager manager;
+    static AdvancedCache cache;
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        manager = new DefaultCacheManager("infinispan-ut.xml");
+        manager.start();
+        cache = manager.getCache("testCache").getAdvancedCache();
+    }
+
+    @AfterClass
+    public static void afterClass() throws Exception {
+        manager.stop();
+    }
+
+    @Before
+    public void clean() {
+        cache.clear();
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        TestL2M tb = new TestL2M(cache);
+
+        for (long i = 0; i < 10000; i++) {
+            assertNull(tb.put("test1", i * 7919, "data" + i));
+        }
+        assertEquals("data0", tb.put("test1", 0L, "data0-2"));
+        assertEquals("data0-2", tb.get("test1", 0L));
+        assertTrue(tb.getSubKeyList("test1").size() > 1);
+
+        Map<Long, String> values = tb.getValues("test1");
+        assertEquals(10000, values.size());
+        for (long i = 1; i < 10000; i++) {
+            assertEquals("data" + i, tb.get("test1", i * 7919));
+            assertEquals("data" + i, values.get(i * 7919));
+        }
+        assertFalse(tb.isContains("test1", 1L));
+
+        for (long i = 0; i < 9999; i++) {
+            assertEquals(i == 0 ? "data0-2" : "data" + i, tb.remove("test1", i * 7919));
+        }
+        assertNull(tb.remove("test1", 0L));
+        assertEquals(1, tb.getValues("test1").size());
+        assertEquals(1, tb.getSubKeyList("test1").size());
+
+        assertEquals("data9999", tb.remove("test1", 9999L * 7919));
+        assertNull(cache.get("test1"));
+
+        tb.put("test1", 1L, "data");
+        assertTrue(tb.remove("test1"));
+        assertFalse(tb.remove("test1"));
+    }
+
+    /**
+     * オープンアドレス法のテーブルがHashMapと同じ結果となること(削除時の詰め直しを含む)
+     */
+    @Test
+    public void testBucketEntry() throws Exception {
+        Random random = new Random(1);
+        LongBucketEntry<String, String> bucket = new LongBucketEntry<>("key1");
+        Map<Long, String> expected = new HashMap<>();
+
+        for (int i = 0; i < 100000; i++) {
+            long valueKey = random.nextInt(500);
+            if (random.nextBoolean()) {
+                assertEquals(expected.put(valueKey, "data" + i), bucket.put(valueKey, "data" + i));
+            } else {
+                assertEquals(expected.remove(valueKey), bucket.remove(valueKey));
+            }
+            assertEquals(expected.size(), bucket.size());
+        }
+        for (long valueKey = 0; valueKey < 500; valueKey++) {
+            assertEquals(expected.get(valueKey), bucket.get(valueKey));
+        }
+
+        // シリアライズ
+        LongBucketEntry<String, String> copy = (LongBucketEntry) deserialize(serialize(bucket));
+        assertEquals(bucket, copy);
+        assertEquals("key1", copy.getKey());
+
+        // 差分のマージは元のバケットを変更しない
+        LongBucketEntry<String, String> merged = (LongBucketEntry) LongBucketDelta.put(1000L, "new").merge(bucket);
+        assertEquals("new", merged.get(1000L));
+        assertNull(bucket.get(1000L));
+        assertEquals("key1", merged.getKey());
+    }
+
+    /**
+     * BucketEntry(Long, ConcurrentHashMap)とのサイズ比較
+     */
+    @Test
+    public void testFootprint() throws Exception {
+        int num = 500;
+        BucketEntry<String, Long, Long> boxed = new BucketEntry<>("key1");
+        LongBucketEntry<String, Long> primitive = new LongBucketEntry<>("key1");
+        for (long i = 0; i < num; i++) {
+            boxed.getValueMap().put(i * 7919, i);
+            primitive.put(i * 7919, i);
+        }
+
+        int boxedSize = serialize(boxed).length;
+        int primitiveSize = serialize(primitive).length;
+
+        // ヒープ上の概算: ConcurrentHashMapのノード(32)+Long(16)+テーブル参照(4～8) / long(8)+参照(4～8)をロードファクタ0.75で確保
+        System.out.println("BucketEntry(" + num + " long keys): serialized " + boxedSize + " -> " + primitiveSize + " bytes, table slots "
+                + primitive.capacity());
+        assertTrue(primitiveSize < boxedSize);
+    }
+
+    private static byte[] serialize(Object object) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] data) throws Exception {
+        return new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+    }
+
+    static class TestL2M extends LongOneToMany<String, String> {
+
+        public TestL2M(Cache cache) {
+            super(cache);
+        }
+
+        @Override
+        public int getMaxBucketSize() {
+            return 50;
+        }
+
+        @Override
+        public int getMinCompactionBucketSize() {
+            return 10;
+        }
+
+        @Override
+        public long getTransferExpireMills() {
+            return 100;
+        }
+    }
+}